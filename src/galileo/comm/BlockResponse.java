@@ -1,9 +1,14 @@
 package galileo.comm;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 import galileo.dataset.Block;
+import galileo.dataset.BlockContent;
+import galileo.dataset.FileContent;
 import galileo.event.Event;
+import galileo.net.FileRegion;
+import galileo.net.FileTransfer;
 import galileo.serialization.SerializationException;
 import galileo.serialization.SerializationInputStream;
 import galileo.serialization.SerializationOutputStream;
@@ -33,4 +38,36 @@ public class BlockResponse implements Event {
 		for(Block block : blocks)
 			block.serialize(out);
 	}
+
+	@Override
+	public int serializedSizeHint() {
+		return Block.totalSizeHint(4, Arrays.asList(blocks));
+	}
+
+	/**
+	 * Produces the serialized form of this response as a {@link FileTransfer}.
+	 * The data of blocks backed by a {@link FileContent} is added as a region
+	 * of the block file, so it is sent without being read onto the heap; the
+	 * transfer takes over those files. The result is identical to
+	 * {@link #serialize(SerializationOutputStream)}, so receivers deserialize
+	 * a regular BlockResponse.
+	 */
+	public FileTransfer toTransfer() throws IOException {
+		FileTransfer transfer = new FileTransfer();
+		SerializationOutputStream out = new SerializationOutputStream(transfer);
+		out.writeInt(blocks.length);
+		for (Block block : blocks) {
+			BlockContent content = block.getContent();
+			if (content instanceof FileContent) {
+				FileContent file = (FileContent) content;
+				block.serializeHeader(out);
+				out.flush();
+				transfer.addRegion(new FileRegion(file.getChannel(), 0, file.size()));
+			} else {
+				block.serialize(out);
+			}
+		}
+		out.flush();
+		return transfer;
+	}
 }
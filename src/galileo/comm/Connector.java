@@ -1,77 +1,214 @@
-package galileo.comm;
-
-import java.io.IOException;
-import java.util.concurrent.CountDownLatch;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
-import galileo.client.EventPublisher;
-import galileo.event.BasicEventWrapper;
-import galileo.event.Event;
-import galileo.event.EventWrapper;
-import galileo.net.ClientMessageRouter;
-import galileo.net.GalileoMessage;
-import galileo.net.MessageListener;
-import galileo.net.NetworkDestination;
-
-public class Connector implements MessageListener {
-
-	private static final Logger logger = Logger.getLogger(Connector.class.getName());
-	private static GalileoEventMap eventMap = new GalileoEventMap();
-	private static EventWrapper wrapper = new BasicEventWrapper(eventMap);
-	private ClientMessageRouter messageRouter;
-	private Event response;
-	private CountDownLatch latch;
-
-	public Connector() throws IOException {
-		this.messageRouter = new ClientMessageRouter();
-		this.messageRouter.addListener(this);
-	}
-
-	public synchronized Event sendMessage(NetworkDestination server, Event request) throws IOException, InterruptedException {
-		messageRouter.sendMessage(server, EventPublisher.wrapEvent(request));
-		logger.fine("Request sent. Waiting for response");
-		try {
-			this.latch = new CountDownLatch(1);
-			this.latch.await();
-		} catch (InterruptedException e) {
-			throw e;
-		}
-		return response;
-	}
-	
-	public void publishEvent(NetworkDestination server, Event request) throws IOException {
-		messageRouter.sendMessage(server, EventPublisher.wrapEvent(request));
-	}
-
-	@Override
-	public void onMessage(GalileoMessage message) {
-		try {
-			logger.fine("Obtained response from Galileo");
-			this.response = wrapper.unwrap(message);
-		} catch (Exception e) {
-			logger.log(Level.SEVERE, "failed to get the response from Galileo", e);
-		} finally {
-			this.latch.countDown();
-		}
-	}
-
-	public void close() {
-		try {
-			this.messageRouter.shutdown();
-		} catch (Exception e) {
-			logger.log(Level.SEVERE, "Failed to shutdown the router", e);
-		}
-	}
-
-	@Override
-	public void onConnect(NetworkDestination destination) {
-		logger.fine("Successfully connected to Galileo on " + destination);
-	}
-
-	@Override
-	public void onDisconnect(NetworkDestination destination) {
-		logger.fine("Disconnected from galileo on " + destination);
-	}
-}
-
+package galileo.comm;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import galileo.event.BasicEventWrapper;
+import galileo.event.Event;
+import galileo.net.ClientMessageRouter;
+import galileo.net.GalileoMessage;
+import galileo.net.MessageListener;
+import galileo.net.NetworkDestination;
+
+/**
+ * Client-side connection to one or more Galileo nodes. Requests are tagged
+ * with a correlation id that the nodes echo in their replies, so any number of
+ * requests may be outstanding on a single connection. The number of requests
+ * in flight is bounded; once the limit is reached, senders block until a reply
+ * arrives.
+ * <p>
+ * Futures are completed from a shared pool of threads rather than the threads
+ * that receive replies or detect timeouts, so callbacks attached to them may
+ * block, or send further requests, without stalling the connection.
+ */
+public class Connector implements MessageListener {
+
+	private static final Logger logger = Logger.getLogger(Connector.class.getName());
+	private static GalileoEventMap eventMap = new GalileoEventMap();
+	private static BasicEventWrapper wrapper = new BasicEventWrapper(eventMap);
+
+	/** Default maximum number of outstanding requests per connector */
+	public static final int DEFAULT_MAX_IN_FLIGHT = Integer
+			.getInteger("galileo.comm.Connector.maxInFlight", 64);
+
+	/** Default reply timeout in milliseconds; 0 waits indefinitely */
+	public static final long DEFAULT_TIMEOUT = Long.getLong("galileo.comm.Connector.timeout", 0);
+
+	private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "galileo-connector-timeout");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private static final ExecutorService completions = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "galileo-connector-reply");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private ClientMessageRouter messageRouter;
+	private Semaphore permits;
+	private long timeout;
+	private AtomicLong nextTag = new AtomicLong(1);
+	private Map<Long, PendingRequest> pending = new ConcurrentHashMap<>();
+
+	private static class PendingRequest {
+		private NetworkDestination server;
+		private CompletableFuture<Event> future = new CompletableFuture<>();
+
+		private PendingRequest(NetworkDestination server) {
+			this.server = server;
+		}
+	}
+
+	public Connector() throws IOException {
+		this(DEFAULT_MAX_IN_FLIGHT, DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * @param maxInFlight
+	 *            maximum number of requests awaiting a reply at any time
+	 * @param timeout
+	 *            milliseconds to wait for each reply before failing the
+	 *            request with a {@link TimeoutException}; 0 waits indefinitely
+	 */
+	public Connector(int maxInFlight, long timeout) throws IOException {
+		if (maxInFlight < 1)
+			throw new IllegalArgumentException("maxInFlight must be positive");
+		this.permits = new Semaphore(maxInFlight);
+		this.timeout = timeout;
+		this.messageRouter = new ClientMessageRouter();
+		this.messageRouter.addListener(this);
+	}
+
+	/**
+	 * Sends a request and waits for its reply.
+	 */
+	public Event sendMessage(NetworkDestination server, Event request) throws IOException, InterruptedException {
+		CompletableFuture<Event> future = sendAsync(server, request);
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException("Request to " + server + " failed", cause);
+		}
+	}
+
+	/**
+	 * Sends a request without waiting for its reply. Blocks only while the
+	 * maximum number of requests are already in flight.
+	 *
+	 * @return a future completed with the reply, or exceptionally if the
+	 *         request times out, the connection is lost, or the reply cannot
+	 *         be read.
+	 */
+	public CompletableFuture<Event> sendAsync(NetworkDestination server, Event request)
+			throws IOException, InterruptedException {
+		permits.acquire();
+		final long tag = nextTag.getAndIncrement();
+		PendingRequest req = new PendingRequest(server);
+		req.future.whenComplete((response, error) -> {
+			pending.remove(tag);
+			permits.release();
+		});
+		pending.put(tag, req);
+
+		try {
+			messageRouter.sendMessage(server, wrapper.wrap(request, tag));
+		} catch (IOException | RuntimeException e) {
+			req.future.completeExceptionally(e);
+			throw e;
+		}
+		logger.fine("Request sent");
+
+		if (timeout > 0) {
+			final ScheduledFuture<?> expiry = timer.schedule(() -> fail(req,
+					new TimeoutException("No reply from " + server + " within " + timeout + " ms")),
+					timeout, TimeUnit.MILLISECONDS);
+			req.future.whenComplete((response, error) -> expiry.cancel(false));
+		}
+		return req.future;
+	}
+
+	public void publishEvent(NetworkDestination server, Event request) throws IOException {
+		messageRouter.sendMessage(server, wrapper.wrap(request));
+	}
+
+	@Override
+	public void onMessage(GalileoMessage message) {
+		if (message == null || !BasicEventWrapper.isTagged(message)) {
+			logger.warning("Discarding a reply without a request tag");
+			if (message != null)
+				message.release();
+			return;
+		}
+		PendingRequest req = pending.get(BasicEventWrapper.getTag(message));
+		if (req == null) {
+			logger.fine("Discarding a reply to a request that already completed");
+			message.release();
+			return;
+		}
+		try {
+			logger.fine("Obtained response from Galileo");
+			final Event response = wrapper.unwrap(message);
+			completions.execute(() -> req.future.complete(response));
+		} catch (Exception e) {
+			logger.log(Level.SEVERE, "failed to get the response from Galileo", e);
+			fail(req, e);
+		} finally {
+			message.release();
+		}
+	}
+
+	/**
+	 * Fails a request from the completion pool.
+	 */
+	private static void fail(PendingRequest req, Throwable error) {
+		completions.execute(() -> req.future.completeExceptionally(error));
+	}
+
+	public void close() {
+		failPending(null, "Connector closed");
+		try {
+			this.messageRouter.shutdown();
+		} catch (Exception e) {
+			logger.log(Level.SEVERE, "Failed to shutdown the router", e);
+		}
+	}
+
+	/**
+	 * Fails outstanding requests to the given server, or to all servers if
+	 * server is null.
+	 */
+	private void failPending(NetworkDestination server, String reason) {
+		for (PendingRequest req : pending.values())
+			if (server == null || server.equals(req.server))
+				fail(req, new IOException(reason));
+	}
+
+	@Override
+	public void onConnect(NetworkDestination destination) {
+		logger.fine("Successfully connected to Galileo on " + destination);
+	}
+
+	@Override
+	public void onDisconnect(NetworkDestination destination) {
+		logger.fine("Disconnected from galileo on " + destination);
+		failPending(destination, "Disconnected from " + destination);
+	}
+}
@@ -45,6 +45,10 @@ public class DebugEvent implements Event {
         this.payload = payload;
     }
 
+    public byte[] getPayload() {
+        return this.payload;
+    }
+
     @Deserialize
     public DebugEvent(SerializationInputStream in)
     throws IOException, SerializationException {
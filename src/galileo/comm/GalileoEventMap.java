@@ -33,11 +33,14 @@ public class GalileoEventMap extends EventMap {
 
         addMapping(100, StorageEvent.class);
         addMapping(101, StorageRequest.class);
+        addMapping(102, StorageBatchEvent.class);
+        addMapping(103, StorageBatchRequest.class);
 
         addMapping(200, QueryEvent.class);
         addMapping(201, QueryRequest.class);
         addMapping(202, QueryPreamble.class);
         addMapping(203, QueryResponse.class);
+        addMapping(204, QueryCancelEvent.class);
         
         addMapping(301, MetadataRequest.class);
         addMapping(302, MetadataResponse.class);
@@ -29,6 +29,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -157,9 +159,18 @@ public class QueryResponse implements Event {
 				}
 				lastND = pair.a;
 			}
+			/* issue every request before waiting so that the nodes serve them concurrently */
+			List<CompletableFuture<Event>> responses = new ArrayList<>();
+			for(Pair<NetworkDestination, BlockRequest> request : requests)
+				responses.add(connector.sendAsync(request.a, request.b));
 			List<Block> blocks = new ArrayList<>();
-			for(Pair<NetworkDestination, BlockRequest> request : requests){
-				BlockResponse response = (BlockResponse) connector.sendMessage(request.a, request.b);
+			for(CompletableFuture<Event> future : responses){
+				BlockResponse response;
+				try {
+					response = (BlockResponse) future.get();
+				} catch (ExecutionException e) {
+					throw new IOException("Failed to retrieve blocks", e.getCause());
+				}
 				for(Block block : response.getBlocks())
 					blocks.add(block);
 			}
@@ -61,4 +61,9 @@ public class StorageEvent implements Event {
     throws IOException {
         block.serialize(out);
     }
+
+    @Override
+    public int serializedSizeHint() {
+        return block.serializedSizeHint();
+    }
 }
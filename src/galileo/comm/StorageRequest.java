@@ -60,4 +60,9 @@ public class StorageRequest implements Event {
     throws IOException {
         block.serialize(out);
     }
+
+    @Override
+    public int serializedSizeHint() {
+        return block.serializedSizeHint();
+    }
 }
@@ -25,7 +25,10 @@ software, even if advised of the possibility of such damage.
 
 package galileo.dataset;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collection;
 
 import galileo.serialization.ByteSerializable;
 import galileo.serialization.SerializationException;
@@ -38,11 +41,13 @@ import galileo.serialization.SerializationOutputStream;
  *
  * @author malensek
  */
+@ByteSerializable.LengthPrefixed
 public class Block implements ByteSerializable {
 
 	private String filesystem;
 	private Metadata metadata;
 	private byte[] data;
+	private BlockContent content;
 
 	public Block(String filesystem, byte[] data) {
 		this.filesystem = filesystem;
@@ -56,6 +61,17 @@ public class Block implements ByteSerializable {
 		this.data = data;
 	}
 
+	/**
+	 * Creates a Block whose data is supplied by a {@link BlockContent}. The
+	 * content is streamed when the Block is serialized and only copied onto
+	 * the heap if {@link #getData()} is called.
+	 */
+	public Block(String filesystem, Metadata metadata, BlockContent content) {
+		this.filesystem = filesystem;
+		this.metadata = metadata;
+		this.content = content;
+	}
+
 	public String getFilesystem() {
 		return this.filesystem;
 	}
@@ -65,6 +81,15 @@ public class Block implements ByteSerializable {
 	}
 
 	public byte[] getData() {
+		if (data == null && content != null) {
+			try {
+				ByteArrayOutputStream out = new ByteArrayOutputStream(content.size());
+				content.writeTo(out);
+				data = out.toByteArray();
+			} catch (IOException e) {
+				throw new UncheckedIOException("Failed to read block content", e);
+			}
+		}
 		return data;
 	}
 
@@ -77,8 +102,84 @@ public class Block implements ByteSerializable {
         	this.data = in.readField();
 	}
 
+	/**
+	 * @return the content supplying this Block's data, or null if the data is
+	 *         held in a byte array.
+	 */
+	public BlockContent getContent() {
+		return (this.data == null) ? this.content : null;
+	}
+
+	/**
+	 * Serializes everything that precedes the content of a Block backed by a
+	 * {@link BlockContent}. Writing exactly {@code content.size()} bytes of
+	 * content afterward completes the serialized form, which allows the
+	 * content to be sent separately (for instance, straight from a file).
+	 */
+	public void serializeHeader(SerializationOutputStream out) throws IOException {
+		serializeHeader(out, content.size());
+	}
+
+	private void serializeHeader(SerializationOutputStream out, int size) throws IOException {
+		out.writeString(filesystem);
+		out.writeBoolean(this.metadata != null);
+		if (this.metadata != null)
+			out.writeSerializable(metadata);
+		out.writeBoolean(true);
+		out.writeLength(size);
+	}
+
+	/**
+	 * Metadata that cannot estimate its own size is assumed to be small, so
+	 * the estimate is dominated by the size of the block data.
+	 */
+	@Override
+	public int serializedSizeHint() {
+		long size = 4 + filesystem.length() + 1 + 1 + 4;
+		if (this.metadata != null) {
+			int metadataSize = metadata.serializedSizeHint();
+			size += (metadataSize >= 0) ? metadataSize : 256;
+		}
+		if (this.data != null) {
+			size += this.data.length;
+		} else if (this.content != null) {
+			try {
+				size += content.size();
+			} catch (IOException e) {
+				return -1;
+			}
+		}
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Estimates the serialized size of a collection of blocks, along with
+	 * {@code base} bytes of surrounding fields.
+	 *
+	 * @return the estimate, or -1 if the size of any block is unknown.
+	 */
+	public static int totalSizeHint(int base, Collection<Block> blocks) {
+		long size = base;
+		for (Block block : blocks) {
+			int blockSize = block.serializedSizeHint();
+			if (blockSize < 0)
+				return -1;
+			size += blockSize;
+		}
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+
 	@Override
 	public void serialize(SerializationOutputStream out) throws IOException {
+		if (this.data == null && this.content != null) {
+			int size = content.size();
+			serializeHeader(out, size);
+			int start = out.size();
+			content.writeTo(out);
+			if (out.size() - start != size)
+				throw new IOException("Block content size changed while it was being written");
+			return;
+		}
 		out.writeString(filesystem);
 		out.writeBoolean(this.metadata != null);
 		if (this.metadata != null)
@@ -58,7 +58,7 @@ public class BlockArray implements ByteSerializable, Iterable<FileBlock> {
 
     public BlockArray(SerializationInputStream in)
     throws IOException, SerializationException {
-        int numBlocks = in.readInt();
+        int numBlocks = in.readLength();
         for (int i = 0; i < numBlocks; ++i) {
             FileBlock block = new FileBlock(in);
             blocks.add(block);
@@ -68,7 +68,7 @@ public class BlockArray implements ByteSerializable, Iterable<FileBlock> {
     @Override
     public void serialize(SerializationOutputStream out)
     throws IOException {
-        out.writeInt(blocks.size());
+        out.writeLength(blocks.size());
         for (FileBlock block : blocks) {
             block.serialize(out);
         }
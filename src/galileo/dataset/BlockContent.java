@@ -0,0 +1,47 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.dataset;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Supplies the data of a {@link Block} without requiring it to be held on the
+ * heap as a byte array.  Implementations typically stream their data from a
+ * memory-mapped file when the Block is serialized.
+ */
+public interface BlockContent {
+
+    /**
+     * @return the number of bytes {@link #writeTo(OutputStream)} will write.
+     */
+    public int size() throws IOException;
+
+    /**
+     * Writes exactly {@link #size()} bytes of content to the given stream.
+     */
+    public void writeTo(OutputStream out) throws IOException;
+}
@@ -38,6 +38,7 @@ import galileo.serialization.SerializationOutputStream;
  *
  * @author malensek
  */
+@ByteSerializable.LengthPrefixed
 public class BlockMetadata implements ByteSerializable {
 
     private String name = "";
@@ -0,0 +1,88 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.dataset;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link BlockContent} backed by an open block file.  The content can be
+ * streamed like any other, or sent directly from the file (without being read
+ * onto the heap) by handing its channel to the network layer.  The channel
+ * remains usable if the file is deleted after it has been opened.
+ */
+public class FileContent implements BlockContent, Closeable {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private FileChannel channel;
+    private int size;
+
+    /**
+     * @param channel channel of the block file, positioned anywhere.
+     * @param size number of bytes of content, starting at the beginning of
+     * the file.
+     */
+    public FileContent(FileChannel channel, int size) {
+        this.channel = channel;
+        this.size = size;
+    }
+
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void writeTo(OutputStream out)
+    throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(Math.min(CHUNK_SIZE, size));
+        long position = 0;
+        while (position < size) {
+            chunk.clear();
+            chunk.limit((int) Math.min(chunk.capacity(), size - position));
+            int read = channel.read(chunk, position);
+            if (read < 0) {
+                throw new IOException("Block file was truncated");
+            }
+            out.write(chunk.array(), 0, read);
+            position += read;
+        }
+    }
+
+    @Override
+    public void close()
+    throws IOException {
+        channel.close();
+    }
+}
@@ -36,6 +36,7 @@ import galileo.serialization.SerializationException;
 import galileo.serialization.SerializationInputStream;
 import galileo.serialization.SerializationOutputStream;
 
+@ByteSerializable.LengthPrefixed
 public class Metadata implements ByteSerializable {
 
 	private String name = "";
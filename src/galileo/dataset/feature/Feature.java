@@ -39,6 +39,7 @@ import galileo.serialization.Serializer;
  *
  * @author malensek
  */
+@ByteSerializable.LengthPrefixed
 public class Feature implements Comparable<Feature>, ByteSerializable {
 
     protected String name;
@@ -449,16 +450,16 @@ public class Feature implements Comparable<Feature>, ByteSerializable {
     @Deserialize
     public Feature(SerializationInputStream in)
     throws IOException, SerializationException {
-        setName(in.readString());
-        FeatureType type = FeatureType.fromInt(in.readInt());
+        setName(in.readName());
+        FeatureType type = FeatureType.fromInt(in.readCompactInt());
         data = Serializer.deserializeFromStream(type.toClass(), in);
     }
 
     @Override
     public void serialize(SerializationOutputStream out)
     throws IOException {
-        out.writeString(name);
-        out.writeInt(data.getType().toInt());
+        out.writeName(name);
+        out.writeCompactInt(data.getType().toInt());
         out.writeSerializable(data);
     }
 }
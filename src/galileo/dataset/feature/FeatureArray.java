@@ -44,6 +44,7 @@ import java.util.logging.Logger;
  *
  * @author malensek
  */
+@ByteSerializable.LengthPrefixed
 public class FeatureArray implements ByteSerializable {
 
     private static final Logger logger = Logger.getLogger("galileo");
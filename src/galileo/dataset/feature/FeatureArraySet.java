@@ -42,6 +42,7 @@ import java.util.Map;
  *
  * @author malensek
  */
+@ByteSerializable.LengthPrefixed
 public class FeatureArraySet
 implements ByteSerializable, Iterable<FeatureArray>,
         SimpleMap<String, FeatureArray> {
@@ -90,7 +90,7 @@ public class FeatureSet implements ByteSerializable, Iterable<Feature> {
     @Deserialize
     public FeatureSet(SerializationInputStream in)
     throws IOException {
-        int numFeatures = in.readInt();
+        int numFeatures = in.readLength();
         for (int i = 0; i < numFeatures; ++i) {
             Feature feature = null;
             try {
@@ -106,7 +106,7 @@ public class FeatureSet implements ByteSerializable, Iterable<Feature> {
     @Override
     public void serialize(SerializationOutputStream out)
     throws IOException {
-        out.writeInt(features.size());
+        out.writeLength(features.size());
         for (Feature feature : features.values()) {
             out.writeSerializable(feature);
         }
@@ -46,12 +46,12 @@ extends NumericFeatureData<Integer> implements ByteSerializable {
     @Deserialize
     public IntegerFeatureData(SerializationInputStream in)
     throws IOException {
-        super(in.readInt());
+        super(in.readCompactInt());
     }
 
     @Override
     public void serialize(SerializationOutputStream out)
     throws IOException {
-        out.writeInt(this.data);
+        out.writeCompactInt(this.data);
     }
 }
@@ -48,15 +48,15 @@ extends IntervalFeatureData<Integer> implements ByteSerializable {
     @Deserialize
     public IntegerIntervalFeatureData(SerializationInputStream in)
     throws IOException {
-        this.data = in.readInt();
-        this.data2 = in.readInt();
+        this.data = in.readCompactInt();
+        this.data2 = in.readCompactInt();
         this.type = FeatureType.INTERVAL_INT;
     }
 
     @Override
     public void serialize(SerializationOutputStream out)
     throws IOException {
-        out.writeInt(data);
-        out.writeInt(data2);
+        out.writeCompactInt(data);
+        out.writeCompactInt(data2);
     }
 }
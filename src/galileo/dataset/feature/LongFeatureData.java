@@ -46,12 +46,12 @@ extends NumericFeatureData<Long> implements ByteSerializable {
     @Deserialize
     public LongFeatureData(SerializationInputStream in)
     throws IOException {
-        super(in.readLong());
+        super(in.readCompactLong());
     }
 
     @Override
     public void serialize(SerializationOutputStream out)
     throws IOException {
-        out.writeLong(this.data);
+        out.writeCompactLong(this.data);
     }
 }
@@ -48,15 +48,15 @@ extends IntervalFeatureData<Long> implements ByteSerializable {
     @Deserialize
     public LongIntervalFeatureData(SerializationInputStream in)
     throws IOException {
-        this.data = in.readLong();
-        this.data2 = in.readLong();
+        this.data = in.readCompactLong();
+        this.data2 = in.readCompactLong();
         this.type = FeatureType.INTERVAL_LONG;
     }
 
     @Override
     public void serialize(SerializationOutputStream out)
     throws IOException {
-        out.writeLong(data);
-        out.writeLong(data2);
+        out.writeCompactLong(data);
+        out.writeCompactLong(data2);
     }
 }
@@ -3,12 +3,16 @@ package galileo.dht;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -22,7 +26,6 @@ import galileo.comm.QueryResponse;
 import galileo.event.BasicEventWrapper;
 import galileo.event.Event;
 import galileo.event.EventContext;
-import galileo.net.ClientMessageRouter;
 import galileo.net.GalileoMessage;
 import galileo.net.MessageListener;
 import galileo.net.NetworkDestination;
@@ -32,6 +35,10 @@ import galileo.serialization.SerializationException;
 /**
  * This class will collect the responses from all the nodes of galileo and then
  * transfers the result to the listener. Used by the {@link StorageNode} class.
+ * Nodes that fail, or do not reply before the {@link RequestMultiplexer}
+ * deadline, are left out, so the client receives the partial results. Once
+ * every node is accounted for, the results are combined and sent to the
+ * client by a shared executor.
  * 
  * @author kachikaran
  */
@@ -40,32 +47,45 @@ public class ClientRequestHandler implements MessageListener {
 	private static final Logger logger = Logger.getLogger("galileo");
 	private GalileoEventMap eventMap;
 	private BasicEventWrapper eventWrapper;
-	private ClientMessageRouter router;
+	private RequestMultiplexer multiplexer;
+	private Executor completions;
 	private AtomicInteger expectedResponses;
 	private Collection<NetworkDestination> nodes;
 	private EventContext clientContext;
+	private NetworkDestination clientSource;
 	private List<GalileoMessage> responses;
 	private RequestListener requestListener;
+	private Event request;
 	private Event response;
 	private long elapsedTime;
+	private volatile long tag;
+	private AtomicBoolean finished = new AtomicBoolean();
+	private boolean cancelled;
 
+	/**
+	 * @param completions
+	 *            - runs {@link #closeRequest()} once every node has replied,
+	 *            so that combining the results and replying to the client
+	 *            does not hold up the thread that delivered the last reply
+	 */
 	public ClientRequestHandler(Collection<NetworkDestination> nodes, EventContext clientContext,
-			RequestListener listener) throws IOException {
-		this.nodes = nodes;
+			RequestListener listener, RequestMultiplexer multiplexer, Executor completions) {
+		/* the multiplexer contacts each distinct node once */
+		this.nodes = new LinkedHashSet<NetworkDestination>(nodes);
 		this.clientContext = clientContext;
+		/* resolved now, while the client's connection is still open */
+		this.clientSource = clientContext.getSource();
 		this.requestListener = listener;
+		this.multiplexer = multiplexer;
+		this.completions = completions;
 
-		this.router = new ClientMessageRouter(true);
-		this.router.addListener(this);
-		this.responses = new ArrayList<GalileoMessage>();
+		this.responses = Collections.synchronizedList(new ArrayList<GalileoMessage>());
 		this.eventMap = new GalileoEventMap();
 		this.eventWrapper = new BasicEventWrapper(this.eventMap);
 		this.expectedResponses = new AtomicInteger(this.nodes.size());
 	}
 
 	public void closeRequest() {
-		silentClose(); // closing the router to make sure that no new responses
-						// are added.
 		class LocalFeature implements Comparable<LocalFeature> {
 			String name;
 			String type;
@@ -105,7 +125,11 @@ public class ClientRequestHandler implements MessageListener {
 			responseCount++;
 			Event event;
 			try {
-				event = this.eventWrapper.unwrap(gresponse);
+				try {
+					event = this.eventWrapper.unwrap(gresponse);
+				} finally {
+					gresponse.release();
+				}
 				if (event instanceof QueryResponse && this.response instanceof QueryResponse) {
 					QueryResponse actualResponse = (QueryResponse) this.response;
 					actualResponse.setElapsedTime(elapsedTime);
@@ -296,18 +320,21 @@ public class ClientRequestHandler implements MessageListener {
 
 	@Override
 	public void onMessage(GalileoMessage message) {
-		if (null != message)
-			this.responses.add(message);
+		if (null != message) {
+			synchronized (this.responses) {
+				if (this.cancelled) {
+					message.release();
+					return;
+				}
+				this.responses.add(message);
+			}
+		}
 		int awaitedResponses = this.expectedResponses.decrementAndGet();
 		logger.log(Level.INFO, "Awaiting " + awaitedResponses + " more message(s)");
-		if (awaitedResponses <= 0) {
+		if (awaitedResponses <= 0 && this.finished.compareAndSet(false, true)) {
 			this.elapsedTime = System.currentTimeMillis() - this.elapsedTime;
 			logger.log(Level.INFO, "Closing the request and sending back the response.");
-			new Thread() {
-				public void run() {
-					ClientRequestHandler.this.closeRequest();
-				}
-			}.start();
+			this.completions.execute(this::closeRequest);
 		}
 	}
 
@@ -321,26 +348,55 @@ public class ClientRequestHandler implements MessageListener {
 	 * @param response
 	 */
 	public void handleRequest(Event request, Event response) {
-		try {
-			this.response = response;
-			GalileoMessage mrequest = this.eventWrapper.wrap(request);
-			for (NetworkDestination node : nodes) {
-				this.router.sendMessage(node, mrequest);
-				logger.info("Request sent to " + node.toString());
-			}
-			this.elapsedTime = System.currentTimeMillis();
-		} catch (IOException e) {
-			logger.log(Level.INFO,
-					"Failed to send request to other nodes in the network. Details follow: " + e.getMessage());
+		this.request = request;
+		this.response = response;
+		this.elapsedTime = System.currentTimeMillis();
+		if (this.nodes.isEmpty()) {
+			if (this.finished.compareAndSet(false, true))
+				closeRequest();
+			return;
 		}
+		this.tag = this.multiplexer.sendRequest(this.nodes, request, this);
+		logger.info("Request sent to " + this.nodes.size() + " node(s)");
 	}
 
-	public void silentClose() {
-		try {
-			this.router.forceShutdown();
-		} catch (Exception e) {
-			logger.log(Level.INFO, "Failed to shutdown the completed client request handler: ", e);
+	/**
+	 * Abandons the request without answering the client, as when the client
+	 * has disconnected. Responses that have not arrived yet are discarded.
+	 * 
+	 * @return false if the request was already complete.
+	 */
+	public boolean cancel() {
+		if (!this.finished.compareAndSet(false, true))
+			return false;
+		this.multiplexer.cancelRequest(this.tag);
+		synchronized (this.responses) {
+			this.cancelled = true;
+			for (GalileoMessage message : this.responses)
+				message.release();
+			this.responses.clear();
 		}
+		return true;
+	}
+
+	/**
+	 * @return the event sent to the nodes, or null if the request has not been
+	 *         sent yet.
+	 */
+	public Event getRequest() {
+		return this.request;
+	}
+
+	public Collection<NetworkDestination> getNodes() {
+		return Collections.unmodifiableCollection(this.nodes);
+	}
+
+	/**
+	 * @return the client that made the request, or null if the request was
+	 *         made from within this node.
+	 */
+	public NetworkDestination getClientSource() {
+		return this.clientSource;
 	}
 
 	@Override
@@ -0,0 +1,389 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.dht;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Node-wide execution service for query processing.  All query work on a
+ * storage node (block scans, block retrieval, and metadata graph evaluation)
+ * runs on a single work-stealing {@link ForkJoinPool}, rather than on thread
+ * pools created for each request.
+ * <p>
+ * Work is organized into {@link Job}s, one per query.  A job may not occupy
+ * more than its fair share of the pool (the parallelism divided by the number
+ * of active jobs), so a large query can not starve the others.  Batches of
+ * tasks submitted from within a running task belong to the same job; the
+ * submitting thread always helps execute its own batch, so nested batches can
+ * not deadlock even when the job has no spare share.
+ * <p>
+ * The parallelism of the pool can be set with the
+ * galileo.dht.QueryExecutor.parallelism system property, and defaults to the
+ * number of available processors.
+ */
+public class QueryExecutor {
+
+    private static final Logger logger = Logger.getLogger("galileo");
+
+    private static final QueryExecutor instance = new QueryExecutor(
+            Integer.getInteger("galileo.dht.QueryExecutor.parallelism",
+                Runtime.getRuntime().availableProcessors()));
+
+    private static final ThreadLocal<Job> currentJob = new ThreadLocal<>();
+
+    private final ForkJoinPool pool;
+    private final int parallelism;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final AtomicLong jobCounter = new AtomicLong();
+
+    public QueryExecutor(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        this.pool = new ForkJoinPool(this.parallelism,
+                new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                    private AtomicInteger threadCounter = new AtomicInteger();
+
+                    @Override
+                    public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                        ForkJoinWorkerThread thread = ForkJoinPool
+                            .defaultForkJoinWorkerThreadFactory
+                            .newThread(pool);
+                        thread.setName("galileo-query-"
+                                + threadCounter.incrementAndGet());
+                        return thread;
+                    }
+                }, null, false);
+    }
+
+    /**
+     * Retrieves the query executor shared by everything on this node.
+     */
+    public static QueryExecutor getInstance() {
+        return instance;
+    }
+
+    /**
+     * Retrieves the job the calling thread is currently executing a task for,
+     * or null if the thread is not running a query task.
+     */
+    public static Job currentJob() {
+        return currentJob.get();
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Creates a new job.  Jobs must be closed once their work is done so
+     * that their share of the pool is returned to the remaining jobs.
+     *
+     * @param name identifier of the job, usually the query ID.  Names do not
+     * need to be unique.
+     */
+    public Job newJob(String name) {
+        String id = name + "#" + jobCounter.incrementAndGet();
+        Job job = new Job(id);
+        jobs.put(id, job);
+        return job;
+    }
+
+    /**
+     * Cancels every active job with the given name.  Storage nodes use this
+     * when a {@link galileo.comm.QueryCancelEvent} arrives for a query.
+     *
+     * @return true if at least one job was cancelled.
+     */
+    public boolean cancel(String name) {
+        boolean cancelled = false;
+        for (Job job : jobs.values()) {
+            if (job.id.startsWith(name + "#")) {
+                job.cancel();
+                cancelled = true;
+            }
+        }
+        return cancelled;
+    }
+
+    /**
+     * Runs a batch of tasks as part of the calling thread's current job, or
+     * as a new job if the thread is not already executing a query task.
+     *
+     * @return true if all the tasks ran to completion within the timeout.
+     */
+    public boolean invokeAll(String name, Collection<? extends Runnable> tasks,
+            long timeout, TimeUnit unit)
+    throws InterruptedException {
+        Job job = currentJob();
+        if (job != null) {
+            return job.invokeAll(tasks, timeout, unit);
+        }
+
+        job = newJob(name);
+        try {
+            return job.invokeAll(tasks, timeout, unit);
+        } finally {
+            job.close();
+        }
+    }
+
+    private int fairShare() {
+        return Math.max(1, parallelism / Math.max(1, jobs.size()));
+    }
+
+    /**
+     * A unit of query work that shares the pool fairly with other jobs and
+     * can be cancelled as a whole.
+     */
+    public class Job implements AutoCloseable {
+        private final String id;
+        private final AtomicInteger workers = new AtomicInteger();
+        private final List<Batch> batches = new ArrayList<>();
+        private volatile boolean cancelled = false;
+
+        private Job(String id) {
+            this.id = id;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * Stops the job: tasks that have not started yet are discarded.
+         * Running tasks may poll {@link #isCancelled()} to stop early.
+         */
+        public void cancel() {
+            cancelled = true;
+            synchronized (batches) {
+                for (Batch batch : batches) {
+                    batch.discardQueued();
+                }
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Executes a batch of tasks and waits for them to finish.  The calling
+         * thread executes tasks from the batch as well.  If the timeout
+         * elapses, the job is cancelled.
+         *
+         * @return true if all the tasks ran to completion within the timeout.
+         */
+        public boolean invokeAll(Collection<? extends Runnable> tasks,
+                long timeout, TimeUnit unit)
+        throws InterruptedException {
+            if (tasks.isEmpty() || cancelled) {
+                return cancelled == false;
+            }
+
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            final Batch batch = new Batch(this, tasks, deadline);
+            synchronized (batches) {
+                batches.add(batch);
+                if (cancelled) {
+                    /* cancelled before the batch could be discarded */
+                    batch.discardQueued();
+                }
+            }
+            try {
+                /* The caller is one of the workers, so start one less */
+                int helpers = Math.min(tasks.size() - 1,
+                        fairShare() - workers.get());
+                for (int i = 0; i < helpers; ++i) {
+                    workers.incrementAndGet();
+                    pool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                batch.drive(true);
+                            } finally {
+                                workers.decrementAndGet();
+                            }
+                        }
+                    });
+                }
+
+                batch.drive(false);
+                if (batch.await() == false) {
+                    logger.log(Level.WARNING, "Query job " + id
+                            + " timed out; cancelling it.");
+                    cancel();
+                    return false;
+                }
+                return cancelled == false;
+            } finally {
+                synchronized (batches) {
+                    batches.remove(batch);
+                }
+            }
+        }
+
+        /**
+         * Determines whether a helper worker should give up its place so
+         * that other jobs receive their fair share of the pool.
+         */
+        private boolean overShare() {
+            return workers.get() > fairShare();
+        }
+
+        /**
+         * Releases the job's share of the pool.
+         */
+        @Override
+        public void close() {
+            jobs.remove(id);
+        }
+    }
+
+    /**
+     * A set of tasks submitted together.  Workers (and the submitting thread)
+     * pull tasks from the batch until it is exhausted or its deadline passes.
+     */
+    private static class Batch implements ForkJoinPool.ManagedBlocker {
+        private final Job job;
+        private final Queue<Runnable> queue;
+        private final long deadline;
+        private int remaining;
+
+        public Batch(Job job, Collection<? extends Runnable> tasks,
+                long deadline) {
+            this.job = job;
+            this.queue = new ArrayDeque<Runnable>(tasks);
+            this.deadline = deadline;
+            this.remaining = tasks.size();
+        }
+
+        private synchronized Runnable next() {
+            return queue.poll();
+        }
+
+        /**
+         * Executes tasks from the batch until none are left, the deadline
+         * passes, the job is cancelled, or (for helpers) the job exceeds its
+         * share of the pool.
+         */
+        public void drive(boolean helper) {
+            while (job.isCancelled() == false
+                    && System.nanoTime() - deadline < 0
+                    && (helper == false || job.overShare() == false)) {
+                Runnable task = next();
+                if (task == null) {
+                    return;
+                }
+
+                Job previous = currentJob.get();
+                currentJob.set(job);
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    logger.log(Level.SEVERE, "Query task failed", t);
+                } finally {
+                    currentJob.set(previous);
+                    completed(1);
+                }
+            }
+        }
+
+        public void discardQueued() {
+            int discarded;
+            synchronized (this) {
+                discarded = queue.size();
+                queue.clear();
+            }
+            completed(discarded);
+        }
+
+        private synchronized void completed(int count) {
+            remaining -= count;
+            if (remaining <= 0) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * Waits for every task of the batch to finish.  Tasks left over by
+         * helpers that gave up their place are run by the waiting thread.
+         *
+         * @return false if the deadline passed first.
+         */
+        public boolean await()
+        throws InterruptedException {
+            while (true) {
+                drive(false);
+                if (isReleasable()) {
+                    return true;
+                }
+                if (System.nanoTime() - deadline >= 0) {
+                    return false;
+                }
+
+                if (Thread.currentThread() instanceof ForkJoinWorkerThread) {
+                    /* Let the pool compensate while this worker is blocked */
+                    ForkJoinPool.managedBlock(this);
+                } else {
+                    block(deadline);
+                }
+            }
+        }
+
+        @Override
+        public synchronized boolean isReleasable() {
+            return remaining <= 0;
+        }
+
+        @Override
+        public boolean block()
+        throws InterruptedException {
+            block(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100));
+            return true;
+        }
+
+        private synchronized void block(long deadline)
+        throws InterruptedException {
+            long wait = TimeUnit.NANOSECONDS.toMillis(
+                    deadline - System.nanoTime());
+            if (remaining > 0 && queue.isEmpty() && wait > 0) {
+                wait(Math.min(wait, 100));
+            }
+        }
+    }
+}
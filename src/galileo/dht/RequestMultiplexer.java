@@ -0,0 +1,283 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.dht;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import galileo.comm.GalileoEventMap;
+import galileo.event.BasicEventWrapper;
+import galileo.event.Event;
+import galileo.net.ClientMessageRouter;
+import galileo.net.GalileoMessage;
+import galileo.net.MessageListener;
+import galileo.net.NetworkDestination;
+
+/**
+ * Multiplexes scatter/gather requests from several {@link
+ * ClientRequestHandler} instances over the persistent connections of a single
+ * {@link ClientMessageRouter}.  Each request is given a correlation tag that
+ * the remote nodes echo in their replies; replies are routed back to the
+ * listener that issued the request.
+ * <p>
+ * Listeners receive one message per destination.  If a destination cannot be
+ * reached, its connection is lost before it replies, or it does not reply
+ * before the request's deadline, the listener receives a null message in its
+ * place, so requests always complete.  The default deadline is set with the
+ * galileo.dht.RequestMultiplexer.timeout system property (in seconds), and is
+ * longer than the ten minutes a storage node spends on a query.
+ * <p>
+ * Requests from every listener share one connection per destination.  The
+ * remote nodes handle each tagged request independently (see
+ * {@link galileo.event.OrderedEventReactor}), so requests do not queue behind
+ * each other on a shared connection.
+ * <p>
+ * Messages that do not carry a correlation tag are passed to a fallback
+ * listener, allowing the same connections to be used for regular events.
+ */
+public class RequestMultiplexer implements MessageListener {
+
+    private static final Logger logger = Logger.getLogger("galileo");
+
+    private static final long DEFAULT_TIMEOUT = Long.getLong(
+            "galileo.dht.RequestMultiplexer.timeout", 11 * 60);
+
+    private ClientMessageRouter router;
+    private MessageListener fallback;
+    private BasicEventWrapper eventWrapper
+        = new BasicEventWrapper(new GalileoEventMap());
+
+    private AtomicLong nextTag = new AtomicLong(1);
+    private Map<Long, PendingRequest> pending = new ConcurrentHashMap<>();
+    private ScheduledExecutorService timer
+        = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "galileo-request-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    /**
+     * Tracks the destinations that have not yet answered a request.
+     */
+    private static class PendingRequest {
+        private MessageListener listener;
+        private Set<NetworkDestination> awaiting
+            = ConcurrentHashMap.newKeySet();
+        private volatile ScheduledFuture<?> deadline;
+
+        public PendingRequest(MessageListener listener,
+                Collection<? extends NetworkDestination> destinations) {
+            this.listener = listener;
+            this.awaiting.addAll(destinations);
+        }
+    }
+
+    /**
+     * Creates a RequestMultiplexer and registers it with the router.
+     *
+     * @param router router that owns the shared connections.
+     * @param fallback listener that receives untagged messages and connection
+     * notifications; may be null.
+     */
+    public RequestMultiplexer(ClientMessageRouter router,
+            MessageListener fallback) {
+        this.router = router;
+        this.fallback = fallback;
+        router.addListener(this);
+    }
+
+    /**
+     * Sends a request to a group of destinations with the default deadline.
+     *
+     * @see #sendRequest(Collection, Event, MessageListener, long, TimeUnit)
+     */
+    public long sendRequest(Collection<? extends NetworkDestination> destinations,
+            Event request, MessageListener listener) {
+        return sendRequest(destinations, request, listener, DEFAULT_TIMEOUT,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * Sends a request to a group of destinations.  Replies (or nulls, for
+     * destinations that failed) are delivered to the listener as they arrive.
+     * Duplicate destinations are contacted once.  Destinations that have not
+     * replied when the timeout elapses are counted as failed.
+     *
+     * @return the correlation tag of the request, which can be passed to
+     * {@link #cancelRequest(long)}.
+     */
+    public long sendRequest(Collection<? extends NetworkDestination> destinations,
+            Event request, MessageListener listener, long timeout,
+            TimeUnit unit) {
+        final long tag = nextTag.getAndIncrement();
+        PendingRequest req = new PendingRequest(listener, destinations);
+        if (req.awaiting.isEmpty()) {
+            return tag;
+        }
+        List<NetworkDestination> targets = new ArrayList<>(req.awaiting);
+        pending.put(tag, req);
+        req.deadline = timer.schedule(() -> expire(tag), timeout, unit);
+
+        GalileoMessage message;
+        try {
+            message = eventWrapper.wrap(request, tag);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to wrap request", e);
+            for (NetworkDestination destination : targets) {
+                fail(tag, req, destination);
+            }
+            return tag;
+        }
+
+        for (NetworkDestination destination : targets) {
+            try {
+                router.sendMessage(destination, message);
+            } catch (IOException e) {
+                logger.log(Level.INFO, "Failed to send request to "
+                        + destination, e);
+                fail(tag, req, destination);
+            }
+        }
+        return tag;
+    }
+
+    /**
+     * Stops tracking a request.  Replies that arrive later are discarded, and
+     * the listener is not notified of the destinations that did not reply.
+     */
+    public void cancelRequest(long tag) {
+        PendingRequest req = pending.remove(tag);
+        if (req != null) {
+            complete(tag, req);
+        }
+    }
+
+    /**
+     * Fails the destinations that have not replied by a request's deadline,
+     * so the listener can complete the request with the replies it has.
+     */
+    private void expire(long tag) {
+        PendingRequest req = pending.get(tag);
+        if (req == null) {
+            return;
+        }
+
+        List<NetworkDestination> late = new ArrayList<>(req.awaiting);
+        if (late.isEmpty() == false) {
+            logger.log(Level.WARNING, "Request {0} timed out waiting for {1}",
+                    new Object[] { tag, late });
+        }
+        for (NetworkDestination destination : late) {
+            fail(tag, req, destination);
+        }
+    }
+
+    /**
+     * Delivers a null message on behalf of a destination that will not reply.
+     */
+    private void fail(long tag, PendingRequest req,
+            NetworkDestination destination) {
+        if (req.awaiting.remove(destination)) {
+            if (req.awaiting.isEmpty()) {
+                complete(tag, req);
+            }
+            req.listener.onMessage(null);
+        }
+    }
+
+    /**
+     * Stops tracking a request that will not receive any more replies.
+     */
+    private void complete(long tag, PendingRequest req) {
+        pending.remove(tag);
+        ScheduledFuture<?> deadline = req.deadline;
+        if (deadline != null) {
+            deadline.cancel(false);
+        }
+    }
+
+    @Override
+    public void onMessage(GalileoMessage message) {
+        if (message == null || BasicEventWrapper.isTagged(message) == false) {
+            if (fallback != null) {
+                fallback.onMessage(message);
+            }
+            return;
+        }
+
+        long tag = BasicEventWrapper.getTag(message);
+        PendingRequest req = pending.get(tag);
+        NetworkDestination source = router.destinationOf(
+                message.getContext().getSocketChannel());
+        if (req == null || req.awaiting.remove(source) == false) {
+            /* The request already completed; this destination was counted as
+             * failed before its reply arrived. */
+            logger.log(Level.FINE, "Discarding late reply {0} from {1}",
+                    new Object[] { tag, source });
+            message.release();
+            return;
+        }
+
+        if (req.awaiting.isEmpty()) {
+            complete(tag, req);
+        }
+        req.listener.onMessage(message);
+    }
+
+    @Override
+    public void onConnect(NetworkDestination endpoint) {
+        if (fallback != null) {
+            fallback.onConnect(endpoint);
+        }
+    }
+
+    @Override
+    public void onDisconnect(NetworkDestination endpoint) {
+        Iterator<Map.Entry<Long, PendingRequest>> it
+            = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, PendingRequest> entry = it.next();
+            fail(entry.getKey(), entry.getValue(), endpoint);
+        }
+
+        if (fallback != null) {
+            fallback.onDisconnect(endpoint);
+        }
+    }
+}
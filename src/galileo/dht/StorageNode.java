@@ -49,6 +49,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -68,14 +69,18 @@ import galileo.comm.GalileoEventMap;
 import galileo.comm.MetadataEvent;
 import galileo.comm.MetadataRequest;
 import galileo.comm.MetadataResponse;
+import galileo.comm.QueryCancelEvent;
 import galileo.comm.QueryEvent;
 import galileo.comm.QueryRequest;
 import galileo.comm.QueryResponse;
+import galileo.comm.StorageBatchEvent;
+import galileo.comm.StorageBatchRequest;
 import galileo.comm.StorageEvent;
 import galileo.comm.StorageRequest;
 import galileo.comm.TemporalType;
 import galileo.config.SystemConfig;
 import galileo.dataset.Block;
+import galileo.dataset.FileContent;
 import galileo.dataset.Metadata;
 import galileo.dataset.SpatialProperties;
 import galileo.dataset.SpatialRange;
@@ -86,10 +91,13 @@ import galileo.dht.hash.TemporalHash;
 import galileo.event.Event;
 import galileo.event.EventContext;
 import galileo.event.EventHandler;
-import galileo.event.EventReactor;
+import galileo.event.EventMap;
+import galileo.event.OrderedEventReactor;
 import galileo.fs.FileSystemException;
 import galileo.fs.GeospatialFileSystem;
 import galileo.net.ClientConnectionPool;
+import galileo.net.FileTransfer;
+import galileo.net.GalileoMessage;
 import galileo.net.MessageListener;
 import galileo.net.NetworkDestination;
 import galileo.net.PortTester;
@@ -116,7 +124,6 @@ public class StorageNode implements RequestListener {
 	private int port;
 	private String rootDir;
 	private String resultsDir;
-	private int numCores;
 
 	private File pidFile;
 	private File fsFile;
@@ -125,14 +132,33 @@ public class StorageNode implements RequestListener {
 
 	private ServerMessageRouter messageRouter;
 	private ClientConnectionPool connectionPool;
+	private RequestMultiplexer requestMultiplexer;
 	private Map<String, GeospatialFileSystem> fsMap;
 
 	private GalileoEventMap eventMap = new GalileoEventMap();
-	private EventReactor eventReactor = new EventReactor(this, eventMap);
+	private OrderedEventReactor eventReactor;
+	private AtomicLong lastQueryId = new AtomicLong();
 	private List<ClientRequestHandler> requestHandlers;
 
 	private ConcurrentHashMap<String, QueryTracker> queryTrackers = new ConcurrentHashMap<>();
 
+	/*
+	 * Queries that were cancelled before they started running here, along
+	 * with the time the cancellation arrived.
+	 */
+	private ConcurrentHashMap<String, Long> cancelledQueries = new ConcurrentHashMap<>();
+
+	/*
+	 * Replies to congested clients, and the combined replies of
+	 * ClientRequestHandlers, are sent from here so that a slow receiver cannot
+	 * hold up the event-processing threads.
+	 */
+	private ExecutorService deferredReplies = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "galileo-deferred-reply");
+		t.setDaemon(true);
+		return t;
+	});
+
 	// private String sessionId;
 
 	public StorageNode() throws IOException {
@@ -159,8 +185,32 @@ public class StorageNode implements RequestListener {
 		if (pid != null) {
 			this.pidFile = new File(pid);
 		}
-		this.numCores = Runtime.getRuntime().availableProcessors();
 		this.requestHandlers = new CopyOnWriteArrayList<ClientRequestHandler>();
+
+		this.eventReactor = createEventReactor(this, eventMap);
+	}
+
+	/**
+	 * Creates the event reactor used by storage nodes. Events are handled
+	 * concurrently, but in order for each connection. Tagged requests from
+	 * other nodes' ClientRequestHandlers share one connection per node and are
+	 * handled independently of each other. Queries and ingest have their own
+	 * lanes so that neither can hold up the other.
+	 * <p>
+	 * Events are only ordered within a lane, so filesystem events share the
+	 * ingest lane: a client that creates a filesystem and then stores blocks
+	 * in it over one connection has its blocks stored after the filesystem
+	 * exists.
+	 */
+	public static OrderedEventReactor createEventReactor(Object handlerObject, EventMap eventMap) {
+		OrderedEventReactor reactor = new OrderedEventReactor(handlerObject, eventMap,
+				Integer.getInteger("galileo.dht.StorageNode.eventThreads", 2));
+		reactor.addLane("ingest", Integer.getInteger("galileo.dht.StorageNode.ingestThreads", 2),
+				FilesystemRequest.class, FilesystemEvent.class, StorageRequest.class, StorageEvent.class,
+				StorageBatchRequest.class, StorageBatchEvent.class);
+		reactor.addLane("query", Integer.getInteger("galileo.dht.StorageNode.queryThreads", 4),
+				QueryRequest.class, QueryEvent.class, BlockRequest.class, MetadataRequest.class, MetadataEvent.class);
+		return reactor;
 	}
 
 	/**
@@ -205,7 +255,7 @@ public class StorageNode implements RequestListener {
 		if (!resultsDir.exists())
 			resultsDir.mkdirs();
 
-		this.fsMap = new HashMap<>();
+		this.fsMap = new ConcurrentHashMap<>();
 		try (BufferedReader br = new BufferedReader(new FileReader(fsFile))) {
 			String jsonSource = br.readLine();
 			if (jsonSource != null && jsonSource.length() > 0) {
@@ -229,30 +279,48 @@ public class StorageNode implements RequestListener {
 		Runtime.getRuntime().addShutdownHook(new ShutdownHandler());
 
 		/* Pre-scheduler setup tasks */
+		eventReactor.start();
 		connectionPool = new ClientConnectionPool();
-		connectionPool.addListener(eventReactor);
+		/*
+		 * Scatter/gather requests share the pool's connections; replies are
+		 * routed by correlation tag and everything else reaches the reactor.
+		 */
+		requestMultiplexer = new RequestMultiplexer(connectionPool, eventReactor);
 
-		/* Start listening for incoming messages. */
+		/*
+		 * Start listening for incoming messages. From here on, events are
+		 * processed by the event reactor's worker threads.
+		 */
 		messageRouter = new ServerMessageRouter();
 		messageRouter.addListener(eventReactor);
+		messageRouter.addListener(new ClientMonitor());
 		messageRouter.listen(port);
 		nodeStatus.set("Online");
-
-		/* Start processing the message loop */
-		while (true) {
-			try {
-				eventReactor.processNextEvent();
-			} catch (Exception e) {
-				logger.log(Level.SEVERE, "An exception occurred while processing next event. "
-						+ "Storage node is still up and running. Exception details follow:", e);
-			}
-		}
 	}
 
+	/**
+	 * Sends an event to a storage node. Events addressed to this node are
+	 * handed straight to the local event reactor, skipping serialization and
+	 * the network round trip.
+	 */
 	private void sendEvent(NodeInfo node, Event event) throws IOException {
+		if (isLocal(node)) {
+			eventReactor.submitLocal(event);
+			return;
+		}
 		connectionPool.sendMessage(node, eventReactor.wrapEvent(event));
 	}
 
+	/**
+	 * Determines whether a node in the network configuration is this node.
+	 */
+	private boolean isLocal(NodeInfo node) {
+		if (node.getPort() != this.port)
+			return false;
+		String nodeName = node.getHostname();
+		return nodeName.equals(this.hostname) || nodeName.equals(this.canonicalHostname);
+	}
+
 	@EventHandler
 	public void handleFileSystemRequest(FilesystemRequest request, EventContext context)
 			throws HashException, IOException, PartitionException {
@@ -270,7 +338,7 @@ public class StorageNode implements RequestListener {
 	}
 
 	@EventHandler
-	public void handleFileSystem(FilesystemEvent event, EventContext context) {
+	public synchronized void handleFileSystem(FilesystemEvent event, EventContext context) {
 		logger.log(Level.INFO,
 				"Performing action " + event.getAction().getAction() + " for file system " + event.getName());
 		if (event.getAction() == FilesystemAction.CREATE) {
@@ -361,6 +429,71 @@ public class StorageNode implements RequestListener {
 	}
 	
 	
+	/**
+	 * Handles a batch storage request from a client. The whole batch is
+	 * partitioned in one pass and forwarded to each destination as a single
+	 * {@link StorageBatchEvent}.
+	 */
+	@EventHandler
+	public void handleStorageBatchRequest(StorageBatchRequest request, EventContext context)
+			throws HashException, IOException, PartitionException {
+		Map<NodeInfo, List<Block>> destinations = new HashMap<>();
+		for (Block file : request.getBlocks()) {
+			String fsName = file.getFilesystem();
+			if (fsName == null) {
+				logger.log(Level.WARNING, "No filesystem name specified to store the block. Block ignored");
+				continue;
+			}
+			GeospatialFileSystem gfs = this.fsMap.get(fsName);
+			if (gfs == null) {
+				logger.log(Level.WARNING, "No filesystem found for the specified name " + fsName + ". Block ignored");
+				continue;
+			}
+			NodeInfo node = gfs.getPartitioner().locateData(file.getMetadata());
+			List<Block> blocks = destinations.get(node);
+			if (blocks == null) {
+				blocks = new ArrayList<>();
+				destinations.put(node, blocks);
+			}
+			blocks.add(file);
+		}
+
+		for (Map.Entry<NodeInfo, List<Block>> destination : destinations.entrySet()) {
+			logger.log(Level.INFO, "Storage destination: {0} ({1} blocks)",
+					new Object[] { destination.getKey(), destination.getValue().size() });
+			sendEvent(destination.getKey(), new StorageBatchEvent(destination.getValue()));
+		}
+	}
+
+	@EventHandler
+	public void handleStorageBatch(StorageBatchEvent store, EventContext context) {
+		Map<String, List<Block>> filesystems = new HashMap<>();
+		for (Block block : store.getBlocks()) {
+			List<Block> blocks = filesystems.get(block.getFilesystem());
+			if (blocks == null) {
+				blocks = new ArrayList<>();
+				filesystems.put(block.getFilesystem(), blocks);
+			}
+			blocks.add(block);
+		}
+
+		for (Map.Entry<String, List<Block>> entry : filesystems.entrySet()) {
+			String fsName = entry.getKey();
+			GeospatialFileSystem fs = fsName == null ? null : fsMap.get(fsName);
+			if (fs == null) {
+				logger.log(Level.SEVERE, "Requested file system(" + fsName + ") not found. Ignoring "
+						+ entry.getValue().size() + " blocks.");
+				continue;
+			}
+			logger.log(Level.INFO, "Storing " + entry.getValue().size() + " blocks to filesystem " + fsName);
+			try {
+				fs.storeBlocks(entry.getValue());
+			} catch (FileSystemException | IOException e) {
+				logger.log(Level.SEVERE, "Something went wrong while storing the blocks.", e);
+			}
+		}
+	}
+
 	private class ParallelReader implements Runnable {
 		private Block block;
 		private GeospatialFileSystem gfs;
@@ -378,7 +511,7 @@ public class StorageNode implements RequestListener {
 		@Override
 		public void run(){
 			try {
-				this.block = gfs.retrieveBlock(blockPath);
+				this.block = gfs.openBlock(blockPath);
 				if(blockPath.startsWith(resultsDir))
 					new File(blockPath).delete();
 			} catch (IOException | SerializationException e) {
@@ -388,6 +521,47 @@ public class StorageNode implements RequestListener {
 	}
 	
 
+	/**
+	 * Sends blocks straight from their files (see
+	 * {@link BlockResponse#toTransfer()}). If the client's write queue is
+	 * congested, the transfer is queued from a background thread instead of
+	 * the event thread.
+	 */
+	private void transferBlocksDeferred(final EventContext context, List<Block> blocks) throws IOException {
+		final FileTransfer transfer;
+		try {
+			transfer = new BlockResponse(blocks.toArray(new Block[blocks.size()])).toTransfer();
+		} catch (IOException e) {
+			closeBlockFiles(blocks);
+			throw e;
+		}
+
+		if (!context.isCongested()) {
+			context.transferReply(BlockResponse.class, transfer);
+			return;
+		}
+		logger.fine("Client connection congested; deferring reply");
+		deferredReplies.execute(() -> {
+			try {
+				context.transferReply(BlockResponse.class, transfer);
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "Failed to send deferred response to the client", e);
+			}
+		});
+	}
+
+	private void closeBlockFiles(List<Block> blocks) {
+		for (Block block : blocks) {
+			if (block.getContent() instanceof FileContent) {
+				try {
+					((FileContent) block.getContent()).close();
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Failed to close block file", e);
+				}
+			}
+		}
+	}
+
 	@EventHandler
 	public void handleBlockRequest(BlockRequest blockRequest, EventContext context) {
 		String fsName = blockRequest.getFilesystem();
@@ -398,26 +572,23 @@ public class StorageNode implements RequestListener {
 			try {
 				List<String> blockPaths = blockRequest.getFilePaths();
 				if(blockPaths.size() > 1){
-					ExecutorService executor = Executors.newFixedThreadPool(Math.min(blockPaths.size(), 2 * numCores));
 					List<ParallelReader> readers = new ArrayList<>();
-					for(String blockPath : blockPaths){
-						ParallelReader pr = new ParallelReader(fs, blockPath);
-						readers.add(pr);
-						executor.execute(pr);
-					}
-					executor.shutdown();
-					executor.awaitTermination(10, TimeUnit.MINUTES);
+					for(String blockPath : blockPaths)
+						readers.add(new ParallelReader(fs, blockPath));
+					QueryExecutor.getInstance().invokeAll("blocks", readers, 10, TimeUnit.MINUTES);
 					for(ParallelReader reader : readers)
 						if(reader.getBlock() != null)
 							blocks.add(reader.getBlock());
 				} else {
 					ParallelReader pr = new ParallelReader(fs, blockPaths.get(0));
 					pr.run();
-					blocks.add(pr.getBlock());
+					if (pr.getBlock() != null)
+						blocks.add(pr.getBlock());
 				}
-				context.sendReply(new BlockResponse(blocks.toArray(new Block[blocks.size()])));
+				transferBlocksDeferred(context, blocks);
 			} catch (IOException | InterruptedException e) {
 				logger.log(Level.SEVERE, "Something went wrong while retrieving the block.", e);
+				closeBlockFiles(blocks);
 				try {
 					context.sendReply(new BlockResponse(new Block[]{}));
 				} catch (IOException e1) {
@@ -446,23 +617,26 @@ public class StorageNode implements RequestListener {
 				JSONObject response = new JSONObject();
 				response.put("kind", "galileo#filesystem");
 				response.put("result", new JSONArray());
-				ClientRequestHandler reqHandler = new ClientRequestHandler(network.getAllDestinations(), context, this);
-				reqHandler.handleRequest(new MetadataEvent(request.getRequest()), new MetadataResponse(response));
+				ClientRequestHandler reqHandler = new ClientRequestHandler(network.getAllDestinations(), context, this,
+						requestMultiplexer, deferredReplies);
 				this.requestHandlers.add(reqHandler);
+				reqHandler.handleRequest(new MetadataEvent(request.getRequest()), new MetadataResponse(response));
 			} else if ("galileo#features".equalsIgnoreCase(request.getRequest().getString("kind"))) {
 				JSONObject response = new JSONObject();
 				response.put("kind", "galileo#features");
 				response.put("result", new JSONArray());
-				ClientRequestHandler reqHandler = new ClientRequestHandler(network.getAllDestinations(), context, this);
-				reqHandler.handleRequest(new MetadataEvent(request.getRequest()), new MetadataResponse(response));
+				ClientRequestHandler reqHandler = new ClientRequestHandler(network.getAllDestinations(), context, this,
+						requestMultiplexer, deferredReplies);
 				this.requestHandlers.add(reqHandler);
+				reqHandler.handleRequest(new MetadataEvent(request.getRequest()), new MetadataResponse(response));
 			} else if ("galileo#overview".equalsIgnoreCase(request.getRequest().getString("kind"))) {
 				JSONObject response = new JSONObject();
 				response.put("kind", "galileo#overview");
 				response.put("result", new JSONArray());
-				ClientRequestHandler reqHandler = new ClientRequestHandler(network.getAllDestinations(), context, this);
-				reqHandler.handleRequest(new MetadataEvent(request.getRequest()), new MetadataResponse(response));
+				ClientRequestHandler reqHandler = new ClientRequestHandler(network.getAllDestinations(), context, this,
+						requestMultiplexer, deferredReplies);
 				this.requestHandlers.add(reqHandler);
+				reqHandler.handleRequest(new MetadataEvent(request.getRequest()), new MetadataResponse(response));
 			} else {
 				JSONObject response = new JSONObject();
 				response.put("kind", request.getRequest().getString("kind"));
@@ -578,7 +752,7 @@ public class StorageNode implements RequestListener {
 		String metadataQueryString = request.getMetadataQueryString();
 		logger.log(Level.INFO, "Feature query request: {0}", featureQueryString);
 		logger.log(Level.INFO, "Metadata query request: {0}", metadataQueryString);
-		String queryId = String.valueOf(System.currentTimeMillis());
+		String queryId = String.valueOf(nextQueryId());
 		GeospatialFileSystem gfs = this.fsMap.get(request.getFilesystemName());
 		if (gfs != null) {
 			QueryResponse response = new QueryResponse(queryId, gfs.getFeaturesRepresentation(), new JSONObject());
@@ -626,21 +800,10 @@ public class StorageNode implements RequestListener {
 				if (request.isTemporal())
 					qEvent.setTime(request.getTime());
 
-				try {
-					ClientRequestHandler reqHandler = new ClientRequestHandler(new ArrayList<NetworkDestination>(nodes),
-							context, this);
-					reqHandler.handleRequest(qEvent, response);
-					this.requestHandlers.add(reqHandler);
-				} catch (IOException ioe) {
-					logger.log(Level.SEVERE,
-							"Failed to initialize a ClientRequestHandler. Sending unfinished response back to client",
-							ioe);
-					try {
-						context.sendReply(response);
-					} catch (IOException e) {
-						logger.log(Level.SEVERE, "Failed to send response back to original client", e);
-					}
-				}
+				ClientRequestHandler reqHandler = new ClientRequestHandler(new ArrayList<NetworkDestination>(nodes),
+						context, this, requestMultiplexer, deferredReplies);
+				this.requestHandlers.add(reqHandler);
+				reqHandler.handleRequest(qEvent, response);
 			} catch (HashException | PartitionException hepe) {
 				logger.log(Level.SEVERE,
 						"Failed to identify the destination nodes. Sending unfinished response back to client", hepe);
@@ -660,6 +823,19 @@ public class StorageNode implements RequestListener {
 		}
 	}
 
+	/**
+	 * Generates a query identifier based on the current time. Identifiers are
+	 * unique even for queries received concurrently.
+	 */
+	private long nextQueryId() {
+		while (true) {
+			long last = lastQueryId.get();
+			long next = Math.max(System.currentTimeMillis(), last + 1);
+			if (lastQueryId.compareAndSet(last, next))
+				return next;
+		}
+	}
+
 	private String getResultFilePrefix(String queryId, String fsName, String blockIdentifier) {
 		return this.resultsDir + "/" + String.format("%s-%s-%s", fsName, queryId, blockIdentifier);
 	}
@@ -713,11 +889,15 @@ public class StorageNode implements RequestListener {
 		long hostFileSize = 0;
 		long totalProcessingTime = 0;
 		long blocksProcessed = 0;
+		long blocksSkipped = 0;
 		int totalNumPaths = 0;
 		JSONArray header = new JSONArray();
 		JSONObject blocksJSON = new JSONObject();
 		JSONArray resultsJSON = new JSONArray();
 		long processingTime = System.currentTimeMillis();
+		QueryExecutor.Job job = QueryExecutor.getInstance().newJob(event.getQueryId());
+		if (cancelledQueries.remove(event.getQueryId()) != null)
+			job.cancel();
 		try {
 			logger.info(event.getFeatureQueryString());
 			logger.info(event.getMetadataQueryString());
@@ -759,8 +939,6 @@ public class StorageNode implements RequestListener {
 					if (event.getFeatureQuery() != null || event.getPolygon() != null) {
 						hostFileSize = 0;
 						filePaths = new JSONArray();
-						// maximum parallelism = 64
-						ExecutorService executor = Executors.newFixedThreadPool(Math.min(totalBlocks, 2 * numCores));
 						List<QueryProcessor> queryProcessors = new ArrayList<>();
 						GeoavailabilityQuery geoQuery = new GeoavailabilityQuery(event.getFeatureQuery(),
 								event.getPolygon());
@@ -772,17 +950,23 @@ public class StorageNode implements RequestListener {
 								queryBitmap = QueryTransform.queryToGridBitmap(geoQuery, blockGrid);
 							List<String> blocks = blockMap.get(blockKey);
 							for (String blockPath : blocks) {
+								/* skip blocks whose statistics rule out every row */
+								if (!fs.mayMatch(blockPath, geoQuery.getQuery())) {
+									blocksSkipped++;
+									continue;
+								}
 								QueryProcessor qp = new QueryProcessor(fs, blockPath, geoQuery, blockGrid, queryBitmap,
 										getResultFilePrefix(event.getQueryId(), fsName, blockKey + blocksProcessed));
 								blocksProcessed++;
 								queryProcessors.add(qp);
-								executor.execute(qp);
 							}
 						}
-						executor.shutdown();
-						boolean status = executor.awaitTermination(10, TimeUnit.MINUTES);
+						if (blocksSkipped > 0)
+							logger.info("Skipped " + blocksSkipped + " of " + totalBlocks
+									+ " blocks using block statistics");
+						boolean status = job.invokeAll(queryProcessors, 10, TimeUnit.MINUTES);
 						if (!status)
-							logger.log(Level.WARNING, "Executor terminated because of the specified timeout=10minutes");
+							logger.log(Level.WARNING, "Query cancelled or timed out after 10 minutes");
 						for (QueryProcessor qp : queryProcessors) {
 							if (qp.getFileSize() > 0) {
 								hostFileSize += qp.getFileSize();
@@ -810,6 +994,8 @@ public class StorageNode implements RequestListener {
 			logger.log(Level.SEVERE,
 					"Something went wrong while querying the filesystem. No results obtained. Sending blank list to the client. Issue details follow:",
 					e);
+		} finally {
+			job.close();
 		}
 
 		JSONObject responseJSON = new JSONObject();
@@ -838,6 +1024,75 @@ public class StorageNode implements RequestListener {
 		}
 	}
 
+	/**
+	 * Handles the cancellation of a query that was sent to this node by a
+	 * {@link ClientRequestHandler} whose client has gone away.
+	 */
+	@EventHandler
+	public void handleQueryCancel(QueryCancelEvent event, EventContext context) {
+		String queryId = event.getQueryId();
+		if (QueryExecutor.getInstance().cancel(queryId)) {
+			logger.info("Cancelled query " + queryId);
+			return;
+		}
+
+		/*
+		 * The query has either finished or not started yet. Remember it in case
+		 * it is still waiting to run, and check again in case it started in the
+		 * meantime.
+		 */
+		long now = System.currentTimeMillis();
+		cancelledQueries.values().removeIf(time -> now - time > TimeUnit.MINUTES.toMillis(10));
+		cancelledQueries.put(queryId, now);
+		if (QueryExecutor.getInstance().cancel(queryId)) {
+			cancelledQueries.remove(queryId);
+			logger.info("Cancelled query " + queryId);
+		}
+	}
+
+	/**
+	 * Abandons the outstanding requests of a client that disconnected. Nodes
+	 * still working on a query for the client are asked to cancel it.
+	 */
+	private void cancelRequests(NetworkDestination client) {
+		for (ClientRequestHandler handler : this.requestHandlers) {
+			if (!client.equals(handler.getClientSource()) || !handler.cancel())
+				continue;
+			this.requestHandlers.remove(handler);
+			if (!(handler.getRequest() instanceof QueryEvent))
+				continue;
+			String queryId = ((QueryEvent) handler.getRequest()).getQueryId();
+			logger.info("Client " + client + " disconnected; cancelling query " + queryId);
+			for (NetworkDestination node : handler.getNodes()) {
+				if (!(node instanceof NodeInfo))
+					continue;
+				try {
+					sendEvent((NodeInfo) node, new QueryCancelEvent(queryId));
+				} catch (IOException e) {
+					logger.log(Level.INFO, "Failed to cancel query " + queryId + " on " + node, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Watches for clients disconnecting from this node.
+	 */
+	private class ClientMonitor implements MessageListener {
+		@Override
+		public void onConnect(NetworkDestination endpoint) {
+		}
+
+		@Override
+		public void onDisconnect(NetworkDestination endpoint) {
+			cancelRequests(endpoint);
+		}
+
+		@Override
+		public void onMessage(GalileoMessage message) {
+		}
+	}
+
 	@EventHandler
 	public void handleQueryResponse(QueryResponse response, EventContext context) throws IOException {
 		QueryTracker tracker = queryTrackers.get(response.getId());
@@ -864,7 +1119,7 @@ public class StorageNode implements RequestListener {
 		}
 	}
 
-	public void persistFilesystems() {
+	public synchronized void persistFilesystems() {
 		try (BufferedWriter bw = new BufferedWriter(new FileWriter(fsFile))) {
 			JSONObject fsJSON = new JSONObject();
 			for (String fsName : fsMap.keySet()) {
@@ -892,6 +1147,7 @@ public class StorageNode implements RequestListener {
 			try {
 				connectionPool.forceShutdown();
 				messageRouter.shutdown();
+				eventReactor.stop();
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
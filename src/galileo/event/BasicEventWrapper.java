@@ -27,16 +27,18 @@ package galileo.event;
 
 import galileo.net.GalileoMessage;
 
+import galileo.serialization.ByteBufferOutputStream;
 import galileo.serialization.SerializationException;
 import galileo.serialization.SerializationInputStream;
 import galileo.serialization.SerializationOutputStream;
 import galileo.serialization.Serializer;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Implements a basic EventWrapper that uses an EventMap to identify Events by
@@ -46,39 +48,188 @@ import java.io.IOException;
  */
 public class BasicEventWrapper implements EventWrapper {
 
+    /**
+     * Set on the event identifier of messages that carry a correlation tag.
+     * The tag follows the identifier as a long and is echoed back by
+     * {@link EventContext#sendReply(Event)}, allowing several outstanding
+     * requests to share a single connection.
+     */
+    private static final int TAGGED = 0x40000000;
+
+    /**
+     * Set on the event identifier of messages whose event is serialized with
+     * the compact encoding.  Messages in either encoding are accepted by
+     * {@link #unwrap(GalileoMessage)}.
+     */
+    private static final int COMPACT = 0x20000000;
+
+    private static final int FLAGS = TAGGED | COMPACT;
+
     private EventMap eventMap;
+    private boolean compact;
 
     public BasicEventWrapper(EventMap eventMap) {
+        this(eventMap, Serializer.useCompactFormat());
+    }
+
+    /**
+     * Creates a BasicEventWrapper that wraps events in either the compact or
+     * the legacy encoding.
+     */
+    public BasicEventWrapper(EventMap eventMap, boolean compact) {
         this.eventMap = eventMap;
+        this.compact = compact;
     }
 
     @Override
     public GalileoMessage wrap(Event e)
     throws IOException {
-        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-        SerializationOutputStream sOut = new SerializationOutputStream(
-                new BufferedOutputStream(bOut));
+        return wrap(e, false, 0);
+    }
 
-        int eventId = eventMap.getInt(e.getClass());
-        sOut.writeInt(eventId);
+    /**
+     * Wraps an {@link Event} along with a correlation tag.  Replies sent
+     * through the {@link EventContext} of the resulting message carry the same
+     * tag.
+     */
+    public GalileoMessage wrap(Event e, long tag)
+    throws IOException {
+        return wrap(e, true, tag);
+    }
+
+    private GalileoMessage wrap(Event e, boolean tagged, long tag)
+    throws IOException {
+        int hint = compact ? -1 : e.serializedSizeHint();
+        if (hint >= 0) {
+            hint += tagged ? 12 : 4;
+        }
+
+        ByteBufferOutputStream bOut = ByteBufferOutputStream.acquire(hint);
+        try {
+            SerializationOutputStream sOut
+                = new SerializationOutputStream(bOut, compact);
+            writeHeader(e.getClass(), tagged, tag, compact, sOut);
+            sOut.writeSerializable(e);
+            sOut.flush();
+
+            byte[] payload = bOut.toByteArray();
+            GalileoMessage msg = new GalileoMessage(payload);
+            return msg;
+        } finally {
+            bOut.release();
+        }
+    }
+
+    /**
+     * Writes the wrapped form of an {@link Event} to a stream, such as a
+     * {@link galileo.net.ChunkedOutputStream}, instead of producing a
+     * message.  The stream is closed once the event has been written.
+     */
+    public void wrap(Event e, OutputStream out)
+    throws IOException {
+        write(e, false, 0, out);
+    }
+
+    /**
+     * Writes the wrapped form of an {@link Event}, along with a correlation
+     * tag, to a stream.  The stream is closed once the event has been written.
+     */
+    public void wrap(Event e, long tag, OutputStream out)
+    throws IOException {
+        write(e, true, tag, out);
+    }
+
+    private void write(Event e, boolean tagged, long tag, OutputStream out)
+    throws IOException {
+        SerializationOutputStream sOut = new SerializationOutputStream(
+                new BufferedOutputStream(out), compact);
+        writeHeader(e.getClass(), tagged, tag, compact, sOut);
         sOut.writeSerializable(e);
         sOut.close();
+    }
+
+    /**
+     * Writes the identifier (and, if requested, correlation tag) that
+     * precedes a serialized event of the given type.  This allows an event's
+     * serialized form to be produced separately, as with
+     * {@link EventContext#transferReply(Class, galileo.net.FileTransfer)}.
+     */
+    public void writeHeader(Class<? extends Event> type, boolean tagged,
+            long tag, DataOutput out)
+    throws IOException {
+        writeHeader(type, tagged, tag, false, out);
+    }
 
-        byte[] payload = bOut.toByteArray();
-        GalileoMessage msg = new GalileoMessage(payload);
-        return msg;
+    private void writeHeader(Class<? extends Event> type, boolean tagged,
+            long tag, boolean compact, DataOutput out)
+    throws IOException {
+        int eventId = eventMap.getInt(type);
+        if (compact) {
+            eventId |= COMPACT;
+        }
+        if (tagged) {
+            out.writeInt(eventId | TAGGED);
+            out.writeLong(tag);
+        } else {
+            out.writeInt(eventId);
+        }
+    }
+
+    /**
+     * Determines the type of Event contained in a message without
+     * deserializing it.
+     *
+     * @return the Event class, or null if the message does not contain a
+     * known event identifier.
+     */
+    public Class<? extends Event> getEventClass(GalileoMessage msg) {
+        byte[] payload = msg.getPayloadArray();
+        if (payload == null || msg.getLength() < 4) {
+            return null;
+        }
+        int eventId = ByteBuffer.wrap(payload).getInt(msg.getOffset());
+        return eventMap.getClass(eventId & ~FLAGS);
+    }
+
+    /**
+     * Determines whether a message carries a correlation tag.
+     */
+    public static boolean isTagged(GalileoMessage msg) {
+        byte[] payload = msg.getPayloadArray();
+        if (payload == null || msg.getLength() < 12) {
+            return false;
+        }
+        return (ByteBuffer.wrap(payload).getInt(msg.getOffset()) & TAGGED) != 0;
+    }
+
+    /**
+     * Retrieves the correlation tag of a message.  Only meaningful if
+     * {@link #isTagged(GalileoMessage)} returns true.
+     */
+    public static long getTag(GalileoMessage msg) {
+        return ByteBuffer.wrap(msg.getPayloadArray())
+            .getLong(msg.getOffset() + 4);
     }
 
     @Override
     public Event unwrap(GalileoMessage msg)
     throws IOException, SerializationException {
-        ByteArrayInputStream byteIn
-            = new ByteArrayInputStream(msg.getPayload());
-        BufferedInputStream buffIn = new BufferedInputStream(byteIn);
-        SerializationInputStream sIn = new SerializationInputStream(buffIn);
-
-        int eventId = sIn.readInt();
-        Class<? extends Event> clazz = eventMap.getClass(eventId);
+        ByteBuffer payload = ByteBuffer.wrap(msg.getPayloadArray(),
+                msg.getOffset(), msg.getLength());
+
+        if (payload.remaining() < 4) {
+            throw new EOFException("Message does not contain an event");
+        }
+        int eventId = payload.getInt();
+        if ((eventId & TAGGED) != 0) {
+            if (payload.remaining() < 8) {
+                throw new EOFException("Message is missing its tag");
+            }
+            payload.getLong();
+        }
+        SerializationInputStream sIn = new SerializationInputStream(
+                payload, (eventId & COMPACT) != 0);
+        Class<? extends Event> clazz = eventMap.getClass(eventId & ~FLAGS);
         Event e = Serializer.deserializeFromStream(clazz, sIn);
 
         return e;
@@ -25,8 +25,11 @@ software, even if advised of the possibility of such damage.
 
 package galileo.event;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
+import galileo.net.FileTransfer;
 import galileo.net.GalileoMessage;
 import galileo.net.NetworkDestination;
 
@@ -41,31 +44,170 @@ public class EventContext {
     private GalileoMessage message;
     private EventWrapper wrapper;
 
+    /* Captured up front: the message payload may be released once the event
+     * has been unwrapped, while replies can be sent at any later time. */
+    private boolean tagged;
+    private long tag;
+
+    /* Set for events submitted through EventReactor.submitLocal; replies are
+     * submitted back to the reactor instead of being sent over the network. */
+    private EventReactor localReactor;
+
+    /**
+     * Creates the context of an event submitted locally to a reactor.
+     */
+    EventContext(EventReactor localReactor) {
+        this.localReactor = localReactor;
+        this.wrapper = localReactor.getEventWrapper();
+    }
+
     public EventContext(GalileoMessage message, EventWrapper wrapper) {
         this.message = message;
         this.wrapper = wrapper;
+        if (wrapper instanceof BasicEventWrapper
+                && BasicEventWrapper.isTagged(message)) {
+            this.tagged = true;
+            this.tag = BasicEventWrapper.getTag(message);
+        }
     }
 
     /**
-     * Send a reply back to the source that created the original event.
+     * Send a reply back to the source that created the original event.  If
+     * the original event carried a correlation tag, the reply is tagged
+     * identically.
      */
     public void sendReply(Event e)
     throws IOException {
-        GalileoMessage m = wrapper.wrap(e);
+        if (localReactor != null) {
+            localReactor.submitLocal(e);
+            return;
+        }
+        GalileoMessage m = wrap(e);
         this.message.getContext().sendMessage(m);
     }
 
     /**
-     * @return Server port number that this event was sent to.
+     * Send a reply back to the source without blocking.  If the connection to
+     * the source is congested, the reply is not sent, allowing the caller to
+     * defer or shed it.
+     *
+     * @return true if the reply was queued for transmission.
+     */
+    public boolean offerReply(Event e)
+    throws IOException {
+        if (localReactor != null) {
+            localReactor.submitLocal(e);
+            return true;
+        }
+        return this.message.getContext().offerMessage(wrap(e));
+    }
+
+    /**
+     * Streams a reply back to the source as a series of chunks.  The reply is
+     * serialized directly into the connection's write queue rather than into
+     * a single buffer, and the caller blocks while the connection is
+     * congested, so large replies are sent without holding their complete
+     * serialized form in memory.
+     */
+    public void streamReply(Event e)
+    throws IOException {
+        if (localReactor != null) {
+            localReactor.submitLocal(e);
+            return;
+        }
+        OutputStream out = this.message.getContext().openStream();
+        if (wrapper instanceof BasicEventWrapper) {
+            BasicEventWrapper basicWrapper = (BasicEventWrapper) wrapper;
+            if (tagged) {
+                basicWrapper.wrap(e, tag, out);
+            } else {
+                basicWrapper.wrap(e, out);
+            }
+            return;
+        }
+
+        GalileoMessage m = wrapper.wrap(e);
+        out.write(m.getPayloadArray(), m.getOffset(), m.getLength());
+        out.close();
+    }
+
+    /**
+     * Sends a reply whose serialized form has already been assembled as a
+     * {@link FileTransfer}, such as one produced by
+     * {@link galileo.comm.BlockResponse#toTransfer()}.  File regions in the
+     * transfer are sent straight from their files.  If the original event
+     * carried a correlation tag, the reply is tagged identically.
+     *
+     * @param type the type of event the transfer contains.
+     * @param body the serialized event.
+     */
+    public void transferReply(Class<? extends Event> type, FileTransfer body)
+    throws IOException {
+        if (localReactor != null || !(wrapper instanceof BasicEventWrapper)) {
+            body.release();
+            throw new IOException("File transfers require a network "
+                    + "connection and a BasicEventWrapper");
+        }
+
+        FileTransfer reply = new FileTransfer();
+        DataOutputStream out = new DataOutputStream(reply);
+        ((BasicEventWrapper) wrapper).writeHeader(type, tagged, tag, out);
+        out.flush();
+        reply.append(body);
+        this.message.getContext().sendTransfer(reply);
+    }
+
+    /**
+     * Determines whether the connection to the source of the event is
+     * congested.  Handlers may check this before doing expensive work whose
+     * result would only be queued behind a slow receiver.
+     */
+    public boolean isCongested() {
+        if (localReactor != null) {
+            return false;
+        }
+        return this.message.getContext().isCongested();
+    }
+
+    /**
+     * Wraps a reply, tagging it to match the original event if necessary.
+     */
+    private GalileoMessage wrap(Event e)
+    throws IOException {
+        if (tagged) {
+            return ((BasicEventWrapper) wrapper).wrap(e, tag);
+        }
+        return wrapper.wrap(e);
+    }
+
+    /**
+     * Determines whether the event was submitted from within this process
+     * rather than received over the network.  Local events have no source
+     * connection.
+     */
+    public boolean isLocal() {
+        return localReactor != null;
+    }
+
+    /**
+     * @return Server port number that this event was sent to, or -1 for local
+     * events.
      */
     public int getServerPort() {
+        if (localReactor != null) {
+            return -1;
+        }
         return message.getContext().getServerPort();
     }
 
     /**
-     * @return NetworkDestination of the client that generated the event.
+     * @return NetworkDestination of the client that generated the event, or
+     * null for local events.
      */
     public NetworkDestination getSource() {
+        if (localReactor != null) {
+            return null;
+        }
         return message.getContext().getSource();
     }
 }
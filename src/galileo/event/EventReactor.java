@@ -27,7 +27,11 @@ package galileo.event;
 
 import java.io.IOException;
 import java.lang.annotation.Annotation;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -60,7 +64,7 @@ public class EventReactor implements MessageListener {
 
     private EventWrapper eventWrapper;
 
-    private Map<Class<?>, Method> classToMethod = new HashMap<>();
+    private Map<Class<?>, HandlerInvoker> classToHandler = new HashMap<>();
 
     private BlockingQueue<GalileoMessage> messageQueue
         = new LinkedBlockingQueue<>();
@@ -103,7 +107,7 @@ public class EventReactor implements MessageListener {
      * found in the handlerObject.
      */
     protected void linkEventHandlers() {
-        classToMethod.clear();
+        classToHandler.clear();
 
         for (Method m : handlerClass.getMethods()) {
             for (Annotation a : m.getAnnotations()) {
@@ -137,13 +141,71 @@ public class EventReactor implements MessageListener {
                     logger.log(Level.FINE,
                             "Linking handler method [{0}] to class [{1}]",
                             new Object[] { m.getName(), eventClass.getName() });
-                    classToMethod.put(eventClass, m);
+                    try {
+                        classToHandler.put(eventClass,
+                                createInvoker(m, eventClass));
+                    } catch (Throwable t) {
+                        logger.log(Level.WARNING, "Could not link event "
+                                + "handler method: " + m, t);
+                    }
                     break;
                 }
             }
         }
     }
 
+    /**
+     * Calls an event handler method on the handler object.
+     */
+    interface HandlerInvoker {
+        void invoke(Event event, EventContext context)
+        throws Exception;
+    }
+
+    /**
+     * Resolves a handler method once so that dispatching an event does not
+     * require a reflective call.  A generated {@link HandlerInvoker} bound to
+     * the handler object is preferred; if the handler class cannot be linked
+     * that way (for instance, it is not accessible from this package), a bound
+     * MethodHandle is used instead.
+     */
+    private HandlerInvoker createInvoker(Method m, Class<?> eventClass)
+    throws Throwable {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodHandle handle = lookup.unreflect(m);
+
+        try {
+            CallSite site = LambdaMetafactory.metafactory(lookup, "invoke",
+                    MethodType.methodType(HandlerInvoker.class, handlerClass),
+                    MethodType.methodType(void.class,
+                        Event.class, EventContext.class),
+                    handle,
+                    MethodType.methodType(void.class,
+                        eventClass, EventContext.class));
+            return (HandlerInvoker) site.getTarget().invoke(handlerObject);
+        } catch (Throwable t) {
+            logger.log(Level.FINE, "Falling back to MethodHandle dispatch for "
+                    + "method: " + m, t);
+        }
+
+        final MethodHandle bound = handle.bindTo(handlerObject).asType(
+                MethodType.methodType(void.class,
+                    Event.class, EventContext.class));
+        return new HandlerInvoker() {
+            @Override
+            public void invoke(Event event, EventContext context)
+            throws Exception {
+                try {
+                    bound.invokeExact(event, context);
+                } catch (Exception | Error e) {
+                    throw e;
+                } catch (Throwable e) {
+                    throw new EventException("Error invoking handler", e);
+                }
+            }
+        };
+    }
+
     /**
      * Determines the class responsible for encapsulating an Event.  This is
      * achieved by providing a list of parameter types, where the first
@@ -182,26 +244,48 @@ public class EventReactor implements MessageListener {
             InterruptedException, SerializationException {
 
         GalileoMessage message = messageQueue.take();
+        dispatch(message);
+    }
+
+    /**
+     * Unwraps a message and calls the appropriate event handler method to
+     * process it.
+     *
+     * @throws EventException when the incoming event is unknown, or errors
+     * occur while trying to call the appropriate handler method
+     */
+    protected void dispatch(GalileoMessage message) throws EventException,
+            IOException, SerializationException {
+
+        Event event;
+        EventContext context;
+        if (message instanceof LocalEvent) {
+            event = ((LocalEvent) message).getEvent();
+            context = new EventContext(this);
+        } else {
+            try {
+                event = eventWrapper.unwrap(message);
+                context = new EventContext(message, eventWrapper);
+            } finally {
+                /* The event has been copied out of the payload buffer */
+                message.release();
+            }
+        }
+
+        HandlerInvoker handler = classToHandler.get(event.getClass());
+        if (handler == null) {
+            throw new EventException("No handler registered for event type: "
+                    + event.getClass().getName());
+        }
 
         try {
-            Event event = eventWrapper.unwrap(message);
-            Method method = classToMethod.get(event.getClass());
-            EventContext context = new EventContext(message, eventWrapper);
-            method.invoke(handlerObject, event, context);
-        } catch (InvocationTargetException e) {
+            handler.invoke(event, context);
+        } catch (Exception e) {
             throw new EventException("Unhandled exception in invoked "
                     + "event handler method", e);
-        } catch (IOException | SerializationException e) {
-            throw e;
-        } catch (Exception e) {
-            /* Propagating all the possible reflection-related exceptions up to
-             * clients seemed undesirable from a usability perspective here, so
-             * we wrap this up in a catch-all exception. */
-            throw new EventException("Error processing event!", e);
         }
     }
 
-
     @Override
     public void onConnect(NetworkDestination endpoint) {
         //TODO full implementation
@@ -222,6 +306,41 @@ public class EventReactor implements MessageListener {
         }
     }
 
+    /**
+     * Submits an event that originated in this process, such as one a node
+     * addresses to itself.  The event is queued and handled like any other,
+     * but is not serialized; the handler receives the submitted instance, so
+     * it must not be modified afterward.  Replies sent through the handler's
+     * {@link EventContext} are submitted back to this reactor.
+     */
+    public void submitLocal(Event event) {
+        onMessage(new LocalEvent(event));
+    }
+
+    /**
+     * Carries an event submitted through {@link #submitLocal(Event)} through
+     * the message queue in place of its serialized form.
+     */
+    static final class LocalEvent extends GalileoMessage {
+        private Event event;
+
+        public LocalEvent(Event event) {
+            super(new byte[0]);
+            this.event = event;
+        }
+
+        public Event getEvent() {
+            return event;
+        }
+    }
+
+    /**
+     * Retrieves the {@link EventWrapper} used to wrap and unwrap events.
+     */
+    protected EventWrapper getEventWrapper() {
+        return eventWrapper;
+    }
+
     /**
      * Convenience function for wrapping an outgoing event with this
      * EventReactor's {@link EventWrapper} implementation.
@@ -27,6 +27,7 @@ package galileo.event;
 
 import java.io.IOException;
 
+import galileo.serialization.ByteSerializable;
 import galileo.serialization.SerializationInputStream;
 import galileo.serialization.SerializationOutputStream;
 
@@ -37,6 +38,7 @@ import galileo.serialization.SerializationOutputStream;
  *
  * @author malensek
  */
+@ByteSerializable.LengthPrefixed
 public class EventWithSynopsis implements Event {
 
     private String synopsis;
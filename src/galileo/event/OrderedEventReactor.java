@@ -0,0 +1,388 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.event;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import galileo.net.GalileoMessage;
+
+/**
+ * A multi-threaded event reactor that preserves the order of events sent over
+ * each connection.  Unlike {@link ConcurrentEventReactor}, events from one
+ * source are always handled one at a time and in the order they arrived,
+ * while events from independent sources are handled in parallel.
+ * <p>
+ * Events that carry a correlation tag (see {@link BasicEventWrapper}) are
+ * independent requests, such as the queries that many client requests send
+ * over one shared connection between two nodes.  Each tag is treated as a
+ * source of its own, so tagged requests on a connection are handled in
+ * parallel; only untagged events keep the order of their connection.
+ * <p>
+ * Event types can be routed to separate <em>lanes</em>, each with its own
+ * worker threads, so that long-running handlers (such as queries) can not
+ * hold up other types of events (such as storage requests).  Ordering is
+ * maintained per source within a lane; events from the same source that are
+ * routed to different lanes may be handled concurrently.  Events without a
+ * lane are handled by the default lane.
+ * <p>
+ * Routing requires a {@link BasicEventWrapper}, which allows the event type to
+ * be determined before the event is deserialized.  With other EventWrapper
+ * implementations, all events are handled by the default lane.
+ */
+public class OrderedEventReactor extends EventReactor {
+
+    private static final Logger logger = Logger.getLogger("galileo");
+
+    private static final int DEFAULT_QUEUE_SZ = 100000;
+
+    /** Number of consecutive events handled for one source before a worker
+     * moves on to other sources in the lane. */
+    private static final int MAX_BATCH = 16;
+
+    /** Ordering key for messages that did not arrive over a connection. */
+    private static final Object LOCAL_SOURCE = new Object();
+
+    private Lane defaultLane;
+    private List<Lane> lanes = new ArrayList<>();
+    private Map<Class<?>, Lane> routes = new HashMap<>();
+    private Semaphore capacity = new Semaphore(DEFAULT_QUEUE_SZ);
+    private boolean running = false;
+
+    /**
+     * Creates an OrderedEventReactor with the default
+     * {@link BasicEventWrapper} EventWrapper implementation.
+     *
+     * @param handlerObject an Object instance that contains the implementations
+     * for event handlers, denoted by the {@link EventHandler} annotation.
+     * @param eventMap a EventMap implementation that provides a mapping from
+     * integer identification numbers to specific classes that represent an
+     * event.
+     * @param defaultThreads the number of worker threads in the default lane.
+     */
+    public OrderedEventReactor(Object handlerObject, EventMap eventMap,
+            int defaultThreads) {
+        super(handlerObject, eventMap);
+        this.defaultLane = new Lane("events", defaultThreads);
+        this.lanes.add(defaultLane);
+    }
+
+    /**
+     * Creates a new lane for handling a set of event types.  Lanes must be
+     * added before the reactor is started.
+     *
+     * @param name name of the lane, used to name its worker threads.
+     * @param threads number of worker threads in the lane.
+     * @param eventTypes the events handled by this lane.
+     */
+    @SafeVarargs
+    public final void addLane(String name, int threads,
+            Class<? extends Event>... eventTypes) {
+        if (running) {
+            throw new IllegalStateException("Lanes must be added before the "
+                    + "reactor is started");
+        }
+
+        Lane lane = new Lane(name, threads);
+        lanes.add(lane);
+        for (Class<? extends Event> type : eventTypes) {
+            routes.put(type, lane);
+        }
+    }
+
+    /**
+     * Starts the worker threads of every lane.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+
+        running = true;
+        for (Lane lane : lanes) {
+            lane.start();
+        }
+    }
+
+    /**
+     * Stops the worker threads of every lane.  Events that have not been
+     * handled yet, along with any that arrive after the reactor is stopped,
+     * are discarded.
+     */
+    public synchronized void stop() {
+        for (Lane lane : lanes) {
+            lane.stop();
+        }
+        running = false;
+    }
+
+    @Override
+    public void onMessage(GalileoMessage message) {
+        try {
+            capacity.acquire();
+        } catch (InterruptedException e) {
+            logger.warning("Interrupted during onMessage delivery");
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        route(message).submit(sourceOf(message), message);
+    }
+
+    /**
+     * Drops a message that will not be handled, returning its payload buffer
+     * and its place in the queue.
+     */
+    private void discard(GalileoMessage message) {
+        message.release();
+        capacity.release();
+    }
+
+    /**
+     * Drops every pending message of a source.  The caller must hold the
+     * lock of the source's lane.
+     */
+    private void discard(SourceQueue queue) {
+        GalileoMessage message;
+        while ((message = queue.messages.poll()) != null) {
+            discard(message);
+        }
+    }
+
+    /**
+     * Determines the ordering key of a message: its connection, or its
+     * connection and correlation tag if it has one.
+     */
+    private Object sourceOf(GalileoMessage message) {
+        if (message.getContext() == null) {
+            return LOCAL_SOURCE;
+        }
+
+        Object key = message.getContext().getSelectionKey();
+        if (getEventWrapper() instanceof BasicEventWrapper
+                && message instanceof LocalEvent == false
+                && BasicEventWrapper.isTagged(message)) {
+            return new TaggedSource(key, BasicEventWrapper.getTag(message));
+        }
+        return key;
+    }
+
+    /**
+     * Ordering key of a tagged request.
+     */
+    private static class TaggedSource {
+        private Object key;
+        private long tag;
+
+        public TaggedSource(Object key, long tag) {
+            this.key = key;
+            this.tag = tag;
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() * 31 + Long.hashCode(tag);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof TaggedSource == false) {
+                return false;
+            }
+            TaggedSource other = (TaggedSource) obj;
+            return key == other.key && tag == other.tag;
+        }
+    }
+
+    /**
+     * Determines the lane responsible for handling a message.
+     */
+    private Lane route(GalileoMessage message) {
+        EventWrapper wrapper = getEventWrapper();
+        Class<?> type;
+        if (routes.isEmpty()) {
+            return defaultLane;
+        } else if (message instanceof LocalEvent) {
+            type = ((LocalEvent) message).getEvent().getClass();
+        } else if (wrapper instanceof BasicEventWrapper) {
+            type = ((BasicEventWrapper) wrapper).getEventClass(message);
+        } else {
+            return defaultLane;
+        }
+
+        Lane lane = routes.get(type);
+        return (lane == null) ? defaultLane : lane;
+    }
+
+    /**
+     * A group of worker threads, along with the pending messages of each
+     * source that has sent events handled by this lane.
+     */
+    private class Lane {
+        private String name;
+        private int threads;
+        private ExecutorService executor;
+        private Map<Object, SourceQueue> sources = new HashMap<>();
+
+        public Lane(String name, int threads) {
+            this.name = name;
+            this.threads = Math.max(1, threads);
+        }
+
+        public void start() {
+            executor = Executors.newFixedThreadPool(threads,
+                    new ThreadFactory() {
+                        private int counter = 0;
+
+                        @Override
+                        public synchronized Thread newThread(Runnable r) {
+                            return new Thread(r, "galileo-" + name + "-"
+                                    + (++counter));
+                        }
+                    });
+            logger.log(Level.INFO, "Started event lane {0} with {1} threads",
+                    new Object[] { name, threads });
+        }
+
+        public void stop() {
+            synchronized (this) {
+                if (executor == null) {
+                    return;
+                }
+
+                executor.shutdownNow();
+                for (SourceQueue queue : sources.values()) {
+                    discard(queue);
+                }
+                sources.clear();
+            }
+
+            try {
+                executor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                logger.warning("Interrupted while shutting down event lane");
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public void submit(Object source, GalileoMessage message) {
+            synchronized (this) {
+                SourceQueue queue = sources.get(source);
+                if (queue == null) {
+                    queue = new SourceQueue(this, source);
+                    sources.put(source, queue);
+                }
+                if (executor == null || executor.isShutdown()) {
+                    discard(message);
+                    return;
+                }
+
+                queue.messages.add(message);
+                if (queue.scheduled) {
+                    return;
+                }
+                queue.scheduled = true;
+                schedule(queue);
+            }
+        }
+
+        /**
+         * Hands a source to the worker threads.  If the lane has been
+         * stopped, the source's pending messages are discarded instead.  The
+         * caller must hold the lane's lock.
+         */
+        private void schedule(SourceQueue queue) {
+            try {
+                executor.execute(queue);
+            } catch (RejectedExecutionException e) {
+                discard(queue);
+                queue.scheduled = false;
+                sources.remove(queue.source);
+            }
+        }
+    }
+
+    /**
+     * Pending messages from a single source.  At most one worker handles a
+     * source's messages at any given time.
+     */
+    private class SourceQueue implements Runnable {
+        private Lane lane;
+        private Object source;
+        private Queue<GalileoMessage> messages = new ArrayDeque<>();
+        private boolean scheduled = false;
+
+        public SourceQueue(Lane lane, Object source) {
+            this.lane = lane;
+            this.source = source;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < MAX_BATCH; ++i) {
+                GalileoMessage message;
+                synchronized (lane) {
+                    message = messages.poll();
+                    if (message == null) {
+                        scheduled = false;
+                        lane.sources.remove(source);
+                        return;
+                    }
+                }
+
+                try {
+                    dispatch(message);
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "Error processing event", e);
+                } finally {
+                    capacity.release();
+                }
+            }
+
+            /* Give other sources in this lane a turn */
+            synchronized (lane) {
+                if (messages.isEmpty()) {
+                    scheduled = false;
+                    lane.sources.remove(source);
+                } else {
+                    lane.schedule(this);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.fs;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import galileo.dataset.feature.FeatureType;
+import galileo.query.Expression;
+import galileo.query.Operation;
+import galileo.query.Operator;
+import galileo.query.Query;
+import galileo.serialization.ByteSerializable;
+import galileo.serialization.SerializationException;
+import galileo.serialization.SerializationInputStream;
+import galileo.serialization.SerializationOutputStream;
+import galileo.util.BloomFilter;
+
+/**
+ * Summarizes the contents of an entire block: the value range of every
+ * feature (a zone map), plus a {@link BloomFilter} of the values of each
+ * STRING feature.  Block statistics are persisted alongside the block
+ * metadata and are consulted before a block is scanned, so that blocks
+ * containing no rows that can satisfy a query are skipped entirely.
+ * <p>
+ * The Bloom filter size can be set with the
+ * galileo.fs.BlockStatistics.bloomBits system property.  Filters are only
+ * merged when their sizes agree; a block whose filters could not be merged
+ * simply falls back to its value ranges.
+ */
+@ByteSerializable.LengthPrefixed
+public class BlockStatistics implements ByteSerializable {
+
+    public static final String EXTENSION = ".stats";
+
+    private static final int DEFAULT_BLOOM_BITS = 64 * 1024;
+    private static final int BLOOM_HASHES = 4;
+
+    private static final int bloomBits = Integer.getInteger(
+            "galileo.fs.BlockStatistics.bloomBits", DEFAULT_BLOOM_BITS);
+
+    private Map<String, ColumnStatistics> columns = new LinkedHashMap<>();
+    private Map<String, BloomFilter> filters = new LinkedHashMap<>();
+
+    public BlockStatistics() { }
+
+    /**
+     * Creates a Bloom filter suitable for a column of the given type, or
+     * returns null if the type is not tracked with a filter.
+     */
+    public static BloomFilter createFilter(FeatureType type) {
+        if (type != FeatureType.STRING) {
+            return null;
+        }
+        return new BloomFilter(bloomBits, BLOOM_HASHES);
+    }
+
+    public void put(ColumnStatistics column, BloomFilter filter) {
+        columns.put(column.getName(), column);
+        if (filter != null) {
+            filters.put(column.getName(), filter);
+        } else {
+            filters.remove(column.getName());
+        }
+    }
+
+    public ColumnStatistics getColumn(String name) {
+        return columns.get(name);
+    }
+
+    public BloomFilter getFilter(String name) {
+        return filters.get(name);
+    }
+
+    /**
+     * Folds the statistics of data appended to the block into this instance.
+     */
+    public void merge(BlockStatistics other) {
+        for (ColumnStatistics column : other.columns.values()) {
+            String name = column.getName();
+            ColumnStatistics existing = columns.get(name);
+            if (existing == null) {
+                continue;
+            }
+            existing.merge(column);
+
+            BloomFilter filter = filters.get(name);
+            BloomFilter otherFilter = other.filters.get(name);
+            if (filter != null && otherFilter != null
+                    && filter.isCompatible(otherFilter)) {
+                filter.merge(otherFilter);
+            } else {
+                filters.remove(name);
+            }
+        }
+    }
+
+    /**
+     * Determines whether any row in the block could satisfy the query.
+     * Expressions on unknown features are assumed to match.
+     */
+    public boolean mayMatch(Query query) {
+        for (Operation operation : query.getOperations()) {
+            if (mayMatch(operation)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean mayMatch(Operation operation) {
+        for (Expression expression : operation.getExpressions()) {
+            String name = expression.getOperand();
+            ColumnStatistics column = columns.get(name);
+            if (column != null && column.mayMatch(expression) == false) {
+                return false;
+            }
+
+            BloomFilter filter = filters.get(name);
+            if (filter != null
+                    && expression.getOperator() == Operator.EQUAL
+                    && expression.getValue().getType() == FeatureType.STRING
+                    && filter.mightContain(
+                        expression.getValue().getString()) == false) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Deserialize
+    public BlockStatistics(SerializationInputStream in)
+    throws IOException, SerializationException {
+        int numColumns = in.readInt();
+        for (int i = 0; i < numColumns; ++i) {
+            ColumnStatistics column = new ColumnStatistics(in);
+            BloomFilter filter = null;
+            if (in.readBoolean()) {
+                filter = new BloomFilter(in);
+            }
+            put(column, filter);
+        }
+    }
+
+    @Override
+    public void serialize(SerializationOutputStream out)
+    throws IOException {
+        out.writeInt(columns.size());
+        for (ColumnStatistics column : columns.values()) {
+            out.writeSerializable(column);
+            BloomFilter filter = filters.get(column.getName());
+            out.writeBoolean(filter != null);
+            if (filter != null) {
+                out.writeSerializable(filter);
+            }
+        }
+    }
+}
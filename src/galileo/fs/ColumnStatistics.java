@@ -0,0 +1,184 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.fs;
+
+import java.io.IOException;
+
+import galileo.dataset.feature.Feature;
+import galileo.dataset.feature.FeatureType;
+import galileo.query.Expression;
+import galileo.serialization.ByteSerializable;
+import galileo.serialization.SerializationException;
+import galileo.serialization.SerializationInputStream;
+import galileo.serialization.SerializationOutputStream;
+
+/**
+ * Describes a single column of a columnar block segment: its name, storage
+ * type, and the range of values it contains.  The range is used to decide
+ * whether a segment can possibly satisfy a query expression without reading
+ * any of its values.
+ * <p>
+ * Ordering follows {@link Feature#compareTo(Feature)}, so NaN values are
+ * treated as the largest floating point values, exactly as they are when the
+ * rows are evaluated in a metadata graph.
+ */
+public class ColumnStatistics implements ByteSerializable {
+
+    private String name;
+    private FeatureType type;
+    private Feature min;
+    private Feature max;
+
+    public ColumnStatistics(String name, FeatureType type) {
+        this.name = name;
+        this.type = type;
+    }
+
+    public ColumnStatistics(String name, FeatureType type,
+            Feature min, Feature max) {
+        this(name, type);
+        this.min = min;
+        this.max = max;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public FeatureType getType() {
+        return type;
+    }
+
+    /**
+     * @return smallest value in the column, or null if the column is empty.
+     */
+    public Feature getMin() {
+        return min;
+    }
+
+    /**
+     * @return largest value in the column, or null if the column is empty.
+     */
+    public Feature getMax() {
+        return max;
+    }
+
+    public boolean isEmpty() {
+        return min == null;
+    }
+
+    /**
+     * Widens the column range to include the given value.
+     */
+    public void update(Feature value) {
+        if (min == null) {
+            min = value;
+            max = value;
+            return;
+        }
+
+        if (value.compareTo(min) < 0) {
+            min = value;
+        } else if (value.compareTo(max) > 0) {
+            max = value;
+        }
+    }
+
+    /**
+     * Merges the range of another column into this one.
+     */
+    public void merge(ColumnStatistics other) {
+        if (other.isEmpty()) {
+            return;
+        }
+
+        update(other.min);
+        update(other.max);
+    }
+
+    /**
+     * Determines whether any value in this column could satisfy the given
+     * expression.  This method errs on the side of caution: if the expression
+     * cannot be evaluated against the column range (for instance, because the
+     * types differ) it is assumed to match.
+     */
+    public boolean mayMatch(Expression expression) {
+        if (isEmpty()) {
+            return false;
+        }
+
+        Feature value = expression.getValue();
+        if (value == null || value.getType() != type) {
+            return true;
+        }
+
+        switch (expression.getOperator()) {
+            case EQUAL:
+                return min.compareTo(value) <= 0 && max.compareTo(value) >= 0;
+            case NOTEQUAL:
+                return min.compareTo(value) != 0 || max.compareTo(value) != 0;
+            case LESS:
+                return min.compareTo(value) < 0;
+            case LESSEQUAL:
+                return min.compareTo(value) <= 0;
+            case GREATER:
+                return max.compareTo(value) > 0;
+            case GREATEREQUAL:
+                return max.compareTo(value) >= 0;
+            default:
+                return true;
+        }
+    }
+
+    @Deserialize
+    public ColumnStatistics(SerializationInputStream in)
+    throws IOException, SerializationException {
+        name = in.readString();
+        type = FeatureType.fromInt(in.readInt());
+        if (in.readBoolean()) {
+            min = new Feature(in);
+            max = new Feature(in);
+        }
+    }
+
+    @Override
+    public void serialize(SerializationOutputStream out)
+    throws IOException {
+        out.writeString(name);
+        out.writeInt(type.toInt());
+        out.writeBoolean(isEmpty() == false);
+        if (isEmpty() == false) {
+            out.writeSerializable(min);
+            out.writeSerializable(max);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + ":" + type + " [" + (min == null ? "" : min.getString())
+            + ", " + (max == null ? "" : max.getString()) + "]";
+    }
+}
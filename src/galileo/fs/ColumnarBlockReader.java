@@ -0,0 +1,736 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.fs;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import galileo.dataset.BlockContent;
+import galileo.dataset.feature.Feature;
+import galileo.dataset.feature.FeatureType;
+import galileo.query.Expression;
+import galileo.query.Operation;
+import galileo.query.Query;
+import galileo.serialization.SerializationException;
+import galileo.serialization.SerializationInputStream;
+import galileo.serialization.Serializer;
+
+/**
+ * Reads blocks written by {@link ColumnarBlockWriter}.  Each segment of the
+ * block is memory-mapped, and its columns are exposed as {@link Column} views
+ * directly over the mapped region; values are only decoded when they are
+ * accessed.  Segments that can not satisfy a query (see
+ * {@link Segment#mayMatch(Query)}) are never paged in.
+ * <p>
+ * The mappings remain valid after the reader is closed or the underlying file
+ * is deleted, and are released when the reader is garbage collected.
+ */
+public class ColumnarBlockReader implements Closeable {
+
+    private static final int TRAILER_SIZE = 8;
+
+    private List<Segment> segments = new ArrayList<>();
+
+    public ColumnarBlockReader(String blockPath)
+    throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(blockPath, "r");
+                FileChannel channel = file.getChannel()) {
+            readSegments(channel);
+        }
+    }
+
+    /**
+     * Determines whether the given block file is stored in the columnar
+     * format, as opposed to plain text.
+     */
+    public static boolean isColumnar(File blockFile)
+    throws IOException {
+        if (blockFile.length() < TRAILER_SIZE) {
+            return false;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(blockFile, "r")) {
+            raf.seek(raf.length() - 4);
+            return raf.readInt() == ColumnarBlockWriter.MAGIC;
+        }
+    }
+
+    /**
+     * Walks the segments from the end of the file to the beginning, mapping
+     * each one.
+     */
+    private void readSegments(FileChannel channel)
+    throws IOException {
+        long end = channel.size();
+        while (end > 0) {
+            if (end < TRAILER_SIZE) {
+                throw new IOException("Truncated columnar block segment");
+            }
+
+            ByteBuffer trailer = read(channel, end - TRAILER_SIZE,
+                    TRAILER_SIZE);
+            int footerLength = trailer.getInt();
+            if (trailer.getInt() != ColumnarBlockWriter.MAGIC) {
+                throw new IOException("Corrupt columnar block segment");
+            }
+
+            long footerStart = end - TRAILER_SIZE - footerLength;
+            if (footerLength < 0 || footerStart < 0) {
+                throw new IOException("Corrupt columnar block footer");
+            }
+
+            Footer footer = new Footer(read(channel, footerStart,
+                        footerLength));
+            long start = footerStart - footer.dataLength;
+            if (start < 0 || footer.dataLength > Integer.MAX_VALUE) {
+                throw new IOException("Corrupt columnar block footer");
+            }
+
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY,
+                    start, footer.dataLength);
+            segments.add(new Segment(footer, data));
+            end = start;
+        }
+        Collections.reverse(segments);
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position,
+            int length)
+    throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of columnar block");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public List<Segment> getSegments() {
+        return Collections.unmodifiableList(segments);
+    }
+
+    /**
+     * @return total number of rows across all segments.
+     */
+    public long getRowCount() {
+        long rows = 0;
+        for (Segment segment : segments) {
+            rows += segment.rowCount;
+        }
+        return rows;
+    }
+
+    /**
+     * Decodes every row of a segment into typed Features.
+     */
+    public List<Feature[]> readRows(Segment segment) {
+        List<Feature[]> rows = new ArrayList<>(segment.rowCount);
+        for (int i = 0; i < segment.rowCount; ++i) {
+            rows.add(segment.getRow(i));
+        }
+        return rows;
+    }
+
+    /**
+     * Renders the block as newline-separated CSV text, the representation
+     * clients have always received for blocks.  Values are rendered in the
+     * style of their column, and the text recorded for anything the columns
+     * do not reproduce is written in its place, so text added through
+     * {@link ColumnarBlockWriter#addRows(byte[])} is reproduced exactly.
+     */
+    public void writeCSV(OutputStream out)
+    throws IOException {
+        StringBuilder sb = new StringBuilder();
+        boolean first = true;
+        for (Segment segment : segments) {
+            first = segment.writeCSV(out, sb, first);
+        }
+    }
+
+    /**
+     * Determines the number of bytes {@link #writeCSV(OutputStream)} writes.
+     * The length of each segment is recorded in its footer, so this only
+     * renders segments written before lengths were recorded.
+     */
+    public long getCSVLength()
+    throws IOException {
+        long length = 0;
+        boolean first = true;
+        for (Segment segment : segments) {
+            if (segment.lineCount == 0) {
+                continue;
+            }
+            if (first == false) {
+                length++;
+            }
+            first = false;
+            length += segment.getCSVLength();
+        }
+        return length;
+    }
+
+    /**
+     * Provides the CSV rendering of this block as {@link BlockContent}, so
+     * that it can be streamed from the mapped segments when a Block is
+     * serialized instead of being copied onto the heap first.
+     */
+    public BlockContent asCSV() {
+        return new BlockContent() {
+            private int size = -1;
+
+            @Override
+            public int size()
+            throws IOException {
+                if (size < 0) {
+                    long length = getCSVLength();
+                    if (length > Integer.MAX_VALUE) {
+                        throw new IOException("Block is too large to send");
+                    }
+                    size = (int) length;
+                }
+                return size;
+            }
+
+            @Override
+            public void writeTo(OutputStream out)
+            throws IOException {
+                writeCSV(out);
+            }
+        };
+    }
+
+    /**
+     * Releases this reader's references to the mapped segments.
+     */
+    @Override
+    public void close() {
+        segments = Collections.emptyList();
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    /**
+     * Column layout and statistics for a single segment, as recorded in the
+     * segment footer.
+     */
+    private static class Footer {
+        private int version;
+        private int rowCount;
+        private ColumnStatistics[] columns;
+        private long[] offsets;
+        private long[] lengths;
+        private long linesOffset;
+        private long linesLength;
+        private int lineCount;
+        private long textLength = -1;
+        private long dataLength;
+        private boolean crlf;
+        private int[] styles;
+
+        public Footer(ByteBuffer footer)
+        throws IOException {
+            SerializationInputStream in = new SerializationInputStream(
+                    new ByteArrayInputStream(footer.array(),
+                        footer.position(), footer.remaining()));
+            version = in.readInt();
+            if (version < 1 || version > ColumnarBlockWriter.VERSION) {
+                throw new IOException("Unsupported columnar block version: "
+                        + version);
+            }
+
+            rowCount = in.readInt();
+            lineCount = rowCount;
+            int columnCount = in.readInt();
+            columns = new ColumnStatistics[columnCount];
+            offsets = new long[columnCount];
+            lengths = new long[columnCount];
+            styles = new int[columnCount];
+            Arrays.fill(styles, ColumnarBlockWriter.CANONICAL);
+            try {
+                for (int i = 0; i < columnCount; ++i) {
+                    String name = in.readString();
+                    FeatureType type = FeatureType.fromInt(in.readInt());
+                    offsets[i] = in.readLong();
+                    lengths[i] = in.readLong();
+                    dataLength += lengths[i];
+                    if (in.readBoolean()) {
+                        Feature min = Serializer.deserializeFromStream(
+                                Feature.class, in);
+                        Feature max = Serializer.deserializeFromStream(
+                                Feature.class, in);
+                        columns[i] = new ColumnStatistics(name, type, min, max);
+                    } else {
+                        columns[i] = new ColumnStatistics(name, type);
+                    }
+                }
+                if (version > 1) {
+                    linesOffset = in.readLong();
+                    linesLength = in.readLong();
+                    lineCount = in.readInt();
+                    textLength = in.readLong();
+                    dataLength += linesLength;
+                }
+                if (version > 2) {
+                    crlf = in.readBoolean();
+                    for (int i = 0; i < columnCount; ++i) {
+                        styles[i] = in.readInt();
+                    }
+                }
+            } catch (SerializationException e) {
+                throw new IOException("Could not read column range", e);
+            }
+        }
+    }
+
+    /**
+     * A contiguous, independently readable group of rows within a block.
+     */
+    public static class Segment {
+        private int version;
+        private int rowCount;
+        private ColumnStatistics[] statistics;
+        private Column[] columns;
+        private int lineCount;
+        private volatile long textLength;
+        private ByteBuffer lines;
+        private volatile int[] lineIndex;
+        private boolean crlf;
+
+        private Segment(Footer footer, ByteBuffer data)
+        throws IOException {
+            this.version = footer.version;
+            this.crlf = footer.crlf;
+            this.rowCount = footer.rowCount;
+            this.lineCount = footer.lineCount;
+            this.textLength = footer.textLength;
+            this.statistics = footer.columns;
+            this.columns = new Column[statistics.length];
+            for (int i = 0; i < columns.length; ++i) {
+                columns[i] = new Column(statistics[i], slice(data,
+                            footer.offsets[i], footer.lengths[i]), rowCount,
+                        footer.styles[i]);
+            }
+            this.lines = slice(data, footer.linesOffset, footer.linesLength);
+        }
+
+        private static ByteBuffer slice(ByteBuffer data, long offset,
+                long length) {
+            ByteBuffer view = data.duplicate();
+            view.position((int) offset);
+            view.limit((int) (offset + length));
+            return view.slice();
+        }
+
+        public int getRowCount() {
+            return rowCount;
+        }
+
+        public ColumnStatistics[] getColumns() {
+            return statistics.clone();
+        }
+
+        public int getColumnCount() {
+            return columns.length;
+        }
+
+        /**
+         * Retrieves a view of a single column of this segment.
+         */
+        public Column getColumn(int column) {
+            return columns[column];
+        }
+
+        /**
+         * Decodes a single row of this segment into typed Features.
+         */
+        public Feature[] getRow(int row) {
+            Feature[] features = new Feature[columns.length];
+            for (int i = 0; i < columns.length; ++i) {
+                features[i] = columns[i].get(row);
+            }
+            return features;
+        }
+
+        private void appendCSV(int row, StringBuilder sb) {
+            for (int i = 0; i < columns.length; ++i) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                columns[i].appendTo(row, sb);
+            }
+        }
+
+        /**
+         * Renders a row, substituting the recorded text of any cells that
+         * the columns do not reproduce.  Substituted cells are cleared.
+         */
+        private void appendCSV(int row, StringBuilder sb, String[] cells) {
+            for (int i = 0; i < columns.length; ++i) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                if (cells[i] != null) {
+                    sb.append(cells[i]);
+                    cells[i] = null;
+                } else {
+                    columns[i].appendTo(row, sb);
+                }
+            }
+        }
+
+        /**
+         * @return the number of bytes this segment renders to as CSV text,
+         * excluding the separator that precedes it.
+         */
+        private long getCSVLength()
+        throws IOException {
+            long length = textLength;
+            if (length < 0) {
+                CountingOutputStream counter = new CountingOutputStream();
+                writeCSV(counter, new StringBuilder(), true);
+                length = counter.count;
+                textLength = length;
+            }
+            return length;
+        }
+
+        /**
+         * Writes the lines of this segment as CSV text, preceded by a line
+         * separator unless this is the first line of the block.
+         *
+         * @return true if nothing has been written to the block yet.
+         */
+        private boolean writeCSV(OutputStream out, StringBuilder sb,
+                boolean first)
+        throws IOException {
+            if (version < 3) {
+                return writeVerbatimCSV(out, sb, first);
+            }
+
+            SerializationInputStream exceptions
+                = new SerializationInputStream(lines, true);
+            String[] cells = new String[columns.length];
+            int exceptionLine = nextException(exceptions, 0);
+            int row = 0;
+            for (int line = 0; line < lineCount; ++line) {
+                if (first == false) {
+                    out.write('\n');
+                }
+                first = false;
+
+                boolean carriageReturn = crlf;
+                boolean blank = false;
+                String verbatim = null;
+                while (exceptionLine == line) {
+                    int kind = exceptions.readCompactInt();
+                    if (kind == ColumnarBlockWriter.CARRIAGE_RETURN) {
+                        carriageReturn = !carriageReturn;
+                    } else if (kind == ColumnarBlockWriter.BLANK_LINE) {
+                        blank = true;
+                    } else {
+                        String text = new String(exceptions.readField(),
+                                StandardCharsets.UTF_8);
+                        if (kind == ColumnarBlockWriter.VERBATIM_ROW) {
+                            verbatim = text;
+                        } else {
+                            cells[kind] = text;
+                        }
+                    }
+                    exceptionLine = nextException(exceptions, exceptionLine);
+                }
+
+                if (blank == false) {
+                    sb.setLength(0);
+                    if (verbatim != null) {
+                        sb.append(verbatim);
+                    } else {
+                        appendCSV(row, sb, cells);
+                    }
+                    row++;
+                    out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+                }
+                if (carriageReturn) {
+                    out.write('\r');
+                }
+            }
+            return first;
+        }
+
+        /**
+         * Reads the line of the next exception, which is stored relative to
+         * the line of the previous one.
+         *
+         * @return the line of the next exception, or -1 if there are no more.
+         */
+        private static int nextException(SerializationInputStream exceptions,
+                int previous)
+        throws IOException {
+            if (exceptions.available() == 0) {
+                return -1;
+            }
+            return previous + exceptions.readLength();
+        }
+
+        /**
+         * Writes the lines of a segment written before the exceptions
+         * section was introduced, where lines the columns did not reproduce
+         * were kept whole.
+         */
+        private boolean writeVerbatimCSV(OutputStream out, StringBuilder sb,
+                boolean first)
+        throws IOException {
+            int[] index = indexLines();
+            int next = 0;
+            int row = 0;
+            for (int line = 0; row < rowCount || next < index.length;
+                    ++line) {
+                if (first == false) {
+                    out.write('\n');
+                }
+                first = false;
+
+                if (next < index.length && lines.getInt(index[next]) == line) {
+                    int position = index[next];
+                    if (lines.get(position + 4) != 0) {
+                        row++;
+                    }
+                    byte[] text = new byte[lines.getInt(position + 5)];
+                    ByteBuffer value = lines.duplicate();
+                    value.position(position + 9);
+                    value.get(text);
+                    out.write(text);
+                    next++;
+                } else {
+                    sb.setLength(0);
+                    appendCSV(row++, sb);
+                    out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return first;
+        }
+
+        /**
+         * Locates the verbatim lines of the segment, which are stored in
+         * line order.
+         */
+        private int[] indexLines() {
+            int[] index = lineIndex;
+            if (index == null) {
+                int count = 0;
+                int end = 0;
+                while (end < lines.limit()) {
+                    end += 9 + lines.getInt(end + 5);
+                    count++;
+                }
+                index = new int[count];
+                int position = 0;
+                for (int i = 0; i < count; ++i) {
+                    index[i] = position;
+                    position += 9 + lines.getInt(position + 5);
+                }
+                lineIndex = index;
+            }
+            return index;
+        }
+
+        /**
+         * Determines whether any row in this segment could satisfy the
+         * query.  Expressions on features that are not columns of the
+         * segment can not be ruled out, and are assumed to match.
+         */
+        public boolean mayMatch(Query query) {
+            if (rowCount == 0) {
+                return false;
+            }
+
+            for (Operation operation : query.getOperations()) {
+                if (mayMatch(operation)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean mayMatch(Operation operation) {
+            for (Expression expression : operation.getExpressions()) {
+                for (ColumnStatistics column : statistics) {
+                    if (column.getName().equals(expression.getOperand())
+                            && column.mayMatch(expression) == false) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A read-only view of the values of one column in a mapped segment.
+     * Fixed-width values are read in place; string values are located through
+     * an index of value offsets that is built on first access.  Views may be
+     * read by multiple threads concurrently.
+     */
+    public static class Column {
+        private ColumnStatistics statistics;
+        private ByteBuffer data;
+        private int size;
+        private int style;
+        private volatile int[] stringOffsets;
+
+        private Column(ColumnStatistics statistics, ByteBuffer data,
+                int size, int style) {
+            this.statistics = statistics;
+            this.data = data;
+            this.size = size;
+            this.style = style;
+        }
+
+        public String getName() {
+            return statistics.getName();
+        }
+
+        public FeatureType getType() {
+            return statistics.getType();
+        }
+
+        public ColumnStatistics getStatistics() {
+            return statistics;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int getInt(int row) {
+            return data.getInt(row * 4);
+        }
+
+        public long getLong(int row) {
+            return data.getLong(row * 8);
+        }
+
+        public float getFloat(int row) {
+            return data.getFloat(row * 4);
+        }
+
+        public double getDouble(int row) {
+            return data.getDouble(row * 8);
+        }
+
+        public String getString(int row) {
+            switch (getType()) {
+                case INT: return Integer.toString(getInt(row));
+                case LONG: return Long.toString(getLong(row));
+                case FLOAT: return Float.toString(getFloat(row));
+                case DOUBLE: return Double.toString(getDouble(row));
+                default: break;
+            }
+
+            int[] offsets = indexStrings();
+            int start = offsets[row] + 4;
+            byte[] bytes = new byte[data.getInt(offsets[row])];
+            ByteBuffer value = data.duplicate();
+            value.position(start);
+            value.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Decodes the value at the given row into a Feature.
+         */
+        public Feature get(int row) {
+            String name = getName();
+            switch (getType()) {
+                case INT: return new Feature(name, getInt(row));
+                case LONG: return new Feature(name, getLong(row));
+                case FLOAT: return new Feature(name, getFloat(row));
+                case DOUBLE: return new Feature(name, getDouble(row));
+                default: return new Feature(name, getString(row));
+            }
+        }
+
+        private void appendTo(int row, StringBuilder sb) {
+            switch (getType()) {
+                case INT: sb.append(getInt(row)); break;
+                case LONG: sb.append(getLong(row)); break;
+                case FLOAT:
+                    appendDecimal(Float.toString(getFloat(row)), sb);
+                    break;
+                case DOUBLE:
+                    appendDecimal(Double.toString(getDouble(row)), sb);
+                    break;
+                default: sb.append(getString(row)); break;
+            }
+        }
+
+        private void appendDecimal(String canonical, StringBuilder sb) {
+            String text = null;
+            if (style != ColumnarBlockWriter.CANONICAL) {
+                text = ColumnarBlockWriter.formatDecimal(canonical, style);
+            }
+            sb.append(text == null ? canonical : text);
+        }
+
+        private int[] indexStrings() {
+            int[] offsets = stringOffsets;
+            if (offsets == null) {
+                offsets = new int[size];
+                int position = 0;
+                for (int i = 0; i < size; ++i) {
+                    offsets[i] = position;
+                    position += 4 + data.getInt(position);
+                }
+                stringOffsets = offsets;
+            }
+            return offsets;
+        }
+    }
+}
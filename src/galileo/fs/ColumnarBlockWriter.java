@@ -0,0 +1,675 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.fs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import galileo.dataset.feature.Feature;
+import galileo.dataset.feature.FeatureType;
+import galileo.serialization.SerializationOutputStream;
+import galileo.util.BloomFilter;
+import galileo.util.Math;
+import galileo.util.Pair;
+
+/**
+ * Builds a segment of a columnar block.  Rows are added one at a time (either
+ * as CSV text or as typed {@link Feature}s) and are split into one typed
+ * column per entry in the file system's feature list.  Calling
+ * {@link #appendTo(String)} writes the segment to the end of a block file.
+ * <p>
+ * A block file is a sequence of segments, each laid out as:
+ * <pre>
+ *   column 0 data | ... | column n data | exceptions | footer
+ *   | int footerLength | MAGIC
+ * </pre>
+ * Numeric columns are stored as fixed-width big-endian values.  String
+ * columns store a length prefix followed by the UTF-8 bytes of each value.
+ * The footer records the row count and, for each column, its name, type,
+ * location, value range (see {@link ColumnStatistics}) and rendering style,
+ * along with the number of lines and bytes the segment renders to as CSV.
+ * Since segments are self-describing, appending to a block never rewrites
+ * existing data.
+ * <p>
+ * CSV text is kept byte-for-byte.  Each decimal column is rendered either in
+ * canonical form ("40.5") or with a fixed number of decimal places ("40.50",
+ * or "12" for whole numbers), whichever matches most of the segment's text.
+ * Likewise, lines end with a carriage return if most of them did.  Only what
+ * these defaults do not reproduce is recorded in the exceptions section: the
+ * text of individual cells (such as empty or malformed numbers), rows with
+ * missing fields, blank lines, and lines whose carriage return differs from
+ * the rest.  Each exception is a variable-length line delta, a kind (a
+ * column index, or one of the negative kinds below), and the UTF-8 text of
+ * cells and rows.
+ * <p>
+ * Columns with types that have no columnar encoding are stored as strings.
+ */
+public class ColumnarBlockWriter {
+
+    /** Trails every segment.  0xC0 never appears in UTF-8 text, so a CSV
+     * block can not be mistaken for a columnar one. */
+    public static final int MAGIC = 0xC0474342;
+    public static final int VERSION = 3;
+
+    /** Exception kinds that do not refer to a single cell. */
+    static final int BLANK_LINE = -1;
+    static final int VERBATIM_ROW = -2;
+    static final int CARRIAGE_RETURN = -3;
+
+    /** Rendering style of columns that are not rendered with a fixed number
+     * of decimal places. */
+    static final int CANONICAL = -1;
+
+    private Column[] columns;
+    private int rowCount;
+
+    private int lineCount;
+    private long textLength;
+    private BitSet blankLines = new BitSet();
+    private BitSet carriageReturns = new BitSet();
+    private Map<Integer, String> verbatimRows = new HashMap<>();
+
+    public ColumnarBlockWriter(List<Pair<String, FeatureType>> featureList) {
+        this.columns = new Column[featureList.size()];
+        for (int i = 0; i < columns.length; ++i) {
+            Pair<String, FeatureType> pair = featureList.get(i);
+            columns[i] = new Column(pair.a, storageType(pair.b));
+        }
+    }
+
+    /**
+     * Determines the type a column of the given FeatureType is stored as.
+     */
+    public static FeatureType storageType(FeatureType type) {
+        switch (type) {
+            case INT:
+            case LONG:
+            case FLOAT:
+            case DOUBLE:
+            case STRING:
+                return type;
+            default:
+                return FeatureType.STRING;
+        }
+    }
+
+    /**
+     * Adds each line of the given CSV text.  Lines that are blank (or only
+     * hold a carriage return) are not rows, but are kept so the text can be
+     * reproduced exactly.
+     */
+    public void addRows(byte[] csv)
+    throws IOException {
+        String text = new String(csv, StandardCharsets.UTF_8);
+        for (String line : text.split("\n", -1)) {
+            if (line.isEmpty() || line.equals("\r")) {
+                carriageReturns.set(lineCount, line.isEmpty() == false);
+                blankLines.set(lineCount);
+                addText(line);
+            } else {
+                addRow(line);
+            }
+        }
+    }
+
+    /**
+     * Adds a row of comma-separated values.  Missing or malformed numeric
+     * values are converted the same way the query processor has always
+     * converted them (see {@link Math}), and the original text of the row is
+     * kept if the converted values would not reproduce it.
+     */
+    public void addRow(String line)
+    throws IOException {
+        String row = line;
+        if (line.endsWith("\r")) {
+            carriageReturns.set(lineCount);
+            row = line.substring(0, line.length() - 1);
+        }
+        String[] values = row.split(",", columns.length);
+        if (values.length < columns.length) {
+            verbatimRows.put(rowCount, row);
+        }
+        for (int i = 0; i < columns.length; ++i) {
+            String value = (i < values.length) ? values[i] : "";
+            columns[i].add(value);
+        }
+        rowCount++;
+        addText(line);
+    }
+
+    /**
+     * Adds a row of Features, ordered the same way as the feature list.
+     */
+    public void addRow(Feature[] row)
+    throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < columns.length; ++i) {
+            if (i > 0) {
+                text.append(',');
+            }
+            text.append(columns[i].add(row[i]));
+        }
+        rowCount++;
+        addText(text);
+    }
+
+    /**
+     * Accounts for a line of rendered CSV text.
+     */
+    private void addText(CharSequence line) {
+        if (lineCount > 0) {
+            textLength++;
+        }
+        textLength += utf8Length(line);
+        lineCount++;
+    }
+
+    private static int utf8Length(CharSequence text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)
+                    && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Summarizes the rows added so far as {@link BlockStatistics}.
+     */
+    public BlockStatistics getBlockStatistics() {
+        BlockStatistics stats = new BlockStatistics();
+        for (Column column : columns) {
+            stats.put(column.getStatistics(), column.filter);
+        }
+        return stats;
+    }
+
+    /**
+     * Writes the rows added so far as a new segment at the end of the given
+     * block file, creating the file if necessary.
+     */
+    public void appendTo(String blockPath)
+    throws IOException {
+        try (FileOutputStream out = new FileOutputStream(blockPath, true)) {
+            out.write(toBytes());
+        }
+    }
+
+    /**
+     * Renders a decimal number given in canonical form (as produced by
+     * {@link Float#toString(float)} or {@link Double#toString(double)}) with
+     * a fixed number of decimal places.
+     *
+     * @return the rendered number, or null if the number has more decimal
+     * places than requested or is not in plain decimal notation.
+     */
+    static String formatDecimal(String canonical, int scale) {
+        int dot = canonical.indexOf('.');
+        if (dot < 0 || canonical.indexOf('E') >= 0) {
+            return null;
+        }
+
+        int decimals = canonical.length() - dot - 1;
+        if (scale == 0) {
+            return (decimals == 1 && canonical.charAt(dot + 1) == '0')
+                ? canonical.substring(0, dot) : null;
+        }
+        if (decimals > scale) {
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder(dot + 1 + scale);
+        sb.append(canonical);
+        for (int i = decimals; i < scale; ++i) {
+            sb.append('0');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Records what the columns and the segment defaults do not reproduce,
+     * in line order.
+     */
+    private byte[] exceptions(boolean crlf)
+    throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SerializationOutputStream out
+            = new SerializationOutputStream(bytes, true);
+        int previous = 0;
+        int row = 0;
+        for (int line = 0; line < lineCount; ++line) {
+            if (carriageReturns.get(line) != crlf) {
+                previous = writeException(out, previous, line,
+                        CARRIAGE_RETURN, null);
+            }
+            if (blankLines.get(line)) {
+                previous = writeException(out, previous, line,
+                        BLANK_LINE, null);
+                continue;
+            }
+
+            String verbatim = verbatimRows.get(row);
+            if (verbatim != null) {
+                previous = writeException(out, previous, line,
+                        VERBATIM_ROW, verbatim);
+            } else {
+                for (int i = 0; i < columns.length; ++i) {
+                    String text = columns[i].getException(row);
+                    if (text != null) {
+                        previous = writeException(out, previous, line,
+                                i, text);
+                    }
+                }
+            }
+            row++;
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static int writeException(SerializationOutputStream out,
+            int previous, int line, int kind, String text)
+    throws IOException {
+        out.writeLength(line - previous);
+        out.writeCompactInt(kind);
+        if (text != null) {
+            out.writeField(text.getBytes(StandardCharsets.UTF_8));
+        }
+        return line;
+    }
+
+    /**
+     * Produces the on-disk representation of the segment.
+     */
+    public byte[] toBytes()
+    throws IOException {
+        ByteArrayOutputStream segment = new ByteArrayOutputStream();
+        long[] offsets = new long[columns.length];
+        for (int i = 0; i < columns.length; ++i) {
+            offsets[i] = segment.size();
+            columns[i].buffer.writeTo(segment);
+            columns[i].chooseStyle();
+        }
+        boolean crlf = carriageReturns.cardinality() * 2 > lineCount;
+        byte[] exceptions = exceptions(crlf);
+        long linesOffset = segment.size();
+        segment.write(exceptions);
+
+        ByteArrayOutputStream footerBytes = new ByteArrayOutputStream();
+        SerializationOutputStream footer
+            = new SerializationOutputStream(footerBytes);
+        footer.writeInt(VERSION);
+        footer.writeInt(rowCount);
+        footer.writeInt(columns.length);
+        for (int i = 0; i < columns.length; ++i) {
+            Column column = columns[i];
+            footer.writeString(column.name);
+            footer.writeInt(column.type.toInt());
+            footer.writeLong(offsets[i]);
+            footer.writeLong(column.buffer.size());
+            ColumnStatistics stats = column.getStatistics();
+            footer.writeBoolean(stats.isEmpty() == false);
+            if (stats.isEmpty() == false) {
+                footer.writeSerializable(stats.getMin());
+                footer.writeSerializable(stats.getMax());
+            }
+        }
+        footer.writeLong(linesOffset);
+        footer.writeLong(exceptions.length);
+        footer.writeInt(lineCount);
+        footer.writeLong(textLength);
+        footer.writeBoolean(crlf);
+        for (Column column : columns) {
+            footer.writeInt(column.style);
+        }
+        footer.flush();
+
+        DataOutputStream out = new DataOutputStream(segment);
+        footerBytes.writeTo(out);
+        out.writeInt(footerBytes.size());
+        out.writeInt(MAGIC);
+        out.flush();
+        return segment.toByteArray();
+    }
+
+    /**
+     * Accumulates the encoded values of a single column along with its value
+     * range.  The range is tracked with primitives to avoid allocating a
+     * Feature for every value.
+     * <p>
+     * Decimal columns also record how each value was written, so the style
+     * that reproduces most of them can be chosen once the segment is complete.
+     * Each format byte holds the number of decimal places the value was
+     * written with (or {@link #NO_SCALE}), and whether it was written in
+     * canonical form.  Values written some other way keep their text.
+     */
+    private static class Column {
+        private static final int NO_SCALE = 0x3F;
+        private static final int CANONICAL_FORM = 0x40;
+
+        private String name;
+        private FeatureType type;
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private DataOutputStream out = new DataOutputStream(buffer);
+        private BloomFilter filter;
+        private int size;
+
+        private ByteArrayOutputStream formats;
+        private Map<Integer, String> texts = new HashMap<>();
+        private int style = CANONICAL;
+        private byte[] chosenFormats;
+        private ByteBuffer values;
+
+        private boolean empty = true;
+        private long minLong, maxLong;
+        private float minFloat, maxFloat;
+        private double minDouble, maxDouble;
+        private String minString, maxString;
+
+        public Column(String name, FeatureType type) {
+            this.name = name;
+            this.type = type;
+            this.filter = BlockStatistics.createFilter(type);
+            if (type == FeatureType.FLOAT || type == FeatureType.DOUBLE) {
+                this.formats = new ByteArrayOutputStream();
+            }
+        }
+
+        /**
+         * Adds a value given as text, keeping the text if it is not written
+         * the way the stored value would be rendered.
+         */
+        public void add(String value)
+        throws IOException {
+            switch (type) {
+                case INT: {
+                    int number = Math.getInteger(value);
+                    addLong(number);
+                    keepText(value, Integer.toString(number));
+                    break;
+                }
+                case LONG: {
+                    long number = Math.getLong(value);
+                    addLong(number);
+                    keepText(value, Long.toString(number));
+                    break;
+                }
+                case FLOAT: {
+                    float number = Math.getFloat(value);
+                    addFloat(number);
+                    addFormat(value, Float.toString(number));
+                    break;
+                }
+                case DOUBLE: {
+                    double number = Math.getDouble(value);
+                    addDouble(number);
+                    addFormat(value, Double.toString(number));
+                    break;
+                }
+                default:
+                    addString(value);
+                    break;
+            }
+            empty = false;
+            size++;
+        }
+
+        private void keepText(String value, String stored) {
+            if (stored.equals(value) == false) {
+                texts.put(size, value);
+            }
+        }
+
+        /**
+         * Records how a decimal value was written.
+         */
+        private void addFormat(String value, String canonical) {
+            int dot = value.indexOf('.');
+            int scale = (dot < 0) ? 0 : value.length() - dot - 1;
+            if (scale >= NO_SCALE
+                    || value.equals(formatDecimal(canonical, scale)) == false) {
+                scale = NO_SCALE;
+            }
+
+            int format = scale;
+            if (canonical.equals(value)) {
+                format |= CANONICAL_FORM;
+            } else if (scale == NO_SCALE) {
+                texts.put(size, value);
+            }
+            formats.write(format);
+        }
+
+        /**
+         * Adds a typed value.
+         *
+         * @return the value as it will be rendered in CSV text.
+         */
+        public String add(Feature value)
+        throws IOException {
+            String stored;
+            switch (type) {
+                case INT: {
+                    int number = value.getInt();
+                    addLong(number);
+                    stored = Integer.toString(number);
+                    break;
+                }
+                case LONG: {
+                    long number = value.getLong();
+                    addLong(number);
+                    stored = Long.toString(number);
+                    break;
+                }
+                case FLOAT: {
+                    float number = value.getFloat();
+                    addFloat(number);
+                    stored = Float.toString(number);
+                    addFormat(stored, stored);
+                    break;
+                }
+                case DOUBLE: {
+                    double number = value.getDouble();
+                    addDouble(number);
+                    stored = Double.toString(number);
+                    addFormat(stored, stored);
+                    break;
+                }
+                default:
+                    stored = value.getString();
+                    addString(stored);
+                    break;
+            }
+            empty = false;
+            size++;
+            return stored;
+        }
+
+        /**
+         * Chooses the rendering style that reproduces the most values of a
+         * decimal column, preferring the canonical form.
+         */
+        public void chooseStyle() {
+            if (formats == null) {
+                return;
+            }
+
+            chosenFormats = formats.toByteArray();
+            values = ByteBuffer.wrap(buffer.toByteArray());
+            int canonical = 0;
+            int[] scales = new int[NO_SCALE];
+            for (byte format : chosenFormats) {
+                if ((format & CANONICAL_FORM) != 0) {
+                    canonical++;
+                }
+                if ((format & NO_SCALE) != NO_SCALE) {
+                    scales[format & NO_SCALE]++;
+                }
+            }
+
+            style = CANONICAL;
+            int best = canonical;
+            for (int scale = 0; scale < scales.length; ++scale) {
+                if (scales[scale] > best) {
+                    style = scale;
+                    best = scales[scale];
+                }
+            }
+        }
+
+        /**
+         * Determines the text of a value that the column's rendering style
+         * does not reproduce.
+         *
+         * @return the text of the value, or null if it is rendered exactly.
+         */
+        public String getException(int row) {
+            String text = texts.get(row);
+            if (text != null || chosenFormats == null) {
+                return text;
+            }
+
+            int format = chosenFormats[row];
+            if (style == CANONICAL && (format & CANONICAL_FORM) != 0) {
+                return null;
+            }
+            if (style != CANONICAL && (format & NO_SCALE) == style) {
+                return null;
+            }
+
+            String canonical = (type == FeatureType.FLOAT)
+                ? Float.toString(values.getFloat(row * 4))
+                : Double.toString(values.getDouble(row * 8));
+            if ((format & CANONICAL_FORM) != 0) {
+                return canonical;
+            }
+            return formatDecimal(canonical, format & NO_SCALE);
+        }
+
+        private void addLong(long value)
+        throws IOException {
+            if (type == FeatureType.INT) {
+                out.writeInt((int) value);
+            } else {
+                out.writeLong(value);
+            }
+            if (empty || value < minLong) {
+                minLong = value;
+            }
+            if (empty || value > maxLong) {
+                maxLong = value;
+            }
+        }
+
+        private void addFloat(float value)
+        throws IOException {
+            out.writeFloat(value);
+            if (empty || Float.compare(value, minFloat) < 0) {
+                minFloat = value;
+            }
+            if (empty || Float.compare(value, maxFloat) > 0) {
+                maxFloat = value;
+            }
+        }
+
+        private void addDouble(double value)
+        throws IOException {
+            out.writeDouble(value);
+            if (empty || Double.compare(value, minDouble) < 0) {
+                minDouble = value;
+            }
+            if (empty || Double.compare(value, maxDouble) > 0) {
+                maxDouble = value;
+            }
+        }
+
+        private void addString(String value)
+        throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            filter.add(value);
+            if (empty || value.compareTo(minString) < 0) {
+                minString = value;
+            }
+            if (empty || value.compareTo(maxString) > 0) {
+                maxString = value;
+            }
+        }
+
+        public ColumnStatistics getStatistics() {
+            if (empty) {
+                return new ColumnStatistics(name, type);
+            }
+
+            switch (type) {
+                case INT:
+                    return new ColumnStatistics(name, type,
+                            new Feature(name, (int) minLong),
+                            new Feature(name, (int) maxLong));
+                case LONG:
+                    return new ColumnStatistics(name, type,
+                            new Feature(name, minLong),
+                            new Feature(name, maxLong));
+                case FLOAT:
+                    return new ColumnStatistics(name, type,
+                            new Feature(name, minFloat),
+                            new Feature(name, maxFloat));
+                case DOUBLE:
+                    return new ColumnStatistics(name, type,
+                            new Feature(name, minDouble),
+                            new Feature(name, maxDouble));
+                default:
+                    return new ColumnStatistics(name, type,
+                            new Feature(name, minString),
+                            new Feature(name, maxString));
+            }
+        }
+    }
+}
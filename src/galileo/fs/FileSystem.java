@@ -39,6 +39,7 @@ import galileo.dataset.Block;
 import galileo.dataset.Metadata;
 import galileo.serialization.SerializationException;
 import galileo.serialization.Serializer;
+import galileo.util.Pair;
 import galileo.util.PerformanceTimer;
 
 public abstract class FileSystem implements PhysicalGraph {
@@ -153,8 +154,7 @@ public abstract class FileSystem implements PhysicalGraph {
      */
     protected void fullRecovery() {
         logger.warning("Performing full recovery from disk");
-        List<String> blockPaths = rebuildPaths(storageDirectory);
-        recover(blockPaths);
+        new ParallelRecovery(this).recoverDirectory(storageDirectory.toPath());
     }
 
     /**
@@ -179,28 +179,19 @@ public abstract class FileSystem implements PhysicalGraph {
      * checksum to verify block integrity.
      */
     protected void recover(List<String> blockPaths) {
-        PerformanceTimer recoveryTimer = new PerformanceTimer();
-        recoveryTimer.start();
-        logger.info("Recovering metadata and building graph");
-        long counter = 0;
-        for (String path : blockPaths) {
-            try {
-                Metadata metadata = loadMetadata(path);
-                storeMetadata(metadata, path);
-                ++counter;
-                if (counter % 10000 == 0) {
-                    logger.info(String.format("%d blocks scanned, " +
-                                "recovery %.2f%% complete.", counter,
-                                ((float) counter / blockPaths.size()) * 100));
-                }
-            } catch (Exception e) {
-                logger.log(Level.WARNING, "Failed to recover metadata " +
-                        "for block: " + path, e);
-            }
+        new ParallelRecovery(this).recoverBlocks(blockPaths);
+    }
+
+    /**
+     * Inserts a batch of Metadata recovered from disk, given as (block path,
+     * Metadata) pairs.  This implementation inserts each item individually;
+     * file systems that can index several items at once should override it.
+     */
+    protected void storeMetadata(List<Pair<String, Metadata>> batch)
+    throws FileSystemException, IOException {
+        for (Pair<String, Metadata> item : batch) {
+            storeMetadata(item.b, item.a);
         }
-        recoveryTimer.stop();
-        logger.info("Recovery operation complete. Time: "
-                + recoveryTimer.getLastResult() + " ms.");
     }
 
     @Override
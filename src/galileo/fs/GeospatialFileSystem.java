@@ -30,8 +30,12 @@ import java.awt.Rectangle;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -40,13 +44,18 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -60,7 +69,10 @@ import galileo.bmp.GeoavailabilityMap;
 import galileo.bmp.GeoavailabilityQuery;
 import galileo.comm.TemporalType;
 import galileo.dataset.Block;
+import galileo.dataset.BlockContent;
+import galileo.dataset.ByteBufferContent;
 import galileo.dataset.Coordinates;
+import galileo.dataset.FileContent;
 import galileo.dataset.Metadata;
 import galileo.dataset.Point;
 import galileo.dataset.SpatialHint;
@@ -74,15 +86,19 @@ import galileo.dht.GroupInfo;
 import galileo.dht.NetworkInfo;
 import galileo.dht.NodeInfo;
 import galileo.dht.PartitionException;
+import galileo.dht.QueryExecutor;
 import galileo.dht.Partitioner;
 import galileo.dht.StorageNode;
 import galileo.dht.TemporalHierarchyPartitioner;
 import galileo.dht.hash.HashException;
 import galileo.dht.hash.HashTopologyException;
 import galileo.dht.hash.TemporalHash;
+import galileo.graph.BlockRegistry;
+import galileo.graph.FeatureHierarchy;
 import galileo.graph.FeaturePath;
 import galileo.graph.MetadataGraph;
 import galileo.graph.Path;
+import galileo.graph.PathVisitor;
 import galileo.query.Expression;
 import galileo.query.Operation;
 import galileo.query.Operator;
@@ -92,6 +108,7 @@ import galileo.serialization.Serializer;
 import galileo.util.GeoHash;
 import galileo.util.Math;
 import galileo.util.Pair;
+import galileo.util.PerformanceTimer;
 
 /**
  * Implements a {@link FileSystem} for Geospatial data. This file system manager
@@ -111,6 +128,20 @@ public class GeospatialFileSystem extends FileSystem {
 	private int numCores;
 
 	private static final String pathStore = "metadata.paths";
+	private static final String snapshotStore = "metadata.snapshot";
+
+	/* Seconds between metadata graph snapshots; 0 disables them */
+	private static final long SNAPSHOT_INTERVAL = Long.getLong("galileo.fs.GeospatialFileSystem.snapshotInterval", 600);
+
+	private static final ScheduledExecutorService snapshotScheduler = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "galileo-snapshot");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
 
 	private NetworkInfo network;
 	private Partitioner<Metadata> partitioner;
@@ -125,8 +156,29 @@ public class GeospatialFileSystem extends FileSystem {
 	private String storageRoot;
 
 	private MetadataGraph metadataGraph;
+	/* Identifiers of the block paths held in the metadata graph */
+	private final BlockRegistry blockRegistry = new BlockRegistry();
+
+	/*
+	 * Guards the in-memory indices and the block files. Block scans only hold
+	 * the read lock while opening a block, so a long query does not hold up
+	 * ingest. The metadata graph does its own locking, so graph queries do not
+	 * take this lock at all.
+	 */
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/*
+	 * Keeps journal records and the graph paths they describe together:
+	 * indexing holds the read lock, so several batches can be indexed at once,
+	 * while a snapshot holds the write lock to capture the graph at the point
+	 * where the journal is rotated.
+	 */
+	private final ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock();
 
 	private PathJournal pathJournal;
+	/* Serializes snapshots with each other and with shutdown */
+	private final Object snapshotLock = new Object();
+	private ScheduledFuture<?> snapshotTask;
 
 	private SimpleDateFormat timeFormatter;
 	private String timeFormat;
@@ -150,7 +202,8 @@ public class GeospatialFileSystem extends FileSystem {
 		super(storageDirectory, name, ignoreIfPresent);
 
 		this.nodesPerGroup = nodesPerGroup;
-		this.geohashIndex = new HashSet<>();
+		/* Read by queries without holding the lock */
+		this.geohashIndex = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 		if (featureList != null) {
 			this.featureList = new ArrayList<>();
 			for (String nameType : featureList.split(",")) {
@@ -165,7 +218,7 @@ public class GeospatialFileSystem extends FileSystem {
 			throw new IllegalArgumentException("Spatial hint is needed when feature list is provided");
 		this.storageRoot = storageDirectory;
 		this.temporalType = TemporalType.fromType(temporalType);
-		this.numCores = Runtime.getRuntime().availableProcessors();
+		this.numCores = QueryExecutor.getInstance().getParallelism();
 
 		if (nodesPerGroup <= 0) 
 			nodesPerGroup = networkInfo.getGroups().get(0).getSize();
@@ -203,9 +256,22 @@ public class GeospatialFileSystem extends FileSystem {
 		this.timeFormatter = new SimpleDateFormat();
 		this.timeFormatter.setTimeZone(TimeZone.getTimeZone("GMT"));
 		this.timeFormatter.applyPattern(timeFormat);
-		this.pathJournal = new PathJournal(this.storageDirectory + File.separator + pathStore);
+		this.pathJournal = new PathJournal(this.storageDirectory + File.separator + pathStore, blockRegistry);
 
 		createMetadataGraph();
+
+		if (SNAPSHOT_INTERVAL > 0) {
+			this.snapshotTask = snapshotScheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						snapshot();
+					} catch (Exception e) {
+						logger.log(Level.WARNING, "Failed to snapshot the metadata graph of " + name, e);
+					}
+				}
+			}, SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL, TimeUnit.SECONDS);
+		}
 	}
 
 	public JSONArray getFeaturesRepresentation() {
@@ -239,21 +305,40 @@ public class GeospatialFileSystem extends FileSystem {
 	}
 
 	/**
-	 * Initializes the Metadata Graph, either from a successful recovery from
-	 * the PathJournal, or by scanning all the {@link Block}s on disk.
+	 * Initializes the Metadata Graph, either from the latest snapshot and the
+	 * PathJournal records written after it, or by scanning all the
+	 * {@link Block}s on disk.
 	 */
 	private void createMetadataGraph() throws IOException {
-		metadataGraph = new MetadataGraph();
+		metadataGraph = new MetadataGraph(blockRegistry);
+
+		/*
+		 * Recover the PathJournal first, since its index holds the block ids
+		 * that both the snapshot and the journal records refer to
+		 */
+		List<FeaturePath<Integer>> graphPaths = new ArrayList<>();
+		boolean recoveryOk = pathJournal.recoverBlockPaths(graphPaths);
+
+		/* Load the latest snapshot, if there is one */
+		File snapshot = new File(this.storageDirectory, snapshotStore);
+		if (snapshot.exists()) {
+			try {
+				metadataGraph = GraphSnapshot.read(snapshot, blockRegistry);
+				logger.log(Level.INFO, "Loaded metadata graph snapshot with {0} vertices",
+						metadataGraph.numVertices());
+			} catch (IOException | SerializationException e) {
+				logger.log(Level.SEVERE, "Failed to load metadata graph snapshot", e);
+				recoveryOk = false;
+			}
+		}
 
-		/* Recover the path index from the PathJournal */
-		List<FeaturePath<String>> graphPaths = new ArrayList<>();
-		boolean recoveryOk = pathJournal.recover(graphPaths);
 		pathJournal.start();
 
+		/* Add the paths recorded after the snapshot */
 		if (recoveryOk == true) {
-			for (FeaturePath<String> path : graphPaths) {
+			for (FeaturePath<Integer> path : graphPaths) {
 				try {
-					metadataGraph.addPath(path);
+					metadataGraph.addBlockPath(path);
 				} catch (Exception e) {
 					logger.log(Level.WARNING, "Failed to add path", e);
 					recoveryOk = false;
@@ -264,41 +349,82 @@ public class GeospatialFileSystem extends FileSystem {
 
 		if (recoveryOk == false) {
 			logger.log(Level.SEVERE, "Failed to recover path journal!");
+			metadataGraph = new MetadataGraph(blockRegistry);
+			snapshot.delete();
 			pathJournal.erase();
 			pathJournal.start();
 			fullRecovery();
 		}
+
+		/* Most of the recovered graph will only be read from now on */
+		metadataGraph.freeze();
 	}
 
-	public synchronized JSONObject obtainState() {
-		JSONObject state = new JSONObject();
-		state.put("name", this.name);
-		state.put("storageRoot", this.storageRoot);
-		state.put("precision", this.geohashPrecision);
-		state.put("nodesPerGroup", this.nodesPerGroup);
-		state.put("geohashIndex", this.geohashIndex);
-		StringBuffer features = new StringBuffer();
-		if (this.featureList != null) {
-			for (Pair<String, FeatureType> pair : this.featureList)
-				features.append(pair.a + ":" + pair.b.toInt() + ",");
-			features.setLength(features.length() - 1);
+	/**
+	 * Writes a snapshot of the metadata graph and removes the journal records
+	 * it covers, so that a restart only has to replay the records written
+	 * after it. The journal is rotated while indexing is held off; the graph is
+	 * then streamed out without holding up queries or ingest. Paths indexed
+	 * while it is written may end up both in the snapshot and in the new
+	 * journal, which is harmless since adding a path twice has no effect.
+	 */
+	public void snapshot() throws FileSystemException, IOException {
+		synchronized (snapshotLock) {
+			FeatureHierarchy hierarchy;
+			indexLock.writeLock().lock();
+			try {
+				if (pathJournal.getRecordCount() == 0)
+					return;
+				pathJournal.rotate();
+				hierarchy = metadataGraph.getFeatureHierarchy();
+			} finally {
+				indexLock.writeLock().unlock();
+			}
+
+			PerformanceTimer timer = new PerformanceTimer();
+			timer.start();
+			int paths = GraphSnapshot.write(new File(this.storageDirectory, snapshotStore), hierarchy, metadataGraph);
+			pathJournal.discardRotated();
+			timer.stop();
+			logger.log(Level.INFO, "Wrote metadata graph snapshot of " + paths + " paths in "
+					+ timer.getLastResult() + " ms");
 		}
-		state.put("featureList", this.featureList != null ? features.toString() : JSONObject.NULL);
-		JSONObject spHint = null;
-		if (this.spatialHint != null) {
-			spHint = new JSONObject();
-			spHint.put("latHint", this.spatialHint.getLatitudeHint());
-			spHint.put("lngHint", this.spatialHint.getLongitudeHint());
+	}
+
+	public JSONObject obtainState() {
+		lock.readLock().lock();
+		try {
+			JSONObject state = new JSONObject();
+			state.put("name", this.name);
+			state.put("storageRoot", this.storageRoot);
+			state.put("precision", this.geohashPrecision);
+			state.put("nodesPerGroup", this.nodesPerGroup);
+			state.put("geohashIndex", this.geohashIndex);
+			StringBuffer features = new StringBuffer();
+			if (this.featureList != null) {
+				for (Pair<String, FeatureType> pair : this.featureList)
+					features.append(pair.a + ":" + pair.b.toInt() + ",");
+				features.setLength(features.length() - 1);
+			}
+			state.put("featureList", this.featureList != null ? features.toString() : JSONObject.NULL);
+			JSONObject spHint = null;
+			if (this.spatialHint != null) {
+				spHint = new JSONObject();
+				spHint.put("latHint", this.spatialHint.getLatitudeHint());
+				spHint.put("lngHint", this.spatialHint.getLongitudeHint());
+			}
+			state.put("spatialHint", spHint == null ? JSONObject.NULL : spHint);
+			state.put("temporalType", this.temporalType.getType());
+			state.put("temporalString", this.temporalType.name());
+			state.put("earliestTime", this.earliestTime != null ? this.earliestTime.getStart() : JSONObject.NULL);
+			state.put("earliestSpace", this.earliestSpace != null ? this.earliestSpace : JSONObject.NULL);
+			state.put("latestTime", this.latestTime != null ? this.latestTime.getEnd() : JSONObject.NULL);
+			state.put("latestSpace", this.latestSpace != null ? this.latestSpace : JSONObject.NULL);
+			state.put("readOnly", this.isReadOnly());
+			return state;
+		} finally {
+			lock.readLock().unlock();
 		}
-		state.put("spatialHint", spHint == null ? JSONObject.NULL : spHint);
-		state.put("temporalType", this.temporalType.getType());
-		state.put("temporalString", this.temporalType.name());
-		state.put("earliestTime", this.earliestTime != null ? this.earliestTime.getStart() : JSONObject.NULL);
-		state.put("earliestSpace", this.earliestSpace != null ? this.earliestSpace : JSONObject.NULL);
-		state.put("latestTime", this.latestTime != null ? this.latestTime.getEnd() : JSONObject.NULL);
-		state.put("latestSpace", this.latestSpace != null ? this.latestSpace : JSONObject.NULL);
-		state.put("readOnly", this.isReadOnly());
-		return state;
 	}
 
 	public static GeospatialFileSystem restoreState(StorageNode storageNode, NetworkInfo networkInfo, JSONObject state)
@@ -326,10 +452,8 @@ public class GeospatialFileSystem extends FileSystem {
 		gfs.latestTime = (state.get("latestTime") != JSONObject.NULL)
 				? new TemporalProperties(state.getLong("latestTime")) : null;
 		gfs.latestSpace = (state.get("latestSpace") != JSONObject.NULL) ? state.getString("latestSpace") : null;
-		Set<String> geohashIndex = new HashSet<String>();
 		for (int i = 0; i < geohashIndices.length(); i++)
-			geohashIndex.add(geohashIndices.getString(i));
-		gfs.geohashIndex = geohashIndex;
+			gfs.geohashIndex.add(geohashIndices.getString(i));
 		return gfs;
 	}
 
@@ -406,6 +530,57 @@ public class GeospatialFileSystem extends FileSystem {
 	 */
 	@Override
 	public String storeBlock(Block block) throws FileSystemException, IOException {
+		return storeBlocks(Collections.singletonList(block)).get(0);
+	}
+
+	/**
+	 * Stores a batch of blocks. Blocks that belong to the same block file are
+	 * appended to it together, and the metadata paths of all newly created
+	 * blocks are written to the path journal at once.
+	 * 
+	 * @return the path of the block file each block was stored in, in the
+	 *         order of the given blocks.
+	 */
+	public List<String> storeBlocks(List<Block> blocks) throws FileSystemException, IOException {
+		List<String> blockPaths = new ArrayList<>(blocks.size());
+		List<FeaturePath<Integer>> newPaths = new ArrayList<>();
+		try {
+			lock.writeLock().lock();
+			try {
+				Map<String, List<Block>> targets = new LinkedHashMap<>();
+				for (Block block : blocks) {
+					String blockPath = prepareBlock(block);
+					blockPaths.add(blockPath);
+					List<Block> target = targets.get(blockPath);
+					if (target == null) {
+						target = new ArrayList<>();
+						targets.put(blockPath, target);
+					}
+					target.add(block);
+				}
+
+				for (Map.Entry<String, List<Block>> target : targets.entrySet())
+					appendBlocks(target.getKey(), target.getValue(), newPaths);
+			} finally {
+				lock.writeLock().unlock();
+			}
+		} finally {
+			/*
+			 * Blocks already written must be indexed even if a later one
+			 * failed. The graph is updated after the block files are released,
+			 * so queries can run meanwhile.
+			 */
+			if (!newPaths.isEmpty())
+				indexPaths(newPaths);
+		}
+		return blockPaths;
+	}
+
+	/**
+	 * Determines the block file a block is stored in, ensures its directory
+	 * exists and adds the temporal and spatial features to its metadata.
+	 */
+	private String prepareBlock(Block block) throws IOException {
 		Metadata meta = block.getMetadata();
 		String time = getTemporalString(meta.getTemporalProperties());
 		String geohash = getSpatialString(meta.getSpatialProperties());
@@ -414,7 +589,6 @@ public class GeospatialFileSystem extends FileSystem {
 			name = meta.getName();
 		String blockDirPath = this.storageDirectory + File.separator + getStorageDirectory(block);
 		String blockPath = blockDirPath + File.separator + name + FileSystem.BLOCK_EXTENSION;
-		String metadataPath = blockDirPath + File.separator + name + FileSystem.METADATA_EXTENSION;
 
 		/* Ensure the storage directory is there. */
 		File blockDirectory = new File(blockDirPath);
@@ -438,24 +612,6 @@ public class GeospatialFileSystem extends FileSystem {
 			newfs.put(feature);
 		meta.setAttributes(newfs);
 
-		Serializer.persist(block.getMetadata(), metadataPath);
-		File gblock = new File(blockPath);
-		boolean newLine = gblock.exists();
-		if (!newLine)
-			storeMetadata(meta, blockPath);
-		/*
-		 * TODO: Add an attribute to this class asking for block update strategy
-		 * - whether to overwrite blocks, or append content. When it is append,
-		 * ask for any delimiter to separate the existing data.
-		 **/
-		try (FileOutputStream blockData = new FileOutputStream(blockPath, true)) {
-			if (newLine)
-				blockData.write("\n".getBytes("UTF-8"));
-			blockData.write(block.getData());
-		} catch (Exception e) {
-			throw new FileSystemException("Error storing block: " + e.getClass().getCanonicalName(), e);
-		}
-
 		if (latestTime == null || latestTime.getEnd() < meta.getTemporalProperties().getEnd()) {
 			this.latestTime = meta.getTemporalProperties();
 			this.latestSpace = geohash;
@@ -471,14 +627,183 @@ public class GeospatialFileSystem extends FileSystem {
 		return blockPath;
 	}
 
+	/**
+	 * Appends the data of one or more blocks to a block file with a single
+	 * write. If the block file is new, the metadata path of its first block is
+	 * added to newPaths.
+	 */
+	private void appendBlocks(String blockPath, List<Block> blocks, List<FeaturePath<Integer>> newPaths)
+			throws FileSystemException, IOException {
+		String metadataPath = blockPath.replace(BLOCK_EXTENSION, METADATA_EXTENSION);
+		Serializer.persist(blocks.get(blocks.size() - 1).getMetadata(), metadataPath);
+		File gblock = new File(blockPath);
+		boolean exists = gblock.exists();
+		/*
+		 * Blocks of file systems with a feature list are stored in the typed
+		 * columnar format, unless the block already exists as text.
+		 */
+		boolean columnar = this.featureList != null && (!exists || ColumnarBlockReader.isColumnar(gblock));
+		if (!exists)
+			newPaths.add(createPath(blockPath, blocks.get(0).getMetadata()));
+		/*
+		 * TODO: Add an attribute to this class asking for block update strategy
+		 * - whether to overwrite blocks, or append content. When it is append,
+		 * ask for any delimiter to separate the existing data.
+		 **/
+		ColumnarBlockWriter writer = null;
+		if (this.featureList != null) {
+			writer = new ColumnarBlockWriter(this.featureList);
+			for (Block block : blocks)
+				writer.addRows(block.getData());
+		}
+		if (columnar) {
+			try {
+				writer.appendTo(blockPath);
+			} catch (Exception e) {
+				throw new FileSystemException("Error storing block: " + e.getClass().getCanonicalName(), e);
+			}
+		} else {
+			try (FileOutputStream blockData = new FileOutputStream(blockPath, true)) {
+				boolean newLine = exists;
+				for (Block block : blocks) {
+					if (newLine)
+						blockData.write("\n".getBytes("UTF-8"));
+					blockData.write(block.getData());
+					newLine = true;
+				}
+			} catch (Exception e) {
+				throw new FileSystemException("Error storing block: " + e.getClass().getCanonicalName(), e);
+			}
+		}
+		if (writer != null)
+			storeStatistics(blockPath, exists, writer.getBlockStatistics());
+	}
+
+	private static String getStatisticsPath(String blockPath) {
+		return blockPath.replace(BLOCK_EXTENSION, BlockStatistics.EXTENSION);
+	}
+
+	/**
+	 * Folds the statistics of newly stored rows into the statistics file of
+	 * the block. Blocks whose existing data predates statistics (or whose
+	 * statistics can no longer be read) are left without statistics, since
+	 * those would not describe the whole block.
+	 */
+	private void storeStatistics(String blockPath, boolean appended, BlockStatistics stats) {
+		File statsFile = new File(getStatisticsPath(blockPath));
+		try {
+			if (appended) {
+				if (!statsFile.exists())
+					return;
+				BlockStatistics existing = Serializer.restore(BlockStatistics.class, statsFile);
+				existing.merge(stats);
+				stats = existing;
+			}
+			Serializer.persist(stats, statsFile);
+		} catch (IOException | SerializationException e) {
+			logger.log(Level.WARNING, "Failed to update block statistics for " + blockPath, e);
+			statsFile.delete();
+		}
+	}
+
+	/**
+	 * Determines whether a block could contain rows satisfying the query by
+	 * consulting its statistics, without reading the block itself. Blocks
+	 * without statistics are always assumed to match.
+	 */
+	public boolean mayMatch(String blockPath, Query query) {
+		if (query == null)
+			return true;
+		File statsFile = new File(getStatisticsPath(blockPath));
+		BlockStatistics stats;
+		lock.readLock().lock();
+		try {
+			if (!statsFile.exists())
+				return true;
+			stats = Serializer.restore(BlockStatistics.class, statsFile);
+		} catch (IOException | SerializationException e) {
+			logger.log(Level.WARNING, "Failed to read block statistics for " + blockPath, e);
+			return true;
+		} finally {
+			lock.readLock().unlock();
+		}
+		return stats.mayMatch(query);
+	}
+
+	/**
+	 * Retrieves a block for transmission to a client. The block file is
+	 * memory-mapped and its content is streamed from the mapping when the
+	 * returned Block is serialized, rather than being read onto the heap.
+	 */
 	public Block retrieveBlock(String blockPath) throws IOException, SerializationException {
+		return retrieveBlock(blockPath, false);
+	}
+
+	/**
+	 * Retrieves a block for transfer to a client straight from its file. The
+	 * content of text blocks is a {@link FileContent} holding the open block
+	 * file, which the network layer can send without reading it onto the heap
+	 * (see {@link galileo.comm.BlockResponse#toTransfer()}); the caller is
+	 * responsible for closing it if the block is not sent that way. Columnar
+	 * blocks are converted to CSV text as in {@link #retrieveBlock(String)}.
+	 */
+	public Block openBlock(String blockPath) throws IOException, SerializationException {
+		return retrieveBlock(blockPath, true);
+	}
+
+	private Block retrieveBlock(String blockPath, boolean open) throws IOException, SerializationException {
 		Metadata metadata = null;
-		byte[] blockBytes = Files.readAllBytes(Paths.get(blockPath));
-		String metadataPath = blockPath.replace(BLOCK_EXTENSION, METADATA_EXTENSION);
-		File metadataFile = new File(metadataPath);
-		if (metadataFile.exists())
-			metadata = Serializer.deserialize(Metadata.class, Files.readAllBytes(Paths.get(metadataPath)));
-		return new Block(this.name, metadata, blockBytes);
+		BlockContent content;
+		lock.readLock().lock();
+		try {
+			if (ColumnarBlockReader.isColumnar(new File(blockPath))) {
+				/* clients always receive blocks as CSV text */
+				content = new ColumnarBlockReader(blockPath).asCSV();
+			} else if (open) {
+				content = openContent(blockPath);
+			} else {
+				content = new ByteBufferContent(mapBlock(blockPath));
+			}
+			String metadataPath = blockPath.replace(BLOCK_EXTENSION, METADATA_EXTENSION);
+			File metadataFile = new File(metadataPath);
+			try {
+				if (metadataFile.exists())
+					metadata = Serializer.deserialize(Metadata.class, Files.readAllBytes(Paths.get(metadataPath)));
+			} catch (IOException | SerializationException e) {
+				if (content instanceof FileContent)
+					((FileContent) content).close();
+				throw e;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return new Block(this.name, metadata, content);
+	}
+
+	/**
+	 * Opens a block file for transfer. The content covers the file as it is
+	 * now; data appended later is not included.
+	 */
+	private static FileContent openContent(String blockPath) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(blockPath), StandardOpenOption.READ);
+		long size = channel.size();
+		if (size > Integer.MAX_VALUE) {
+			channel.close();
+			throw new IOException("Block is too large to transfer: " + blockPath);
+		}
+		return new FileContent(channel, (int) size);
+	}
+
+	/**
+	 * Maps an entire block file into memory for reading. The mapping remains
+	 * valid after the file is deleted.
+	 */
+	private static MappedByteBuffer mapBlock(String blockPath) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(blockPath), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Block is too large to map: " + blockPath);
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
 	}
 
 	/**
@@ -542,9 +867,8 @@ public class GeospatialFileSystem extends FileSystem {
 		return temporalExpressions;
 	}
 
-	private String getGroupKey(Path<Feature, String> path, String space) {
-		if (null != path && path.hasPayload()) {
-			List<Feature> labels = path.getLabels();
+	private String getGroupKey(List<Feature> labels, String space) {
+		if (null != labels) {
 			String year = "xxxx", month = "xx", day = "xx", hour = "xx";
 			int allset = (space == null) ? 0 : 1;
 			for (Feature label : labels) {
@@ -580,9 +904,8 @@ public class GeospatialFileSystem extends FileSystem {
 		return String.format("%s-%s", getTemporalString(null), (space == null) ? getSpatialString(null) : space);
 	}
 
-	private String getSpaceKey(Path<Feature, String> path) {
-		if (null != path && path.hasPayload()) {
-			List<Feature> labels = path.getLabels();
+	private String getSpaceKey(List<Feature> labels) {
+		if (null != labels) {
 			for (Feature label : labels)
 				if (label.getName().toLowerCase().equals(SPATIAL_FEATURE))
 					return label.getString();
@@ -611,69 +934,49 @@ public class GeospatialFileSystem extends FileSystem {
 		}
 	}
 
-	private class ParallelQueryEvaluator implements Runnable {
-		private List<Operation> operations;
-		private List<Path<Feature, String>> resultPaths;
-
-		public ParallelQueryEvaluator(List<Operation> operations) {
-			this.operations = operations;
-		}
+	/**
+	 * Evaluates a query against the metadata graph. All of its operations are
+	 * evaluated in a single traversal, so the levels they have in common
+	 * (usually the temporal ones) are only walked once, and each block path
+	 * is returned once.
+	 */
+	private void executeQuery(Query finalQuery, PathVisitor<Integer> visitor) {
+		logger.info("Query: " + finalQuery.toString());
+		metadataGraph.visitBlockQuery(finalQuery, visitor);
+	}
 
-		public List<Path<Feature, String>> getResults() {
-			return this.resultPaths;
+	/**
+	 * Collects the block paths of visited metadata paths into lists, keyed by
+	 * either their space or their time and space.
+	 */
+	private class BlockGrouper implements PathVisitor<Integer> {
+		private Map<String, List<String>> blockMap;
+		private boolean group;
+		private String space;
+
+		public BlockGrouper(Map<String, List<String>> blockMap, boolean group, String space) {
+			this.blockMap = blockMap;
+			this.group = group;
+			this.space = space;
 		}
 
 		@Override
-		public void run() {
-			Query query = new Query();
-			query.addAllOperations(operations);
-			this.resultPaths = metadataGraph.evaluateQuery(query);
-		}
-	}
-
-	private List<Path<Feature, String>> executeParallelQuery(Query finalQuery) throws InterruptedException {
-		logger.info("Query: " + finalQuery.toString());
-		List<Path<Feature, String>> paths = new ArrayList<>();
-		List<Operation> operations = finalQuery.getOperations();
-		if (operations.size() > 0) {
-			if (operations.size() > numCores) {
-				int subsetSize = operations.size() / numCores;
-				for (int i = 0; i < numCores; i++) {
-					operations.subList(i, (i + 1) * subsetSize);
-				}
-				int size = operations.size();
-				ExecutorService executor = Executors.newFixedThreadPool(numCores);
-				List<ParallelQueryEvaluator> queryEvaluators = new ArrayList<>();
-				for (int i = 0; i < numCores; i++) {
-					int from = i * subsetSize;
-					int to = (i + 1 != numCores) ? (i + 1) * subsetSize : size;
-					List<Operation> subset = new ArrayList<>(operations.subList(from, to));
-					ParallelQueryEvaluator pqe = new ParallelQueryEvaluator(subset);
-					queryEvaluators.add(pqe);
-					executor.execute(pqe);
-				}
-				operations.clear();
-				executor.shutdown();
-				boolean termination = executor.awaitTermination(10, TimeUnit.MINUTES);
-				if (!termination)
-					logger.severe("Query failed to process in 10 minutes");
-				paths = new ArrayList<>();
-				for (ParallelQueryEvaluator pqe : queryEvaluators)
-					if (pqe.getResults() != null)
-						paths.addAll(pqe.getResults());
-			} else {
-				paths = metadataGraph.evaluateQuery(finalQuery);
+		public void visit(List<Feature> labels, Set<Integer> payload) {
+			String groupKey = group ? getGroupKey(labels, space) : getSpaceKey(labels);
+			List<String> blocks = blockMap.get(groupKey);
+			if (blocks == null) {
+				blocks = new ArrayList<String>();
+				blockMap.put(groupKey, blocks);
 			}
+			blockRegistry.resolve(payload, blocks);
 		}
-		return paths;
 	}
 
 	public Map<String, List<String>> listBlocks(String temporalProperties, List<Coordinates> spatialProperties,
 			Query metaQuery, boolean group) throws InterruptedException {
 		Map<String, List<String>> blockMap = new HashMap<String, List<String>>();
 		String space = null;
-		List<Path<Feature, String>> paths = null;
-		List<String> blocks = new ArrayList<String>();
+		Query pathQuery = null;
 		if (temporalProperties != null && spatialProperties != null) {
 			SpatialProperties sp = new SpatialProperties(new SpatialRange(spatialProperties));
 			List<Coordinates> geometry = sp.getSpatialRange().hasPolygon() ? sp.getSpatialRange().getPolygon()
@@ -709,12 +1012,12 @@ public class GeospatialFileSystem extends FileSystem {
 					}
 				}
 			}
-			paths = executeParallelQuery(queryIntersection(query, metaQuery));
+			pathQuery = queryIntersection(query, metaQuery);
 		} else if (temporalProperties != null) {
 			List<Expression> temporalExpressions = buildTemporalExpression(temporalProperties);
 			Query query = new Query(
 					new Operation(temporalExpressions.toArray(new Expression[temporalExpressions.size()])));
-			paths = metadataGraph.evaluateQuery(queryIntersection(query, metaQuery));
+			pathQuery = queryIntersection(query, metaQuery);
 		} else if (spatialProperties != null) {
 			SpatialProperties sp = new SpatialProperties(new SpatialRange(spatialProperties));
 			List<Coordinates> geometry = sp.getSpatialRange().hasPolygon() ? sp.getSpatialRange().getPolygon()
@@ -749,20 +1052,17 @@ public class GeospatialFileSystem extends FileSystem {
 					}
 				}
 			}
-			paths = executeParallelQuery(queryIntersection(query, metaQuery));
+			pathQuery = queryIntersection(query, metaQuery);
 		} else {
 			// non-chronal non-spatial
-			paths = (metaQuery == null) ? metadataGraph.getAllPaths() : executeParallelQuery(metaQuery);
-		}
-		for (Path<Feature, String> path : paths) {
-			String groupKey = group ? getGroupKey(path, space) : getSpaceKey(path);
-			blocks = blockMap.get(groupKey);
-			if (blocks == null) {
-				blocks = new ArrayList<String>();
-				blockMap.put(groupKey, blocks);
-			}
-			blocks.addAll(path.getPayload());
+			pathQuery = metaQuery;
 		}
+		/* Blocks are grouped as paths are found, without collecting them */
+		BlockGrouper grouper = new BlockGrouper(blockMap, group, space);
+		if (pathQuery == null)
+			metadataGraph.visitBlockPaths(grouper);
+		else
+			executeQuery(pathQuery, grouper);
 		return blockMap;
 	}
 
@@ -805,61 +1105,67 @@ public class GeospatialFileSystem extends FileSystem {
 
 	public JSONArray getOverview() {
 		JSONArray overviewJSON = new JSONArray();
-		Map<String, Tracker> geohashMap = new HashMap<String, Tracker>();
-		Calendar timestamp = Calendar.getInstance();
+		final Map<String, Tracker> geohashMap = new HashMap<String, Tracker>();
+		final Calendar timestamp = Calendar.getInstance();
 		timestamp.setTimeZone(TemporalHash.TIMEZONE);
-		List<Path<Feature, String>> allPaths = metadataGraph.getAllPaths();
-		logger.info("all paths size: " + allPaths.size());
+		final int[] numPaths = new int[1];
 		try {
-			for (Path<Feature, String> path : allPaths) {
-				long payloadSize = 0;
-				if (path.hasPayload()) {
-					for (String payload : path.getPayload()) {
+			/* Paths are summarized as they are found, without collecting them */
+			metadataGraph.visitBlockPaths(new PathVisitor<Integer>() {
+				@Override
+				public void visit(List<Feature> labels, Set<Integer> payload) {
+					numPaths[0]++;
+					long payloadSize = 0;
+					for (int blockId : payload) {
+						String blockPath = blockRegistry.getPath(blockId);
+						if (blockPath == null)
+							continue;
 						try {
-							payloadSize += Files.size(java.nio.file.Paths.get(payload));
+							payloadSize += Files.size(java.nio.file.Paths.get(blockPath));
 						} catch (IOException e) { /* e.printStackTrace(); */
 							System.err.println("Exception occurred reading the block size. " + e.getMessage());
 						}
 					}
+					String geohash = labels.get(4).getString();
+					String yearFeature = labels.get(0).getString();
+					String monthFeature = labels.get(1).getString();
+					String dayFeature = labels.get(2).getString();
+					String hourFeature = labels.get(3).getString();
+					if (yearFeature.charAt(0) == 'x') {
+						System.err.println("Cannot build timestamp without year. Ignoring path");
+						return;
+					}
+					if (monthFeature.charAt(0) == 'x')
+						monthFeature = "12";
+					if (hourFeature.charAt(0) == 'x')
+						hourFeature = "23";
+					int year = Integer.parseInt(yearFeature);
+					int month = Integer.parseInt(monthFeature) - 1;
+					if (dayFeature.charAt(0) == 'x') {
+						Calendar cal = Calendar.getInstance();
+						cal.setTimeZone(TemporalHash.TIMEZONE);
+						cal.set(Calendar.YEAR, year);
+						cal.set(Calendar.MONTH, month);
+						dayFeature = String.valueOf(cal.getActualMaximum(Calendar.DAY_OF_MONTH));
+					}
+					int day = Integer.parseInt(dayFeature);
+					int hour = Integer.parseInt(hourFeature);
+					timestamp.set(year, month, day, hour, 59, 59);
+
+					Tracker geohashTracker = geohashMap.get(geohash);
+					if (geohashTracker == null) {
+						geohashMap.put(geohash, new Tracker(payloadSize, timestamp.getTimeInMillis()));
+					} else {
+						geohashTracker.incrementOccurrence();
+						geohashTracker.incrementFilesize(payloadSize);
+						geohashTracker.updateTimestamp(timestamp.getTimeInMillis());
+					}
 				}
-				String geohash = path.get(4).getLabel().getString();
-				String yearFeature = path.get(0).getLabel().getString();
-				String monthFeature = path.get(1).getLabel().getString();
-				String dayFeature = path.get(2).getLabel().getString();
-				String hourFeature = path.get(3).getLabel().getString();
-				if (yearFeature.charAt(0) == 'x') {
-					System.err.println("Cannot build timestamp without year. Ignoring path");
-					continue;
-				}
-				if (monthFeature.charAt(0) == 'x')
-					monthFeature = "12";
-				if (hourFeature.charAt(0) == 'x')
-					hourFeature = "23";
-				int year = Integer.parseInt(yearFeature);
-				int month = Integer.parseInt(monthFeature) - 1;
-				if (dayFeature.charAt(0) == 'x') {
-					Calendar cal = Calendar.getInstance();
-					cal.setTimeZone(TemporalHash.TIMEZONE);
-					cal.set(Calendar.YEAR, year);
-					cal.set(Calendar.MONTH, month);
-					dayFeature = String.valueOf(cal.getActualMaximum(Calendar.DAY_OF_MONTH));
-				}
-				int day = Integer.parseInt(dayFeature);
-				int hour = Integer.parseInt(hourFeature);
-				timestamp.set(year, month, day, hour, 59, 59);
-
-				Tracker geohashTracker = geohashMap.get(geohash);
-				if (geohashTracker == null) {
-					geohashMap.put(geohash, new Tracker(payloadSize, timestamp.getTimeInMillis()));
-				} else {
-					geohashTracker.incrementOccurrence();
-					geohashTracker.incrementFilesize(payloadSize);
-					geohashTracker.updateTimestamp(timestamp.getTimeInMillis());
-				}
-			}
+			});
 		} catch (Exception e) {
 			logger.log(Level.SEVERE, "failed to process a path", e);
 		}
+		logger.info("all paths size: " + numPaths[0]);
 
 		logger.info("geohash map size: " + geohashMap.size());
 		for (String geohash : geohashMap.keySet()) {
@@ -887,21 +1193,56 @@ public class GeospatialFileSystem extends FileSystem {
 	 * Using the Feature attributes found in the provided Metadata, a path is
 	 * created for insertion into the Metadata Graph.
 	 */
-	protected FeaturePath<String> createPath(String physicalPath, Metadata meta) {
-		FeaturePath<String> path = new FeaturePath<String>(physicalPath, meta.getAttributes().toArray());
+	protected FeaturePath<Integer> createPath(String physicalPath, Metadata meta) {
+		FeaturePath<Integer> path = new FeaturePath<Integer>(blockRegistry.register(physicalPath),
+				meta.getAttributes().toArray());
 		return path;
 	}
 
 	@Override
 	public void storeMetadata(Metadata metadata, String blockPath) throws FileSystemException, IOException {
-		FeaturePath<String> path = createPath(blockPath, metadata);
-		pathJournal.persistPath(path);
-		storePath(path);
+		indexPaths(Collections.singletonList(createPath(blockPath, metadata)));
+	}
+
+	/**
+	 * Indexes a batch of recovered metadata, journaling all of its paths with
+	 * a single write.
+	 */
+	@Override
+	protected void storeMetadata(List<Pair<String, Metadata>> batch) throws FileSystemException, IOException {
+		List<FeaturePath<Integer>> paths = new ArrayList<>(batch.size());
+		for (Pair<String, Metadata> item : batch)
+			paths.add(createPath(item.a, item.b));
+		indexPaths(paths);
+	}
+
+	/**
+	 * Journals a number of paths with a single write and adds them to the
+	 * metadata graph.
+	 */
+	private void indexPaths(List<FeaturePath<Integer>> paths) throws FileSystemException, IOException {
+		indexLock.readLock().lock();
+		try {
+			pathJournal.persistBlockPaths(paths);
+			for (FeaturePath<Integer> path : paths)
+				storePath(path);
+		} finally {
+			indexLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The metadata of a block is stored in a separate file next to it, since
+	 * the block file holds only its data.
+	 */
+	@Override
+	public Metadata loadMetadata(String blockPath) throws IOException, SerializationException {
+		return Serializer.restore(Metadata.class, blockPath.replace(BLOCK_EXTENSION, METADATA_EXTENSION));
 	}
 
-	private void storePath(FeaturePath<String> path) throws FileSystemException {
+	private void storePath(FeaturePath<Integer> path) throws FileSystemException {
 		try {
-			metadataGraph.addPath(path);
+			metadataGraph.addBlockPath(path);
 		} catch (Exception e) {
 			throw new FileSystemException("Error storing metadata: " + e.getClass().getCanonicalName(), e);
 		}
@@ -915,17 +1256,90 @@ public class GeospatialFileSystem extends FileSystem {
 		return metadataGraph.evaluateQuery(query);
 	}
 
-	private List<String[]> getFeaturePaths(String blockPath) throws IOException {
-		byte[] blockBytes = Files.readAllBytes(Paths.get(blockPath));
-		String blockData = new String(blockBytes, "UTF-8");
-		List<String[]> paths = new ArrayList<String[]>();
-		String[] lines = blockData.split("\\r?\\n");
+	/**
+	 * Reads the rows of a block as typed features. For columnar blocks, the
+	 * segments whose column ranges show that no row can satisfy the query are
+	 * skipped without being read. Text blocks are parsed line by line.
+	 */
+	private List<Feature[]> getFeaturePaths(String blockPath, Query query) throws IOException {
+		List<Feature[]> paths = new ArrayList<Feature[]>();
+		ColumnarBlockReader reader = null;
+		MappedByteBuffer blockData = null;
+		/* the mappings stay consistent once the lock is released */
+		lock.readLock().lock();
+		try {
+			if (ColumnarBlockReader.isColumnar(new File(blockPath)))
+				reader = new ColumnarBlockReader(blockPath);
+			else
+				blockData = mapBlock(blockPath);
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		if (reader != null) {
+			try {
+				for (ColumnarBlockReader.Segment segment : reader.getSegments())
+					if (query == null || segment.mayMatch(query))
+						paths.addAll(reader.readRows(segment));
+			} finally {
+				reader.close();
+			}
+			return paths;
+		}
+
+		/* decode text blocks one line at a time straight from the mapping */
 		int splitLimit = this.featureList.size();
-		for (String line : lines)
-			paths.add(line.split(",", splitLimit));
+		int limit = blockData.limit();
+		int lineStart = 0;
+		while (lineStart < limit) {
+			int lineEnd = lineStart;
+			while (lineEnd < limit && blockData.get(lineEnd) != '\n')
+				lineEnd++;
+			int next = lineEnd + 1;
+			if (lineEnd > lineStart && blockData.get(lineEnd - 1) == '\r')
+				lineEnd--;
+			byte[] lineBytes = new byte[lineEnd - lineStart];
+			blockData.position(lineStart);
+			blockData.get(lineBytes);
+			lineStart = next;
+			if (lineBytes.length == 0)
+				continue;
+			String[] values = new String(lineBytes, StandardCharsets.UTF_8).split(",", splitLimit);
+			Feature[] features = new Feature[values.length];
+			for (int i = 0; i < values.length; i++) {
+				Pair<String, FeatureType> pair = this.featureList.get(i);
+				switch (ColumnarBlockWriter.storageType(pair.b)) {
+				case INT:
+					features[i] = new Feature(pair.a, Math.getInteger(values[i]));
+					break;
+				case LONG:
+					features[i] = new Feature(pair.a, Math.getLong(values[i]));
+					break;
+				case FLOAT:
+					features[i] = new Feature(pair.a, Math.getFloat(values[i]));
+					break;
+				case DOUBLE:
+					features[i] = new Feature(pair.a, Math.getDouble(values[i]));
+					break;
+				default:
+					features[i] = new Feature(pair.a, values[i]);
+					break;
+				}
+			}
+			paths.add(features);
+		}
 		return paths;
 	}
 
+	/**
+	 * Determines whether the query job the calling thread is working on has
+	 * been cancelled.
+	 */
+	private static boolean isCancelled() {
+		QueryExecutor.Job job = QueryExecutor.currentJob();
+		return job != null && job.isCancelled();
+	}
+
 	private boolean isGridInsidePolygon(GeoavailabilityGrid grid, GeoavailabilityQuery geoQuery) {
 		Polygon polygon = new Polygon();
 		for (Coordinates coords : geoQuery.getPolygon()) {
@@ -944,13 +1358,13 @@ public class GeospatialFileSystem extends FileSystem {
 	}
 
 	private class ParallelQueryProcessor implements Runnable {
-		private List<String[]> featurePaths;
+		private List<Feature[]> featurePaths;
 		private Query query;
 		private GeoavailabilityGrid grid;
 		private Bitmap queryBitmap;
 		private String storagePath;
 
-		public ParallelQueryProcessor(List<String[]> featurePaths, Query query, GeoavailabilityGrid grid,
+		public ParallelQueryProcessor(List<Feature[]> featurePaths, Query query, GeoavailabilityGrid grid,
 				Bitmap queryBitmap, String storagePath) {
 			this.featurePaths = featurePaths;
 			this.query = query;
@@ -974,42 +1388,26 @@ public class GeospatialFileSystem extends FileSystem {
 							index++;
 					}
 
-					GeoavailabilityMap<String[]> geoMap = new GeoavailabilityMap<String[]>(grid);
-					Iterator<String[]> pathIterator = this.featurePaths.iterator();
+					GeoavailabilityMap<Feature[]> geoMap = new GeoavailabilityMap<Feature[]>(grid);
+					Iterator<Feature[]> pathIterator = this.featurePaths.iterator();
 					while (pathIterator.hasNext()) {
-						String[] features = pathIterator.next();
-						float lat = Math.getFloat(features[latOrder]);
-						float lon = Math.getFloat(features[lngOrder]);
+						Feature[] features = pathIterator.next();
+						float lat = features[latOrder].getFloat();
+						float lon = features[lngOrder].getFloat();
 						if (!Float.isNaN(lat) && !Float.isNaN(lon))
 							geoMap.addPoint(new Coordinates(lat, lon), features);
 						pathIterator.remove();
 					}
-					for (List<String[]> paths : geoMap.query(queryBitmap).values())
+					for (List<Feature[]> paths : geoMap.query(queryBitmap).values())
 						this.featurePaths.addAll(paths);
 				}
 				if (query != null && this.featurePaths.size() > 0) {
 					MetadataGraph temporaryGraph = new MetadataGraph();
-					Iterator<String[]> pathIterator = this.featurePaths.iterator();
+					Iterator<Feature[]> pathIterator = this.featurePaths.iterator();
 					while (pathIterator.hasNext()) {
-						String[] features = pathIterator.next();
+						Feature[] features = pathIterator.next();
 						try {
-							Metadata metadata = new Metadata();
-							FeatureSet featureset = new FeatureSet();
-							for (int i = 0; i < features.length; i++) {
-								Pair<String, FeatureType> pair = GeospatialFileSystem.this.featureList.get(i);
-								if (pair.b == FeatureType.FLOAT)
-									featureset.put(new Feature(pair.a, Math.getFloat(features[i])));
-								if (pair.b == FeatureType.INT)
-									featureset.put(new Feature(pair.a, Math.getInteger(features[i])));
-								if (pair.b == FeatureType.LONG)
-									featureset.put(new Feature(pair.a, Math.getLong(features[i])));
-								if (pair.b == FeatureType.DOUBLE)
-									featureset.put(new Feature(pair.a, Math.getDouble(features[i])));
-								if (pair.b == FeatureType.STRING)
-									featureset.put(new Feature(pair.a, features[i]));
-							}
-							metadata.setAttributes(featureset);
-							Path<Feature, String> featurePath = createPath("/nopath", metadata);
+							Path<Feature, String> featurePath = new FeaturePath<String>("/nopath", features);
 							temporaryGraph.addPath(featurePath);
 						} catch (Exception e) {
 							logger.warning(e.getMessage());
@@ -1017,23 +1415,23 @@ public class GeospatialFileSystem extends FileSystem {
 						pathIterator.remove();
 					}
 					List<Path<Feature, String>> evaluatedPaths = temporaryGraph.evaluateQuery(query);
-					for (Path<Feature, String> path : evaluatedPaths) {
-						String[] featureValues = new String[path.size()];
-						int index = 0;
-						for (Feature feature : path.getLabels())
-							featureValues[index++] = feature.getString();
-						this.featurePaths.add(featureValues);
-					}
+					for (Path<Feature, String> path : evaluatedPaths)
+						this.featurePaths.add(path.getLabels().toArray(new Feature[path.size()]));
+				}
+
+				if (isCancelled()) {
+					this.storagePath = null;
+					return;
 				}
 
 				if (featurePaths.size() > 0) {
 					try (FileOutputStream fos = new FileOutputStream(this.storagePath)) {
-						Iterator<String[]> pathIterator = featurePaths.iterator();
+						Iterator<Feature[]> pathIterator = featurePaths.iterator();
 						while (pathIterator.hasNext()) {
-							String[] path = pathIterator.next();
+							Feature[] path = pathIterator.next();
 							StringBuffer pathSB = new StringBuffer();
 							for (int j = 0; j < path.length; j++) {
-								pathSB.append(path[j]);
+								pathSB.append(path[j].getString());
 								if (j + 1 != path.length)
 									pathSB.append(",");
 							}
@@ -1061,17 +1459,19 @@ public class GeospatialFileSystem extends FileSystem {
 	public List<String> query(String blockPath, GeoavailabilityQuery geoQuery, GeoavailabilityGrid grid,
 			Bitmap queryBitmap, String pathPrefix) throws IOException, InterruptedException {
 		List<String> resultFiles = new ArrayList<>();
-		List<String[]> featurePaths = null;
+		if (isCancelled())
+			return resultFiles;
+		List<Feature[]> featurePaths = null;
 		boolean skipGridProcessing = false;
 		if (geoQuery.getPolygon() != null && geoQuery.getQuery() != null) {
 			skipGridProcessing = isGridInsidePolygon(grid, geoQuery);
-			featurePaths = getFeaturePaths(blockPath);
+			featurePaths = getFeaturePaths(blockPath, geoQuery.getQuery());
 		} else if (geoQuery.getPolygon() != null) {
 			skipGridProcessing = isGridInsidePolygon(grid, geoQuery);
 			if (!skipGridProcessing)
-				featurePaths = getFeaturePaths(blockPath);
+				featurePaths = getFeaturePaths(blockPath, geoQuery.getQuery());
 		} else if (geoQuery.getQuery() != null) {
-			featurePaths = getFeaturePaths(blockPath);
+			featurePaths = getFeaturePaths(blockPath, geoQuery.getQuery());
 		} else {
 			resultFiles.add(blockPath);
 			return resultFiles;
@@ -1087,20 +1487,17 @@ public class GeospatialFileSystem extends FileSystem {
 		int partition = java.lang.Math.max(size / numCores, MIN_GRID_POINTS);
 		int parallelism = java.lang.Math.min(size / partition, numCores);
 		if (parallelism > 1) {
-			ExecutorService executor = Executors.newFixedThreadPool(parallelism);
 			List<ParallelQueryProcessor> queryProcessors = new ArrayList<>();
 			for (int i = 0; i < parallelism; i++) {
 				int from = i * partition;
 				int to = (i + 1 != parallelism) ? (i + 1) * partition : size;
-				List<String[]> subset = new ArrayList<>(featurePaths.subList(from, to));
+				List<Feature[]> subset = new ArrayList<>(featurePaths.subList(from, to));
 				ParallelQueryProcessor pqp = new ParallelQueryProcessor(subset, geoQuery.getQuery(), grid, queryBitmap,
 						pathPrefix + "-" + i);
 				queryProcessors.add(pqp);
-				executor.execute(pqp);
 			}
 			featurePaths.clear();
-			executor.shutdown();
-			executor.awaitTermination(10, TimeUnit.MINUTES);
+			QueryExecutor.getInstance().invokeAll(this.name, queryProcessors, 10, TimeUnit.MINUTES);
 			for (ParallelQueryProcessor pqp : queryProcessors)
 				if (pqp.getStoragePath() != null)
 					resultFiles.add(pqp.getStoragePath());
@@ -1122,8 +1519,12 @@ public class GeospatialFileSystem extends FileSystem {
 	@Override
 	public void shutdown() {
 		logger.info("FileSystem shutting down");
+		if (snapshotTask != null)
+			snapshotTask.cancel(false);
 		try {
-			pathJournal.shutdown();
+			synchronized (snapshotLock) {
+				pathJournal.shutdown();
+			}
 		} catch (Exception e) {
 			/* Everything is going down here, just print out the error */
 			e.printStackTrace();
@@ -0,0 +1,149 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.fs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import galileo.graph.BlockRegistry;
+import galileo.graph.FeatureHierarchy;
+import galileo.graph.GraphException;
+import galileo.graph.MetadataGraph;
+import galileo.serialization.SerializationException;
+import galileo.serialization.SerializationInputStream;
+import galileo.serialization.SerializationOutputStream;
+
+/**
+ * Reads and writes snapshots of a {@link MetadataGraph}.  A snapshot holds the
+ * serialized form of the graph behind a short header.  Snapshots are written
+ * to a temporary file, forced to disk and then renamed over the previous
+ * snapshot, so a snapshot file on disk is always complete.
+ */
+public final class GraphSnapshot {
+
+    public static final int MAGIC = 0xC047534E;
+    /* Version 1 snapshots hold block paths; version 2 holds block ids */
+    public static final int VERSION = 2;
+
+    private GraphSnapshot() { }
+
+    /**
+     * Atomically replaces the snapshot at the given location with the given
+     * hierarchy and the paths in a graph.  Paths are streamed out of the
+     * graph, which may change while they are written; the path count is
+     * filled in once they have all been written.  Path payloads are block
+     * identifiers, which are resolved through the {@link BlockRegistry} the
+     * snapshot is read with.
+     *
+     * @return the number of paths written.
+     */
+    public static int write(File file, FeatureHierarchy hierarchy,
+            MetadataGraph graph)
+    throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        int paths;
+        try (FileOutputStream fOut = new FileOutputStream(temp)) {
+            FileChannel channel = fOut.getChannel();
+            SerializationOutputStream out = new SerializationOutputStream(
+                    new BufferedOutputStream(fOut));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            MetadataGraph.writeHierarchy(out, hierarchy);
+            out.flush();
+
+            long countPosition = channel.position();
+            out.writeInt(0);
+            paths = graph.writeBlockPaths(out);
+            out.flush();
+
+            ByteBuffer count = ByteBuffer.allocate(4);
+            count.putInt(0, paths);
+            channel.write(count, countPosition);
+            channel.force(true);
+        }
+
+        try {
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDirectory(file.getAbsoluteFile().getParentFile());
+        return paths;
+    }
+
+    /**
+     * Loads the graph stored in a snapshot.  Block identifiers are resolved
+     * through the given registry; block paths in older snapshots are
+     * registered with it as they are read.
+     */
+    public static MetadataGraph read(File file, BlockRegistry registry)
+    throws IOException, SerializationException {
+        try (SerializationInputStream in = new SerializationInputStream(
+                    new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new SerializationException(
+                        "Not a graph snapshot: " + file);
+            }
+            int version = in.readInt();
+            if (version != 1 && version != VERSION) {
+                throw new SerializationException(
+                        "Unsupported graph snapshot version: " + version);
+            }
+
+            try {
+                return MetadataGraph.read(in, registry, version > 1);
+            } catch (GraphException e) {
+                throw new SerializationException(
+                        "Could not rebuild graph from snapshot", e);
+            }
+        }
+    }
+
+    /**
+     * Forces a directory's entries (such as a rename) to disk.  Not every
+     * platform allows directories to be opened; on those this is a no-op.
+     */
+    static void syncDirectory(File directory) {
+        try (FileChannel dir = FileChannel.open(directory.toPath(),
+                    StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            /* Best effort only */
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.fs;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import galileo.dataset.Metadata;
+import galileo.util.Pair;
+
+/**
+ * Rebuilds the index of a {@link FileSystem} from the blocks stored on disk.
+ * Directories are walked and block metadata is deserialized concurrently on a
+ * dedicated pool, while the calling thread inserts the recovered metadata
+ * into the file system in batches.
+ * <p>
+ * The number of recovery threads can be set with the
+ * <code>galileo.fs.FileSystem.recoveryThreads</code> system property; it
+ * defaults to the number of available processors.
+ */
+class ParallelRecovery {
+
+    private static final Logger logger = Logger.getLogger("galileo");
+
+    private static final int BATCH_SIZE = 1000;
+    private static final int SPLIT_SIZE = 64;
+    private static final long REPORT_INTERVAL = 10000;
+
+    private FileSystem fs;
+    private ForkJoinPool pool;
+    private BlockingQueue<Pair<String, Metadata>> recovered
+        = new LinkedBlockingQueue<>(BATCH_SIZE * 16);
+
+    private AtomicLong directories = new AtomicLong();
+    private AtomicLong blocks = new AtomicLong();
+    private AtomicLong failures = new AtomicLong();
+    private long indexed;
+    private long total = -1;
+    private long startTime;
+
+    public ParallelRecovery(FileSystem fs) {
+        this.fs = fs;
+        int threads = Integer.getInteger(
+                "galileo.fs.FileSystem.recoveryThreads",
+                Runtime.getRuntime().availableProcessors());
+        this.pool = new ForkJoinPool(Math.max(1, threads),
+                new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                    @Override
+                    public ForkJoinWorkerThread newThread(ForkJoinPool p) {
+                        ForkJoinWorkerThread thread = ForkJoinPool
+                            .defaultForkJoinWorkerThreadFactory.newThread(p);
+                        thread.setName("galileo-recovery-"
+                                + thread.getPoolIndex());
+                        return thread;
+                    }
+                }, null, false);
+    }
+
+    /**
+     * Recovers every block found under the given directory.
+     */
+    public void recoverDirectory(Path directory) {
+        run(new DirectoryScan(directory.toAbsolutePath()));
+    }
+
+    /**
+     * Recovers the blocks at the given paths.
+     */
+    public void recoverBlocks(List<String> blockPaths) {
+        total = blockPaths.size();
+        run(new BlockLoad(blockPaths, 0, blockPaths.size()));
+    }
+
+    private void run(ForkJoinTask<?> task) {
+        startTime = System.currentTimeMillis();
+        logger.log(Level.INFO, "Recovering metadata and building graph "
+                + "with {0} threads", pool.getParallelism());
+        try {
+            pool.execute(task);
+            drain(task);
+        } catch (InterruptedException e) {
+            logger.warning("Interrupted during recovery");
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+        report("Recovery operation complete");
+    }
+
+    /**
+     * Inserts recovered metadata in batches until the recovery task has
+     * finished and everything it produced has been inserted.
+     */
+    private void drain(ForkJoinTask<?> task)
+    throws InterruptedException {
+        List<Pair<String, Metadata>> batch = new ArrayList<>(BATCH_SIZE);
+        long lastReport = System.currentTimeMillis();
+        while (true) {
+            boolean done = task.isDone();
+            Pair<String, Metadata> item
+                = recovered.poll(100, TimeUnit.MILLISECONDS);
+            if (item != null) {
+                batch.add(item);
+                recovered.drainTo(batch, BATCH_SIZE - batch.size());
+            }
+
+            if (batch.size() >= BATCH_SIZE
+                    || (item == null && batch.isEmpty() == false)) {
+                insert(batch);
+                batch.clear();
+            }
+
+            if (done && item == null) {
+                break;
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - lastReport >= REPORT_INTERVAL) {
+                report("Recovery in progress");
+                lastReport = now;
+            }
+        }
+    }
+
+    private void insert(List<Pair<String, Metadata>> batch) {
+        try {
+            fs.storeMetadata(batch);
+            indexed += batch.size();
+            return;
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to index a batch of recovered "
+                    + "metadata; retrying blocks individually", e);
+        }
+
+        for (Pair<String, Metadata> item : batch) {
+            try {
+                fs.storeMetadata(item.b, item.a);
+                indexed++;
+            } catch (Exception e) {
+                failures.incrementAndGet();
+                logger.log(Level.WARNING, "Failed to recover metadata "
+                        + "for block: " + item.a, e);
+            }
+        }
+    }
+
+    private void report(String status) {
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        String complete = "";
+        if (total > 0) {
+            complete = String.format(", %.2f%% complete",
+                    ((float) indexed / total) * 100);
+        }
+        logger.info(String.format("%s: %d directories scanned, %d blocks "
+                    + "read, %d indexed, %d failed in %d ms "
+                    + "(%.0f blocks/s)%s", status, directories.get(),
+                    blocks.get(), indexed, failures.get(), elapsed,
+                    indexed * 1000.0 / elapsed, complete));
+    }
+
+    /**
+     * Loads the metadata of a block and hands it to the inserting thread.
+     */
+    private void load(String blockPath) {
+        Metadata metadata;
+        try {
+            metadata = fs.loadMetadata(blockPath);
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            logger.log(Level.WARNING, "Failed to recover metadata "
+                    + "for block: " + blockPath, e);
+            return;
+        }
+
+        try {
+            recovered.put(new Pair<>(blockPath, metadata));
+            blocks.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Scans a directory, forking a scan for each subdirectory and loading the
+     * blocks it contains.
+     */
+    private class DirectoryScan extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private Path directory;
+
+        public DirectoryScan(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            List<String> blockPaths = new ArrayList<>();
+            List<DirectoryScan> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> entries
+                    = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    if (Files.isDirectory(entry)) {
+                        DirectoryScan scan = new DirectoryScan(entry);
+                        scan.fork();
+                        subdirectories.add(scan);
+                    } else if (entry.getFileName().toString().endsWith(
+                                FileSystem.BLOCK_EXTENSION)) {
+                        blockPaths.add(entry.toString());
+                    }
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to scan directory: "
+                        + directory, e);
+            }
+            directories.incrementAndGet();
+
+            new BlockLoad(blockPaths, 0, blockPaths.size()).invoke();
+            for (DirectoryScan scan : subdirectories) {
+                scan.join();
+            }
+        }
+    }
+
+    /**
+     * Loads the metadata of a range of blocks, splitting large ranges so that
+     * they can be spread across the pool.
+     */
+    private class BlockLoad extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private List<String> blockPaths;
+        private int from;
+        private int to;
+
+        public BlockLoad(List<String> blockPaths, int from, int to) {
+            this.blockPaths = blockPaths;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > SPLIT_SIZE) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new BlockLoad(blockPaths, from, middle),
+                        new BlockLoad(blockPaths, middle, to));
+                return;
+            }
+
+            for (int i = from; i < to; ++i) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                load(blockPaths.get(i));
+            }
+        }
+    }
+}
@@ -27,8 +27,6 @@ package galileo.fs;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
@@ -36,11 +34,17 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -50,34 +54,106 @@ import java.util.zip.CRC32;
 
 import galileo.dataset.feature.Feature;
 import galileo.dataset.feature.FeatureType;
+import galileo.graph.BlockRegistry;
 import galileo.graph.FeaturePath;
 import galileo.graph.Vertex;
+import galileo.serialization.ByteBufferOutputStream;
 import galileo.serialization.SerializationException;
 import galileo.serialization.SerializationInputStream;
 import galileo.serialization.SerializationOutputStream;
+import galileo.serialization.Serializer;
 import galileo.util.Pair;
 import galileo.util.PerformanceTimer;
 
+/**
+ * Persists the {@link FeaturePath}s of a graph so that it can be recovered
+ * after a restart.  Each record is framed with its length and a CRC32
+ * checksum.
+ * <p>
+ * Writes are group-committed: records are buffered and forced to disk by a
+ * background flusher once <code>commitRecords</code> records are pending, or
+ * at most <code>commitInterval</code> milliseconds after they were written.
+ * Callers that need a record to be durable before proceeding can wait for it
+ * with {@link #awaitDurable(long)} or {@link #sync()}.  A commit interval of
+ * zero forces every write to disk before it returns.
+ */
 public class PathJournal {
 
     private static final Logger logger = Logger.getLogger("galileo");
 
+    /* Set on the length of path records that use the compact encoding */
+    private static final int COMPACT_RECORD = 0x80000000;
+
+    /* Set on the length of path records whose payloads are block identifiers
+     * rather than block paths, and on the length of index records that
+     * register a block path */
+    private static final int BLOCK_RECORD = 0x40000000;
+
+    /* Size of the checksum and length that precede each record */
+    private static final int RECORD_HEADER = 12;
+
     private String pathFile;
     private String indexFile;
+    private String rotatedFile;
 
     private DataOutputStream pathStore;
     private DataOutputStream indexStore;
+    private FileChannel pathChannel;
+    private FileChannel indexChannel;
+
+    private int commitRecords;
+    private long commitInterval;
+    private boolean compact;
+
+    /* Sequence numbers of the last record written and forced to disk */
+    private long appended = 0;
+    private long durable = 0;
+    /* Number of records in the journal since it was last rotated */
+    private long journaled = 0;
+    private IOException commitError;
+    private Thread flusher;
 
     private Map<String, Integer> featureNames = new HashMap<>();
     private Map<Integer, Pair<String, FeatureType>> featureIndex
         = new HashMap<>();
     private int nextId = 1;
 
+    private BlockRegistry blocks;
+    /* Block identifiers below this have been written to the index */
+    private int blocksIndexed = 0;
+
     private boolean running = false;
 
     public PathJournal(String pathFile) {
+        this(pathFile, new BlockRegistry());
+    }
+
+    /**
+     * Creates a PathJournal whose path payloads are block identifiers from
+     * the given registry.  The registry's mappings are kept in the journal
+     * index, and are restored into the registry during recovery.
+     */
+    public PathJournal(String pathFile, BlockRegistry blocks) {
+        this.blocks = blocks;
         this.pathFile = pathFile;
         this.indexFile = pathFile + ".index";
+        this.rotatedFile = pathFile + ".rotated";
+        this.commitRecords = Integer.getInteger(
+                "galileo.fs.PathJournal.commitRecords", 1024);
+        this.commitInterval = Long.getLong(
+                "galileo.fs.PathJournal.commitInterval", 20);
+        this.compact = Serializer.useCompactFormat();
+    }
+
+    /**
+     * Creates a PathJournal that writes path records in the given encoding
+     * instead of the one configured by {@link Serializer#COMPACT_PROPERTY}.
+     * Records in either encoding are recovered regardless.
+     */
+    public PathJournal(String pathFile, BlockRegistry blocks,
+            boolean compact) {
+        this(pathFile, blocks);
+        this.compact = compact;
     }
 
     /**
@@ -89,6 +165,25 @@ public class PathJournal {
      * issues with the journal files (possible corruption).
      */
     public boolean recover(List<FeaturePath<String>> paths)
+    throws IOException {
+        List<FeaturePath<Integer>> blockPaths = new ArrayList<>();
+        boolean clean = recoverBlockPaths(blockPaths);
+        for (FeaturePath<Integer> path : blockPaths) {
+            paths.add(blocks.toNamedPath(path));
+        }
+        return clean;
+    }
+
+    /**
+     * Recovers the Path Journal from disk, producing paths whose payloads are
+     * identifiers from this journal's {@link BlockRegistry}.
+     *
+     * @param paths A list that will be populated with all the recovered paths.
+     *
+     * @return true if the recovery was completed cleanly; if false, there were
+     * issues with the journal files (possible corruption).
+     */
+    public boolean recoverBlockPaths(List<FeaturePath<Integer>> paths)
     throws IOException {
         PerformanceTimer timer = new PerformanceTimer();
         timer.start();
@@ -113,15 +208,25 @@ public class PathJournal {
             clean = false;
         }
         logger.log(Level.INFO, "Features read: {0}", featureNames.size());
+        blocksIndexed = blocks.size();
 
-        try {
-            recoverPaths(paths);
-        } catch (EOFException e) {
-            logger.info("Reached end of path journal.");
-        } catch (NullPointerException | SerializationException e) {
-            logger.log(Level.WARNING, "Error deserializing path!", e);
-            clean = false;
+        /* Records rotated out for a snapshot that did not complete come
+         * first, followed by the current journal. */
+        int recovered = paths.size();
+        for (String file : new String[] { rotatedFile, pathFile }) {
+            if (new File(file).exists() == false) {
+                continue;
+            }
+            try {
+                recoverPaths(file, paths);
+            } catch (EOFException e) {
+                logger.info("Reached end of path journal.");
+            } catch (NullPointerException | SerializationException e) {
+                logger.log(Level.WARNING, "Error deserializing path!", e);
+                clean = false;
+            }
         }
+        journaled = paths.size() - recovered;
         logger.log(Level.INFO, "Recovered {0} paths.", paths.size());
         timer.stop();
         logger.log(Level.INFO, "Finished PathJournal recovery in "
@@ -140,18 +245,27 @@ public class PathJournal {
         DataInputStream indexIn = new DataInputStream(
                 new BufferedInputStream(
                     new FileInputStream(indexFile)));
+        long length = new File(indexFile).length();
+        long valid = 0;
 
         while (true) {
+            if (length - valid < RECORD_HEADER) {
+                break;
+            }
             long check = indexIn.readLong();
             int entryLength = indexIn.readInt();
+            boolean blockRecord = (entryLength & BLOCK_RECORD) != 0;
+            entryLength &= ~BLOCK_RECORD;
 
-            byte[] entry = new byte[entryLength];
-            int read = indexIn.read(entry);
-            if (read != entry.length) {
+            if (entryLength < 0
+                    || entryLength > length - valid - RECORD_HEADER) {
                 logger.info("Reached end of journal index");
-                /* Did not read a complete entry, we're done. */
+                /* Did not find a complete entry, we're done. */
                 break;
             }
+            byte[] entry = new byte[entryLength];
+            indexIn.readFully(entry);
+            valid += RECORD_HEADER + entryLength;
 
             CRC32 crc = new CRC32();
             crc.update(entry);
@@ -162,7 +276,13 @@ public class PathJournal {
             }
 
             SerializationInputStream sIn = new SerializationInputStream(
-                    new ByteArrayInputStream(entry));
+                    ByteBuffer.wrap(entry));
+
+            if (blockRecord) {
+                int blockId = sIn.readInt();
+                blocks.restore(blockId, sIn.readString());
+                continue;
+            }
 
             int featureId = sIn.readInt();
             FeatureType type = FeatureType.fromInt(sIn.readInt());
@@ -173,27 +293,52 @@ public class PathJournal {
         }
 
         indexIn.close();
+        truncate(indexFile, valid);
     }
 
     /**
-     * Recovers Paths stored in the Path Journal.
+     * Recovers Paths stored in the Path Journal.  A record cut short by a
+     * crash is removed from the end of the file, so that records appended
+     * afterward follow the last complete one.
      */
-    private void recoverPaths(List<FeaturePath<String>> paths)
+    private void recoverPaths(String file, List<FeaturePath<Integer>> paths)
     throws IOException, SerializationException {
-        DataInputStream pathIn = new DataInputStream(
-                new BufferedInputStream(
-                    new FileInputStream(pathFile)));
+        long valid;
+        try (DataInputStream pathIn = new DataInputStream(
+                    new BufferedInputStream(
+                        new FileInputStream(file)))) {
+            valid = recoverPaths(pathIn, new File(file).length(), paths);
+        }
+        truncate(file, valid);
+    }
+
+    /**
+     * Reads path records from a journal file of the given length.
+     *
+     * @return the number of bytes taken up by complete records.
+     */
+    private long recoverPaths(DataInputStream pathIn, long length,
+            List<FeaturePath<Integer>> paths)
+    throws IOException, SerializationException {
+        long valid = 0;
 
         while (true) {
+            if (length - valid < RECORD_HEADER) {
+                break;
+            }
             long check = pathIn.readLong();
             int pathSize = pathIn.readInt();
+            boolean compactRecord = (pathSize & COMPACT_RECORD) != 0;
+            boolean blockRecord = (pathSize & BLOCK_RECORD) != 0;
+            pathSize &= ~(COMPACT_RECORD | BLOCK_RECORD);
 
-            byte[] pathBytes = new byte[pathSize];
-            int read = pathIn.read(pathBytes);
-            if (read != pathSize) {
+            if (pathSize > length - valid - RECORD_HEADER) {
                 logger.info("Reached end of path index");
                 break;
             }
+            byte[] pathBytes = new byte[pathSize];
+            pathIn.readFully(pathBytes);
+            valid += RECORD_HEADER + pathSize;
 
             CRC32 crc = new CRC32();
             crc.update(pathBytes);
@@ -202,32 +347,62 @@ public class PathJournal {
                 continue;
             }
 
-            FeaturePath<String> fp = deserializePath(pathBytes);
+            FeaturePath<Integer> fp = deserializePath(pathBytes,
+                    compactRecord, blockRecord);
             paths.add(fp);
         }
+        return valid;
+    }
 
-        pathIn.close();
+    /**
+     * Removes an incomplete record, left behind by a crash, from the end of
+     * a journal file.
+     */
+    private static void truncate(String file, long length)
+    throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(file),
+                    StandardOpenOption.WRITE)) {
+            if (channel.size() > length) {
+                logger.warning("Removing incomplete record from the end of "
+                        + file);
+                channel.truncate(length);
+                channel.force(false);
+            }
+        }
     }
 
     /**
      * Prepares the journal files and allows new entries to be written.
      */
-    public void start()
+    public synchronized void start()
     throws IOException {
-        OutputStream out = Files.newOutputStream(Paths.get(pathFile),
+        pathChannel = FileChannel.open(Paths.get(pathFile),
                 StandardOpenOption.CREATE,
                 StandardOpenOption.WRITE,
                 StandardOpenOption.APPEND);
-        pathStore = new DataOutputStream(new BufferedOutputStream(out));
+        pathStore = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(pathChannel)));
 
-        OutputStream indexOut = Files.newOutputStream(Paths.get(indexFile),
+        indexChannel = FileChannel.open(Paths.get(indexFile),
                 StandardOpenOption.CREATE,
                 StandardOpenOption.WRITE,
-                StandardOpenOption.APPEND,
-                StandardOpenOption.DSYNC);
-        indexStore = new DataOutputStream(new BufferedOutputStream(indexOut));
-
+                StandardOpenOption.APPEND);
+        indexStore = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(indexChannel)));
+        /* Blocks registered during recovery (from older records) */
+        indexBlocks();
+
+        appended = 0;
+        durable = 0;
+        commitError = null;
         running = true;
+
+        if (commitInterval > 0) {
+            flusher = new Thread(new Flusher(), "galileo-journal-"
+                    + new File(pathFile).getName());
+            flusher.setDaemon(true);
+            flusher.start();
+        }
     }
 
     /**
@@ -287,83 +462,385 @@ public class PathJournal {
      */
     private void writeIndex(int featureId, Feature feature)
     throws IOException {
-        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-        SerializationOutputStream sOut = new SerializationOutputStream(bOut);
-        sOut.writeInt(featureId);
-        sOut.writeInt(feature.getType().toInt());
-        sOut.writeString(feature.getName());
-        sOut.close();
-        byte[] entry = bOut.toByteArray();
-
-        CRC32 crc = new CRC32();
-        crc.update(entry);
-        long check = crc.getValue();
+        ByteBufferOutputStream bOut = ByteBufferOutputStream.acquire(-1);
+        try {
+            SerializationOutputStream sOut
+                = new SerializationOutputStream(bOut);
+            sOut.writeInt(featureId);
+            sOut.writeInt(feature.getType().toInt());
+            sOut.writeString(feature.getName());
+            sOut.flush();
+            writeRecord(indexStore, bOut, 0);
+        } finally {
+            bOut.release();
+        }
+    }
 
-        indexStore.writeLong(check);
-        indexStore.writeInt(entry.length);
-        indexStore.write(entry);
-        indexStore.flush();
+    /**
+     * Appends any block registrations that have not been written yet to the
+     * on-disk index, so that identifiers in path records written afterward
+     * can be resolved during recovery.
+     */
+    private void indexBlocks()
+    throws IOException {
+        int registered = blocks.size();
+        while (blocksIndexed < registered) {
+            String path = blocks.getPath(blocksIndexed);
+            if (path != null) {
+                ByteBufferOutputStream bOut
+                    = ByteBufferOutputStream.acquire(-1);
+                try {
+                    SerializationOutputStream sOut
+                        = new SerializationOutputStream(bOut);
+                    sOut.writeInt(blocksIndexed);
+                    sOut.writeString(path);
+                    sOut.flush();
+                    writeRecord(indexStore, bOut, BLOCK_RECORD);
+                } finally {
+                    bOut.release();
+                }
+            }
+            blocksIndexed++;
+        }
     }
 
     /**
      * Adds a graph {@link FeaturePath} to the journal.
      *
      * @param path The FeaturePath to add to the journal.
+     *
+     * @return sequence number of the record, which can be passed to
+     * {@link #awaitDurable(long)}.
+     */
+    public long persistPath(FeaturePath<String> path)
+    throws FileSystemException, IOException {
+        return persistBlockPaths(
+                Collections.singletonList(blocks.toBlockPath(path)));
+    }
+
+    /**
+     * Adds several graph {@link FeaturePath}s to the journal with a single
+     * write to the underlying file.
+     *
+     * @param paths The FeaturePaths to add to the journal.
+     *
+     * @return sequence number of the last record written, which can be passed
+     * to {@link #awaitDurable(long)}.
+     */
+    public long persistPaths(List<FeaturePath<String>> paths)
+    throws FileSystemException, IOException {
+        List<FeaturePath<Integer>> blockPaths = new ArrayList<>(paths.size());
+        for (FeaturePath<String> path : paths) {
+            blockPaths.add(blocks.toBlockPath(path));
+        }
+        return persistBlockPaths(blockPaths);
+    }
+
+    /**
+     * Adds several graph {@link FeaturePath}s, whose payloads are identifiers
+     * from this journal's {@link BlockRegistry}, to the journal with a single
+     * write to the underlying file.
+     *
+     * @param paths The FeaturePaths to add to the journal.
+     *
+     * @return sequence number of the last record written, which can be passed
+     * to {@link #awaitDurable(long)}.
      */
-    public void persistPath(FeaturePath<String> path)
+    public long persistBlockPaths(List<FeaturePath<Integer>> paths)
+    throws FileSystemException, IOException {
+        long sequence;
+        synchronized (this) {
+            if (running == false) {
+                throw new FileSystemException(
+                        "Path Journal has not been started!");
+            }
+
+            boolean idle = appended == durable;
+            indexBlocks();
+            for (FeaturePath<Integer> path : paths) {
+                ByteBufferOutputStream pathOut
+                    = ByteBufferOutputStream.acquire(-1);
+                try {
+                    serializePath(path, pathOut);
+                    writeRecord(pathStore, pathOut,
+                            (compact ? COMPACT_RECORD : 0) | BLOCK_RECORD);
+                } finally {
+                    pathOut.release();
+                }
+            }
+            appended += paths.size();
+            journaled += paths.size();
+            sequence = appended;
+
+            if (flusher != null) {
+                /* Wake the flusher to start the commit interval, or to commit
+                 * early once enough records are pending */
+                if (idle || appended - durable >= commitRecords) {
+                    notifyAll();
+                }
+                return sequence;
+            }
+        }
+
+        commit();
+        return sequence;
+    }
+
+    /**
+     * Retrieves the number of records in the journal, including records
+     * recovered at startup, since it was last rotated.
+     */
+    public synchronized long getRecordCount() {
+        return journaled;
+    }
+
+    /**
+     * Moves all records written so far out of the journal, so that a snapshot
+     * covering them can be taken.  New records are written to an empty
+     * journal file.  The rotated records are still recovered along with the
+     * journal until {@link #discardRotated()} is called once the snapshot is
+     * durable.
+     */
+    public synchronized void rotate()
     throws FileSystemException, IOException {
         if (running == false) {
             throw new FileSystemException("Path Journal has not been started!");
         }
 
-        byte[] pathBytes = serializePath(path);
+        indexStore.flush();
+        pathStore.flush();
+        indexChannel.force(false);
+        pathChannel.force(false);
+        pathStore.close();
+
+        java.nio.file.Path current = Paths.get(pathFile);
+        java.nio.file.Path rotated = Paths.get(rotatedFile);
+        if (Files.exists(rotated)) {
+            /* A previous snapshot did not complete, so its records are still
+             * needed.  Replaying a record twice is harmless. */
+            try (FileChannel in = FileChannel.open(current,
+                        StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(rotated,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND)) {
+                long position = 0;
+                long size = in.size();
+                while (position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+                out.force(false);
+            }
+            Files.delete(current);
+        } else {
+            Files.move(current, rotated, StandardCopyOption.ATOMIC_MOVE);
+        }
+        GraphSnapshot.syncDirectory(new File(pathFile).getAbsoluteFile()
+                .getParentFile());
+
+        pathChannel = FileChannel.open(current,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        pathStore = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(pathChannel)));
+
+        durable = appended;
+        journaled = 0;
+        notifyAll();
+    }
+
+    /**
+     * Removes records moved aside by {@link #rotate()}.  This should only be
+     * called once a snapshot covering them has been made durable.
+     */
+    public synchronized void discardRotated()
+    throws IOException {
+        Files.deleteIfExists(Paths.get(rotatedFile));
+    }
+
+    /**
+     * Waits until the record with the given sequence number (and all records
+     * before it) have been forced to disk.
+     */
+    public void awaitDurable(long sequence)
+    throws IOException {
+        synchronized (this) {
+            while (running && flusher != null
+                    && durable < sequence && commitError == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(
+                            "Interrupted while waiting for path journal");
+                }
+            }
+            if (commitError != null) {
+                throw new IOException("Path journal commit failed",
+                        commitError);
+            }
+            if (durable >= sequence) {
+                return;
+            }
+        }
+
+        /* No flusher is running; commit directly */
+        commit();
+    }
+
+    /**
+     * Forces all records written so far to disk.
+     */
+    public void sync()
+    throws IOException {
+        commit();
+    }
+
+    /**
+     * Flushes buffered records and forces them to disk.  The index is forced
+     * before the paths, so a durable path never refers to a feature that is
+     * missing from the index.  Writers are only blocked while the buffers are
+     * handed to the file system, not while waiting on the disk.
+     */
+    private void commit()
+    throws IOException {
+        long target;
+        synchronized (this) {
+            if (running == false || durable == appended) {
+                return;
+            }
+            target = appended;
+            indexStore.flush();
+            pathStore.flush();
+        }
+
+        try {
+            indexChannel.force(false);
+            pathChannel.force(false);
+        } catch (IOException e) {
+            synchronized (this) {
+                if (durable >= target) {
+                    /* The journal was rotated (and forced) meanwhile */
+                    return;
+                }
+                commitError = e;
+                notifyAll();
+            }
+            throw e;
+        }
+
+        synchronized (this) {
+            if (target > durable) {
+                durable = target;
+            }
+            commitError = null;
+            notifyAll();
+        }
+    }
 
+    /**
+     * Commits pending records in the background once enough of them have
+     * accumulated or the oldest has waited for the commit interval.
+     */
+    private class Flusher implements Runnable {
+        /**
+         * Determines whether this flusher is still the journal's active
+         * flusher; it is detached when the journal shuts down.
+         */
+        private boolean isCurrent() {
+            return running && flusher == Thread.currentThread();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                synchronized (PathJournal.this) {
+                    try {
+                        while (isCurrent() && appended == durable) {
+                            PathJournal.this.wait();
+                        }
+                        long deadline = System.currentTimeMillis()
+                            + commitInterval;
+                        long remaining = commitInterval;
+                        while (isCurrent() && remaining > 0
+                                && appended - durable < commitRecords) {
+                            PathJournal.this.wait(remaining);
+                            remaining = deadline - System.currentTimeMillis();
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (isCurrent() == false) {
+                        return;
+                    }
+                }
+
+                try {
+                    commit();
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE,
+                            "Could not commit the path journal!", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a checksummed journal record (checksum, length, contents) from
+     * the bytes accumulated in a buffer, without copying them out first.
+     * Flags describing the record are set in its length field.
+     */
+    private static void writeRecord(DataOutputStream store,
+            ByteBufferOutputStream record, int flags)
+    throws IOException {
         CRC32 crc = new CRC32();
-        crc.update(pathBytes);
+        crc.update(record.array(), record.arrayOffset(), record.size());
         long check = crc.getValue();
 
-        pathStore.writeLong(check);
-        pathStore.writeInt(pathBytes.length);
-        pathStore.write(pathBytes);
-        pathStore.flush();
+        store.writeLong(check);
+        store.writeInt(record.size() | flags);
+        store.write(record.array(), record.arrayOffset(), record.size());
     }
 
     /**
      * Given a {@link FeaturePath}, this method serializes the path data to a
-     * byte array that can be appended to the path journal.
+     * buffer that can be appended to the path journal.
      */
-    private byte[] serializePath(FeaturePath<String> path)
+    private void serializePath(FeaturePath<Integer> path,
+            ByteBufferOutputStream bOut)
     throws IOException {
-        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-        SerializationOutputStream sOut = new SerializationOutputStream(bOut);
-        sOut.writeInt(path.size());
-        for (Vertex<Feature, String> v : path.getVertices()) {
+        SerializationOutputStream sOut
+            = new SerializationOutputStream(bOut, compact);
+        sOut.writeLength(path.size());
+        for (Vertex<Feature, Integer> v : path.getVertices()) {
             Feature f = v.getLabel();
             checkIndex(f);
             int featureId = featureNames.get(f.getName());
-            sOut.writeInt(featureId);
+            sOut.writeLength(featureId);
             sOut.writeSerializable(f.getDataContainer());
         }
-        sOut.writeInt(path.getPayload().size());
-        for (String s : path.getPayload()) {
-            sOut.writeString(s);
+        sOut.writeLength(path.getPayload().size());
+        for (int blockId : path.getPayload()) {
+            sOut.writeLength(blockId);
         }
-        sOut.close();
-        return bOut.toByteArray();
+        sOut.flush();
     }
 
     /**
-     * Deserializes a {@link FeaturePath} from a byte array.
+     * Deserializes a {@link FeaturePath} from a byte array.  Records written
+     * before block identifiers were introduced hold block paths, which are
+     * registered as they are read.
      */
-    private FeaturePath<String> deserializePath(byte[] pathBytes)
+    private FeaturePath<Integer> deserializePath(byte[] pathBytes,
+            boolean compact, boolean blockIds)
     throws IOException, SerializationException {
         SerializationInputStream sIn = new SerializationInputStream(
-                new ByteArrayInputStream(pathBytes));
+                ByteBuffer.wrap(pathBytes), compact);
 
-        int vertices = sIn.readInt();
-        FeaturePath<String> fp = new FeaturePath<>();
+        int vertices = sIn.readLength();
+        FeaturePath<Integer> fp = new FeaturePath<>();
         for (int i = 0; i < vertices; ++i) {
-            int featureId = sIn.readInt();
+            int featureId = sIn.readLength();
             Pair<String, FeatureType> featureInfo
                 = featureIndex.get(featureId);
 
@@ -371,10 +848,13 @@ public class PathJournal {
             fp.add(f);
         }
 
-        int payloads = sIn.readInt();
+        int payloads = sIn.readLength();
         for (int i = 0; i < payloads; ++i) {
-            String payload = sIn.readString();
-            fp.addPayload(payload);
+            if (blockIds) {
+                fp.addPayload(sIn.readLength());
+            } else {
+                fp.addPayload(blocks.register(sIn.readString()));
+            }
         }
         sIn.close();
         return fp;
@@ -390,19 +870,44 @@ public class PathJournal {
 
         new File(indexFile).delete();
         new File(pathFile).delete();
+        new File(rotatedFile).delete();
+        journaled = 0;
+        blocksIndexed = 0;
     }
 
     /**
-     * Closes open journal files and stops accepting new FeaturePaths.
+     * Closes open journal files and stops accepting new FeaturePaths.  Any
+     * pending records are forced to disk first.
      */
     public void shutdown()
     throws IOException {
-        if (running == false) {
-            return;
+        Thread flusherThread;
+        synchronized (this) {
+            if (running == false) {
+                return;
+            }
+            flusherThread = flusher;
+            flusher = null;
+            notifyAll();
         }
 
-        indexStore.close();
-        pathStore.close();
+        if (flusherThread != null) {
+            try {
+                flusherThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        try {
+            commit();
+        } finally {
+            synchronized (this) {
+                running = false;
+                notifyAll();
+                indexStore.close();
+                pathStore.close();
+            }
+        }
     }
 }
-
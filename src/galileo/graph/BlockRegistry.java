@@ -0,0 +1,156 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.graph;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import galileo.dataset.feature.Feature;
+
+/**
+ * Assigns compact integer identifiers to block paths, so that graphs, the
+ * path journal, and query results can carry an int per block instead of its
+ * full path.  Identifiers are handed out sequentially starting from zero and
+ * are never reused; paths are resolved from their identifiers only when they
+ * are handed to callers.
+ * <p>
+ * A registry is shared by the structures of a single file system, and all of
+ * its methods are thread-safe.
+ */
+public class BlockRegistry {
+
+    private List<String> paths = new ArrayList<>();
+    private Map<String, Integer> ids = new HashMap<>();
+
+    /**
+     * Retrieves the identifier of a block path, assigning a new one if the
+     * path has not been registered before.
+     */
+    public synchronized Integer register(String path) {
+        Integer id = ids.get(path);
+        if (id == null) {
+            id = paths.size();
+            paths.add(path);
+            ids.put(path, id);
+        }
+        return id;
+    }
+
+    /**
+     * Restores a mapping that was assigned earlier (for instance, when
+     * recovering a journal).  Identifiers assigned afterward will not collide
+     * with it.
+     */
+    public synchronized void restore(int id, String path) {
+        while (paths.size() <= id) {
+            paths.add(null);
+        }
+
+        String previous = paths.set(id, path);
+        if (previous != null) {
+            ids.remove(previous);
+        }
+        ids.put(path, id);
+    }
+
+    /**
+     * Retrieves the identifier of a registered block path.
+     *
+     * @return the identifier, or null if the path is not registered.
+     */
+    public synchronized Integer getId(String path) {
+        return ids.get(path);
+    }
+
+    /**
+     * Retrieves the block path with the given identifier.
+     *
+     * @return the path, or null if the identifier is unknown.
+     */
+    public synchronized String getPath(int id) {
+        if (id < 0 || id >= paths.size()) {
+            return null;
+        }
+        return paths.get(id);
+    }
+
+    /**
+     * Resolves a number of identifiers at once, adding their paths to a
+     * collection.  Unknown identifiers are skipped.
+     */
+    public synchronized void resolve(Collection<Integer> blockIds,
+            Collection<String> blockPaths) {
+        for (int id : blockIds) {
+            if (id >= 0 && id < paths.size()) {
+                String path = paths.get(id);
+                if (path != null) {
+                    blockPaths.add(path);
+                }
+            }
+        }
+    }
+
+    /**
+     * Retrieves the number of identifiers assigned so far.  This is also the
+     * identifier the next new path will receive.
+     */
+    public synchronized int size() {
+        return paths.size();
+    }
+
+    /**
+     * Creates a copy of a path whose payload holds the identifiers of its
+     * block paths, registering them as necessary.
+     */
+    public FeaturePath<Integer> toBlockPath(Path<Feature, String> path) {
+        FeaturePath<Integer> blockPath = new FeaturePath<>();
+        for (Vertex<Feature, String> vertex : path.getVertices()) {
+            blockPath.add(new Vertex<Feature, Integer>(vertex.getLabel()));
+        }
+        synchronized (this) {
+            for (String payload : path.getPayload()) {
+                blockPath.addPayload(register(payload));
+            }
+        }
+        return blockPath;
+    }
+
+    /**
+     * Creates a copy of a path whose payload holds the block paths its
+     * identifiers refer to.
+     */
+    public FeaturePath<String> toNamedPath(Path<Feature, Integer> path) {
+        FeaturePath<String> namedPath = new FeaturePath<>();
+        for (Vertex<Feature, Integer> vertex : path.getVertices()) {
+            namedPath.add(new Vertex<Feature, String>(vertex.getLabel()));
+        }
+        resolve(path.getPayload(), namedPath.getPayload());
+        return namedPath;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.graph;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+/**
+ * A Set that stores a handful of elements in a plain array, which is far
+ * smaller than a HashSet for the one or two payload values held by most
+ * graph vertices.  Larger sets are hashed while they are being modified, and
+ * can be collapsed back into an array with {@link #freeze()} once they are
+ * unlikely to change.
+ */
+final class CompactSet<E> extends AbstractSet<E> {
+
+    /** Sets larger than this are hashed when elements are added. */
+    private static final int MAX_INLINE = 8;
+
+    private Object[] items;
+    private int size;
+    private HashSet<E> hashed;
+
+    @Override
+    public boolean add(E e) {
+        if (hashed != null) {
+            return hashed.add(e);
+        }
+
+        if (indexOf(e) >= 0) {
+            return false;
+        }
+
+        if (size >= MAX_INLINE) {
+            hashed = new HashSet<>(size * 2);
+            for (int i = 0; i < size; ++i) {
+                hashed.add(element(i));
+            }
+            items = null;
+            size = 0;
+            return hashed.add(e);
+        }
+
+        if (items == null) {
+            items = new Object[1];
+        } else if (size == items.length) {
+            items = Arrays.copyOf(items,
+                    Math.min(MAX_INLINE, size + (size >> 1) + 1));
+        }
+        items[size++] = e;
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (hashed != null) {
+            return hashed.contains(o);
+        }
+        return indexOf(o) >= 0;
+    }
+
+    @Override
+    public int size() {
+        if (hashed != null) {
+            return hashed.size();
+        }
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        items = null;
+        size = 0;
+        hashed = null;
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        if (hashed != null) {
+            return hashed.iterator();
+        }
+
+        return new Iterator<E>() {
+            private int next = 0;
+            private boolean removable = false;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public E next() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                removable = true;
+                return element(next++);
+            }
+
+            @Override
+            public void remove() {
+                if (removable == false) {
+                    throw new IllegalStateException();
+                }
+                removable = false;
+                removeAt(--next);
+            }
+        };
+    }
+
+    /**
+     * Stores the elements of this set in an array of exactly the right size,
+     * releasing any hash table or unused capacity.  The set remains usable;
+     * it is hashed again if it grows.
+     */
+    public void freeze() {
+        if (hashed != null) {
+            items = hashed.toArray();
+            size = items.length;
+            hashed = null;
+        } else if (items != null && items.length > size) {
+            items = (size == 0) ? null : Arrays.copyOf(items, size);
+        }
+    }
+
+    private int indexOf(Object o) {
+        for (int i = 0; i < size; ++i) {
+            if (Objects.equals(items[i], o)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void removeAt(int index) {
+        System.arraycopy(items, index + 1, items, index, size - index - 1);
+        items[--size] = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private E element(int index) {
+        return (E) items[index];
+    }
+}
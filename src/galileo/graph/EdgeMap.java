@@ -0,0 +1,315 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.graph;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A read-only {@link NavigableMap} view of a range of a {@link Vertex}'s
+ * edges, which are kept in an array sorted by label.  Lookups and range
+ * operations (head, tail, and sub maps) use binary search on the array and
+ * share it rather than copying.  The less common descending views are
+ * produced from a copy.
+ * <p>
+ * As with other views of a Vertex, an EdgeMap should not be used after the
+ * Vertex is modified.
+ */
+final class EdgeMap<L extends Comparable<L>, V>
+extends AbstractMap<L, Vertex<L, V>>
+implements NavigableMap<L, Vertex<L, V>> {
+
+    private final Vertex<L, V>[] edges;
+    private final int from;
+    private final int to;
+
+    EdgeMap(Vertex<L, V>[] edges, int from, int to) {
+        this.edges = edges;
+        this.from = from;
+        this.to = Math.max(from, to);
+    }
+
+    /**
+     * Finds the first index in [from, to) whose label is greater than (or,
+     * if inclusive, equal to) the given label.  Returns <code>to</code> if
+     * there is no such index.
+     */
+    static <L extends Comparable<L>> int bound(Vertex<L, ?>[] edges,
+            int from, int to, L label, boolean inclusive) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int cmp = edges[mid].getLabel().compareTo(label);
+            if (cmp < 0 || (cmp == 0 && inclusive == false)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Provides a read-only List view of a range of edges.
+     */
+    static <L extends Comparable<L>, V> List<Vertex<L, V>> list(
+            Vertex<L, V>[] edges, int from, int to) {
+        if (from >= to) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(
+                Arrays.asList(edges).subList(from, to));
+    }
+
+    @SuppressWarnings("unchecked")
+    private int ceiling(Object label, boolean inclusive) {
+        return bound(edges, from, to, (L) label, inclusive);
+    }
+
+    private Entry<L, Vertex<L, V>> entry(int index) {
+        if (index < from || index >= to) {
+            return null;
+        }
+        Vertex<L, V> vertex = edges[index];
+        return new SimpleImmutableEntry<>(vertex.getLabel(), vertex);
+    }
+
+    private static <K> K key(Entry<K, ?> entry) {
+        return (entry == null) ? null : entry.getKey();
+    }
+
+    private int index(Object label) {
+        int index = ceiling(label, true);
+        if (index < to && edges[index].getLabel().compareTo(cast(label)) == 0) {
+            return index;
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private L cast(Object label) {
+        return (L) label;
+    }
+
+    @Override
+    public int size() {
+        return to - from;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return to == from;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return index(key) >= 0;
+    }
+
+    @Override
+    public Vertex<L, V> get(Object key) {
+        int index = index(key);
+        return (index >= 0) ? edges[index] : null;
+    }
+
+    @Override
+    public Collection<Vertex<L, V>> values() {
+        return list(edges, from, to);
+    }
+
+    @Override
+    public Set<Entry<L, Vertex<L, V>>> entrySet() {
+        return new AbstractSet<Entry<L, Vertex<L, V>>>() {
+            @Override
+            public Iterator<Entry<L, Vertex<L, V>>> iterator() {
+                return new Iterator<Entry<L, Vertex<L, V>>>() {
+                    private int next = from;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < to;
+                    }
+
+                    @Override
+                    public Entry<L, Vertex<L, V>> next() {
+                        if (next >= to) {
+                            throw new NoSuchElementException();
+                        }
+                        return entry(next++);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return to - from;
+            }
+        };
+    }
+
+    @Override
+    public Comparator<? super L> comparator() {
+        return null;
+    }
+
+    @Override
+    public L firstKey() {
+        if (isEmpty()) {
+            throw new NoSuchElementException();
+        }
+        return edges[from].getLabel();
+    }
+
+    @Override
+    public L lastKey() {
+        if (isEmpty()) {
+            throw new NoSuchElementException();
+        }
+        return edges[to - 1].getLabel();
+    }
+
+    @Override
+    public Entry<L, Vertex<L, V>> firstEntry() {
+        return entry(from);
+    }
+
+    @Override
+    public Entry<L, Vertex<L, V>> lastEntry() {
+        return entry(to - 1);
+    }
+
+    @Override
+    public Entry<L, Vertex<L, V>> lowerEntry(L key) {
+        return entry(ceiling(key, true) - 1);
+    }
+
+    @Override
+    public L lowerKey(L key) {
+        return key(lowerEntry(key));
+    }
+
+    @Override
+    public Entry<L, Vertex<L, V>> floorEntry(L key) {
+        return entry(ceiling(key, false) - 1);
+    }
+
+    @Override
+    public L floorKey(L key) {
+        return key(floorEntry(key));
+    }
+
+    @Override
+    public Entry<L, Vertex<L, V>> ceilingEntry(L key) {
+        return entry(ceiling(key, true));
+    }
+
+    @Override
+    public L ceilingKey(L key) {
+        return key(ceilingEntry(key));
+    }
+
+    @Override
+    public Entry<L, Vertex<L, V>> higherEntry(L key) {
+        return entry(ceiling(key, false));
+    }
+
+    @Override
+    public L higherKey(L key) {
+        return key(higherEntry(key));
+    }
+
+    @Override
+    public Entry<L, Vertex<L, V>> pollFirstEntry() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Entry<L, Vertex<L, V>> pollLastEntry() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public NavigableMap<L, Vertex<L, V>> subMap(L fromKey,
+            boolean fromInclusive, L toKey, boolean toInclusive) {
+        return new EdgeMap<>(edges, ceiling(fromKey, fromInclusive),
+                ceiling(toKey, toInclusive == false));
+    }
+
+    @Override
+    public NavigableMap<L, Vertex<L, V>> headMap(L toKey, boolean inclusive) {
+        return new EdgeMap<>(edges, from, ceiling(toKey, inclusive == false));
+    }
+
+    @Override
+    public NavigableMap<L, Vertex<L, V>> tailMap(L fromKey, boolean inclusive) {
+        return new EdgeMap<>(edges, ceiling(fromKey, inclusive), to);
+    }
+
+    @Override
+    public SortedMap<L, Vertex<L, V>> subMap(L fromKey, L toKey) {
+        return subMap(fromKey, true, toKey, false);
+    }
+
+    @Override
+    public SortedMap<L, Vertex<L, V>> headMap(L toKey) {
+        return headMap(toKey, false);
+    }
+
+    @Override
+    public SortedMap<L, Vertex<L, V>> tailMap(L fromKey) {
+        return tailMap(fromKey, true);
+    }
+
+    @Override
+    public NavigableMap<L, Vertex<L, V>> descendingMap() {
+        return Collections.unmodifiableNavigableMap(
+                new TreeMap<>(this).descendingMap());
+    }
+
+    @Override
+    public NavigableSet<L> navigableKeySet() {
+        return Collections.unmodifiableNavigableSet(
+                new TreeMap<>(this).navigableKeySet());
+    }
+
+    @Override
+    public NavigableSet<L> descendingKeySet() {
+        return navigableKeySet().descendingSet();
+    }
+}
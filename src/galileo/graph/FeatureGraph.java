@@ -47,21 +47,21 @@ public class FeatureGraph extends MetadataGraph {
     }
 
     @Override
-    public void addPath(Path<Feature, String> path)
+    public void addBlockPath(Path<Feature, Integer> path)
     throws FeatureTypeMismatchException, GraphException {
-        Path<Feature, String> qPath = quantizePath(path);
+        Path<Feature, Integer> qPath = quantizePath(path);
         graph.addPath(qPath);
     }
 
-    private Path<Feature, String> quantizePath(Path<Feature, String> path) {
-        Path<Feature, String> newPath = new Path<Feature, String>();
-        for (Vertex<Feature, String> v : path.getVertices()) {
+    private Path<Feature, Integer> quantizePath(Path<Feature, Integer> path) {
+        Path<Feature, Integer> newPath = new Path<Feature, Integer>();
+        for (Vertex<Feature, Integer> v : path.getVertices()) {
             Feature oldFeature = v.getLabel();
 //            Feature newFeature = new Feature(oldFeature.getName(),
 //                    Math.round(oldFeature.getFloat()));
             Feature newFeature = new Feature(oldFeature.getName(),
                     oldFeature.getInt());
-            Vertex<Feature, String> newVertex = new Vertex<>(newFeature);
+            Vertex<Feature, Integer> newVertex = new Vertex<>(newFeature);
             newPath.add(newVertex);
         }
         newPath.setPayload(path.getPayload());
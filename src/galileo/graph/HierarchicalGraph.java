@@ -25,11 +25,17 @@ software, even if advised of the possibility of such damage.
 
 package galileo.graph;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -37,6 +43,8 @@ import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
 
 import org.json.JSONArray;
@@ -53,6 +61,14 @@ import galileo.util.Pair;
 /**
  * A type-aware hierarchical graph implementation with each type occupying a
  * level in the hierarchy.
+ * <p>
+ * Paths may be added while the graph is being traversed by other threads.
+ * The hierarchy and the vertices above {@link #STRIPE_DEPTH} are guarded by a
+ * structure lock; each subtree rooted at that depth is guarded by one of a
+ * set of striped locks.  Adding a path below existing vertices only locks the
+ * subtree it lands in, so ingest and queries touching other subtrees proceed
+ * in parallel.  Paths that add a level or a vertex above the stripe depth
+ * lock the whole graph.
  *
  * @author malensek
  */
@@ -60,6 +76,25 @@ public class HierarchicalGraph<T> {
 
     private static final Logger logger = Logger.getLogger("galileo");
 
+    /** Depth of the vertices whose subtrees are locked individually. */
+    public static final int STRIPE_DEPTH = Integer.getInteger(
+            "galileo.graph.HierarchicalGraph.stripeDepth", 2);
+
+    private static final int NUM_STRIPES = Integer.getInteger(
+            "galileo.graph.HierarchicalGraph.stripes", 64);
+
+    /**
+     * Held for reading by every traversal and by paths added below existing
+     * vertices; held for writing by changes to the hierarchy or to vertices
+     * above the stripe depth.
+     */
+    private final ReentrantReadWriteLock structureLock
+        = new ReentrantReadWriteLock();
+
+    /** Guard the subtrees rooted at the stripe depth. */
+    private final ReentrantReadWriteLock[] stripes
+        = new ReentrantReadWriteLock[NUM_STRIPES];
+
     /** The root vertex. */
     private Vertex<Feature, T> root = new Vertex<>();
 
@@ -88,7 +123,11 @@ public class HierarchicalGraph<T> {
         public FeatureType type;
     }
 
-    public HierarchicalGraph() { }
+    public HierarchicalGraph() {
+        for (int i = 0; i < stripes.length; ++i) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+    }
 
     /**
      * Creates a HierarchicalGraph with a set Feature hierarchy.  Features are
@@ -98,44 +137,351 @@ public class HierarchicalGraph<T> {
      * {@link FeatureHierarchy}.
      */
     public HierarchicalGraph(FeatureHierarchy hierarchy) {
+        this();
         for (Pair<String, FeatureType> feature : hierarchy) {
             getOrder(feature.a, feature.b);
         }
     }
 
+    /**
+     * Evaluates all the {@link Operation}s of a query in a single traversal of
+     * the graph.  The expressions each Operation places on a level are merged
+     * into a single range, identical ranges are evaluated once per vertex, and
+     * Operations that only differ in levels that have already been traversed
+     * are followed as one.  Each matching path is returned once, even if it
+     * satisfies several Operations.
+     */
     public List<Path<Feature, T>> evaluateQuery(Query query) {
-        List<Path<Feature, T>> paths = null;
+        List<Path<Feature, T>> paths = new ArrayList<>();
+        visitQuery(query, new PathCollector<T>(paths));
+        return paths;
+    }
 
-        for (Operation operation : query.getOperations()) {
-            HierarchicalQueryTracker<T> tracker
-                = new HierarchicalQueryTracker<>(root, features.size());
-            evaluateOperation(operation, tracker);
-            List<Path<Feature, T>> opResult = tracker.getQueryResults();
+    /**
+     * Evaluates a query like {@link #evaluateQuery(Query)}, but hands each
+     * matching path to a visitor as it is found instead of returning a list.
+     */
+    public void visitQuery(Query query, PathVisitor<T> visitor) {
+        structureLock.readLock().lock();
+        try {
+            compileQuery(query, visitor);
+        } finally {
+            structureLock.readLock().unlock();
+        }
+    }
 
-            if (paths == null) {
-                paths = opResult;
-            } else {
-                paths.addAll(opResult);
+    private void compileQuery(Query query, PathVisitor<T> visitor) {
+        List<Operation> operations = query.getOperations();
+        int numOps = operations.size();
+        int numLevels = features.size();
+
+        /* ranges[level][op] holds the range an operation places on a level,
+         * or null if it does not constrain the level.  Level 0 is the root. */
+        LevelRange[][] ranges = new LevelRange[numLevels + 1][numOps];
+        int[] farthest = new int[numOps];
+        int level = 1;
+        for (String feature : features) {
+            Map<String, LevelRange> distinct = new HashMap<>();
+            for (int op = 0; op < numOps; ++op) {
+                List<Expression> expressions
+                    = operations.get(op).getOperand(feature);
+                if (expressions == null) {
+                    continue;
+                }
+
+                LevelRange range = new LevelRange(expressions);
+                LevelRange existing = distinct.get(range.key);
+                if (existing == null) {
+                    distinct.put(range.key, range);
+                } else {
+                    range = existing;
+                }
+                ranges[level][op] = range;
+                farthest[op] = level;
             }
+            level++;
         }
 
-        for (Path<Feature, T> path : paths) {
-            removeNullFeatures(path);
+        /* Operations that place the same ranges on a level and every level
+         * below it are equivalent from that level on, so only one of them
+         * (the representative) needs to be followed. */
+        int[][] classes = new int[numLevels + 2][numOps];
+        int[][] representatives = new int[numLevels + 1][];
+        for (level = numLevels; level > 0; --level) {
+            Map<List<Object>, Integer> ids = new HashMap<>();
+            List<Integer> reps = new ArrayList<>();
+            for (int op = 0; op < numOps; ++op) {
+                List<Object> signature = Arrays.asList(
+                        (Object) ranges[level][op], classes[level + 1][op]);
+                Integer id = ids.get(signature);
+                if (id == null) {
+                    id = reps.size();
+                    ids.put(signature, id);
+                    reps.add(op);
+                }
+                classes[level][op] = id;
+            }
+            representatives[level] = new int[reps.size()];
+            for (int i = 0; i < reps.size(); ++i) {
+                representatives[level][i] = reps.get(i);
+            }
+        }
+
+        if (numOps == 0) {
+            return;
+        }
+
+        QueryTraversal traversal = new QueryTraversal(ranges, farthest,
+                classes, representatives, visitor);
+        int[] all = new int[numOps];
+        for (int op = 0; op < numOps; ++op) {
+            all[op] = op;
+        }
+        traversal.visit(root, 0, all);
+    }
+
+    /**
+     * Hands every path in the graph that leads to a payload to a visitor.
+     */
+    public void visitPaths(PathVisitor<T> visitor) {
+        structureLock.readLock().lock();
+        try {
+            LabelStack labels = new LabelStack();
+            for (Vertex<Feature, T> child : root.getAllNeighbors()) {
+                visitDescendants(child, 1, labels, visitor);
+            }
+        } finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    private void visitDescendants(Vertex<Feature, T> vertex, int depth,
+            LabelStack labels, PathVisitor<T> visitor) {
+        Lock stripe = lockStripe(vertex, depth, false);
+        try {
+            boolean pushed = labels.push(vertex.getLabel());
+            if (vertex.getValues().size() > 0) {
+                visitor.visit(labels.view,
+                        Collections.unmodifiableSet(vertex.getValues()));
+            }
+
+            for (Vertex<Feature, T> child : vertex.getAllNeighbors()) {
+                visitDescendants(child, depth + 1, labels, visitor);
+            }
+            labels.pop(pushed);
+        } finally {
+            if (stripe != null) {
+                stripe.unlock();
+            }
+        }
+    }
+
+    /**
+     * Locks the subtree rooted at a vertex if the vertex lies at the stripe
+     * depth.
+     *
+     * @return the lock that was acquired, or null if the vertex is at another
+     * depth.
+     */
+    private Lock lockStripe(Vertex<Feature, T> vertex, int depth,
+            boolean write) {
+        if (depth != STRIPE_DEPTH) {
+            return null;
+        }
+
+        ReentrantReadWriteLock stripe = stripes[
+            (System.identityHashCode(vertex) & 0x7FFFFFFF) % stripes.length];
+        Lock lock = write ? stripe.writeLock() : stripe.readLock();
+        lock.lock();
+        return lock;
+    }
+
+    /**
+     * Tracks the labels along the path being traversed, leaving out
+     * wildcards.
+     */
+    private static class LabelStack {
+
+        private List<Feature> labels = new ArrayList<>();
+        private List<Feature> view = Collections.unmodifiableList(labels);
+
+        /**
+         * Pushes a label onto the stack unless it is a wildcard.
+         *
+         * @return true if the label was pushed.
+         */
+        public boolean push(Feature label) {
+            if (label == null || label.getType() == FeatureType.NULL) {
+                return false;
+            }
+            labels.add(label);
+            return true;
+        }
+
+        public void pop(boolean pushed) {
+            if (pushed) {
+                labels.remove(labels.size() - 1);
+            }
+        }
+    }
+
+    /**
+     * Copies visited paths into a list.
+     */
+    private static class PathCollector<T> implements PathVisitor<T> {
+
+        private List<Path<Feature, T>> paths;
+
+        public PathCollector(List<Path<Feature, T>> paths) {
+            this.paths = paths;
+        }
+
+        @Override
+        public void visit(List<Feature> labels, Set<T> payload) {
+            Path<Feature, T> path = new Path<>();
+            for (Feature label : labels) {
+                path.add(label);
+            }
+            path.setPayload(new HashSet<>(payload));
+            paths.add(path);
+        }
+    }
+
+    /**
+     * Walks the graph once for a compiled query, tracking which operations
+     * are still satisfied by the vertices on the current path.
+     */
+    private class QueryTraversal {
+
+        private LevelRange[][] ranges;
+        private int[] farthest;
+        private int[][] classes;
+        private int[][] representatives;
+        private PathVisitor<T> visitor;
+
+        private LabelStack labels = new LabelStack();
+
+        public QueryTraversal(LevelRange[][] ranges, int[] farthest,
+                int[][] classes, int[][] representatives,
+                PathVisitor<T> visitor) {
+            this.ranges = ranges;
+            this.farthest = farthest;
+            this.classes = classes;
+            this.representatives = representatives;
+            this.visitor = visitor;
+        }
+
+        /**
+         * Visits a vertex at the given level, reached by the given
+         * operations.
+         */
+        public void visit(Vertex<Feature, T> vertex, int level, int[] ops) {
+            Lock stripe = lockStripe(vertex, level, false);
+            try {
+                visitLocked(vertex, level, ops);
+            } finally {
+                if (stripe != null) {
+                    stripe.unlock();
+                }
+            }
+        }
+
+        private void visitLocked(Vertex<Feature, T> vertex, int level,
+                int[] ops) {
+            boolean pushed = false;
+            if (level > 0) {
+                pushed = labels.push(vertex.getLabel());
+                addResult(vertex, level, ops);
+            }
+
+            int next = level + 1;
+            if (next < ranges.length) {
+                /* Evaluate each distinct range once, then note which
+                 * operations (by equivalence class) reached each neighbor */
+                Map<Vertex<Feature, T>, BitSet> reached
+                    = new LinkedHashMap<>();
+                Map<LevelRange, Collection<Vertex<Feature, T>>> evaluated
+                    = new IdentityHashMap<>();
+                Collection<Vertex<Feature, T>> allNeighbors = null;
+                for (int op : ops) {
+                    LevelRange range = ranges[next][op];
+                    Collection<Vertex<Feature, T>> matches;
+                    if (range == null) {
+                        if (allNeighbors == null) {
+                            allNeighbors = vertex.getAllNeighbors();
+                        }
+                        matches = allNeighbors;
+                    } else {
+                        matches = evaluated.get(range);
+                        if (matches == null) {
+                            matches = evaluateRange(range, vertex);
+                            evaluated.put(range, matches);
+                        }
+                    }
+
+                    for (Vertex<Feature, T> neighbor : matches) {
+                        BitSet set = reached.get(neighbor);
+                        if (set == null) {
+                            set = new BitSet();
+                            reached.put(neighbor, set);
+                        }
+                        set.set(classes[next][op]);
+                    }
+                }
+
+                for (Map.Entry<Vertex<Feature, T>, BitSet> entry
+                        : reached.entrySet()) {
+                    BitSet set = entry.getValue();
+                    int[] nextOps = new int[set.cardinality()];
+                    int i = 0;
+                    for (int c = set.nextSetBit(0); c >= 0;
+                            c = set.nextSetBit(c + 1)) {
+                        nextOps[i++] = representatives[next][c];
+                    }
+                    visit(entry.getKey(), next, nextOps);
+                }
+            }
+
+            labels.pop(pushed);
+        }
+
+        /**
+         * Hands the current path to the visitor if it holds a payload, and at
+         * least one of the operations that reached it has evaluated all of
+         * its expressions by this level.
+         */
+        private void addResult(Vertex<Feature, T> vertex, int level,
+                int[] ops) {
+            if (vertex.getValues().size() == 0) {
+                return;
+            }
+
+            for (int op : ops) {
+                if (farthest[op] <= level) {
+                    visitor.visit(labels.view,
+                            Collections.unmodifiableSet(vertex.getValues()));
+                    return;
+                }
+            }
         }
-        return paths;
     }
     
     public JSONArray getFeaturesJSON(){
-    	Set<Entry<String, Level>> entries = levels.entrySet();
-    	JSONArray features = new JSONArray();
-    	for(Entry<String, Level> e : entries){
-    		JSONObject feature = new JSONObject();
-    		feature.put("name", e.getKey());
-    		feature.put("type", e.getValue().type.name());
-    		feature.put("order", e.getValue().order);
-    		features.put(feature);
+    	structureLock.readLock().lock();
+    	try {
+    		Set<Entry<String, Level>> entries = levels.entrySet();
+    		JSONArray features = new JSONArray();
+    		for(Entry<String, Level> e : entries){
+    			JSONObject feature = new JSONObject();
+    			feature.put("name", e.getKey());
+    			feature.put("type", e.getValue().type.name());
+    			feature.put("order", e.getValue().order);
+    			features.put(feature);
+    		}
+    		return features;
+    	} finally {
+    		structureLock.readLock().unlock();
     	}
-    	return features;
     }
 
     public List<Path<Feature, T>> evaluateQuery(
@@ -154,8 +500,23 @@ public class HierarchicalGraph<T> {
         return paths;
     }
 
+    /**
+     * Evaluates a single {@link Operation} with a
+     * {@link HierarchicalQueryTracker}.  The tracker holds on to live
+     * vertices, so the graph is locked exclusively while it is filled in.
+     */
     public void evaluateOperation(Operation operation,
             HierarchicalQueryTracker<T> tracker) {
+        structureLock.writeLock().lock();
+        try {
+            trackOperation(operation, tracker);
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    private void trackOperation(Operation operation,
+            HierarchicalQueryTracker<T> tracker) {
 
         for (String feature : features) {
             tracker.nextLevel();
@@ -229,8 +590,7 @@ public class HierarchicalGraph<T> {
                 case LESS: {
                     NavigableMap<Feature, Vertex<Feature, T>> neighbors
                         = vertex.getNeighborsLessThan(value, false);
-                    removeWildcard(neighbors);
-                    evalSet.addAll(neighbors.values());
+                    evalSet.addAll(removeWildcard(neighbors).values());
 
                     break;
                 }
@@ -238,8 +598,7 @@ public class HierarchicalGraph<T> {
                 case LESSEQUAL: {
                     NavigableMap<Feature, Vertex<Feature, T>> neighbors
                         = vertex.getNeighborsLessThan(value, true);
-                    removeWildcard(neighbors);
-                    evalSet.addAll(neighbors.values());
+                    evalSet.addAll(removeWildcard(neighbors).values());
 
                     break;
                 }
@@ -285,25 +644,196 @@ public class HierarchicalGraph<T> {
         return resultSet;
     }
 
+    /**
+     * The expressions an {@link Operation} places on a single level of the
+     * hierarchy.  Comparisons are merged into a single interval, with any
+     * NOTEQUAL values excluded from it, so the neighbors of a vertex that
+     * satisfy all the expressions can be found with one range lookup.
+     * Expressions that cannot be merged (for instance, because their values
+     * have different types) are evaluated individually.
+     */
+    private static class LevelRange {
+
+        private List<Expression> expressions;
+        private boolean merged;
+        private boolean empty;
+
+        private Feature lower;
+        private boolean lowerInclusive;
+        private Feature upper;
+        private boolean upperInclusive;
+        private List<Feature> excluded = new ArrayList<>();
+
+        /** Identifies equal ranges */
+        private String key;
+
+        public LevelRange(List<Expression> expressions) {
+            this.expressions = expressions;
+            this.merged = merge();
+            if (merged) {
+                key = (lowerInclusive ? "[" : "(") + describe(lower) + ","
+                    + describe(upper) + (upperInclusive ? "]" : ")");
+                for (Feature feature : excluded) {
+                    key += "!" + describe(feature);
+                }
+            } else {
+                key = "";
+                for (Expression expression : expressions) {
+                    key += expression.getOperator() + " "
+                        + describe(expression.getValue()) + ";";
+                }
+            }
+        }
+
+        private boolean merge() {
+            FeatureType type = null;
+            for (Expression expression : expressions) {
+                Feature value = expression.getValue();
+                if (type == null) {
+                    type = value.getType();
+                } else if (type != value.getType()) {
+                    return false;
+                }
+
+                switch (expression.getOperator()) {
+                    case EQUAL:
+                        tightenLower(value, true);
+                        tightenUpper(value, true);
+                        break;
+                    case NOTEQUAL:
+                        excluded.add(value);
+                        break;
+                    case LESS:
+                        tightenUpper(value, false);
+                        break;
+                    case LESSEQUAL:
+                        tightenUpper(value, true);
+                        break;
+                    case GREATER:
+                        tightenLower(value, false);
+                        break;
+                    case GREATEREQUAL:
+                        tightenLower(value, true);
+                        break;
+                    default:
+                        return false;
+                }
+            }
+
+            if (lower != null && upper != null) {
+                int compare = lower.compareTo(upper);
+                empty = compare > 0
+                    || (compare == 0 && (!lowerInclusive || !upperInclusive));
+            }
+            return true;
+        }
+
+        private void tightenLower(Feature value, boolean inclusive) {
+            int compare = (lower == null) ? 1 : value.compareTo(lower);
+            if (compare > 0) {
+                lower = value;
+                lowerInclusive = inclusive;
+            } else if (compare == 0) {
+                lowerInclusive &= inclusive;
+            }
+        }
+
+        private void tightenUpper(Feature value, boolean inclusive) {
+            int compare = (upper == null) ? -1 : value.compareTo(upper);
+            if (compare < 0) {
+                upper = value;
+                upperInclusive = inclusive;
+            } else if (compare == 0) {
+                upperInclusive &= inclusive;
+            }
+        }
+
+        private static String describe(Feature feature) {
+            if (feature == null) {
+                return "";
+            }
+            return feature.getType() + ":" + feature.getString();
+        }
+    }
+
+    /**
+     * Finds the neighbors of a vertex that fall within a {@link LevelRange}.
+     */
+    private Collection<Vertex<Feature, T>> evaluateRange(LevelRange range,
+            Vertex<Feature, T> vertex) {
+        if (range.merged == false) {
+            return evaluateExpressions(range.expressions, vertex);
+        }
+        if (range.empty) {
+            return Collections.emptyList();
+        }
+
+        Collection<Vertex<Feature, T>> matches;
+        if (range.lower == null && range.upper == null) {
+            /* Only NOTEQUAL expressions, which also match wildcards */
+            matches = vertex.getAllNeighbors();
+        } else {
+            NavigableMap<Feature, Vertex<Feature, T>> neighbors
+                = vertex.getNeighbors();
+            if (range.lower == null) {
+                neighbors = removeWildcard(neighbors.headMap(
+                            range.upper, range.upperInclusive));
+            } else if (range.upper == null) {
+                neighbors = neighbors.tailMap(
+                        range.lower, range.lowerInclusive);
+            } else {
+                neighbors = neighbors.subMap(
+                        range.lower, range.lowerInclusive,
+                        range.upper, range.upperInclusive);
+            }
+            matches = neighbors.values();
+        }
+
+        if (range.excluded.isEmpty()) {
+            return matches;
+        }
+
+        List<Vertex<Feature, T>> included = new ArrayList<>();
+        for (Vertex<Feature, T> match : matches) {
+            boolean exclude = false;
+            for (Feature feature : range.excluded) {
+                if (match.getLabel().compareTo(feature) == 0) {
+                    exclude = true;
+                    break;
+                }
+            }
+            if (exclude == false) {
+                included.add(match);
+            }
+        }
+        return included;
+    }
+
     /**
      * When a path does not contain a particular Feature, we use a null feature
      * (FeatureType.NULL) to act as a "wildcard" in the graph so that the path
      * stays linked together. The side effect of this is that 'less than'
-     * comparisons may return wildcards, which are removed with this method.
+     * comparisons may return wildcards, which are excluded with this method.
+     * <p>
+     * The map passed in is usually a view of a vertex's edges, so it must not
+     * be modified; doing so would unlink the wildcard from the graph.
+     *
+     * @param map The map to exclude the first NULL element from.
      *
-     * @param map The map to remove the first NULL element from. If the map has
-     * no elements or the first element is not a NULL FeatureType, then no
-     * modifications are made to the map.
+     * @return a view of the map without its wildcard, or the map itself if it
+     * has no elements or the first element is not a NULL FeatureType.
      */
-    private void removeWildcard(NavigableMap<Feature, Vertex<Feature, T>> map) {
+    private NavigableMap<Feature, Vertex<Feature, T>> removeWildcard(
+            NavigableMap<Feature, Vertex<Feature, T>> map) {
         if (map.size() <= 0) {
-            return;
+            return map;
         }
 
         Feature first = map.firstKey();
         if (first.getType() == FeatureType.NULL) {
-            map.remove(first);
+            return map.tailMap(first, false);
         }
+        return map;
     }
 
     /**
@@ -315,6 +845,85 @@ public class HierarchicalGraph<T> {
             throw new GraphException("Attempted to add empty path!");
         }
 
+        /* Most paths land below existing vertices and only need their
+         * subtree locked */
+        structureLock.readLock().lock();
+        try {
+            if (addSubtreePath(path)) {
+                return;
+            }
+        } finally {
+            structureLock.readLock().unlock();
+        }
+
+        structureLock.writeLock().lock();
+        try {
+            addGraphPath(path);
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a path while holding the structure lock for reading.  This is only
+     * possible if the path does not introduce new levels, and its vertices
+     * down to the stripe depth already exist.
+     *
+     * @return true if the path was added, false if the structure lock must be
+     * held for writing to add it.
+     */
+    private boolean addSubtreePath(Path<Feature, T> path)
+    throws FeatureTypeMismatchException, GraphException {
+        for (Feature feature : path.getLabels()) {
+            if (levels.containsKey(feature.getName()) == false) {
+                return false;
+            }
+        }
+
+        preparePath(path);
+        if (path.size() < STRIPE_DEPTH) {
+            return false;
+        }
+
+        Vertex<Feature, T> subtree = root;
+        for (int i = 0; i < STRIPE_DEPTH; ++i) {
+            subtree = subtree.getNeighbor(path.get(i).getLabel());
+            if (subtree == null) {
+                return false;
+            }
+        }
+
+        Lock stripe = lockStripe(subtree, STRIPE_DEPTH, true);
+        try {
+            /* The path's vertex at the stripe depth is merged into the
+             * existing one, as Vertex.connect would */
+            path.get(path.size() - 1).addValues(path.getPayload());
+            subtree.addValues(path.get(STRIPE_DEPTH - 1).getValues());
+            subtree.addPath(path.getVertices().subList(
+                        STRIPE_DEPTH, path.size()).iterator());
+        } finally {
+            stripe.unlock();
+        }
+        return true;
+    }
+
+    private void addGraphPath(Path<Feature, T> path)
+    throws FeatureTypeMismatchException, GraphException {
+        preparePath(path);
+
+        /* Place the path payload (traversal result) at the end of this path. */
+        path.get(path.size() - 1).addValues(path.getPayload());
+
+        root.addPath(path.iterator());
+    }
+
+    /**
+     * Checks a path and orients it to match the hierarchy.  This is
+     * idempotent, so a path can be prepared again if adding it has to be
+     * retried.
+     */
+    private void preparePath(Path<Feature, T> path)
+    throws FeatureTypeMismatchException, GraphException {
         checkFeatureTypes(path);
         addNullFeatures(path);
         reorientPath(path);
@@ -324,11 +933,6 @@ public class HierarchicalGraph<T> {
         if (path.getPayload().size() == 0) {
             throw new GraphException("Attempted to add Path with no payload!");
         }
-
-        /* Place the path payload (traversal result) at the end of this path. */
-        path.get(path.size() - 1).addValues(path.getPayload());
-
-        root.addPath(path.iterator());
     }
 
     /**
@@ -419,22 +1023,6 @@ public class HierarchicalGraph<T> {
         }
     }
 
-    /**
-     * Removes all null Features from a path.  This includes any Features that
-     * are the standard Java null, or Features with a NULL FeatureType.
-     *
-     * @param path Path to remove null Features from.
-     */
-    private void removeNullFeatures(Path<Feature, T> path) {
-        Iterator<Vertex<Feature, T>> it = path.iterator();
-        while (it.hasNext()) {
-            Feature f = it.next().getLabel();
-            if (f == null || f.getType() == FeatureType.NULL) {
-                it.remove();
-            }
-        }
-    }
-
     private boolean applyPayloadFilter(Path<Feature, T> path,
             PayloadFilter<T> filter) {
 
@@ -492,32 +1080,83 @@ public class HierarchicalGraph<T> {
      */
     public FeatureHierarchy getFeatureHierarchy() {
         FeatureHierarchy hierarchy = new FeatureHierarchy();
-        for (String feature : features) {
-            try {
-                hierarchy.addFeature(feature, levels.get(feature).type);
-            } catch (GraphException e) {
-                /* If a GraphException is thrown here, something is seriously
-                 * wrong. */
-                logger.severe("NULL FeatureType found in graph hierarchy!");
+        structureLock.readLock().lock();
+        try {
+            for (String feature : features) {
+                try {
+                    hierarchy.addFeature(feature, levels.get(feature).type);
+                } catch (GraphException e) {
+                    /* If a GraphException is thrown here, something is
+                     * seriously wrong. */
+                    logger.severe("NULL FeatureType found in graph hierarchy!");
+                }
             }
+        } finally {
+            structureLock.readLock().unlock();
         }
         return hierarchy;
     }
 
     public List<Path<Feature, T>> getAllPaths() {
-        List<Path<Feature, T>> paths = root.descendantPaths();
-        for (Path<Feature, T> path : paths) {
-            removeNullFeatures(path);
-        }
+        List<Path<Feature, T>> paths = new ArrayList<>();
+        visitPaths(new PathCollector<T>(paths));
         return paths;
     }
 
+    /**
+     * Retrieves the root vertex.  Traversing the graph from it directly is
+     * not safe while paths are being added.
+     */
     public Vertex<Feature, T> getRoot() {
         return root;
     }
 
+    /**
+     * Retrieves the number of vertices in the graph, excluding the root.
+     */
+    public long numVertices() {
+        structureLock.writeLock().lock();
+        try {
+            return root.numDescendants();
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Retrieves the number of edges in the graph.
+     */
+    public long numEdges() {
+        structureLock.writeLock().lock();
+        try {
+            return root.numDescendantEdges();
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Compacts the graph's vertices once it has been bulk loaded.  Paths can
+     * still be added afterward.
+     *
+     * @see Vertex#freeze()
+     */
+    public void freeze() {
+        structureLock.writeLock().lock();
+        try {
+            root.freeze();
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
     @Override
     public String toString() {
-        return root.toString();
+        structureLock.writeLock().lock();
+        try {
+            return root.toString();
+        } finally {
+            structureLock.writeLock().unlock();
+        }
     }
 }
@@ -26,8 +26,12 @@ software, even if advised of the possibility of such damage.
 package galileo.graph;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.json.JSONArray;
 
@@ -35,25 +39,63 @@ import galileo.dataset.feature.Feature;
 import galileo.dataset.feature.FeatureType;
 import galileo.query.PayloadFilter;
 import galileo.query.Query;
+import galileo.serialization.ByteBufferOutputStream;
 import galileo.serialization.ByteSerializable;
 import galileo.serialization.SerializationException;
 import galileo.serialization.SerializationInputStream;
 import galileo.serialization.SerializationOutputStream;
 import galileo.util.Pair;
 
+/**
+ * A graph of block metadata.  Paths lead to the blocks they describe, which
+ * are stored in the graph as identifiers assigned by a {@link BlockRegistry}.
+ * Methods that deal in block paths (Strings) translate to and from
+ * identifiers; the <code>Block*</code> variants work with the identifiers
+ * directly.
+ * <p>
+ * Paths can be added and queries evaluated from several threads at once; see
+ * {@link HierarchicalGraph} for how the graph is locked.
+ */
 public class MetadataGraph implements ByteSerializable {
 
-    HierarchicalGraph<String> graph;
+    HierarchicalGraph<Integer> graph;
+    private BlockRegistry registry;
 
     public MetadataGraph() {
+        this(new BlockRegistry());
+    }
+
+    public MetadataGraph(BlockRegistry registry) {
         graph = new HierarchicalGraph<>();
+        this.registry = registry;
     }
 
     public MetadataGraph(FeatureHierarchy hierarchy) {
+        this(hierarchy, new BlockRegistry());
+    }
+
+    public MetadataGraph(FeatureHierarchy hierarchy, BlockRegistry registry) {
         graph = new HierarchicalGraph<>(hierarchy);
+        this.registry = registry;
+    }
+
+    /**
+     * Retrieves the registry that maps this graph's payloads to block paths.
+     */
+    public BlockRegistry getBlockRegistry() {
+        return registry;
     }
 
     public void addPath(Path<Feature, String> path)
+    throws FeatureTypeMismatchException, GraphException {
+        addBlockPath(registry.toBlockPath(path));
+    }
+
+    /**
+     * Adds a path whose payload holds block identifiers from this graph's
+     * {@link BlockRegistry}.
+     */
+    public void addBlockPath(Path<Feature, Integer> path)
     throws FeatureTypeMismatchException, GraphException {
         graph.addPath(path);
     }
@@ -64,20 +106,39 @@ public class MetadataGraph implements ByteSerializable {
      * present in this graph, they will be assigned on a first-come,
      * first-served basis.
      *
+     * The graph is replaced rather than updated, so this must not be called
+     * while other threads are using it.
+     *
      * @param hierarchy the new FeatureHierarchy this graph should take on.
      */
     public void reorient(FeatureHierarchy hierarchy)
     throws FeatureTypeMismatchException, GraphException {
-        List<Path<Feature, String>> paths = graph.getAllPaths();
+        List<Path<Feature, Integer>> paths = graph.getAllPaths();
         graph = new HierarchicalGraph<>(hierarchy);
-        for(Path<Feature, String> path : paths) {
-            addPath(path);
+        for(Path<Feature, Integer> path : paths) {
+            addBlockPath(path);
         }
     }
 
     public List<Path<Feature, String>> evaluateQuery(Query query) {
+        return toNamedPaths(graph.evaluateQuery(query));
+    }
+
+    /**
+     * Evaluates a query, producing paths whose payloads hold block
+     * identifiers.
+     */
+    public List<Path<Feature, Integer>> evaluateBlockQuery(Query query) {
         return graph.evaluateQuery(query);
     }
+
+    /**
+     * Evaluates a query, handing each matching path to a visitor as it is
+     * found.  Payloads hold block identifiers.
+     */
+    public void visitBlockQuery(Query query, PathVisitor<Integer> visitor) {
+        graph.visitQuery(query, visitor);
+    }
     
     
     public JSONArray getFeaturesJSON(){
@@ -90,7 +151,17 @@ public class MetadataGraph implements ByteSerializable {
 
     public List<Path<Feature, String>> evaluateQuery(Query query,
             PayloadFilter<String> filter) {
-        return graph.evaluateQuery(query, filter);
+        Set<Integer> items = new HashSet<>();
+        for (String item : filter.getItems()) {
+            Integer id = registry.getId(item);
+            if (id != null) {
+                items.add(id);
+            }
+        }
+
+        PayloadFilter<Integer> blockFilter
+            = new PayloadFilter<>(filter.excludesItems(), items);
+        return toNamedPaths(graph.evaluateQuery(query, blockFilter));
     }
 
     public static MetadataGraph fromPaths(List<Path<Feature, String>> paths) {
@@ -107,15 +178,41 @@ public class MetadataGraph implements ByteSerializable {
     }
 
     public List<Path<Feature, String>> getAllPaths() {
-        return graph.getAllPaths();
+        return toNamedPaths(graph.getAllPaths());
+    }
+
+    /**
+     * Hands every path in the graph to a visitor.  Payloads hold block
+     * identifiers.
+     */
+    public void visitBlockPaths(PathVisitor<Integer> visitor) {
+        graph.visitPaths(visitor);
+    }
+
+    private List<Path<Feature, String>> toNamedPaths(
+            List<Path<Feature, Integer>> paths) {
+        List<Path<Feature, String>> namedPaths = new ArrayList<>(paths.size());
+        for (Path<Feature, Integer> path : paths) {
+            namedPaths.add(registry.toNamedPath(path));
+        }
+        return namedPaths;
     }
 
     public long numVertices() {
-        return graph.getRoot().numDescendants();
+        return graph.numVertices();
     }
 
     public long numEdges() {
-        return graph.getRoot().numDescendantEdges();
+        return graph.numEdges();
+    }
+
+    /**
+     * Compacts the graph after it has been loaded.
+     *
+     * @see HierarchicalGraph#freeze()
+     */
+    public void freeze() {
+        graph.freeze();
     }
 
     @Override
@@ -125,6 +222,28 @@ public class MetadataGraph implements ByteSerializable {
 
     @Deserialize
     public MetadataGraph(SerializationInputStream in)
+    throws GraphException, IOException, SerializationException {
+        this(new BlockRegistry());
+        readPaths(in, false);
+    }
+
+    /**
+     * Reads a graph written by {@link #serialize(SerializationOutputStream,
+     * FeatureHierarchy, List)} or, if blockIds is true, by
+     * {@link #writeHierarchy(SerializationOutputStream, FeatureHierarchy)}
+     * followed by a path count and
+     * {@link #writeBlockPaths(SerializationOutputStream)}.  Block identifiers
+     * in the latter form refer to the given registry.
+     */
+    public static MetadataGraph read(SerializationInputStream in,
+            BlockRegistry registry, boolean blockIds)
+    throws GraphException, IOException, SerializationException {
+        MetadataGraph graph = new MetadataGraph(registry);
+        graph.readPaths(in, blockIds);
+        return graph;
+    }
+
+    private void readPaths(SerializationInputStream in, boolean blockIds)
     throws GraphException, IOException, SerializationException {
         FeatureHierarchy hierarchy = new FeatureHierarchy();
         int numLevels = in.readInt();
@@ -134,26 +253,29 @@ public class MetadataGraph implements ByteSerializable {
             hierarchy.addFeature(name, type);
         }
 
-        graph = new HierarchicalGraph<String>(hierarchy);
+        graph = new HierarchicalGraph<Integer>(hierarchy);
 
         int numPaths = in.readInt();
         for (int path = 0; path < numPaths; ++path) {
-            FeaturePath<String> p = new FeaturePath<>();
+            FeaturePath<Integer> p = new FeaturePath<>();
             int numVertices = in.readInt();
             for (int vertex = 0; vertex < numVertices; ++vertex) {
                 Feature f = new Feature(in);
-                Vertex<Feature, String> v = new Vertex<>(f);
+                Vertex<Feature, Integer> v = new Vertex<>(f);
                 p.add(v);
             }
 
             int numPayloads = in.readInt();
             for (int payload = 0; payload < numPayloads; ++payload) {
-                String pay = in.readString();
-                p.addPayload(pay);
+                if (blockIds) {
+                    p.addPayload(in.readInt());
+                } else {
+                    p.addPayload(registry.register(in.readString()));
+                }
             }
 
             try {
-                this.addPath(p);
+                this.addBlockPath(p);
             } catch (FeatureTypeMismatchException e) {
                 throw new SerializationException("Could not add deserialized "
                         + "path to the MetadataGraph.", e);
@@ -162,23 +284,59 @@ public class MetadataGraph implements ByteSerializable {
     }
 
     @Override
-    public void serialize(SerializationOutputStream out)
+    public void serialize(final SerializationOutputStream out)
     throws IOException {
-        FeatureHierarchy hierarchy = graph.getFeatureHierarchy();
-        out.writeInt(hierarchy.size());
-        for (Pair<String, FeatureType> level : hierarchy) {
-            out.writeString(level.a);
-            out.writeInt(level.b.toInt());
+        writeHierarchy(out, graph.getFeatureHierarchy());
+
+        /* Paths are streamed out of the graph in a single pass, so that paths
+         * added concurrently can not make the count disagree with the paths
+         * written.  They are buffered and the count written ahead of them. */
+        final int[] numPaths = new int[1];
+        ByteBufferOutputStream buffer = ByteBufferOutputStream.acquire(-1);
+        try {
+            final SerializationOutputStream pathOut
+                = new SerializationOutputStream(buffer, out.isCompact());
+            graph.visitPaths(new PathVisitor<Integer>() {
+                @Override
+                public void visit(List<Feature> labels, Set<Integer> payload) {
+                    List<String> blocks = new ArrayList<>(payload.size());
+                    registry.resolve(payload, blocks);
+                    try {
+                        writeLabels(pathOut, labels);
+                        pathOut.writeInt(blocks.size());
+                        for (String block : blocks) {
+                            pathOut.writeString(block);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    numPaths[0]++;
+                }
+            });
+            pathOut.flush();
+
+            out.writeInt(numPaths[0]);
+            out.write(buffer.array(), buffer.arrayOffset(), buffer.size());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            buffer.release();
         }
+    }
+
+    /**
+     * Writes a graph in the serialized form of a MetadataGraph, given its
+     * hierarchy and paths.  This allows a graph to be persisted from paths
+     * captured earlier, without holding on to the live graph while writing.
+     */
+    public static void serialize(SerializationOutputStream out,
+            FeatureHierarchy hierarchy, List<Path<Feature, String>> paths)
+    throws IOException {
+        writeHierarchy(out, hierarchy);
 
-        List<Path<Feature, String>> paths = graph.getAllPaths();
         out.writeInt(paths.size());
         for (Path<Feature, String> path : paths) {
-            List<Vertex<Feature, String>> vertices = path.getVertices();
-            out.writeInt(vertices.size());
-            for (Vertex<Feature, String> v : vertices) {
-                out.writeSerializable(v.getLabel());
-            }
+            writeLabels(out, path.getLabels());
 
             Collection<String> payload = path.getPayload();
             out.writeInt(payload.size());
@@ -187,4 +345,61 @@ public class MetadataGraph implements ByteSerializable {
             }
         }
     }
+
+    /**
+     * Streams the paths in the graph out with their block identifiers as
+     * payloads.  Identifiers are written as-is, so the graph must be read
+     * back with the same {@link BlockRegistry} contents.  The paths are not
+     * preceded by their count, since paths may be added while they are
+     * written; the caller records the count returned here instead.
+     *
+     * @return the number of paths written.
+     */
+    public int writeBlockPaths(final SerializationOutputStream out)
+    throws IOException {
+        final int[] numPaths = new int[1];
+        try {
+            graph.visitPaths(new PathVisitor<Integer>() {
+                @Override
+                public void visit(List<Feature> labels, Set<Integer> payload) {
+                    try {
+                        writeLabels(out, labels);
+                        out.writeInt(payload.size());
+                        for (int item : payload) {
+                            out.writeInt(item);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    numPaths[0]++;
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return numPaths[0];
+    }
+
+    /**
+     * Writes the feature hierarchy that begins the serialized form of a
+     * graph.
+     */
+    public static void writeHierarchy(SerializationOutputStream out,
+            FeatureHierarchy hierarchy)
+    throws IOException {
+        out.writeInt(hierarchy.size());
+        for (Pair<String, FeatureType> level : hierarchy) {
+            out.writeString(level.a);
+            out.writeInt(level.b.toInt());
+        }
+    }
+
+    private static void writeLabels(SerializationOutputStream out,
+            List<Feature> labels)
+    throws IOException {
+        out.writeInt(labels.size());
+        for (Feature label : labels) {
+            out.writeSerializable(label);
+        }
+    }
 }
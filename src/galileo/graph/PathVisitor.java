@@ -0,0 +1,55 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.graph;
+
+import java.util.List;
+import java.util.Set;
+
+import galileo.dataset.feature.Feature;
+
+/**
+ * Receives the paths found while traversing a {@link HierarchicalGraph},
+ * one at a time, so that callers can process large graphs or query results
+ * without materializing a {@link Path} for each of them.
+ *
+ * @param <T> the type of path payloads.
+ */
+public interface PathVisitor<T> {
+
+    /**
+     * Called for each path that leads to a payload.  Both arguments are
+     * read-only views of the traversal state and are only valid for the
+     * duration of the call; they must be copied if they are to be kept.
+     * <p>
+     * Part of the graph is locked for reading while this is called, so paths
+     * must not be added to the graph being traversed from here.
+     *
+     * @param labels The Features along the path, from the top of the
+     * hierarchy down.  Wildcard (NULL) Features are not included.
+     * @param payload The payload at the end of the path.
+     */
+    public void visit(List<Feature> labels, Set<T> payload);
+}
@@ -26,26 +26,37 @@ software, even if advised of the possibility of such damage.
 package galileo.graph;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NavigableMap;
 import java.util.Set;
-import java.util.TreeMap;
 
 /**
- * Provides a lightweight generic implementation of a graph vertex backed by a
- * TreeMap for extensibility.  This provides the basis of the hybrid
- * trees/graphs used in the system.
+ * Provides a lightweight generic implementation of a graph vertex.  This
+ * provides the basis of the hybrid trees/graphs used in the system.
+ * <p>
+ * Graphs may contain tens of millions of vertices, so the representation is
+ * kept compact: edges are stored in an array sorted by label and searched
+ * with binary search, and values are held in a small inline set.  Neither is
+ * allocated until it is needed, so leaves carry no edge storage and interior
+ * vertices carry no value storage.  {@link #freeze()} trims any spare
+ * capacity from a subtree that is not expected to change.
  *
  * @author malensek
  */
 public class Vertex<L extends Comparable<L>, V> {
 
     protected L label;
-    protected Set<V> values = new HashSet<V>();
-    protected TreeMap<L, Vertex<L, V>> edges = new TreeMap<>();
+
+    /* Created when the first value is added */
+    private CompactSet<V> values;
+
+    /* Neighbors sorted by label; only the first numEdges are in use */
+    private Vertex<L, V>[] edges;
+    private int numEdges;
 
     public Vertex() { }
 
@@ -73,7 +84,7 @@ public class Vertex<L extends Comparable<L>, V> {
      * @return true if the Vertex label is found on a connecting edge.
      */
     public boolean connectedTo(L label) {
-        return edges.containsKey(label);
+        return getNeighbor(label) != null;
     }
 
     /**
@@ -84,17 +95,36 @@ public class Vertex<L extends Comparable<L>, V> {
      * @return Neighbor Vertex.
      */
     public Vertex<L, V> getNeighbor(L label) {
-        return edges.get(label);
+        int index = EdgeMap.bound(edges, 0, numEdges, label, true);
+        if (index < numEdges && edges[index].label.compareTo(label) == 0) {
+            return edges[index];
+        }
+        return null;
     }
 
+    /**
+     * Retrieves the neighbors with labels less than (or equal to, if
+     * inclusive) the given label.  The returned map is a read-only view.
+     */
     public NavigableMap<L, Vertex<L, V>> getNeighborsLessThan(
             L label, boolean inclusive) {
-        return edges.headMap(label, inclusive);
+        return getNeighbors().headMap(label, inclusive);
     }
 
+    /**
+     * Retrieves the neighbors with labels greater than (or equal to, if
+     * inclusive) the given label.  The returned map is a read-only view.
+     */
     public NavigableMap<L, Vertex<L, V>> getNeighborsGreaterThan(
             L label, boolean inclusive) {
-        return edges.tailMap(label, inclusive);
+        return getNeighbors().tailMap(label, inclusive);
+    }
+
+    /**
+     * Retrieves all neighbors, ordered by label, as a read-only map view.
+     */
+    public NavigableMap<L, Vertex<L, V>> getNeighbors() {
+        return new EdgeMap<>(edges, 0, numEdges);
     }
 
     /**
@@ -103,7 +133,7 @@ public class Vertex<L extends Comparable<L>, V> {
      * @return Neighbor Vertex labels.
      */
     public Set<L> getNeighborLabels() {
-        return edges.keySet();
+        return getNeighbors().keySet();
     }
 
     /**
@@ -112,7 +142,7 @@ public class Vertex<L extends Comparable<L>, V> {
      * @return collection of all neighboring vertices.
      */
     public Collection<Vertex<L, V>> getAllNeighbors() {
-        return edges.values();
+        return EdgeMap.list(edges, 0, numEdges);
     }
 
     /**
@@ -126,14 +156,32 @@ public class Vertex<L extends Comparable<L>, V> {
      */
     public Vertex<L, V> connect(Vertex<L, V> vertex) {
         L label = vertex.getLabel();
-        Vertex<L, V> edge = getNeighbor(label);
-        if (edge == null) {
-            edges.put(label, vertex);
-            return vertex;
-        } else {
+        int index = EdgeMap.bound(edges, 0, numEdges, label, true);
+        if (index < numEdges && edges[index].label.compareTo(label) == 0) {
+            Vertex<L, V> edge = edges[index];
             edge.addValues(vertex.getValues());
             return edge;
         }
+
+        insertEdge(index, vertex);
+        return vertex;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void insertEdge(int index, Vertex<L, V> vertex) {
+        if (edges == null) {
+            edges = new Vertex[1];
+        } else if (numEdges == edges.length) {
+            /* Most vertices have very few neighbors, so grow slowly at first
+             * to avoid leaving unused capacity behind */
+            int capacity = (numEdges < 4)
+                ? numEdges + 1 : numEdges + (numEdges >> 1);
+            edges = Arrays.copyOf(edges, capacity);
+        }
+
+        System.arraycopy(edges, index, edges, index + 1, numEdges - index);
+        edges[index] = vertex;
+        numEdges++;
     }
 
     /**
@@ -156,14 +204,26 @@ public class Vertex<L extends Comparable<L>, V> {
     }
 
     public Set<V> getValues() {
+        if (values == null) {
+            return Collections.emptySet();
+        }
         return values;
     }
 
     public void addValue(V value) {
+        if (this.values == null) {
+            this.values = new CompactSet<>();
+        }
         this.values.add(value);
     }
 
     public void addValues(Collection<V> values) {
+        if (values.isEmpty()) {
+            return;
+        }
+        if (this.values == null) {
+            this.values = new CompactSet<>();
+        }
         this.values.addAll(values);
     }
 
@@ -250,14 +310,38 @@ public class Vertex<L extends Comparable<L>, V> {
      * neighboring vertices.
      */
     public void clearEdges() {
-        edges.clear();
+        edges = null;
+        numEdges = 0;
     }
 
     /**
      * Clears all values associated with this Vertex.
      */
     public void clearValues() {
-        values.clear();
+        values = null;
+    }
+
+    /**
+     * Releases spare capacity held by this Vertex and its descendants,
+     * leaving them in their most compact form.  This is intended for
+     * subtrees that will mostly be read from now on (for instance, after a
+     * graph has been recovered); they can still be modified afterward.
+     */
+    public void freeze() {
+        if (edges != null && edges.length > numEdges) {
+            edges = (numEdges == 0) ? null : Arrays.copyOf(edges, numEdges);
+        }
+        if (values != null) {
+            if (values.isEmpty()) {
+                values = null;
+            } else {
+                values.freeze();
+            }
+        }
+
+        for (int i = 0; i < numEdges; ++i) {
+            edges[i].freeze();
+        }
     }
 
     /**
@@ -265,7 +349,7 @@ public class Vertex<L extends Comparable<L>, V> {
      */
     protected String toString(int indent) {
         String ls = System.lineSeparator();
-        String str = "(" + getLabel() + " " + values + ")" + ls;
+        String str = "(" + getLabel() + " " + getValues() + ")" + ls;
 
         String space = " ";
         for (int i = 0; i < indent; ++i) {
@@ -274,7 +358,7 @@ public class Vertex<L extends Comparable<L>, V> {
         space += "|-";
         ++indent;
 
-        for (Vertex<L, V> vertex : edges.values()) {
+        for (Vertex<L, V> vertex : getAllNeighbors()) {
             str += space + vertex.toString(indent);
         }
 
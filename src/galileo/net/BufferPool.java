@@ -0,0 +1,118 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.net;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recycles the byte arrays that incoming message payloads are read into.
+ * Buffers are grouped into power-of-two size classes; requests smaller than
+ * {@link #MIN_POOLED_SIZE} are cheap to allocate and are not pooled.  The
+ * amount of memory retained by idle buffers is capped, and buffers that would
+ * exceed the cap are simply left for the garbage collector.
+ */
+public class BufferPool {
+
+    /** Payloads smaller than this (in bytes) are allocated directly. */
+    public static final int MIN_POOLED_SIZE = 64 * 1024;
+
+    /** Largest pooled buffer size (in bytes). */
+    public static final int MAX_POOLED_SIZE = 64 * 1024 * 1024;
+
+    private static final int MIN_SHIFT
+        = Integer.numberOfTrailingZeros(MIN_POOLED_SIZE);
+
+    private final Queue<byte[]>[] classes;
+    private final long maxPooledBytes;
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    /**
+     * @param maxPooledBytes upper bound on the number of bytes held by idle
+     * buffers.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        int count = Integer.numberOfTrailingZeros(MAX_POOLED_SIZE)
+            - MIN_SHIFT + 1;
+        classes = new Queue[count];
+        for (int i = 0; i < count; ++i) {
+            classes[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /**
+     * Retrieves a buffer of at least the given size.  Pooled buffers are
+     * usually larger than requested, so callers must track the number of valid
+     * bytes themselves.
+     */
+    public byte[] acquire(int size) {
+        if (size < MIN_POOLED_SIZE || size > MAX_POOLED_SIZE) {
+            return new byte[size];
+        }
+
+        int sizeClass = sizeClass(size);
+        byte[] buffer = classes[sizeClass].poll();
+        if (buffer != null) {
+            pooledBytes.addAndGet(-buffer.length);
+            return buffer;
+        }
+        return new byte[1 << (sizeClass + MIN_SHIFT)];
+    }
+
+    /**
+     * Returns a buffer to the pool.  The caller must not retain any references
+     * to the buffer afterward.  Buffers that were not produced by the pool are
+     * ignored.
+     */
+    public void release(byte[] buffer) {
+        int size = buffer.length;
+        if (size < MIN_POOLED_SIZE || size > MAX_POOLED_SIZE
+                || Integer.bitCount(size) != 1) {
+            return;
+        }
+
+        if (pooledBytes.addAndGet(size) > maxPooledBytes) {
+            pooledBytes.addAndGet(-size);
+            return;
+        }
+        classes[sizeClass(size)].offer(buffer);
+    }
+
+    /**
+     * @return the number of bytes currently held by idle buffers.
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    private static int sizeClass(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends a single message as a series of chunk frames.  Written data is
+ * buffered until a full chunk is available, which is then framed and handed
+ * off for transmission; closing the stream sends the final chunk.  Obtained
+ * through {@link MessageRouter#openStream(java.nio.channels.SelectionKey)}
+ * or {@link MessageContext#openStream()}.
+ * <p>
+ * Each chunk frame consists of the bitwise complement of the chunk size (so
+ * that the prefix is negative, distinguishing it from a regular message),
+ * the stream id, and a flags byte, followed by the chunk data.
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+    /**
+     * Queues framed chunks for transmission.
+     */
+    interface FrameSink {
+        void send(ByteBuffer[] frame)
+        throws IOException;
+    }
+
+    private final int streamId;
+    private final int chunkSize;
+    private final FrameSink sink;
+
+    private byte[] buffer;
+    private int count;
+    private boolean closed;
+
+    ChunkedOutputStream(int streamId, int chunkSize, FrameSink sink) {
+        this.streamId = streamId;
+        this.chunkSize = Math.max(1, chunkSize);
+        this.sink = sink;
+    }
+
+    /**
+     * @return the identifier of this stream on its connection.
+     */
+    public int getStreamId() {
+        return streamId;
+    }
+
+    @Override
+    public void write(int b)
+    throws IOException {
+        ensureOpen();
+        if (buffer == null) {
+            buffer = new byte[chunkSize];
+        }
+        buffer[count++] = (byte) b;
+        if (count == chunkSize) {
+            sendChunk(false);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+    throws IOException {
+        ensureOpen();
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        while (len > 0) {
+            if (buffer == null) {
+                buffer = new byte[chunkSize];
+            }
+            int n = Math.min(len, chunkSize - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == chunkSize) {
+                sendChunk(false);
+            }
+        }
+    }
+
+    /**
+     * Sends any buffered data as a (possibly short) chunk.
+     */
+    @Override
+    public void flush()
+    throws IOException {
+        ensureOpen();
+        if (count > 0) {
+            sendChunk(false);
+        }
+    }
+
+    /**
+     * Sends the final chunk, completing the message.
+     */
+    @Override
+    public void close()
+    throws IOException {
+        if (closed) {
+            return;
+        }
+        sendChunk(true);
+        closed = true;
+    }
+
+    private void ensureOpen()
+    throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    private void sendChunk(boolean last)
+    throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(MessageRouter.CHUNK_HEADER_SZ);
+        header.putInt(~count);
+        header.putInt(streamId);
+        header.put(last ? MessageRouter.LAST_CHUNK : 0);
+        header.flip();
+
+        ByteBuffer data = (buffer == null)
+            ? ByteBuffer.allocate(0)
+            : ByteBuffer.wrap(buffer, 0, count);
+
+        /* The queued chunk keeps its buffer until it has been written, so
+         * the next chunk gets a fresh one. */
+        buffer = null;
+        count = 0;
+        sink.send(new ByteBuffer[] { header, data });
+    }
+}
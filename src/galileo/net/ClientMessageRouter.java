@@ -34,11 +34,11 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -53,12 +53,14 @@ public class ClientMessageRouter extends MessageRouter {
 
     protected static final Logger logger = Logger.getLogger("galileo");
 
+    /* Connections may be shared by several sending threads, so these are
+     * updated under the router's monitor and read without it. */
     protected Map<NetworkDestination, SocketChannel> destinationToSocket
-        = new HashMap<>();
+        = new ConcurrentHashMap<>();
     protected Map<SocketChannel, NetworkDestination> socketToDestination
-        = new HashMap<>();
+        = new ConcurrentHashMap<>();
     protected Map<SocketChannel, TransmissionTracker> socketToTracker
-        = new HashMap<>();
+        = new ConcurrentHashMap<>();
 
     protected Queue<SocketChannel> pendingRegistrations
         = new ConcurrentLinkedQueue<>();
@@ -132,7 +134,8 @@ public class ClientMessageRouter extends MessageRouter {
      *
      * @return The TransmissionTracker associated with the NetworkDestination.
      */
-    private TransmissionTracker ensureConnected(NetworkDestination destination)
+    private synchronized TransmissionTracker ensureConnected(
+            NetworkDestination destination)
     throws IOException {
         SocketChannel channel = destinationToSocket.get(destination);
         if (channel != null) {
@@ -148,7 +151,7 @@ public class ClientMessageRouter extends MessageRouter {
         /* Update data structures for mapping between sockets/keys/trackers */
         destinationToSocket.put(destination, channel);
         socketToDestination.put(channel, destination);
-        TransmissionTracker tracker = new TransmissionTracker(writeQueueSize);
+        TransmissionTracker tracker = createTracker();
         socketToTracker.put(channel, tracker);
 
         /* Finally, put this registration in the pending queue */
@@ -184,23 +187,86 @@ public class ClientMessageRouter extends MessageRouter {
         TransmissionTracker tracker = ensureConnected(destination);
 
         /* Queue the data to be written */
+        return queueFrame(destination, tracker, wrapWithPrefix(message));
+    }
+
+    private Transmission queueFrame(NetworkDestination destination,
+            TransmissionTracker tracker, ByteBuffer[] frame)
+    throws IOException {
         Transmission trans = null;
-        ByteBuffer payload = wrapWithPrefix(message);
         try {
-            trans = tracker.queueOutgoingData(payload);
+            trans = tracker.queueOutgoingData(frame);
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
 
-        /* Request for interestOps change. */
+        requestWrite(destination);
+        return trans;
+    }
+
+    /**
+     * Opens a stream for sending a single message to the specified network
+     * destination in chunks; see {@link #openStream(SelectionKey)}.
+     */
+    public ChunkedOutputStream openStream(
+            final NetworkDestination destination)
+    throws IOException {
+        final TransmissionTracker tracker = ensureConnected(destination);
+        return new ChunkedOutputStream(nextStreamId(), chunkSize,
+                new ChunkedOutputStream.FrameSink() {
+                    @Override
+                    public void send(ByteBuffer[] frame)
+                    throws IOException {
+                        queueFrame(destination, tracker, frame);
+                    }
+                });
+    }
+
+    /**
+     * Sends a message to the specified network destination without blocking.
+     * If the destination's write queue is congested, the message is not
+     * queued.
+     *
+     * @return true if the message was queued, false if the write queue is
+     * congested.
+     */
+    public boolean offerMessage(NetworkDestination destination,
+            GalileoMessage message)
+    throws IOException {
+        TransmissionTracker tracker = ensureConnected(destination);
+        if (tracker.offerOutgoingData(wrapWithPrefix(message)) == null) {
+            return false;
+        }
+
+        requestWrite(destination);
+        return true;
+    }
+
+    /**
+     * Determines whether the write queue for a destination is congested.
+     * Destinations that are not connected are not congested.
+     */
+    public boolean isCongested(NetworkDestination destination) {
+        SocketChannel channel = destinationToSocket.get(destination);
+        if (channel == null) {
+            return false;
+        }
+        TransmissionTracker tracker = socketToTracker.get(channel);
+        return tracker != null && tracker.isCongested();
+    }
+
+    /**
+     * Requests an interestOps change so that queued data is written.
+     */
+    private void requestWrite(NetworkDestination destination) {
         SocketChannel channel = destinationToSocket.get(destination);
-        if (channel.isRegistered() && channel.isConnected()) {
+        if (channel != null
+                && channel.isRegistered() && channel.isConnected()) {
             changeInterest.put(channel.keyFor(this.selector),
                     SelectionKey.OP_READ | SelectionKey.OP_WRITE);
         }
 
         selector.wakeup();
-        return trans;
     }
 
     @Override
@@ -208,11 +274,36 @@ public class ClientMessageRouter extends MessageRouter {
         /* Update our ClientMessageRouter-specific data structures when
          * disconnected. */
         SocketChannel channel = (SocketChannel) key.channel();
-        NetworkDestination destination = socketToDestination.get(channel);
-        destinationToSocket.remove(destination);
-        socketToDestination.remove(channel);
-        socketToTracker.remove(channel);
-        super.disconnect(key);
+        NetworkDestination destination;
+        synchronized (this) {
+            destination = socketToDestination.remove(channel);
+            if (destination != null) {
+                destinationToSocket.remove(destination);
+            }
+            socketToTracker.remove(channel);
+        }
+
+        /* Report the destination the connection was opened for rather than
+         * the resolved remote address, so listeners can match it against
+         * the destinations they sent to.  This also works for connections
+         * that never completed. */
+        if (destination != null) {
+            super.disconnect(key, destination);
+        } else {
+            super.disconnect(key);
+        }
+    }
+
+    /**
+     * Retrieves the destination a connection was opened for.
+     *
+     * @param channel SocketChannel managed by this router.
+     *
+     * @return the NetworkDestination used to open the connection, or null if
+     * the channel is not (or no longer) connected through this router.
+     */
+    public NetworkDestination destinationOf(SocketChannel channel) {
+        return socketToDestination.get(channel);
     }
 
     /**
@@ -245,7 +336,7 @@ public class ClientMessageRouter extends MessageRouter {
         Iterator<SelectionKey> keys = this.selector.keys().iterator();
         while(keys.hasNext()){
         	SelectionKey key = keys.next();
-        	if (forcible == false) {
+        	if (forcible == false && key.isValid()) {
                 safeShutdown(key);
             }
         	disconnect(key);
@@ -0,0 +1,94 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A region of a file that is sent as part of a {@link FileTransfer}.  The
+ * region is written to the network with {@link FileChannel#transferTo}, so its
+ * contents are never copied onto the heap.  The region owns its FileChannel,
+ * which is closed once the transmission it belongs to has finished (or been
+ * abandoned).
+ */
+public class FileRegion implements Closeable {
+
+    private FileChannel channel;
+    private long position;
+    private long remaining;
+    private long count;
+
+    /**
+     * @param channel open channel of the file to send.
+     * @param position offset of the first byte of the region.
+     * @param count number of bytes in the region.
+     */
+    public FileRegion(FileChannel channel, long position, long count) {
+        this.channel = channel;
+        this.position = position;
+        this.remaining = count;
+        this.count = count;
+    }
+
+    /**
+     * @return the number of bytes in this region.
+     */
+    public long size() {
+        return count;
+    }
+
+    /**
+     * Determines whether any of this region has yet to be written.
+     */
+    boolean hasRemaining() {
+        return remaining > 0;
+    }
+
+    /**
+     * Transfers as much of the rest of the region as the target will accept.
+     *
+     * @return the number of bytes transferred.
+     */
+    long transferTo(WritableByteChannel target)
+    throws IOException {
+        long transferred = channel.transferTo(position, remaining, target);
+        if (transferred == 0 && position >= channel.size()) {
+            throw new IOException("File was truncated during transfer");
+        }
+        position += transferred;
+        remaining -= transferred;
+        return transferred;
+    }
+
+    @Override
+    public void close()
+    throws IOException {
+        channel.close();
+    }
+}
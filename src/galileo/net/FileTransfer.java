@@ -0,0 +1,147 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The payload of a message assembled from small heap-allocated parts and
+ * {@link FileRegion}s.  Data written to the stream (such as serialized
+ * headers) is kept on the heap, while file regions are sent straight from
+ * their files by the selector thread.  Transfers are sent with
+ * {@link MessageRouter#sendTransfer(java.nio.channels.SelectionKey,
+ * FileTransfer)}, and are received as regular messages.
+ */
+public class FileTransfer extends OutputStream {
+
+    private static final Logger logger = Logger.getLogger("galileo");
+
+    /* ByteBuffers and FileRegions, in transmission order */
+    private List<Object> segments = new ArrayList<>();
+    private ByteArrayOutputStream heap = new ByteArrayOutputStream();
+    private long size;
+
+    @Override
+    public void write(int b) {
+        heap.write(b);
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        heap.write(b, off, len);
+        size += len;
+    }
+
+    /**
+     * Appends a region of a file.  The transfer takes ownership of the region.
+     */
+    public void addRegion(FileRegion region) {
+        flushHeap();
+        segments.add(region);
+        size += region.size();
+    }
+
+    /**
+     * Appends the contents of another transfer, which should not be used
+     * afterward.
+     */
+    public void append(FileTransfer transfer) {
+        flushHeap();
+        transfer.flushHeap();
+        segments.addAll(transfer.segments);
+        size += transfer.size;
+        transfer.segments.clear();
+        transfer.size = 0;
+    }
+
+    /**
+     * @return the total number of bytes in this transfer.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Closes the file regions of a transfer that will not be sent.
+     */
+    public void release() {
+        for (Object segment : segments) {
+            if (segment instanceof FileRegion) {
+                closeRegion((FileRegion) segment);
+            }
+        }
+        segments.clear();
+    }
+
+    /**
+     * Retrieves the segments of this transfer, in order: groups of heap
+     * buffers (ByteBuffer[]) that can be written with a single gathering
+     * write, and FileRegions.
+     */
+    Object[] getSegments() {
+        flushHeap();
+        List<Object> grouped = new ArrayList<>();
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for (Object segment : segments) {
+            if (segment instanceof ByteBuffer) {
+                buffers.add((ByteBuffer) segment);
+                continue;
+            }
+            if (buffers.isEmpty() == false) {
+                grouped.add(buffers.toArray(new ByteBuffer[buffers.size()]));
+                buffers.clear();
+            }
+            grouped.add(segment);
+        }
+        if (buffers.isEmpty() == false) {
+            grouped.add(buffers.toArray(new ByteBuffer[buffers.size()]));
+        }
+        return grouped.toArray();
+    }
+
+    private void flushHeap() {
+        if (heap.size() > 0) {
+            segments.add(ByteBuffer.wrap(heap.toByteArray()));
+            heap.reset();
+        }
+    }
+
+    static void closeRegion(FileRegion region) {
+        try {
+            region.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to close transferred file", e);
+        }
+    }
+}
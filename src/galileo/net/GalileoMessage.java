@@ -26,6 +26,7 @@ software, even if advised of the possibility of such damage.
 package galileo.net;
 
 import java.nio.channels.SelectionKey;
+import java.util.Arrays;
 
 /**
  * The unit of data transmission in the Galileo DHT.  These packets are simple
@@ -36,6 +37,9 @@ import java.nio.channels.SelectionKey;
 public class GalileoMessage {
 
     private byte[] payload;
+    private int offset;
+    private int length;
+    private BufferPool pool;
 
     private MessageContext context;
     private SelectionKey key;
@@ -46,7 +50,21 @@ public class GalileoMessage {
      * @param payload message payload in the form of a byte array.
      */
     public GalileoMessage(byte[] payload) {
+        this(payload, 0, payload.length);
+    }
+
+    /**
+     * Constructs a GalileoMessage from a region of a byte array.  The array is
+     * not copied.
+     *
+     * @param payload array containing the message payload.
+     * @param offset index of the first payload byte.
+     * @param length size of the payload in bytes.
+     */
+    public GalileoMessage(byte[] payload, int offset, int length) {
         this.payload = payload;
+        this.offset = offset;
+        this.length = length;
     }
 
     /**
@@ -76,14 +94,66 @@ public class GalileoMessage {
     }
 
     /**
-     * Retrieves the payload for this GalileoMessage.
+     * Constructs a GalileoMessage whose payload occupies the start of a buffer
+     * borrowed from a {@link BufferPool}.  The buffer is returned to the pool
+     * when the message is released.
+     */
+    GalileoMessage(byte[] buffer, int length, MessageContext context,
+            BufferPool pool) {
+        this(buffer, 0, length);
+        this.pool = pool;
+        this.context = context;
+        this.key = context.getSelectionKey();
+    }
+
+    /**
+     * Retrieves the payload for this GalileoMessage.  If the payload occupies
+     * only part of its backing array, a copy is returned; use
+     * {@link #getPayloadArray()}, {@link #getOffset()}, and
+     * {@link #getLength()} to access the payload without copying.
      *
      * @return the GalileoMessage payload
      */
     public byte[] getPayload() {
+        if (offset == 0 && length == payload.length) {
+            return payload;
+        }
+        return Arrays.copyOfRange(payload, offset, offset + length);
+    }
+
+    /**
+     * Retrieves the array backing this message's payload.  The payload starts
+     * at {@link #getOffset()} and spans {@link #getLength()} bytes.
+     */
+    public byte[] getPayloadArray() {
         return payload;
     }
 
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the payload buffer to the pool it was borrowed from, if any.
+     * Should only be called by the single consumer of the message once it has
+     * finished reading the payload (usually right after unwrapping it); the
+     * payload must not be accessed afterward.
+     */
+    public void release() {
+        BufferPool owner = pool;
+        if (owner == null) {
+            return;
+        }
+        pool = null;
+        byte[] buffer = payload;
+        payload = null;
+        owner.release(buffer);
+    }
+
     public MessageContext getContext() {
         return context;
     }
@@ -88,4 +88,39 @@ public class MessageContext {
     throws IOException {
         router.sendMessage(this.key, message);
     }
+
+    /**
+     * Sends a message back to the originator without blocking.
+     *
+     * @return true if the message was queued, false if the connection's write
+     * queue is congested.
+     */
+    public boolean offerMessage(GalileoMessage message)
+    throws IOException {
+        return router.offerMessage(this.key, message);
+    }
+
+    /**
+     * Sends a message assembled from a {@link FileTransfer} back to the
+     * originator; file regions are sent without being copied onto the heap.
+     */
+    public void sendTransfer(FileTransfer transfer)
+    throws IOException {
+        router.sendTransfer(this.key, transfer);
+    }
+
+    /**
+     * Opens a stream for sending a message back to the originator in chunks.
+     * The message is complete once the stream is closed.
+     */
+    public ChunkedOutputStream openStream() {
+        return router.openStream(this.key);
+    }
+
+    /**
+     * Determines whether the connection's write queue is congested.
+     */
+    public boolean isCongested() {
+        return router.isCongested(this.key);
+    }
 }
@@ -38,6 +38,7 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -54,6 +55,13 @@ public abstract class MessageRouter implements Runnable {
     /** The size (in bytes) of the message prefix used in the system. */
     public static final int PREFIX_SZ = Integer.SIZE / Byte.SIZE;
 
+    /** Size (in bytes) of the header of a chunk frame: the negated chunk
+     * size, the stream id, and the chunk flags. */
+    public static final int CHUNK_HEADER_SZ = PREFIX_SZ + 4 + 1;
+
+    /** Chunk flag marking the final chunk of a stream. */
+    protected static final byte LAST_CHUNK = 0x01;
+
     /** The default read buffer size is 8 MB. */
     public static final int DEFAULT_READ_BUFFER_SIZE = 8388608;
 
@@ -63,6 +71,13 @@ public abstract class MessageRouter implements Runnable {
      * resources. */
     public static final int DEFAULT_WRITE_QUEUE_SIZE = 100;
 
+    /** By default, a write queue becomes congested once 32 MB are pending. */
+    public static final long DEFAULT_WRITE_HIGH_WATERMARK = 33554432;
+
+    /** By default, a congested write queue accepts data again once it drains
+     * to 8 MB. */
+    public static final long DEFAULT_WRITE_LOW_WATERMARK = 8388608;
+
     /** System property that overrides the read buffer size. */
     public static final String READ_BUFFER_PROPERTY
         = "galileo.net.MessageRouter.readBufferSize";
@@ -71,17 +86,52 @@ public abstract class MessageRouter implements Runnable {
     public static final String WRITE_QUEUE_PROPERTY
         = "galileo.net.MessageRouter.writeQueueSize";
 
+    /** System property that overrides the write queue high watermark
+     * (bytes). */
+    public static final String WRITE_HIGH_WATERMARK_PROPERTY
+        = "galileo.net.MessageRouter.writeHighWatermark";
+
+    /** System property that overrides the write queue low watermark
+     * (bytes). */
+    public static final String WRITE_LOW_WATERMARK_PROPERTY
+        = "galileo.net.MessageRouter.writeLowWatermark";
+
+    /** Streamed messages are split into 1 MB chunks by default. */
+    public static final int DEFAULT_CHUNK_SIZE = 1048576;
+
+    /** System property that overrides the chunk size (bytes) used by
+     * {@link #openStream(SelectionKey)}. */
+    public static final String CHUNK_SIZE_PROPERTY
+        = "galileo.net.MessageRouter.chunkSize";
+
+    /** System property that limits the memory (in bytes) retained by idle
+     * receive buffers.  Defaults to 64 MB. */
+    public static final String RECEIVE_POOL_PROPERTY
+        = "galileo.net.MessageRouter.receivePoolSize";
+
+    /** Incoming payloads are read into buffers from this pool, shared by all
+     * routers in the process.  Buffers are recycled when consumers release
+     * their messages. */
+    protected static final BufferPool receivePool = new BufferPool(
+            Long.getLong(RECEIVE_POOL_PROPERTY, 64L * 1024 * 1024));
+
     /** Flag used to determine whether the Selector thread should run */
     protected boolean online;
 
     private List<MessageListener> listeners = new ArrayList<>();
+    private List<StreamListener> streamListeners = new ArrayList<>();
 
     protected Selector selector;
 
     protected int readBufferSize;
     protected int writeQueueSize;
+    protected long writeHighWatermark;
+    protected long writeLowWatermark;
+    protected int chunkSize;
     private ByteBuffer readBuffer;
 
+    private AtomicInteger nextStreamId = new AtomicInteger();
+
     protected ConcurrentHashMap<SelectionKey, Integer> changeInterest
         = new ConcurrentHashMap<>();
 
@@ -104,7 +154,21 @@ public abstract class MessageRouter implements Runnable {
             this.writeQueueSize = Integer.parseInt(queueSz);
         }
 
-        readBuffer = ByteBuffer.allocateDirect(this.readBufferSize);
+        this.writeHighWatermark = Long.getLong(WRITE_HIGH_WATERMARK_PROPERTY,
+                DEFAULT_WRITE_HIGH_WATERMARK);
+        this.writeLowWatermark = Long.getLong(WRITE_LOW_WATERMARK_PROPERTY,
+                DEFAULT_WRITE_LOW_WATERMARK);
+        this.chunkSize = Integer.getInteger(CHUNK_SIZE_PROPERTY,
+                DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates the {@link TransmissionTracker} for a new connection, bounded by
+     * this router's write queue limits.
+     */
+    protected TransmissionTracker createTracker() {
+        return new TransmissionTracker(writeQueueSize,
+                writeHighWatermark, writeLowWatermark);
     }
 
     /**
@@ -200,7 +264,7 @@ public abstract class MessageRouter implements Runnable {
         SocketChannel channel = servSocket.accept();
         logger.info("Accepted connection: " + getClientString(channel));
 
-        TransmissionTracker tracker = new TransmissionTracker(writeQueueSize);
+        TransmissionTracker tracker = createTracker();
         channel.configureBlocking(false);
         channel.register(selector, SelectionKey.OP_READ, tracker);
 
@@ -218,12 +282,16 @@ public abstract class MessageRouter implements Runnable {
             SocketChannel channel = (SocketChannel) key.channel();
 
             if (channel.finishConnect()) {
+                /* We are on the selector thread, so the interest set is
+                 * updated directly.  Queueing OP_READ in changeInterest could
+                 * overwrite a write request made concurrently by a sender that
+                 * saw the channel connected. */
                 TransmissionTracker tracker = TransmissionTracker.fromKey(key);
                 if (tracker.hasPendingData() == false) {
-                    changeInterest.put(key, SelectionKey.OP_READ);
+                    key.interestOps(SelectionKey.OP_READ);
                 } else {
                     /* Data has already been queued up; start writing */
-                    changeInterest.put(key,
+                    key.interestOps(
                             SelectionKey.OP_READ | SelectionKey.OP_WRITE);
                 }
             }
@@ -243,6 +311,11 @@ public abstract class MessageRouter implements Runnable {
      */
     protected void read(SelectionKey key) {
         SocketChannel channel = (SocketChannel) key.channel();
+        if (readBuffer == null) {
+            /* Allocated on first use, by the selector thread, so that routers
+             * that never read (such as a pure acceptor) do not hold one. */
+            readBuffer = ByteBuffer.allocateDirect(readBufferSize);
+        }
         readBuffer.clear();
 
         int bytesRead = 0;
@@ -279,40 +352,48 @@ public abstract class MessageRouter implements Runnable {
      */
     protected void processIncomingMessage(SelectionKey key) {
         TransmissionTracker transmission = TransmissionTracker.fromKey(key);
-        if (transmission.expectedBytes == 0) {
-            /* We don't know how much data the client is sending yet.
-             * Read the message prefix to determine the payload size. */
-            boolean ready = readPrefix(readBuffer, transmission);
-
-            /* Check if we have read the payload size prefix yet.  If
-             * not, then we're done for now. */
-            if (ready == false) {
-                return;
+
+        /* Note: this process continues until we reach the end of the buffer.
+         * Not doing so would cause us to lose data. */
+        while (true) {
+            if (transmission.headerRead == false) {
+                /* We don't know how much data the client is sending yet.
+                 * Read the message prefix to determine the payload size. */
+                if (readBuffer.hasRemaining() == false
+                        || readPrefix(readBuffer, transmission,
+                            receivePool) == false) {
+                    return;
+                }
             }
-        }
 
-        int readSize = transmission.expectedBytes - transmission.readPointer;
-        if (readSize > readBuffer.remaining()) {
-            readSize = readBuffer.remaining();
-        }
+            int readSize = transmission.expectedBytes
+                - transmission.readPointer;
+            if (readSize > readBuffer.remaining()) {
+                readSize = readBuffer.remaining();
+            }
 
-        readBuffer.get(transmission.payload,
-                transmission.readPointer, readSize);
-        transmission.readPointer += readSize;
+            readBuffer.get(transmission.payload,
+                    transmission.readPointer, readSize);
+            transmission.readPointer += readSize;
+
+            if (transmission.readPointer < transmission.expectedBytes) {
+                /* The rest of the payload has not arrived yet */
+                return;
+            }
 
-        if (transmission.readPointer == transmission.expectedBytes) {
             /* The payload has been read */
             GalileoMessage msg = new GalileoMessage(
-                    transmission.payload,
-                    new MessageContext(this, key));
-            dispatchMessage(msg);
+                    transmission.payload, transmission.expectedBytes,
+                    new MessageContext(this, key), receivePool);
+            boolean chunked = transmission.chunked;
+            int streamId = transmission.streamId;
+            boolean last = transmission.lastChunk;
             transmission.resetCounters();
 
-            if (readBuffer.hasRemaining()) {
-                /* There is another payload to read */
-                processIncomingMessage(key);
-                /* Note: this process continues until we reach the end of the
-                 * buffer.  Not doing so would cause us to lose data. */
+            if (chunked) {
+                dispatchChunk(streamId, msg, last);
+            } else {
+                dispatchMessage(msg);
             }
         }
     }
@@ -320,70 +401,96 @@ public abstract class MessageRouter implements Runnable {
     /**
      * Read the payload size prefix from a channel.
      * Each message in Galileo is prefixed with a payload size field; this is
-     * read to allocate buffers for the incoming message.
+     * read to allocate buffers for the incoming message.  A negative size
+     * marks a chunk of a streamed message, and is followed by the stream id
+     * and chunk flags.
      *
      * @return true if the payload size has been determined; false otherwise.
      */
     protected static boolean readPrefix(ByteBuffer buffer,
-            TransmissionTracker transmission) {
+            TransmissionTracker transmission, BufferPool pool) {
         /* Make sure the prefix hasn't already been read. */
-        if (transmission.expectedBytes != 0) {
+        if (transmission.headerRead) {
             return true;
         }
 
-        /* Can we determine the payload size in one shot? (we must read at least
-         * PREFIX_SZ bytes) */
-        if (transmission.prefixPointer == 0
-                && buffer.remaining() >= PREFIX_SZ) {
-            transmission.expectedBytes = buffer.getInt();
-            transmission.allocatePayload();
-            return true;
-        } else {
-            /* Keep reading until we have at least PREFIX_SZ bytes to determine
-             * the payload size.  */
-
-            int prefixLeft = PREFIX_SZ - transmission.prefixPointer;
-            if (buffer.remaining() < prefixLeft) {
-                prefixLeft = buffer.remaining();
+        /* Keep reading until we have at least PREFIX_SZ bytes to determine
+         * the payload size, and the rest of the header for chunks.  The header
+         * may span several reads, so its size is derived from what has been
+         * read so far rather than kept between calls. */
+        while (transmission.prefixPointer < headerSize(transmission)) {
+            int headerLeft = headerSize(transmission)
+                - transmission.prefixPointer;
+            if (buffer.remaining() < headerLeft) {
+                headerLeft = buffer.remaining();
+            }
+            if (headerLeft == 0) {
+                return false;
             }
 
             buffer.get(transmission.prefix,
-                    transmission.prefixPointer, prefixLeft);
-            transmission.prefixPointer += prefixLeft;
-
-            if (transmission.prefixPointer >= PREFIX_SZ) {
-                ByteBuffer buf = ByteBuffer.wrap(transmission.prefix);
-                transmission.expectedBytes = buf.getInt();
-                transmission.allocatePayload();
-                return true;
-            }
+                    transmission.prefixPointer, headerLeft);
+            transmission.prefixPointer += headerLeft;
         }
 
-        return false;
+        ByteBuffer header = ByteBuffer.wrap(transmission.prefix);
+        int size = header.getInt();
+        if (size >= 0) {
+            transmission.expectedBytes = size;
+        } else {
+            transmission.chunked = true;
+            transmission.expectedBytes = ~size;
+            transmission.streamId = header.getInt();
+            transmission.lastChunk = (header.get() & LAST_CHUNK) != 0;
+        }
+
+        transmission.headerRead = true;
+        transmission.allocatePayload(pool);
+        return true;
+    }
+
+    /**
+     * Determines the size of the header being read: chunk headers are marked
+     * by a negative size prefix, which is only known once it has been read.
+     */
+    private static int headerSize(TransmissionTracker transmission) {
+        if (transmission.prefixPointer >= PREFIX_SZ
+                && transmission.prefix[0] < 0) {
+            return CHUNK_HEADER_SZ;
+        }
+        return PREFIX_SZ;
     }
 
     /**
-     * Wraps a given message in a {@link ByteBuffer}, including the payload size
-     * prefix.  Data produced by this method will be subsequently read by the
-     * readPrefix() method.
+     * Frames a given message for transmission: the payload size prefix is
+     * followed by the payload itself, which is wrapped rather than copied.
+     * The buffers are written with a single gathering write, and will be
+     * subsequently read by the readPrefix() method.
      */
-    protected static ByteBuffer wrapWithPrefix(GalileoMessage message) {
-        int messageSize = message.getPayload().length;
-        ByteBuffer buffer = ByteBuffer.allocate(messageSize + 4);
-        buffer.putInt(messageSize);
-        buffer.put(message.getPayload());
-        buffer.flip();
-        return buffer;
+    protected static ByteBuffer[] wrapWithPrefix(GalileoMessage message) {
+        int messageSize = message.getLength();
+        ByteBuffer prefix = ByteBuffer.allocate(PREFIX_SZ);
+        prefix.putInt(messageSize);
+        prefix.flip();
+        ByteBuffer payload = ByteBuffer.wrap(message.getPayloadArray(),
+                message.getOffset(), messageSize);
+        return new ByteBuffer[] { prefix, payload };
     }
 
     /**
      * Adds a message to the pending write queue for a particular SelectionKey
-     * and submits a change request for its interest set. Pending data is placed
-     * in a blocking queue, so this function may block to prevent queueing an
-     * excessive amount of data.
+     * and submits a change request for its interest set. If the queue is
+     * congested, this function blocks until it drains to its low watermark to
+     * prevent queueing an excessive amount of data; see
+     * {@link #offerMessage(SelectionKey, GalileoMessage)} for a non-blocking
+     * alternative.
      * <p>
-     * The system property <em>galileo.net.MessageRouter.writeQueueSize</em>
-     * tunes the maximum amount of data that can be queued.
+     * The system properties
+     * <em>galileo.net.MessageRouter.writeHighWatermark</em> and
+     * <em>galileo.net.MessageRouter.writeLowWatermark</em> tune the amount of
+     * data (in bytes) that can be queued, and
+     * <em>galileo.net.MessageRouter.writeQueueSize</em> limits the number of
+     * queued messages.
      *
      * @param key SelectionKey for the channel.
      * @param message GalileoMessage to publish on the channel.
@@ -393,16 +500,33 @@ public abstract class MessageRouter implements Runnable {
     public Transmission sendMessage(SelectionKey key, GalileoMessage message)
     throws IOException {
         //TODO reduce the visibility of this method to protected
+        return queueFrame(key, wrapWithPrefix(message));
+    }
+
+    /**
+     * Adds a framed message (or chunk) to the pending write queue for a
+     * particular SelectionKey, blocking while the queue is congested.
+     */
+    protected Transmission queueFrame(SelectionKey key, ByteBuffer[] frame)
+    throws IOException {
+        return queueTransmission(key, new Transmission(frame));
+    }
+
+    /**
+     * Adds a transmission to the pending write queue for a particular
+     * SelectionKey, blocking while the queue is congested.
+     */
+    protected Transmission queueTransmission(SelectionKey key,
+            Transmission trans)
+    throws IOException {
         if (this.isOnline() == false) {
             throw new IOException("MessageRouter is not online.");
         }
 
         TransmissionTracker tracker = TransmissionTracker.fromKey(key);
-        ByteBuffer payload = wrapWithPrefix(message);
 
-        Transmission trans = null;
         try {
-            tracker.queueOutgoingData(payload);
+            tracker.queueOutgoingData(trans);
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             throw new IOException("Interrupted while waiting to queue data");
@@ -413,6 +537,130 @@ public abstract class MessageRouter implements Runnable {
         return trans;
     }
 
+    /**
+     * Sends a message whose payload is assembled from a {@link FileTransfer}.
+     * File regions in the transfer are written straight from their files to
+     * the channel ({@link java.nio.channels.FileChannel#transferTo}) and are
+     * never copied onto the heap.  The receiver gets a regular message.  The
+     * transfer's files are closed once it has been sent, or if it cannot be
+     * sent.
+     *
+     * @param key SelectionKey for the channel.
+     * @param transfer the message payload.
+     *
+     * @return {@link Transmission} instance representing the send operation.
+     */
+    public Transmission sendTransfer(SelectionKey key, FileTransfer transfer)
+    throws IOException {
+        Transmission trans;
+        try {
+            trans = new Transmission(frameTransfer(transfer));
+        } catch (IOException e) {
+            transfer.release();
+            throw e;
+        }
+
+        try {
+            return queueTransmission(key, trans);
+        } catch (IOException e) {
+            trans.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Frames a {@link FileTransfer} for transmission by prepending the payload
+     * size prefix to its segments.
+     */
+    protected static Object[] frameTransfer(FileTransfer transfer)
+    throws IOException {
+        long size = transfer.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Transfer of " + size + " bytes exceeds the "
+                    + "maximum message size");
+        }
+
+        ByteBuffer prefix = ByteBuffer.allocate(PREFIX_SZ);
+        prefix.putInt((int) size);
+        prefix.flip();
+
+        Object[] segments = transfer.getSegments();
+        Object[] frame = new Object[segments.length + 1];
+        frame[0] = new ByteBuffer[] { prefix };
+        System.arraycopy(segments, 0, frame, 1, segments.length);
+        return frame;
+    }
+
+    /**
+     * Opens a stream for sending a single message in chunks.  Data written to
+     * the stream is framed and queued a chunk at a time, so the complete
+     * message never has to be held in memory; writers block while the
+     * connection's write queue is congested.  The message is complete once
+     * the stream is closed.
+     * <p>
+     * Receivers with a registered {@link StreamListener} are handed each chunk
+     * as it arrives; otherwise, the chunks are reassembled and delivered as a
+     * regular message.  The chunk size is set by the
+     * <em>galileo.net.MessageRouter.chunkSize</em> system property.
+     *
+     * @param key SelectionKey for the channel.
+     */
+    public ChunkedOutputStream openStream(final SelectionKey key) {
+        return new ChunkedOutputStream(nextStreamId(), chunkSize,
+                new ChunkedOutputStream.FrameSink() {
+                    @Override
+                    public void send(ByteBuffer[] frame)
+                    throws IOException {
+                        queueFrame(key, frame);
+                    }
+                });
+    }
+
+    /**
+     * Allocates an identifier for a new outgoing stream.
+     */
+    protected int nextStreamId() {
+        return nextStreamId.incrementAndGet();
+    }
+
+    /**
+     * Adds a message to the pending write queue for a particular SelectionKey
+     * without blocking.  If the queue is congested the message is not queued,
+     * allowing the caller to defer, shed, or reroute the work instead.
+     *
+     * @param key SelectionKey for the channel.
+     * @param message GalileoMessage to publish on the channel.
+     *
+     * @return true if the message was queued, false if the write queue is
+     * congested.
+     */
+    public boolean offerMessage(SelectionKey key, GalileoMessage message)
+    throws IOException {
+        if (this.isOnline() == false) {
+            throw new IOException("MessageRouter is not online.");
+        }
+
+        TransmissionTracker tracker = TransmissionTracker.fromKey(key);
+        Transmission trans
+            = tracker.offerOutgoingData(wrapWithPrefix(message));
+        if (trans == null) {
+            return false;
+        }
+
+        changeInterest.put(key, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        selector.wakeup();
+        return true;
+    }
+
+    /**
+     * Determines whether the write queue for a particular SelectionKey is
+     * congested (over its high watermark, and not yet drained to its low
+     * watermark).
+     */
+    public boolean isCongested(SelectionKey key) {
+        return TransmissionTracker.fromKey(key).isCongested();
+    }
+
     /**
      * When a {@link SelectionKey} is writable, push as much pending data
      * out on the channel as possible.
@@ -425,31 +673,21 @@ public abstract class MessageRouter implements Runnable {
 
         while (tracker.hasPendingData() == true) {
             Transmission trans = tracker.getNextTransmission();
-            ByteBuffer buffer = trans.getPayload();
-            if (buffer == null) {
-                break;
+            try {
+                trans.writeTo(channel);
+            } catch (IOException e) {
+                /* Broken pipe */
+                disconnect(key);
+                return;
             }
 
-            int written = 0;
-            while (buffer.hasRemaining()) {
-                try {
-                    written = channel.write(buffer);
-                } catch (IOException e) {
-                    /* Broken pipe */
-                    disconnect(key);
-                    return;
-                }
-
-                if (buffer.hasRemaining() == false) {
-                    /* Done writing */
-                    tracker.transmissionFinished();
-                }
-
-                if (written == 0) {
-                    /* Return now, to keep our OP_WRITE interest op set. */
-                    return;
-                }
+            if (trans.hasRemaining()) {
+                /* Return now, to keep our OP_WRITE interest op set. */
+                return;
             }
+
+            /* Done writing */
+            tracker.transmissionFinished();
         }
 
         /* At this point, the queue is empty. */
@@ -468,9 +706,28 @@ public abstract class MessageRouter implements Runnable {
         }
 
         SocketChannel channel = (SocketChannel) key.channel();
-        NetworkDestination destination = getDestination(channel);
+        disconnect(key, getDestination(channel));
+    }
+
+    /**
+     * Handle termination of a connection to a known endpoint.  Listeners are
+     * notified even if the key has already been cancelled, as happens when a
+     * connection attempt fails; callers are responsible for invoking this
+     * only once per connection.
+     *
+     * @param key The SelectionKey of the SocketChannel that has disconnected.
+     * @param destination The endpoint reported to listeners.
+     */
+    protected void disconnect(SelectionKey key,
+            NetworkDestination destination) {
         logger.info("Terminating connection: " + destination.toString());
 
+        /* Release any senders waiting on this connection's write queue */
+        TransmissionTracker tracker = TransmissionTracker.fromKey(key);
+        if (tracker != null) {
+            tracker.close();
+        }
+
         try {
             key.cancel();
             key.channel().close();
@@ -492,6 +749,36 @@ public abstract class MessageRouter implements Runnable {
         listeners.add(listener);
     }
 
+    /**
+     * Adds a stream listener to this MessageRouter.  Once a stream listener
+     * is registered, chunks of streamed messages are passed to the stream
+     * listeners as they arrive instead of being reassembled.
+     */
+    public void addStreamListener(StreamListener listener) {
+        streamListeners.add(listener);
+    }
+
+    /**
+     * Dispatches a chunk of a streamed message to the stream listeners, or
+     * reassembles the message if there are none.
+     */
+    protected void dispatchChunk(int streamId, GalileoMessage chunk,
+            boolean last) {
+        if (streamListeners.isEmpty()) {
+            TransmissionTracker tracker = TransmissionTracker.fromKey(
+                    chunk.getContext().getSelectionKey());
+            GalileoMessage message = tracker.appendChunk(streamId, chunk, last);
+            if (message != null) {
+                dispatchMessage(message);
+            }
+            return;
+        }
+
+        for (StreamListener listener : streamListeners) {
+            listener.onChunk(streamId, chunk, last);
+        }
+    }
+
     /**
      * Dispatches a message to all listening consumers.
      *
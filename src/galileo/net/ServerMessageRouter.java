@@ -27,37 +27,158 @@ package galileo.net;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 
 /**
  * Handles message routing on a {@link java.nio.channels.ServerSocketChannel}.
  * This class is useful for components that must accept incoming requests from
  * clients.
+ * <p>
+ * The selector thread of this router only accepts connections.  Accepted
+ * connections are distributed across a pool of I/O selector threads, each with
+ * its own read buffer, that perform all reads, writes, and message framing.
+ * The size of the pool is set by the
+ * <em>galileo.net.ServerMessageRouter.selectorThreads</em> system property; a
+ * value of 0 handles all connections on the accepting thread.
  *
  * @author malensek
  */
 public class ServerMessageRouter extends MessageRouter {
 
+    /** System property that overrides the number of I/O selector threads. */
+    public static final String SELECTOR_THREADS_PROPERTY
+        = "galileo.net.ServerMessageRouter.selectorThreads";
+
+    /** By default, one I/O selector thread is used for every two cores. */
+    public static final int DEFAULT_SELECTOR_THREADS
+        = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
     private Thread selectorThread;
     private Map<Integer, ServerSocketChannel> channels = new HashMap<>();
 
-    public ServerMessageRouter() { }
+    private IOSelector[] ioSelectors;
+    private AtomicInteger nextSelector = new AtomicInteger();
+
+    public ServerMessageRouter() {
+        this(DEFAULT_READ_BUFFER_SIZE, DEFAULT_WRITE_QUEUE_SIZE);
+    }
 
     public ServerMessageRouter(int readBufferSize, int maxWriteQueueSize) {
         super(readBufferSize, maxWriteQueueSize);
+        int threads = Integer.getInteger(SELECTOR_THREADS_PROPERTY,
+                DEFAULT_SELECTOR_THREADS);
+        ioSelectors = new IOSelector[Math.max(0, threads)];
+    }
+
+    /**
+     * Performs reads, writes, and message framing for the connections assigned
+     * to it on a dedicated selector thread.  Messages and connection events
+     * are published through the enclosing ServerMessageRouter's listeners.
+     */
+    private class IOSelector extends MessageRouter {
+
+        private Thread thread;
+        private Queue<SocketChannel> pendingRegistrations
+            = new ConcurrentLinkedQueue<>();
+
+        public IOSelector(int id)
+        throws IOException {
+            super(ServerMessageRouter.this.readBufferSize,
+                    ServerMessageRouter.this.writeQueueSize);
+            this.selector = Selector.open();
+            this.online = true;
+            thread = new Thread(this, "galileo-selector-" + id);
+            thread.start();
+        }
+
+        /**
+         * Hands a newly-accepted connection to this selector.  Registration
+         * is completed on the selector thread.
+         */
+        public void register(SocketChannel channel) {
+            pendingRegistrations.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (online) {
+                try {
+                    processPendingRegistrations();
+                    updateInterestOps();
+                    processSelectionKeys();
+                } catch (ClosedSelectorException e) {
+                    /* Shutting down */
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Error in selector thread", e);
+                }
+            }
+        }
+
+        private void processPendingRegistrations() {
+            SocketChannel channel;
+            while ((channel = pendingRegistrations.poll()) != null) {
+                TransmissionTracker tracker = createTracker();
+                try {
+                    channel.register(selector, SelectionKey.OP_READ, tracker);
+                } catch (ClosedChannelException e) {
+                    logger.log(Level.FINE, "Connection closed before "
+                            + "registration", e);
+                }
+            }
+        }
+
+        public void shutdown()
+        throws IOException {
+            this.online = false;
+            selector.wakeup();
+            selector.close();
+        }
+
+        @Override
+        protected void dispatchMessage(GalileoMessage message) {
+            ServerMessageRouter.this.dispatchMessage(message);
+        }
+
+        @Override
+        protected void dispatchChunk(int streamId, GalileoMessage chunk,
+                boolean last) {
+            ServerMessageRouter.this.dispatchChunk(streamId, chunk, last);
+        }
+
+        @Override
+        protected void dispatchConnect(NetworkDestination endpoint) {
+            ServerMessageRouter.this.dispatchConnect(endpoint);
+        }
+
+        @Override
+        protected void dispatchDisconnect(NetworkDestination endpoint) {
+            ServerMessageRouter.this.dispatchDisconnect(endpoint);
+        }
     }
 
     /**
-     * Initializes (opens) this MessageRouter's {@link Selector} instance.
+     * Initializes (opens) this MessageRouter's {@link Selector} instance, and
+     * starts the I/O selector threads.
      */
     private synchronized void initializeSelector()
     throws IOException {
         if (this.selector == null) {
             this.selector = Selector.open();
+            for (int i = 0; i < ioSelectors.length; ++i) {
+                ioSelectors[i] = new IOSelector(i);
+            }
         }
     }
 
@@ -67,12 +188,105 @@ public class ServerMessageRouter extends MessageRouter {
      */
     private synchronized void startSelectorThread() {
         if (selectorThread == null || this.online == false) {
+            /* Must be set first: the selector loop exits when offline */
+            this.online = true;
             selectorThread = new Thread(this);
             selectorThread.start();
-            this.online = true;
         }
     }
 
+    /**
+     * Accepts a new connection and assigns it to one of the I/O selectors.
+     */
+    @Override
+    protected void accept(SelectionKey key)
+    throws IOException {
+        if (ioSelectors.length == 0) {
+            super.accept(key);
+            return;
+        }
+
+        ServerSocketChannel servSocket = (ServerSocketChannel) key.channel();
+        SocketChannel channel = servSocket.accept();
+        if (channel == null) {
+            return;
+        }
+        logger.info("Accepted connection: " + getClientString(channel));
+
+        channel.configureBlocking(false);
+        int index = Math.floorMod(nextSelector.getAndIncrement(),
+                ioSelectors.length);
+        ioSelectors[index].register(channel);
+
+        dispatchConnect(getDestination(channel));
+    }
+
+    /**
+     * Finds the I/O selector that owns a connection.
+     *
+     * @return the owning IOSelector, or null if the connection is handled by
+     * the accepting thread.
+     */
+    private IOSelector ownerOf(SelectionKey key) {
+        for (IOSelector ioSelector : ioSelectors) {
+            if (ioSelector != null && key.selector() == ioSelector.selector) {
+                return ioSelector;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queues a message on the selector that owns the connection.
+     */
+    @Override
+    public Transmission sendMessage(SelectionKey key, GalileoMessage message)
+    throws IOException {
+        IOSelector owner = ownerOf(key);
+        if (owner != null) {
+            return owner.sendMessage(key, message);
+        }
+        return super.sendMessage(key, message);
+    }
+
+    /**
+     * Offers a message to the selector that owns the connection.
+     */
+    @Override
+    public boolean offerMessage(SelectionKey key, GalileoMessage message)
+    throws IOException {
+        IOSelector owner = ownerOf(key);
+        if (owner != null) {
+            return owner.offerMessage(key, message);
+        }
+        return super.offerMessage(key, message);
+    }
+
+    /**
+     * Queues a file transfer on the selector that owns the connection.
+     */
+    @Override
+    public Transmission sendTransfer(SelectionKey key, FileTransfer transfer)
+    throws IOException {
+        IOSelector owner = ownerOf(key);
+        if (owner != null) {
+            return owner.sendTransfer(key, transfer);
+        }
+        return super.sendTransfer(key, transfer);
+    }
+
+    /**
+     * Opens a stream on the selector that owns the connection.
+     */
+    @Override
+    public ChunkedOutputStream openStream(SelectionKey key) {
+        IOSelector owner = ownerOf(key);
+        if (owner != null) {
+            return owner.openStream(key);
+        }
+        return super.openStream(key);
+    }
+
     /**
      * Initializes the server socket channel for incoming client connections and
      * begins listening for messages.
@@ -103,6 +317,11 @@ public class ServerMessageRouter extends MessageRouter {
         this.online = false;
         selector.wakeup();
         selector.close();
+        for (IOSelector ioSelector : ioSelectors) {
+            if (ioSelector != null) {
+                ioSelector.shutdown();
+            }
+        }
     }
 
     /**
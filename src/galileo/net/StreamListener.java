@@ -0,0 +1,53 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.net;
+
+/**
+ * Interface for classes that consume streamed messages (see
+ * {@link MessageRouter#openStream(java.nio.channels.SelectionKey)}) one chunk
+ * at a time, rather than waiting for the complete message to be reassembled.
+ * Stream listeners are registered with
+ * {@link MessageRouter#addStreamListener(StreamListener)}.
+ */
+public interface StreamListener {
+
+    /**
+     * Called when a chunk of a streamed message has been received.  Chunks of
+     * a stream arrive in order, but may be interleaved with chunks of other
+     * streams and with regular messages on the same connection.  Stream ids
+     * are only unique per connection; use the chunk's
+     * {@link GalileoMessage#getContext()} to tell connections apart.
+     * <p>
+     * As with {@link MessageListener#onMessage(GalileoMessage)}, this method
+     * is invoked by a selector thread and should not block.  The chunk should
+     * be released once its payload has been consumed.
+     *
+     * @param streamId identifier of the stream the chunk belongs to.
+     * @param chunk the chunk's data.
+     * @param last true if this is the final chunk of the stream.
+     */
+    public void onChunk(int streamId, GalileoMessage chunk, boolean last);
+}
@@ -25,7 +25,9 @@ software, even if advised of the possibility of such damage.
 
 package galileo.net;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.LinkedList;
 import java.util.Queue;
 
@@ -48,14 +50,104 @@ public class Transmission {
 
     private Queue<Exception> exceptions = new LinkedList<>();
 
-    private ByteBuffer payload;
+    /* Groups of buffers (ByteBuffer[]) and FileRegions, in order */
+    private Object[] segments;
+    private int segment;
+    private long size;
 
-    protected Transmission(ByteBuffer payload) {
-        this.payload = payload;
+    protected Transmission(ByteBuffer[] payload) {
+        this(new Object[] { payload });
     }
 
-    protected ByteBuffer getPayload() {
-        return payload;
+    protected Transmission(Object[] segments) {
+        this.segments = segments;
+        for (Object part : segments) {
+            if (part instanceof FileRegion) {
+                size += ((FileRegion) part).size();
+            } else {
+                for (ByteBuffer buffer : (ByteBuffer[]) part) {
+                    size += buffer.remaining();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the total number of bytes in this transmission.
+     */
+    protected long getSize() {
+        return size;
+    }
+
+    /**
+     * Writes as much of this transmission's remaining data to a channel as it
+     * will accept.  Buffers are written with gathering writes, and file
+     * regions are transferred directly from their files.
+     *
+     * @return the number of bytes written.
+     */
+    protected long writeTo(SocketChannel channel)
+    throws IOException {
+        long written = 0;
+        while (segment < segments.length) {
+            Object part = segments[segment];
+            boolean done;
+            if (part instanceof FileRegion) {
+                FileRegion region = (FileRegion) part;
+                written += region.transferTo(channel);
+                done = (region.hasRemaining() == false);
+            } else {
+                ByteBuffer[] buffers = (ByteBuffer[]) part;
+                written += channel.write(buffers);
+                done = (hasRemaining(buffers) == false);
+            }
+
+            if (done == false) {
+                /* The channel cannot accept any more data right now */
+                return written;
+            }
+            segment++;
+        }
+        return written;
+    }
+
+    /**
+     * Determines whether any of this transmission's data has yet to be
+     * written.
+     */
+    protected boolean hasRemaining() {
+        for (int i = segment; i < segments.length; ++i) {
+            Object part = segments[i];
+            if (part instanceof FileRegion) {
+                if (((FileRegion) part).hasRemaining()) {
+                    return true;
+                }
+            } else if (hasRemaining((ByteBuffer[]) part)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Closes any files this transmission was sending from.  Called once the
+     * transmission has finished, or when it is abandoned.
+     */
+    protected void release() {
+        for (Object part : segments) {
+            if (part instanceof FileRegion) {
+                FileTransfer.closeRegion((FileRegion) part);
+            }
+        }
     }
 
     /**
@@ -83,6 +175,7 @@ public class Transmission {
      * waiting threads.
      */
     protected void setFinished() {
+        release();
         synchronized (lock) {
             finished = true;
             lock.notifyAll();
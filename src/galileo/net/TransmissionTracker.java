@@ -25,11 +25,15 @@ software, even if advised of the possibility of such damage.
 
 package galileo.net;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Tracks transmission processing operations; helps convert TCP streams into
@@ -40,13 +44,38 @@ import java.util.concurrent.BlockingQueue;
  */
 class TransmissionTracker {
 
-    private BlockingQueue<Transmission> pendingTransmissions;
+    private Queue<Transmission> pendingTransmissions
+        = new ConcurrentLinkedQueue<>();
+
+    /* Outgoing queue accounting, guarded by this tracker's monitor.  Once the
+     * queue reaches the high watermark (or the item limit) it is congested
+     * until it drains to the low watermark. */
+    private final int maxItems;
+    private final long highWatermark;
+    private final long lowWatermark;
+    private long queuedBytes;
+    private int queuedItems;
+    private boolean congested;
+    private boolean closed;
 
     /** Read pointer for the message size prefix */
     public int prefixPointer;
 
-    /** Array to store payload size prefix information */
-    public byte[] prefix = new byte[4];
+    /** Array to store payload size prefix information (and, for chunk
+     * frames, the stream header that follows it) */
+    public byte[] prefix = new byte[MessageRouter.CHUNK_HEADER_SZ];
+
+    /** Whether the prefix of the current frame has been read */
+    public boolean headerRead;
+
+    /** Whether the current frame is one chunk of a streamed message */
+    public boolean chunked;
+
+    /** Stream the current chunk belongs to */
+    public int streamId;
+
+    /** Whether the current chunk is the final part of its stream */
+    public boolean lastChunk;
 
     /** Read pointer for the message payload */
     public int readPointer;
@@ -57,35 +86,172 @@ class TransmissionTracker {
     /** The size of the complete payload in bytes */
     public int expectedBytes;
 
-    public TransmissionTracker(int writeQueueSize) {
-        pendingTransmissions = new ArrayBlockingQueue<>(writeQueueSize);
+    /** Streams that are being reassembled, by stream id */
+    private Map<Integer, StreamBuffer> incompleteStreams;
+
+    /**
+     * @param maxItems maximum number of queued outgoing messages
+     * @param highWatermark queued byte count at which the queue becomes
+     * congested
+     * @param lowWatermark queued byte count at which a congested queue
+     * accepts messages again
+     */
+    public TransmissionTracker(int maxItems, long highWatermark,
+            long lowWatermark) {
+        this.maxItems = maxItems;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = Math.min(lowWatermark, highWatermark);
     }
 
     /**
      * Allocates a buffer for the incoming payload once the message size prefix
-     * has been read.
+     * has been read.  The buffer may be larger than the payload.
      */
-    public void allocatePayload() {
-        payload = new byte[expectedBytes];
+    public void allocatePayload(BufferPool pool) {
+        payload = pool.acquire(expectedBytes);
     }
 
     /**
      * Restores the TransmissionTracker to its original state, ready to process
-     * another message from a stream.
+     * another message from a stream.  The payload buffer now belongs to the
+     * message that was read into it.
      */
     public void resetCounters() {
         prefixPointer = 0;
         readPointer = 0;
         expectedBytes = 0;
+        payload = null;
+        headerRead = false;
+        chunked = false;
+    }
+
+    /**
+     * Appends a chunk to the stream it belongs to, for consumers that are not
+     * interested in individual chunks.  The chunk is released once copied.
+     * Only accessed by the selector thread.
+     *
+     * @return the reassembled message once the last chunk has been appended,
+     * otherwise null.
+     */
+    public GalileoMessage appendChunk(int streamId, GalileoMessage chunk,
+            boolean last) {
+        if (incompleteStreams == null) {
+            incompleteStreams = new HashMap<>();
+        }
+
+        StreamBuffer buffer = incompleteStreams.get(streamId);
+        if (buffer == null) {
+            if (last) {
+                /* Single-chunk stream; no copy needed */
+                return chunk;
+            }
+            buffer = new StreamBuffer(Math.max(chunk.getLength(), 32));
+            incompleteStreams.put(streamId, buffer);
+        }
+
+        buffer.write(chunk.getPayloadArray(), chunk.getOffset(),
+                chunk.getLength());
+        chunk.release();
+
+        if (last == false) {
+            return null;
+        }
+
+        incompleteStreams.remove(streamId);
+        return new GalileoMessage(buffer.array(), buffer.size(),
+                chunk.getContext(), null);
     }
 
-    public Transmission queueOutgoingData(ByteBuffer payload)
-    throws InterruptedException {
-        Transmission trans = new Transmission(payload);
-        pendingTransmissions.put(trans);
+    /**
+     * Growable buffer that hands over its backing array instead of copying
+     * it.
+     */
+    private static class StreamBuffer extends ByteArrayOutputStream {
+        public StreamBuffer(int size) {
+            super(size);
+        }
+
+        public byte[] array() {
+            return buf;
+        }
+    }
+
+    /**
+     * Queues outgoing data, waiting while the queue is congested.
+     *
+     * @throws IOException if the connection is closed.
+     */
+    public Transmission queueOutgoingData(ByteBuffer[] payload)
+    throws IOException, InterruptedException {
+        return queueOutgoingData(new Transmission(payload));
+    }
+
+    /**
+     * Queues a transmission, waiting while the queue is congested.
+     *
+     * @throws IOException if the connection is closed.
+     */
+    public synchronized Transmission queueOutgoingData(Transmission trans)
+    throws IOException, InterruptedException {
+        while (congested && closed == false) {
+            wait();
+        }
+        return enqueue(trans);
+    }
+
+    /**
+     * Queues outgoing data unless the queue is congested.  A single message
+     * larger than the high watermark is accepted as long as the queue is not
+     * already congested.
+     *
+     * @return the Transmission, or null if the queue is congested.
+     * @throws IOException if the connection is closed.
+     */
+    public synchronized Transmission offerOutgoingData(ByteBuffer[] payload)
+    throws IOException {
+        if (congested && closed == false) {
+            return null;
+        }
+        return enqueue(new Transmission(payload));
+    }
+
+    private Transmission enqueue(Transmission trans)
+    throws IOException {
+        if (closed) {
+            throw new IOException("Connection closed");
+        }
+
+        pendingTransmissions.add(trans);
+        queuedBytes += trans.getSize();
+        queuedItems++;
+        if (queuedBytes >= highWatermark || queuedItems >= maxItems) {
+            congested = true;
+        }
         return trans;
     }
 
+    /**
+     * Determines whether the outgoing queue is over its high watermark and
+     * has not yet drained to the low watermark.
+     */
+    public synchronized boolean isCongested() {
+        return congested;
+    }
+
+    /**
+     * Marks the connection as closed.  Threads waiting to queue data are
+     * released, and further attempts to queue data fail.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+
+        /* Pending transmissions will never be sent */
+        for (Transmission trans : pendingTransmissions) {
+            trans.release();
+        }
+    }
+
     /**
      * Determines whether the SocketChannel associated with this
      * TransmissionTracker has pending transmissions.
@@ -110,6 +276,15 @@ class TransmissionTracker {
      */
     public void transmissionFinished() {
         Transmission trans = pendingTransmissions.remove();
+        synchronized (this) {
+            queuedBytes -= trans.getSize();
+            queuedItems--;
+            if (congested && queuedBytes <= lowWatermark
+                    && queuedItems < maxItems) {
+                congested = false;
+                notifyAll();
+            }
+        }
         trans.setFinished();
     }
 
@@ -74,14 +74,14 @@ public class Expression implements ByteSerializable {
     @Deserialize
     public Expression(SerializationInputStream in)
     throws IOException, SerializationException {
-        operator = Operator.fromInt(in.readInt());
+        operator = Operator.fromInt(in.readCompactInt());
         value = new Feature(in);
     }
 
     @Override
     public void serialize(SerializationOutputStream out)
     throws IOException {
-        out.writeInt(operator.toInt());
+        out.writeCompactInt(operator.toInt());
         out.writeSerializable(value);
     }
 }
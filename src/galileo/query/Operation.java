@@ -117,7 +117,7 @@ public class Operation implements ByteSerializable {
     @Deserialize
     public Operation(SerializationInputStream in)
     throws IOException, SerializationException {
-        int numExpressions = in.readInt();
+        int numExpressions = in.readLength();
         for (int i = 0; i < numExpressions; ++i) {
             Expression exp = new Expression(in);
             addExpressions(exp);
@@ -0,0 +1,185 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.serialization;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An unsynchronized OutputStream that writes to a heap {@link ByteBuffer},
+ * growing it as necessary.  Streams are usually obtained with
+ * {@link #acquire(int)}: if the size of the data is known (see
+ * {@link ByteSerializable#serializedSizeHint()}), the buffer is allocated at
+ * that size up front, and a correct hint allows {@link #toByteArray()} to hand
+ * over the buffer without copying it.  Otherwise, a buffer that belongs to the
+ * calling thread is reused, so serialization does not have to grow a new
+ * buffer each time.
+ */
+public class ByteBufferOutputStream extends OutputStream {
+
+    /** Initial size of per-thread buffers. */
+    private static final int SCRATCH_SIZE = 8192;
+
+    /** Per-thread buffers that have grown beyond this size are not kept. */
+    private static final int MAX_SCRATCH_SIZE = 1048576;
+
+    private static final ThreadLocal<ByteBufferOutputStream> scratch
+        = new ThreadLocal<>();
+
+    private ByteBuffer buffer;
+    private boolean shared;
+
+    public ByteBufferOutputStream(int initialCapacity) {
+        this(ByteBuffer.allocate(Math.max(0, initialCapacity)));
+    }
+
+    /**
+     * Creates a stream that writes to the given array-backed buffer, starting
+     * at its current position.  If the buffer fills up, its contents are moved
+     * to a larger buffer.
+     */
+    public ByteBufferOutputStream(ByteBuffer buffer) {
+        if (buffer.hasArray() == false) {
+            throw new IllegalArgumentException("Buffer must be array-backed");
+        }
+        this.buffer = buffer;
+    }
+
+    /**
+     * Obtains a stream for writing approximately sizeHint bytes.
+     *
+     * @param sizeHint expected number of bytes, or a negative value if
+     * unknown.
+     */
+    public static ByteBufferOutputStream acquire(int sizeHint) {
+        if (sizeHint >= 0) {
+            return new ByteBufferOutputStream(sizeHint);
+        }
+
+        ByteBufferOutputStream stream = scratch.get();
+        if (stream == null) {
+            stream = new ByteBufferOutputStream(SCRATCH_SIZE);
+            stream.shared = true;
+        } else {
+            /* Not available to nested users until it is released */
+            scratch.set(null);
+        }
+        return stream;
+    }
+
+    /**
+     * Returns a stream obtained from {@link #acquire(int)} once its contents
+     * are no longer needed.
+     */
+    public void release() {
+        if (shared && buffer.capacity() <= MAX_SCRATCH_SIZE) {
+            buffer.clear();
+            scratch.set(this);
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(1);
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        buffer.put(b, off, len);
+    }
+
+    private void ensureCapacity(int length) {
+        if (buffer.remaining() >= length) {
+            return;
+        }
+
+        long required = (long) buffer.position() + length;
+        if (required > Integer.MAX_VALUE) {
+            throw new OutOfMemoryError("Serialized form is too large");
+        }
+        int capacity = (int) Math.max(required,
+                Math.min((long) buffer.capacity() * 2, Integer.MAX_VALUE));
+
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+
+    /**
+     * @return the number of bytes written to the stream.
+     */
+    public int size() {
+        return buffer.position();
+    }
+
+    /**
+     * Retrieves the array backing this stream.  The data written to the
+     * stream begins at {@link #arrayOffset()} and spans {@link #size()}
+     * bytes.
+     */
+    public byte[] array() {
+        return buffer.array();
+    }
+
+    public int arrayOffset() {
+        return buffer.arrayOffset();
+    }
+
+    /**
+     * @return a read-only view of the data written to the stream.
+     */
+    public ByteBuffer toByteBuffer() {
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.flip();
+        return view;
+    }
+
+    /**
+     * Retrieves the data written to the stream.  If the data fills the
+     * stream's own buffer exactly, the buffer is returned without copying and
+     * must not be written to again.
+     */
+    public byte[] toByteArray() {
+        byte[] array = buffer.array();
+        int offset = buffer.arrayOffset();
+        if (shared == false && offset == 0
+                && buffer.position() == array.length) {
+            return array;
+        }
+        return Arrays.copyOfRange(array, offset, offset + buffer.position());
+    }
+
+    /**
+     * Discards the data written to the stream.
+     */
+    public void reset() {
+        buffer.clear();
+    }
+}
@@ -52,6 +52,18 @@ public interface ByteSerializable {
     @Documented
     public @interface Deserialize { }
 
+    /**
+     * Marks types whose legacy serialized form begins with a length, count,
+     * string, boolean, or enum value, and therefore never with a negative
+     * int.  Only these types are written with (and checked for)
+     * {@link Serializer}'s compact header, since the header can not be
+     * distinguished from a leading raw number.
+     */
+    @Target(ElementType.TYPE)
+    @Retention(RetentionPolicy.RUNTIME)
+    @Documented
+    public @interface LengthPrefixed { }
+
     /**
      * Serializes this object to binary form by passing it through a
      * serialization stream.
@@ -59,4 +71,17 @@ public interface ByteSerializable {
      * @param out stream to serialize to.
      */
     public void serialize(SerializationOutputStream out) throws IOException;
+
+    /**
+     * Estimates the size of this object's serialized form (in bytes), which
+     * allows serialization buffers to be allocated at the right size up front
+     * instead of being grown and copied.  The estimate does not need to be
+     * exact, but an exact value lets the serialized form be used without an
+     * extra copy.
+     *
+     * @return the expected serialized size, or -1 if unknown (the default).
+     */
+    public default int serializedSizeHint() {
+        return -1;
+    }
 }
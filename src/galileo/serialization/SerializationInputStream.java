@@ -29,14 +29,150 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.zip.GZIPInputStream;
 
 public class SerializationInputStream extends DataInputStream {
 
+    private boolean compact;
+    private List<String> names;
+
     public SerializationInputStream(InputStream in) {
+        this(in, false);
+    }
+
+    /**
+     * Creates a SerializationInputStream that optionally reads the compact
+     * encoding produced by a {@link SerializationOutputStream} in compact
+     * mode.
+     *
+     * @param in stream to read from
+     * @param compact true if the stream uses the compact encoding
+     */
+    public SerializationInputStream(InputStream in, boolean compact) {
         super(in);
+        this.compact = compact;
+    }
+
+    /**
+     * Creates a SerializationInputStream that reads the remaining bytes of a
+     * buffer directly, without copying or buffering them.
+     */
+    public SerializationInputStream(ByteBuffer buffer) {
+        this(buffer, false);
+    }
+
+    /**
+     * Creates a SerializationInputStream that reads the remaining bytes of a
+     * buffer directly, optionally using the compact encoding.
+     */
+    public SerializationInputStream(ByteBuffer buffer, boolean compact) {
+        this(new ByteBufferInputStream(buffer), compact);
+    }
+
+    /**
+     * @return true if this stream reads the compact encoding.
+     */
+    public boolean isCompact() {
+        return compact;
+    }
+
+    /**
+     * Reads a signed integer written by
+     * {@link SerializationOutputStream#writeCompactInt(int)}.
+     */
+    public int readCompactInt()
+    throws IOException {
+        if (compact == false) {
+            return readInt();
+        }
+
+        long value = readVarLong(5);
+        if ((value >>> 32) != 0) {
+            throw new IOException("Malformed variable-length integer");
+        }
+        int zigzag = (int) value;
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    /**
+     * Reads a signed long written by
+     * {@link SerializationOutputStream#writeCompactLong(long)}.
+     */
+    public long readCompactLong()
+    throws IOException {
+        if (compact == false) {
+            return readLong();
+        }
+
+        long zigzag = readVarLong(10);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    /**
+     * Reads a length or element count written by
+     * {@link SerializationOutputStream#writeLength(int)}.
+     */
+    public int readLength()
+    throws IOException {
+        int length;
+        if (compact) {
+            long value = readVarLong(5);
+            if (value > Integer.MAX_VALUE) {
+                throw new IOException("Malformed length: " + value);
+            }
+            length = (int) value;
+        } else {
+            length = readInt();
+        }
+        return length;
+    }
+
+    /**
+     * Reads a name written by
+     * {@link SerializationOutputStream#writeName(String)}.
+     */
+    public String readName()
+    throws IOException {
+        if (compact == false) {
+            return readString();
+        }
+
+        if (names == null) {
+            names = new ArrayList<>();
+        }
+
+        int id = readLength();
+        if (id == 0) {
+            String name = readString();
+            names.add(name);
+            return name;
+        }
+
+        if (id > names.size()) {
+            throw new IOException("Reference to unknown name: " + id);
+        }
+        return names.get(id - 1);
+    }
+
+    /**
+     * Reads an unsigned variable-length integer of at most maxBytes bytes.
+     */
+    private long readVarLong(int maxBytes)
+    throws IOException {
+        long value = 0;
+        for (int i = 0; i < maxBytes; ++i) {
+            int b = readUnsignedByte();
+            value |= (long) (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable-length integer");
     }
 
     public String readString()
@@ -47,9 +183,9 @@ public class SerializationInputStream extends DataInputStream {
 
     public byte[] readField()
     throws IOException {
-        int dataSize = readInt();
+        int dataSize = readLength();
         byte[] data = new byte[dataSize];
-        read(data);
+        readFully(data);
         return data;
     }
 
@@ -59,7 +195,7 @@ public class SerializationInputStream extends DataInputStream {
         boolean compressed = readBoolean();
 
         if (compressed) {
-            int dataSize = readInt();
+            int dataSize = readLength();
 
             GZIPInputStream gIn = new GZIPInputStream(this);
             ByteArrayOutputStream outStream = new ByteArrayOutputStream();
@@ -80,7 +216,7 @@ public class SerializationInputStream extends DataInputStream {
     public <T extends ByteSerializable> void readSerializableCollection(
             Class<T> type, Collection<T> collection)
     throws IOException, SerializationException {
-        int size = readInt();
+        int size = readLength();
         for (int i = 0; i < size; ++i) {
             T obj = Serializer.deserializeFromStream(type, this);
             collection.add(obj);
@@ -89,7 +225,7 @@ public class SerializationInputStream extends DataInputStream {
 
     public void readStringCollection(Collection<String> collection)
     throws IOException {
-        int size = readInt();
+        int size = readLength();
         for (int i = 0; i < size; ++i) {
             String str = readString();
             collection.add(str);
@@ -97,7 +233,7 @@ public class SerializationInputStream extends DataInputStream {
     }
     
     public void readStringMap(Map<String, String> map) throws IOException{
-    	int size = readInt();
+    	int size = readLength();
     	for (int i = 0; i < size; ++i) {
             String key = readString();
             String value = readString();
@@ -108,7 +244,7 @@ public class SerializationInputStream extends DataInputStream {
     public <T extends ByteSerializable> void readSimpleMap(Class<T> type,
             SimpleMap<?, T> map)
     throws IOException, SerializationException {
-        int size = readInt();
+        int size = readLength();
         for (int i = 0; i < size; ++i) {
             T obj = Serializer.deserializeFromStream(type, this);
             map.put(obj);
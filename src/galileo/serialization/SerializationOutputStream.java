@@ -30,6 +30,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.zip.Deflater;
 import java.util.zip.GZIPOutputStream;
@@ -38,8 +39,124 @@ public class SerializationOutputStream extends DataOutputStream {
 
     private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
 
+    private boolean compact;
+    private Map<String, Integer> names;
+    private byte[] varIntBuffer;
+
     public SerializationOutputStream(OutputStream out) {
+        this(out, false);
+    }
+
+    /**
+     * Creates a SerializationOutputStream that optionally uses the compact
+     * encoding: integers and lengths written through
+     * {@link #writeCompactInt(int)}, {@link #writeCompactLong(long)}, and
+     * {@link #writeLength(int)} are stored as variable-length (zigzag)
+     * integers, and names written with {@link #writeName(String)} are only
+     * spelled out the first time they appear.  The compact form must be read
+     * back by a {@link SerializationInputStream} created in compact mode.
+     *
+     * @param out stream to write to
+     * @param compact true to use the compact encoding
+     */
+    public SerializationOutputStream(OutputStream out, boolean compact) {
         super(out);
+        this.compact = compact;
+    }
+
+    /**
+     * @return true if this stream uses the compact encoding.
+     */
+    public boolean isCompact() {
+        return compact;
+    }
+
+    /**
+     * Writes a signed integer.  In compact mode, the value is zigzag-encoded
+     * so that small magnitudes (positive or negative) occupy one or two
+     * bytes; otherwise it is written as a fixed four-byte int.
+     */
+    public void writeCompactInt(int value)
+    throws IOException {
+        if (compact) {
+            writeVarLong(((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+        } else {
+            writeInt(value);
+        }
+    }
+
+    /**
+     * Writes a signed long.  In compact mode, the value is zigzag-encoded;
+     * otherwise it is written as a fixed eight-byte long.
+     */
+    public void writeCompactLong(long value)
+    throws IOException {
+        if (compact) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        } else {
+            writeLong(value);
+        }
+    }
+
+    /**
+     * Writes a length or element count, which is never negative.  In compact
+     * mode this is an unsigned variable-length integer; otherwise it is a
+     * fixed four-byte int.
+     */
+    public void writeLength(int length)
+    throws IOException {
+        if (compact) {
+            writeVarLong(length & 0xFFFFFFFFL);
+        } else {
+            writeInt(length);
+        }
+    }
+
+    /**
+     * Writes a name that is likely to be repeated within the stream, such as
+     * a Feature name.  In compact mode, each distinct name is written once
+     * and later occurrences refer back to it; otherwise this is equivalent to
+     * {@link #writeString(String)}.
+     */
+    public void writeName(String name)
+    throws IOException {
+        if (compact == false) {
+            writeString(name);
+            return;
+        }
+
+        if (names == null) {
+            names = new HashMap<>();
+        }
+
+        Integer id = names.get(name);
+        if (id != null) {
+            writeLength(id + 1);
+        } else {
+            writeLength(0);
+            writeString(name);
+            names.put(name, names.size());
+        }
+    }
+
+    /**
+     * Writes an unsigned variable-length integer: seven bits per byte, least
+     * significant group first, with the high bit set on all but the last
+     * byte.
+     */
+    private void writeVarLong(long value)
+    throws IOException {
+        if (varIntBuffer == null) {
+            varIntBuffer = new byte[10];
+        }
+
+        int length = 0;
+        while ((value & ~0x7FL) != 0) {
+            varIntBuffer[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        varIntBuffer[length++] = (byte) value;
+        write(varIntBuffer, 0, length);
     }
 
     /**
@@ -63,7 +180,7 @@ public class SerializationOutputStream extends DataOutputStream {
      */
     public void writeField(byte[] field)
     throws IOException {
-        writeInt(field.length);
+        writeLength(field.length);
         write(field);
     }
 
@@ -104,7 +221,7 @@ public class SerializationOutputStream extends DataOutputStream {
     public void writeSerializableCollection(
             Collection<? extends ByteSerializable> object)
     throws IOException {
-        writeInt(object.size());
+        writeLength(object.size());
         for (ByteSerializable item : object) {
             writeSerializable(item);
         }
@@ -112,14 +229,14 @@ public class SerializationOutputStream extends DataOutputStream {
 
     public void writeStringCollection(Collection<String> collection)
     throws IOException {
-        writeInt(collection.size());
+        writeLength(collection.size());
         for (String str : collection) {
             writeString(str);
         }
     }
     
     public void writeStringMap(Map<String, String> map) throws IOException{
-    	writeInt(map.size());
+    	writeLength(map.size());
     	for(String key : map.keySet()) {
     		writeString(key);
     		writeString(map.get(key));
@@ -128,7 +245,7 @@ public class SerializationOutputStream extends DataOutputStream {
 
     public void writeSimpleMap(SimpleMap<?, ? extends ByteSerializable> map)
     throws IOException {
-        writeInt(map.size());
+        writeLength(map.size());
         for (ByteSerializable item : map.values()) {
             writeSerializable(item);
         }
@@ -27,13 +27,16 @@ package galileo.serialization;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Constructor;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
 
 /**
  * This class provides convenience functions to make the Serialization and
@@ -44,6 +47,119 @@ import java.lang.reflect.Constructor;
  */
 public class Serializer {
 
+    /** System property that enables the compact encoding (see
+     * {@link SerializationOutputStream#SerializationOutputStream(
+     * java.io.OutputStream, boolean)}) for newly serialized objects,
+     * journal records, and network messages.  Data in either format can be
+     * read regardless of this setting.  Objects are only written in the
+     * compact form if their type is marked
+     * {@link ByteSerializable.LengthPrefixed}. */
+    public static final String COMPACT_PROPERTY
+        = "galileo.serialization.Serializer.compact";
+
+    /**
+     * Precedes the compact binary form of objects produced by this class.
+     * The legacy form of a {@link ByteSerializable.LengthPrefixed} type
+     * begins with a length, count, or similar value that can not take on
+     * this (negative) value, so the two forms can be told apart when
+     * reading.  Types that begin with a raw value, such as
+     * IntegerFeatureData or Coordinates, could begin with the header in
+     * their legacy form, so they are always written and read in that form.
+     */
+    static final int COMPACT_HEADER = 0xC0DE0C01;
+
+    private static final boolean compactDefault
+        = Boolean.getBoolean(COMPACT_PROPERTY);
+
+    /**
+     * Determines whether the compact and legacy forms of a type can be told
+     * apart by {@link #COMPACT_HEADER}.
+     */
+    static boolean detectsFormat(Class<?> type) {
+        return type.isAnnotationPresent(ByteSerializable.LengthPrefixed.class);
+    }
+
+    /**
+     * Creates a new object instance from a SerializationInputStream.
+     */
+    interface ObjectFactory {
+        Object create(SerializationInputStream in)
+        throws Exception;
+    }
+
+    private static final MethodType FACTORY_TYPE
+        = MethodType.methodType(Object.class, SerializationInputStream.class);
+
+    /**
+     * Deserialization constructors, resolved once per class.  Looking up and
+     * reflectively invoking the constructor for every object (including every
+     * nested Feature) was a significant portion of the per-message cost.
+     */
+    private static final ClassValue<ObjectFactory> factories
+        = new ClassValue<ObjectFactory>() {
+            @Override
+            protected ObjectFactory computeValue(Class<?> type) {
+                try {
+                    return createFactory(type);
+                } catch (Throwable t) {
+                    final Throwable cause = t;
+                    return new ObjectFactory() {
+                        @Override
+                        public Object create(SerializationInputStream in)
+                        throws Exception {
+                            throw new SerializationException("No usable "
+                                    + "deserialization constructor in "
+                                    + type.getName(), cause);
+                        }
+                    };
+                }
+            }
+        };
+
+    /**
+     * Builds an {@link ObjectFactory} for the SerializationInputStream
+     * constructor of the given type.  A generated factory (as used for lambda
+     * expressions) is preferred; if the type cannot be linked that way, a
+     * MethodHandle is used instead.
+     */
+    private static ObjectFactory createFactory(Class<?> type)
+    throws Throwable {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        final MethodHandle constructor = lookup.unreflectConstructor(
+                type.getConstructor(SerializationInputStream.class));
+
+        try {
+            CallSite site = LambdaMetafactory.metafactory(lookup, "create",
+                    MethodType.methodType(ObjectFactory.class),
+                    FACTORY_TYPE, constructor, constructor.type());
+            return (ObjectFactory) site.getTarget().invokeExact();
+        } catch (Throwable t) {
+            final MethodHandle handle = constructor.asType(FACTORY_TYPE);
+            return new ObjectFactory() {
+                @Override
+                public Object create(SerializationInputStream in)
+                throws Exception {
+                    try {
+                        return handle.invokeExact(in);
+                    } catch (Exception | Error e) {
+                        throw e;
+                    } catch (Throwable e) {
+                        throw new SerializationException(
+                                "Could not instantiate object.", e);
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Determines whether the compact encoding is used by default, as
+     * configured by {@link #COMPACT_PROPERTY}.
+     */
+    public static boolean useCompactFormat() {
+        return compactDefault;
+    }
+
     /**
      * Dumps a ByteSerializable object to a portable byte array.
      *
@@ -53,15 +169,38 @@ public class Serializer {
      */
     public static byte[] serialize(ByteSerializable obj)
     throws IOException {
-        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-        BufferedOutputStream buffOut = new BufferedOutputStream(byteOut);
+        return serialize(obj, compactDefault);
+    }
 
-        SerializationOutputStream serialOut =
-            new SerializationOutputStream(buffOut);
+    /**
+     * Dumps a ByteSerializable object to a portable byte array, optionally
+     * using the compact encoding.  Either form can be loaded with
+     * {@link #deserialize(Class, byte[])}.  The compact encoding is only
+     * used for {@link ByteSerializable.LengthPrefixed} types.
+     *
+     * @param obj The ByteSerializable object to serialize.
+     * @param compact true to use the compact encoding.
+     *
+     * @return binary byte array representation of the object.
+     */
+    public static byte[] serialize(ByteSerializable obj, boolean compact)
+    throws IOException {
+        compact = compact && detectsFormat(obj.getClass());
+        ByteBufferOutputStream byteOut = ByteBufferOutputStream.acquire(
+                compact ? -1 : obj.serializedSizeHint());
+        try {
+            SerializationOutputStream serialOut =
+                new SerializationOutputStream(byteOut, compact);
 
-        serialOut.writeSerializable(obj);
-        serialOut.close();
-        return byteOut.toByteArray();
+            if (compact) {
+                serialOut.writeInt(COMPACT_HEADER);
+            }
+            serialOut.writeSerializable(obj);
+            serialOut.flush();
+            return byteOut.toByteArray();
+        } finally {
+            byteOut.release();
+        }
     }
 
     /**
@@ -76,11 +215,14 @@ public class Serializer {
     public static <T extends ByteSerializable> T
         deserialize(Class<T> type, byte[] bytes)
     throws IOException, SerializationException {
-        ByteArrayInputStream byteIn = new ByteArrayInputStream(bytes);
-        BufferedInputStream buffIn = new BufferedInputStream(byteIn);
-
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        boolean compact = detectsFormat(type) && bytes.length >= 4
+            && buffer.getInt(0) == COMPACT_HEADER;
+        if (compact) {
+            buffer.position(4);
+        }
         SerializationInputStream serialIn =
-            new SerializationInputStream(buffIn);
+            new SerializationInputStream(buffer, compact);
 
         T obj = deserialize(type, serialIn);
         serialIn.close();
@@ -104,23 +246,20 @@ public class Serializer {
     private static <T extends ByteSerializable> T deserialize(Class<T> type,
             SerializationInputStream in)
     throws IOException, SerializationException {
-        /* ABANDON HOPE, ALL YE WHO ENTER HERE... */
-        T obj = null;
+        Object obj;
         try {
-            Constructor<T> constructor =
-                type.getConstructor(SerializationInputStream.class);
-            obj = constructor.newInstance(in);
+            obj = factories.get(type).create(in);
+        } catch (IOException | SerializationException e) {
+            throw e;
         } catch (Exception e) {
             /* We compress the myriad of possible exceptions that could occur
              * here down to a single exception (SerializationException) to
-             * simplify implementations.  However, if the current log level
-             * permits, we also embed more information in the exception detail
-             * message. */
+             * simplify implementations. */
             throw new SerializationException("Could not instantiate object "
                     + "for deserialization.", e);
         }
 
-        return obj;
+        return type.cast(obj);
     }
 
     /**
@@ -151,7 +290,12 @@ public class Serializer {
     throws IOException {
         FileOutputStream fOs = new FileOutputStream(file);
         BufferedOutputStream bOs = new BufferedOutputStream(fOs);
-        SerializationOutputStream sOs = new SerializationOutputStream(bOs);
+        boolean compact = compactDefault && detectsFormat(obj.getClass());
+        SerializationOutputStream sOs
+            = new SerializationOutputStream(bOs, compact);
+        if (compact) {
+            sOs.writeInt(COMPACT_HEADER);
+        }
         sOs.writeSerializable(obj);
         sOs.close();
     }
@@ -184,13 +328,39 @@ public class Serializer {
     throws IOException, SerializationException {
         FileInputStream fIn = new FileInputStream(inFile);
         BufferedInputStream bIn = new BufferedInputStream(fIn);
-        SerializationInputStream sIn = new SerializationInputStream(bIn);
+        SerializationInputStream sIn = new SerializationInputStream(bIn,
+                detectsFormat(type) && hasCompactHeader(bIn));
         T obj = deserializeFromStream(type, sIn);
         sIn.close();
 
         return obj;
     }
 
+    /**
+     * Checks whether a stream begins with {@link #COMPACT_HEADER}.  The
+     * header is consumed if present; otherwise the stream is left where it
+     * was.
+     */
+    private static boolean hasCompactHeader(BufferedInputStream in)
+    throws IOException {
+        in.mark(4);
+        int header = 0;
+        for (int i = 0; i < 4; ++i) {
+            int b = in.read();
+            if (b < 0) {
+                in.reset();
+                return false;
+            }
+            header = (header << 8) | b;
+        }
+
+        if (header == COMPACT_HEADER) {
+            return true;
+        }
+        in.reset();
+        return false;
+    }
+
     /**
      * Loads a ByteSerializable object's binary form from disk and
      * then instantiates a new object using the SerializationInputStream
@@ -32,6 +32,8 @@ import java.io.IOException;
 import org.junit.Test;
 
 import galileo.dataset.feature.Feature;
+import galileo.dataset.feature.IntegerFeatureData;
+import galileo.dataset.feature.LongFeatureData;
 import galileo.serialization.SerializationException;
 import galileo.serialization.Serializer;
 
@@ -92,10 +94,34 @@ public class Serialization {
         testSerialization(new Feature("interval", 1337.00d, 1000345.234d));
     }
 
+    @Test
+    public void testRawHeaderValue() throws Exception {
+        /* The legacy forms of these types begin with the raw value, which
+         * matches the compact header here; they must never be mistaken for
+         * the compact form. */
+        IntegerFeatureData i1 = new IntegerFeatureData(0xC0DE0C01);
+        for (boolean compact : new boolean[] { false, true }) {
+            byte[] bytes = Serializer.serialize(i1, compact);
+            IntegerFeatureData i2 = Serializer.deserialize(
+                    IntegerFeatureData.class, bytes);
+            assertEquals(i1.toInt(), i2.toInt());
+        }
+
+        LongFeatureData l1 = new LongFeatureData(0xC0DE0C01_00000007L);
+        byte[] bytes = Serializer.serialize(l1, true);
+        LongFeatureData l2 = Serializer.deserialize(
+                LongFeatureData.class, bytes);
+        assertEquals(l1.toLong(), l2.toLong());
+    }
+
     private void testSerialization(Feature f1)
     throws IOException, SerializationException {
-        byte[] bytes = Serializer.serialize(f1);
+        byte[] bytes = Serializer.serialize(f1, false);
         Feature f2 = Serializer.deserialize(Feature.class, bytes);
         assertEquals("Equality", f1, f2);
+
+        bytes = Serializer.serialize(f1, true);
+        f2 = Serializer.deserialize(Feature.class, bytes);
+        assertEquals("Compact equality", f1, f2);
     }
 }
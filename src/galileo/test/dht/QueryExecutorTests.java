@@ -0,0 +1,261 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.dht;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import galileo.dht.QueryExecutor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class QueryExecutorTests {
+
+    /**
+     * Counts the tasks of a job that run on pool threads at the same time.
+     * Tasks that start after a given time record the highest count seen.
+     */
+    private static class Occupancy {
+        private AtomicInteger active = new AtomicInteger();
+        private AtomicInteger ran = new AtomicInteger();
+        private AtomicInteger peak = new AtomicInteger();
+        private volatile long measureAfter = 0;
+
+        public List<Runnable> tasks(int count, final long sleepMillis) {
+            List<Runnable> tasks = new ArrayList<>();
+            for (int i = 0; i < count; ++i) {
+                tasks.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean pooled = Thread.currentThread()
+                            instanceof ForkJoinWorkerThread;
+                        int now = pooled ? active.incrementAndGet() : 0;
+                        if (System.nanoTime() > measureAfter) {
+                            peak.accumulateAndGet(now, Math::max);
+                        }
+                        try {
+                            Thread.sleep(sleepMillis);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            if (pooled) {
+                                active.decrementAndGet();
+                            }
+                            ran.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            return tasks;
+        }
+    }
+
+    @Test
+    public void testFairShare() throws Exception {
+        QueryExecutor executor = new QueryExecutor(4);
+
+        /* Alone, a job may use the whole pool */
+        Occupancy alone = new Occupancy();
+        assertTrue(executor.invokeAll("alone", alone.tasks(40, 5),
+                    30, TimeUnit.SECONDS));
+        assertEquals(40, alone.ran.get());
+        assertTrue(alone.peak.get() <= 4);
+
+        /* With another job active, each may only use half of it */
+        QueryExecutor.Job other = executor.newJob("other");
+        QueryExecutor.Job job = executor.newJob("shared");
+        Occupancy shared = new Occupancy();
+        try {
+            assertTrue(job.invokeAll(shared.tasks(40, 5),
+                        30, TimeUnit.SECONDS));
+        } finally {
+            job.close();
+            other.close();
+        }
+        assertEquals(40, shared.ran.get());
+        assertTrue(shared.peak.get() >= 1);
+        assertTrue(shared.peak.get() <= 2);
+    }
+
+    @Test
+    public void testHelpersYieldToNewJobs() throws Exception {
+        final QueryExecutor executor = new QueryExecutor(4);
+        final Occupancy first = new Occupancy();
+        ExecutorService caller = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> result = caller.submit(
+                    () -> executor.invokeAll("first", first.tasks(400, 5),
+                        30, TimeUnit.SECONDS));
+            while (first.ran.get() < 20) {
+                Thread.sleep(1);
+            }
+
+            /* Once a second job starts, helpers beyond the first job's new
+             * share stop taking tasks after finishing their current one */
+            QueryExecutor.Job second = executor.newJob("second");
+            try {
+                first.peak.set(0);
+                first.measureAfter = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(50);
+                assertTrue(result.get(30, TimeUnit.SECONDS));
+            } finally {
+                second.close();
+            }
+        } finally {
+            caller.shutdownNow();
+        }
+        assertEquals(400, first.ran.get());
+        assertTrue(first.peak.get() <= 2);
+    }
+
+    @Test
+    public void testCancelDiscardsQueuedTasks() throws Exception {
+        final QueryExecutor executor = new QueryExecutor(2);
+        final CountDownLatch started = new CountDownLatch(3);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger ran = new AtomicInteger();
+        final List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < 50; ++i) {
+            tasks.add(() -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                ran.incrementAndGet();
+            });
+        }
+
+        ExecutorService caller = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> result = caller.submit(
+                    () -> executor.invokeAll("query-1", tasks,
+                        30, TimeUnit.SECONDS));
+
+            /* The caller and both helpers are each running a task */
+            assertTrue(started.await(30, TimeUnit.SECONDS));
+            assertFalse(executor.cancel("query"));
+            assertTrue(executor.cancel("query-1"));
+            release.countDown();
+
+            assertFalse(result.get(30, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            caller.shutdownNow();
+        }
+        assertEquals(3, ran.get());
+    }
+
+    @Test
+    public void testTimeoutCancelsJob() throws Exception {
+        QueryExecutor executor = new QueryExecutor(2);
+        Occupancy occupancy = new Occupancy();
+        QueryExecutor.Job job = executor.newJob("slow");
+        try {
+            assertFalse(job.invokeAll(occupancy.tasks(20, 200),
+                        50, TimeUnit.MILLISECONDS));
+            assertTrue(job.isCancelled());
+
+            /* Tasks that were running finish; the rest never start */
+            Thread.sleep(500);
+            assertEquals(3, occupancy.ran.get());
+
+            /* Later batches of a cancelled job are not run at all */
+            Occupancy later = new Occupancy();
+            assertFalse(job.invokeAll(later.tasks(5, 0),
+                        30, TimeUnit.SECONDS));
+            assertEquals(0, later.ran.get());
+        } finally {
+            job.close();
+        }
+    }
+
+    @Test
+    public void testNestedBatchesWithoutSpareShare() throws Exception {
+        final QueryExecutor executor = new QueryExecutor(2);
+
+        /* Three active jobs on two threads: the nested job's share is one
+         * thread, which its outer tasks already occupy */
+        QueryExecutor.Job first = executor.newJob("first");
+        QueryExecutor.Job second = executor.newJob("second");
+        final QueryExecutor.Job job = executor.newJob("nested");
+        final AtomicInteger leaves = new AtomicInteger();
+
+        List<Runnable> outer = new ArrayList<>();
+        for (int i = 0; i < 4; ++i) {
+            outer.add(() -> {
+                assertSame(job, QueryExecutor.currentJob());
+                List<Runnable> middle = new ArrayList<>();
+                for (int j = 0; j < 4; ++j) {
+                    middle.add(() -> {
+                        List<Runnable> inner = new ArrayList<>();
+                        for (int k = 0; k < 4; ++k) {
+                            inner.add(() -> leaves.incrementAndGet());
+                        }
+                        try {
+                            assertTrue(executor.invokeAll("ignored", inner,
+                                        30, TimeUnit.SECONDS));
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    });
+                }
+                try {
+                    assertTrue(executor.invokeAll("ignored", middle,
+                                30, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+
+        ExecutorService caller = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> result = caller.submit(
+                    () -> job.invokeAll(outer, 30, TimeUnit.SECONDS));
+            assertTrue(result.get(30, TimeUnit.SECONDS));
+        } finally {
+            caller.shutdownNow();
+            job.close();
+            second.close();
+            first.close();
+        }
+        assertEquals(64, leaves.get());
+    }
+}
@@ -0,0 +1,313 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import galileo.comm.DebugEvent;
+import galileo.comm.FilesystemAction;
+import galileo.comm.FilesystemEvent;
+import galileo.comm.GalileoEventMap;
+import galileo.comm.StorageEvent;
+import galileo.dataset.Block;
+import galileo.dht.StorageNode;
+import galileo.event.BasicEventWrapper;
+import galileo.event.Event;
+import galileo.event.EventContext;
+import galileo.event.EventHandler;
+import galileo.event.OrderedEventReactor;
+import galileo.net.GalileoMessage;
+import galileo.net.MessageContext;
+
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class OrderedEventReactorTests {
+
+    private static final int SOURCES = 3;
+    private static final int EVENTS = 50;
+
+    private BasicEventWrapper wrapper
+        = new BasicEventWrapper(new GalileoEventMap());
+
+    /**
+     * Records the order events arrive in for each source, along with whether
+     * two events from one source were ever handled at the same time.
+     */
+    public static class Recorder {
+        private List<List<Integer>> order = new ArrayList<>();
+        private AtomicInteger[] active = new AtomicInteger[SOURCES];
+        private volatile boolean overlapped = false;
+        private CountDownLatch done;
+
+        public Recorder(int events) {
+            for (int i = 0; i < SOURCES; ++i) {
+                order.add(new ArrayList<Integer>());
+                active[i] = new AtomicInteger();
+            }
+            done = new CountDownLatch(events);
+        }
+
+        @EventHandler
+        public void handleDebug(DebugEvent event, EventContext context)
+        throws Exception {
+            byte[] payload = event.getPayload();
+            int source = payload[0];
+            if (active[source].incrementAndGet() > 1) {
+                overlapped = true;
+            }
+            Thread.sleep(1);
+            synchronized (order) {
+                order.get(source).add((int) payload[1]);
+            }
+            active[source].decrementAndGet();
+            done.countDown();
+        }
+    }
+
+    /**
+     * Waits at a barrier, which can only be passed if two events are handled
+     * concurrently.
+     */
+    public static class Rendezvous {
+        private CyclicBarrier barrier = new CyclicBarrier(2);
+        private AtomicInteger passed = new AtomicInteger();
+        private CountDownLatch done = new CountDownLatch(2);
+
+        @EventHandler
+        public void handleDebug(DebugEvent event, EventContext context)
+        throws InterruptedException {
+            try {
+                barrier.await(5, TimeUnit.SECONDS);
+                passed.incrementAndGet();
+            } catch (BrokenBarrierException | TimeoutException e) {
+                barrier.reset();
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+
+    /**
+     * Creates file systems slowly, and records blocks that arrive for a file
+     * system that does not exist yet.
+     */
+    public static class FileSystems {
+        private Set<String> created = ConcurrentHashMap.newKeySet();
+        private List<String> dropped = new ArrayList<>();
+        private CountDownLatch done;
+
+        public FileSystems(int blocks) {
+            done = new CountDownLatch(blocks);
+        }
+
+        @EventHandler
+        public void handleFileSystem(FilesystemEvent event,
+                EventContext context)
+        throws Exception {
+            Thread.sleep(100);
+            created.add(event.getName());
+        }
+
+        @EventHandler
+        public void handleStorage(StorageEvent store, EventContext context) {
+            String fsName = store.getBlock().getFilesystem();
+            if (created.contains(fsName) == false) {
+                synchronized (dropped) {
+                    dropped.add(fsName);
+                }
+            }
+            done.countDown();
+        }
+    }
+
+    /**
+     * Blocks the first event until the reactor is stopped.
+     */
+    public static class Blocker {
+        private CountDownLatch started = new CountDownLatch(1);
+
+        @EventHandler
+        public void handleDebug(DebugEvent event, EventContext context)
+        throws InterruptedException {
+            started.countDown();
+            new CountDownLatch(1).await();
+        }
+    }
+
+    private SelectionKey[] connections(Selector selector, int count)
+    throws Exception {
+        SelectionKey[] keys = new SelectionKey[count];
+        for (int i = 0; i < count; ++i) {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            keys[i] = channel.register(selector, 0);
+        }
+        return keys;
+    }
+
+    private GalileoMessage message(SelectionKey key, int source, int seq,
+            Long tag)
+    throws Exception {
+        DebugEvent event = new DebugEvent(
+                new byte[] { (byte) source, (byte) seq });
+        GalileoMessage wrapped = (tag == null)
+            ? wrapper.wrap(event) : wrapper.wrap(event, tag);
+        return new GalileoMessage(wrapped.getPayload(),
+                new MessageContext(null, key));
+    }
+
+    private GalileoMessage message(SelectionKey key, Event event)
+    throws Exception {
+        return new GalileoMessage(wrapper.wrap(event).getPayload(),
+                new MessageContext(null, key));
+    }
+
+    @Test
+    public void testConnectionOrder() throws Exception {
+        Recorder recorder = new Recorder(SOURCES * EVENTS);
+        OrderedEventReactor reactor
+            = new OrderedEventReactor(recorder, new GalileoEventMap(), 4);
+        reactor.start();
+        try (Selector selector = Selector.open()) {
+            SelectionKey[] keys = connections(selector, SOURCES);
+            for (int seq = 0; seq < EVENTS; ++seq) {
+                for (int source = 0; source < SOURCES; ++source) {
+                    reactor.onMessage(message(keys[source], source, seq,
+                                null));
+                }
+            }
+            assertTrue(recorder.done.await(30, TimeUnit.SECONDS));
+        } finally {
+            reactor.stop();
+        }
+
+        assertFalse(recorder.overlapped);
+        for (List<Integer> events : recorder.order) {
+            assertEquals(EVENTS, events.size());
+            for (int seq = 0; seq < EVENTS; ++seq) {
+                assertEquals(seq, (int) events.get(seq));
+            }
+        }
+    }
+
+    @Test
+    public void testTaggedRequestsRunConcurrently() throws Exception {
+        Rendezvous rendezvous = new Rendezvous();
+        OrderedEventReactor reactor
+            = new OrderedEventReactor(rendezvous, new GalileoEventMap(), 4);
+        reactor.start();
+        try (Selector selector = Selector.open()) {
+            SelectionKey key = connections(selector, 1)[0];
+            reactor.onMessage(message(key, 0, 0, 1L));
+            reactor.onMessage(message(key, 0, 1, 2L));
+            assertTrue(rendezvous.done.await(30, TimeUnit.SECONDS));
+        } finally {
+            reactor.stop();
+        }
+
+        /* both requests share a connection, but do not wait on each other */
+        assertEquals(2, rendezvous.passed.get());
+    }
+
+    @Test
+    public void testCreateThenStore() throws Exception {
+        FileSystems fileSystems = new FileSystems(SOURCES * 5);
+        OrderedEventReactor reactor = StorageNode.createEventReactor(
+                fileSystems, new GalileoEventMap());
+        reactor.start();
+        try (Selector selector = Selector.open()) {
+            SelectionKey[] keys = connections(selector, SOURCES);
+            for (int source = 0; source < SOURCES; ++source) {
+                String name = "testfs-" + source;
+                reactor.onMessage(message(keys[source], new FilesystemEvent(
+                                name, FilesystemAction.CREATE, null, null)));
+                for (int i = 0; i < 5; ++i) {
+                    reactor.onMessage(message(keys[source],
+                                new StorageEvent(new Block(name,
+                                        new byte[] { (byte) i }))));
+                }
+            }
+            assertTrue(fileSystems.done.await(30, TimeUnit.SECONDS));
+        } finally {
+            reactor.stop();
+        }
+
+        /* Blocks sent after a file system is created on the same connection
+         * are never handled before it exists */
+        assertEquals(new ArrayList<String>(), fileSystems.dropped);
+        assertEquals(SOURCES, fileSystems.created.size());
+    }
+
+    @Test
+    public void testMessagesAfterStop() throws Exception {
+        Blocker blocker = new Blocker();
+        OrderedEventReactor reactor
+            = new OrderedEventReactor(blocker, new GalileoEventMap(), 1);
+        reactor.start();
+        ExecutorService sender = Executors.newSingleThreadExecutor();
+        try (Selector selector = Selector.open()) {
+            SelectionKey key = connections(selector, 1)[0];
+            for (int seq = 0; seq < 10; ++seq) {
+                reactor.onMessage(message(key, 0, seq, null));
+            }
+            assertTrue(blocker.started.await(30, TimeUnit.SECONDS));
+            reactor.stop();
+
+            /* Messages left in the queue and messages arriving after the
+             * reactor has stopped are dropped without using up its capacity,
+             * so a full queue's worth can still be delivered */
+            GalileoMessage message = message(key, 0, 0, null);
+            Future<?> delivery = sender.submit(() -> {
+                for (int i = 0; i < 100000; ++i) {
+                    reactor.onMessage(message);
+                }
+            });
+            delivery.get(30, TimeUnit.SECONDS);
+        } finally {
+            sender.shutdownNow();
+            reactor.stop();
+        }
+    }
+}
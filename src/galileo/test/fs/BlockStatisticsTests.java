@@ -0,0 +1,78 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.fs;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import galileo.dataset.feature.Feature;
+import galileo.dataset.feature.FeatureType;
+import galileo.fs.BlockStatistics;
+import galileo.fs.ColumnarBlockWriter;
+import galileo.query.Expression;
+import galileo.query.Operation;
+import galileo.query.Operator;
+import galileo.query.Query;
+import galileo.serialization.Serializer;
+import galileo.util.Pair;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BlockStatisticsTests {
+
+    private BlockStatistics statistics(String csv) throws Exception {
+        List<Pair<String, FeatureType>> features = new ArrayList<>();
+        features.add(new Pair<>("temperature", FeatureType.FLOAT));
+        features.add(new Pair<>("station", FeatureType.STRING));
+        ColumnarBlockWriter writer = new ColumnarBlockWriter(features);
+        writer.addRows(csv.getBytes());
+        return writer.getBlockStatistics();
+    }
+
+    private Query query(Operator op, Feature value) {
+        return new Query(new Operation(new Expression(op, value)));
+    }
+
+    @Test
+    public void testPruning() throws Exception {
+        BlockStatistics stats = statistics("300.5,denver\n305.0,boulder");
+        stats.merge(statistics("290.0,pueblo"));
+        stats = Serializer.deserialize(BlockStatistics.class,
+                Serializer.serialize(stats));
+
+        assertFalse(stats.mayMatch(query(Operator.GREATER,
+                        new Feature("temperature", 310.0f))));
+        assertTrue(stats.mayMatch(query(Operator.LESS,
+                        new Feature("temperature", 295.0f))));
+        assertTrue(stats.mayMatch(query(Operator.EQUAL,
+                        new Feature("station", "pueblo"))));
+        assertFalse(stats.mayMatch(query(Operator.EQUAL,
+                        new Feature("station", "fort collins"))));
+    }
+}
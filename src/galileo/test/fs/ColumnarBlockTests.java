@@ -0,0 +1,180 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.fs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import galileo.dataset.feature.Feature;
+import galileo.dataset.feature.FeatureType;
+import galileo.fs.ColumnarBlockReader;
+import galileo.fs.ColumnarBlockWriter;
+import galileo.query.Expression;
+import galileo.query.Operation;
+import galileo.query.Operator;
+import galileo.query.Query;
+import galileo.util.Pair;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ColumnarBlockTests {
+
+    private static String block = "/tmp/columnar.gblock";
+
+    private List<Pair<String, FeatureType>> features() {
+        List<Pair<String, FeatureType>> features = new ArrayList<>();
+        features.add(new Pair<>("lat", FeatureType.FLOAT));
+        features.add(new Pair<>("count", FeatureType.INT));
+        features.add(new Pair<>("station", FeatureType.STRING));
+        return features;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        new File(block).delete();
+
+        ColumnarBlockWriter writer = new ColumnarBlockWriter(features());
+        writer.addRows("40.5,3,fort collins\n41.25,7,denver".getBytes());
+        writer.appendTo(block);
+
+        writer = new ColumnarBlockWriter(features());
+        writer.addRows("38.0,12,pueblo".getBytes());
+        writer.appendTo(block);
+
+        assertTrue(ColumnarBlockReader.isColumnar(new File(block)));
+        try (ColumnarBlockReader reader = new ColumnarBlockReader(block)) {
+            assertEquals(2, reader.getSegments().size());
+            assertEquals(3, reader.getRowCount());
+
+            ByteArrayOutputStream csv = new ByteArrayOutputStream();
+            reader.writeCSV(csv);
+            assertEquals("40.5,3,fort collins\n41.25,7,denver\n"
+                    + "38.0,12,pueblo", csv.toString("UTF-8"));
+            assertEquals(csv.size(), reader.getCSVLength());
+        }
+    }
+
+    @Test
+    public void testExactRoundTrip() throws Exception {
+        new File(block).delete();
+
+        String first = "40.50,3,fort collins\n"
+            + "41.123456789,,denver\n"
+            + "\n"
+            + "n/a,7\r\n"
+            + "38.0,12,pueblo,co\n";
+        String second = "39.75,x,z\u00fcrich";
+
+        ColumnarBlockWriter writer = new ColumnarBlockWriter(features());
+        writer.addRows(first.getBytes("UTF-8"));
+        writer.appendTo(block);
+
+        writer = new ColumnarBlockWriter(features());
+        writer.addRows(second.getBytes("UTF-8"));
+        writer.appendTo(block);
+
+        try (ColumnarBlockReader reader = new ColumnarBlockReader(block)) {
+            assertEquals(5, reader.getRowCount());
+
+            ByteArrayOutputStream csv = new ByteArrayOutputStream();
+            reader.writeCSV(csv);
+            assertEquals(first + "\n" + second, csv.toString("UTF-8"));
+            assertEquals(csv.size(), reader.asCSV().size());
+
+            ColumnarBlockReader.Segment segment = reader.getSegments().get(0);
+            assertEquals(40.5f, segment.getRow(0)[0].getFloat(), 0.0f);
+            assertEquals(0, segment.getRow(1)[1].getInt());
+        }
+    }
+
+    @Test
+    public void testSegmentPruning() throws Exception {
+        new File(block).delete();
+
+        ColumnarBlockWriter writer = new ColumnarBlockWriter(features());
+        writer.addRows("40.5,3,a\n41.25,7,b".getBytes());
+        writer.appendTo(block);
+
+        Query greater = new Query(new Operation(
+                    new Expression(Operator.GREATER, new Feature("count", 7))));
+        Query within = new Query(new Operation(
+                    new Expression(Operator.LESSEQUAL, new Feature("count", 3))));
+        try (ColumnarBlockReader reader = new ColumnarBlockReader(block)) {
+            ColumnarBlockReader.Segment segment = reader.getSegments().get(0);
+            assertFalse(segment.mayMatch(greater));
+            assertTrue(segment.mayMatch(within));
+        }
+    }
+
+    @Test
+    public void testFootprint() throws Exception {
+        new File(block).delete();
+
+        List<Pair<String, FeatureType>> features = new ArrayList<>();
+        features.add(new Pair<>("lat", FeatureType.FLOAT));
+        features.add(new Pair<>("lon", FeatureType.DOUBLE));
+        features.add(new Pair<>("temperature", FeatureType.FLOAT));
+        features.add(new Pair<>("count", FeatureType.INT));
+
+        /* Whole numbers in float columns, trailing zeros, CRLF line endings,
+         * and a few values that have to be kept as text */
+        int rows = 1000;
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < rows; ++i) {
+            csv.append(String.format("40.%02d,-105.%03d,%s,%d\r\n",
+                        i % 100, i % 1000,
+                        (i % 250 == 0) ? "" : Integer.toString(i % 40 - 10),
+                        i * 7));
+        }
+        csv.append("41.00,-104.5,1e3,0");
+
+        ColumnarBlockWriter writer = new ColumnarBlockWriter(features);
+        writer.addRows(csv.toString().getBytes("UTF-8"));
+        writer.appendTo(block);
+
+        long size = new File(block).length();
+        assertTrue(size < csv.length());
+        assertTrue(size < (rows + 1) * 20 + 512);
+
+        try (ColumnarBlockReader reader = new ColumnarBlockReader(block)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            reader.writeCSV(out);
+            assertEquals(csv.toString(), out.toString("UTF-8"));
+            assertEquals(out.size(), reader.getCSVLength());
+
+            ColumnarBlockReader.Segment segment = reader.getSegments().get(0);
+            assertEquals(40.5f, segment.getRow(50)[0].getFloat(), 0.0f);
+            assertEquals(-105.05, segment.getRow(50)[1].getDouble(), 0.0);
+            assertEquals(0.0f, segment.getRow(10)[2].getFloat(), 0.0f);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.fs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import galileo.dataset.feature.Feature;
+import galileo.fs.GraphSnapshot;
+import galileo.fs.PathJournal;
+import galileo.graph.BlockRegistry;
+import galileo.graph.FeaturePath;
+import galileo.graph.MetadataGraph;
+import galileo.graph.Path;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class GraphSnapshotTests {
+
+    private static String journal = "/tmp/snapshotjournal";
+    private static String snapshot = "/tmp/metadata.snapshot";
+
+    private void removeFiles() {
+        new File(journal).delete();
+        new File(journal + ".index").delete();
+        new File(journal + ".rotated").delete();
+        new File(snapshot).delete();
+    }
+
+    private static FeaturePath<String> path(int i) {
+        return new FeaturePath<>("/a/b/block" + i,
+                new Feature("region", i % 4),
+                new Feature("time", (long) i));
+    }
+
+    private static void index(PathJournal pj, MetadataGraph graph,
+            int from, int to) throws Exception {
+        List<FeaturePath<String>> paths = new ArrayList<>();
+        for (int i = from; i < to; ++i) {
+            paths.add(path(i));
+        }
+        pj.persistPaths(paths);
+        for (FeaturePath<String> path : paths) {
+            graph.addPath(path);
+        }
+    }
+
+    private static Set<String> contents(MetadataGraph graph) {
+        Set<String> contents = new HashSet<>();
+        for (Path<Feature, String> path : graph.getAllPaths()) {
+            contents.add(path.getLabels() + " " + new HashSet<>(
+                        path.getPayload()));
+        }
+        return contents;
+    }
+
+    @Test
+    public void testSnapshotAndTail() throws Exception {
+        removeFiles();
+
+        BlockRegistry registry = new BlockRegistry();
+        PathJournal pj = new PathJournal(journal, registry);
+        assertFalse(pj.recoverBlockPaths(
+                    new ArrayList<FeaturePath<Integer>>()));
+        pj.start();
+        MetadataGraph graph = new MetadataGraph(registry);
+        index(pj, graph, 0, 20);
+
+        pj.rotate();
+        int written = GraphSnapshot.write(new File(snapshot),
+                graph.getFeatureHierarchy(), graph);
+        pj.discardRotated();
+        assertEquals(20, written);
+
+        index(pj, graph, 20, 25);
+        pj.shutdown();
+
+        /* Restart: only the records written after the snapshot are left in
+         * the journal, and replaying them over the snapshot rebuilds the
+         * graph */
+        BlockRegistry recoveredRegistry = new BlockRegistry();
+        pj = new PathJournal(journal, recoveredRegistry);
+        List<FeaturePath<Integer>> tail = new ArrayList<>();
+        assertTrue(pj.recoverBlockPaths(tail));
+        assertEquals(5, tail.size());
+
+        MetadataGraph recovered = GraphSnapshot.read(new File(snapshot),
+                recoveredRegistry);
+        assertEquals(20, recovered.getAllPaths().size());
+        for (FeaturePath<Integer> path : tail) {
+            recovered.addBlockPath(path);
+        }
+        assertEquals(25, contents(graph).size());
+        assertEquals(contents(graph), contents(recovered));
+    }
+
+    @Test
+    public void testIncompleteSnapshot() throws Exception {
+        removeFiles();
+
+        BlockRegistry registry = new BlockRegistry();
+        PathJournal pj = new PathJournal(journal, registry);
+        pj.recoverBlockPaths(new ArrayList<FeaturePath<Integer>>());
+        pj.start();
+        MetadataGraph graph = new MetadataGraph(registry);
+        index(pj, graph, 0, 10);
+
+        /* The snapshot is never written, so the rotated records must still
+         * be replayed, along with the records written after them */
+        pj.rotate();
+        index(pj, graph, 10, 12);
+        pj.shutdown();
+        assertFalse(new File(snapshot).exists());
+
+        BlockRegistry recoveredRegistry = new BlockRegistry();
+        pj = new PathJournal(journal, recoveredRegistry);
+        List<FeaturePath<Integer>> paths = new ArrayList<>();
+        assertTrue(pj.recoverBlockPaths(paths));
+
+        MetadataGraph recovered = new MetadataGraph(recoveredRegistry);
+        for (FeaturePath<Integer> path : paths) {
+            recovered.addBlockPath(path);
+        }
+        assertEquals(contents(graph), contents(recovered));
+    }
+}
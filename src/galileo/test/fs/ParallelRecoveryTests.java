@@ -0,0 +1,173 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.fs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import galileo.dataset.Metadata;
+import galileo.fs.FileSystem;
+import galileo.fs.FileSystemException;
+import galileo.util.Pair;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+public class ParallelRecoveryTests {
+
+    private static String root = "/tmp/galileo-recovery";
+
+    /**
+     * Records the metadata handed to it during recovery instead of indexing
+     * it.  Blocks whose names contain "corrupt" can not be loaded.
+     */
+    private static class RecordingFileSystem extends FileSystem {
+        private List<String> stored = new ArrayList<>();
+        private Set<Thread> inserters = new HashSet<>();
+
+        public RecordingFileSystem()
+        throws FileSystemException, IOException {
+            super(root, "fs", true);
+        }
+
+        public File getStorageDirectory() {
+            return storageDirectory;
+        }
+
+        public void recoverAll() {
+            fullRecovery();
+        }
+
+        public void recoverBlocks(List<String> blockPaths) {
+            recover(blockPaths);
+        }
+
+        @Override
+        public Metadata loadMetadata(String blockPath)
+        throws IOException {
+            if (blockPath.contains("corrupt")) {
+                throw new IOException("Unreadable block: " + blockPath);
+            }
+            return new Metadata(new File(blockPath).getName());
+        }
+
+        @Override
+        protected void storeMetadata(List<Pair<String, Metadata>> batch)
+        throws FileSystemException, IOException {
+            inserters.add(Thread.currentThread());
+            super.storeMetadata(batch);
+        }
+
+        @Override
+        public void storeMetadata(Metadata metadata, String blockPath) {
+            assertEquals(new File(blockPath).getName(), metadata.getName());
+            stored.add(blockPath);
+        }
+
+        @Override
+        public void shutdown() { }
+    }
+
+    private static void removeTree() throws IOException {
+        Path path = new File(root).toPath();
+        if (Files.exists(path) == false) {
+            return;
+        }
+        List<Path> entries;
+        try (Stream<Path> walk = Files.walk(path)) {
+            entries = walk.sorted(Comparator.reverseOrder())
+                .collect(Collectors.toList());
+        }
+        for (Path entry : entries) {
+            Files.delete(entry);
+        }
+    }
+
+    private static List<String> createBlocks(File directory, int count)
+    throws IOException {
+        directory.mkdirs();
+        List<String> blocks = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            File block = new File(directory, "block" + i
+                    + FileSystem.BLOCK_EXTENSION);
+            block.createNewFile();
+            blocks.add(block.getAbsolutePath());
+        }
+        return blocks;
+    }
+
+    @Test
+    public void testFullRecovery() throws Exception {
+        removeTree();
+        RecordingFileSystem fs = new RecordingFileSystem();
+        File storage = fs.getStorageDirectory();
+
+        /* Enough blocks to fill several insert batches, spread over nested
+         * directories, one of which has to be split across the pool */
+        List<String> blocks = new ArrayList<>();
+        blocks.addAll(createBlocks(new File(storage, "a"), 1500));
+        blocks.addAll(createBlocks(new File(storage, "a/b"), 30));
+        blocks.addAll(createBlocks(new File(storage, "c/d/e"), 5));
+        new File(storage, "c/corrupt" + FileSystem.BLOCK_EXTENSION)
+            .createNewFile();
+        new File(storage, "c/notes.txt").createNewFile();
+
+        fs.recoverAll();
+
+        assertEquals(blocks.size(), fs.stored.size());
+        assertEquals(new HashSet<>(blocks), new HashSet<>(fs.stored));
+        assertEquals(1, fs.inserters.size());
+        assertTrue(fs.inserters.contains(Thread.currentThread()));
+        removeTree();
+    }
+
+    @Test
+    public void testBlockListRecovery() throws Exception {
+        removeTree();
+        RecordingFileSystem fs = new RecordingFileSystem();
+        List<String> blocks = createBlocks(fs.getStorageDirectory(), 200);
+        List<String> listed = new ArrayList<>(blocks);
+        listed.add(new File(fs.getStorageDirectory(),
+                    "corrupt" + FileSystem.BLOCK_EXTENSION).getPath());
+
+        fs.recoverBlocks(listed);
+
+        assertEquals(new HashSet<>(blocks), new HashSet<>(fs.stored));
+        assertEquals(blocks.size(), fs.stored.size());
+        removeTree();
+    }
+}
@@ -25,11 +25,19 @@ software, even if advised of the possibility of such damage.
 
 package galileo.test.fs;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 import galileo.dataset.feature.Feature;
 import galileo.fs.PathJournal;
+import galileo.graph.BlockRegistry;
 import galileo.graph.FeaturePath;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.junit.Test;
 
@@ -37,6 +45,7 @@ public class PathJournalTests {
 
     private static String journal = "/tmp/pathjournal";
     private static String index = "/tmp/pathjournal.index";
+    private static String rotated = "/tmp/pathjournal.rotated";
 
     public PathJournalTests() {
         removeJournal();
@@ -45,6 +54,31 @@ public class PathJournalTests {
     private void removeJournal() {
         new File(journal).delete();
         new File(index).delete();
+        new File(rotated).delete();
+    }
+
+    private static FeaturePath<String> path(int i) {
+        return new FeaturePath<>("/a/b/block" + i,
+                new Feature("humidity", (float) i),
+                new Feature("temperature", i * 2.0f));
+    }
+
+    private static List<FeaturePath<String>> recover() throws Exception {
+        List<FeaturePath<String>> paths = new ArrayList<>();
+        PathJournal pj = new PathJournal(journal);
+        assertTrue(pj.recover(paths));
+        return paths;
+    }
+
+    private static void assertPaths(int from, int to,
+            List<FeaturePath<String>> paths) {
+        assertEquals(to - from, paths.size());
+        for (int i = from; i < to; ++i) {
+            FeaturePath<String> expected = path(i);
+            FeaturePath<String> actual = paths.get(i - from);
+            assertEquals(expected.getLabels(), actual.getLabels());
+            assertEquals(expected.getPayload(), actual.getPayload());
+        }
     }
 
     @Test
@@ -72,4 +106,145 @@ public class PathJournalTests {
 
         System.out.println("=======");
     }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        removeJournal();
+
+        PathJournal pj = new PathJournal(journal);
+        pj.start();
+        try {
+            long sequence = 0;
+            for (int i = 0; i < 100; ++i) {
+                sequence = pj.persistPath(path(i));
+            }
+            pj.awaitDurable(sequence);
+
+            /* Records that are durable survive a crash, without the journal
+             * having been shut down */
+            assertPaths(0, 100, recover());
+        } finally {
+            pj.shutdown();
+        }
+    }
+
+    @Test
+    public void testTornTail() throws Exception {
+        removeJournal();
+
+        PathJournal pj = new PathJournal(journal);
+        pj.start();
+        for (int i = 0; i < 10; ++i) {
+            pj.persistPath(path(i));
+        }
+        pj.shutdown();
+
+        /* A crash in the middle of writing the last record leaves only part
+         * of it behind */
+        long length = new File(journal).length();
+        try (RandomAccessFile file = new RandomAccessFile(journal, "rw")) {
+            file.setLength(length - 5);
+        }
+
+        List<FeaturePath<String>> paths = new ArrayList<>();
+        pj = new PathJournal(journal);
+        assertTrue(pj.recover(paths));
+        assertPaths(0, 9, paths);
+
+        /* Records written after recovery must follow the last complete one */
+        pj.start();
+        for (int i = 10; i < 15; ++i) {
+            pj.persistPath(path(i));
+        }
+        pj.shutdown();
+
+        paths = recover();
+        assertPaths(0, 9, paths.subList(0, 9));
+        assertPaths(10, 15, paths.subList(9, paths.size()));
+    }
+
+    @Test
+    public void testCorruptRecord() throws Exception {
+        removeJournal();
+
+        PathJournal pj = new PathJournal(journal);
+        pj.start();
+        pj.persistPath(path(0));
+        pj.sync();
+        long first = new File(journal).length();
+        pj.persistPath(path(1));
+        pj.persistPath(path(2));
+        pj.shutdown();
+
+        /* Flip a byte inside the second record; its checksum no longer
+         * matches, so only that record is skipped */
+        try (RandomAccessFile file = new RandomAccessFile(journal, "rw")) {
+            file.seek(first + 14);
+            int b = file.read();
+            file.seek(first + 14);
+            file.write(b ^ 0xFF);
+        }
+
+        List<FeaturePath<String>> paths = recover();
+        assertEquals(2, paths.size());
+        assertEquals(path(0).getPayload(), paths.get(0).getPayload());
+        assertEquals(path(2).getPayload(), paths.get(1).getPayload());
+    }
+
+    @Test
+    public void testRotation() throws Exception {
+        removeJournal();
+
+        PathJournal pj = new PathJournal(journal);
+        pj.start();
+        for (int i = 0; i < 5; ++i) {
+            pj.persistPath(path(i));
+        }
+        pj.rotate();
+        assertEquals(0, pj.getRecordCount());
+        for (int i = 5; i < 8; ++i) {
+            pj.persistPath(path(i));
+        }
+        pj.shutdown();
+
+        /* Until a snapshot covers them, rotated records are still
+         * recovered ahead of the current ones */
+        assertPaths(0, 8, recover());
+
+        pj = new PathJournal(journal);
+        assertTrue(pj.recover(new ArrayList<FeaturePath<String>>()));
+        pj.start();
+        pj.discardRotated();
+        pj.shutdown();
+        assertPaths(5, 8, recover());
+    }
+
+    @Test
+    public void testMixedFormats() throws Exception {
+        removeJournal();
+
+        PathJournal pj = new PathJournal(journal, new BlockRegistry(), false);
+        assertFalse(pj.recover(new ArrayList<FeaturePath<String>>()));
+        pj.start();
+        for (int i = 0; i < 10; ++i) {
+            pj.persistPath(path(i));
+        }
+        pj.shutdown();
+        long legacy = new File(journal).length();
+
+        /* Compact records are appended after the legacy ones */
+        List<FeaturePath<String>> paths = new ArrayList<>();
+        pj = new PathJournal(journal, new BlockRegistry(), true);
+        assertTrue(pj.recover(paths));
+        assertPaths(0, 10, paths);
+        pj.start();
+        for (int i = 10; i < 20; ++i) {
+            pj.persistPath(path(i));
+        }
+        pj.shutdown();
+        long compact = new File(journal).length() - legacy;
+        assertTrue(compact < legacy);
+
+        assertPaths(0, 20, recover());
+    }
 }
@@ -0,0 +1,145 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import galileo.dataset.feature.Feature;
+import galileo.fs.PathJournal;
+import galileo.graph.BlockRegistry;
+import galileo.graph.FeaturePath;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BlockRegistryTests {
+
+    private static String journal = "/tmp/registryjournal";
+
+    @Test
+    public void testRegister() throws Exception {
+        BlockRegistry registry = new BlockRegistry();
+        assertEquals(0, (int) registry.register("/a"));
+        assertEquals(1, (int) registry.register("/b"));
+        assertEquals(0, (int) registry.register("/a"));
+        assertEquals(2, registry.size());
+
+        assertEquals("/b", registry.getPath(1));
+        assertEquals(1, (int) registry.getId("/b"));
+        assertNull(registry.getId("/c"));
+        assertNull(registry.getPath(2));
+        assertNull(registry.getPath(-1));
+    }
+
+    @Test
+    public void testRestore() throws Exception {
+        BlockRegistry registry = new BlockRegistry();
+
+        /* Mappings can be restored out of order and with gaps */
+        registry.restore(4, "/e");
+        registry.restore(1, "/b");
+        assertEquals(5, registry.size());
+        assertEquals("/e", registry.getPath(4));
+        assertEquals(1, (int) registry.getId("/b"));
+        assertNull(registry.getPath(2));
+
+        /* New paths are never given an identifier already in use */
+        assertEquals(5, (int) registry.register("/f"));
+        assertEquals(4, (int) registry.register("/e"));
+
+        /* Restoring an identifier again replaces its earlier path */
+        registry.restore(1, "/b2");
+        assertEquals("/b2", registry.getPath(1));
+        assertNull(registry.getId("/b"));
+        assertEquals(1, (int) registry.getId("/b2"));
+
+        List<String> resolved = new ArrayList<>();
+        registry.resolve(Arrays.asList(1, 2, 4, 9), resolved);
+        assertEquals(Arrays.asList("/b2", "/e"), resolved);
+    }
+
+    @Test
+    public void testPathConversion() throws Exception {
+        BlockRegistry registry = new BlockRegistry();
+        FeaturePath<String> named = new FeaturePath<>("/a/block",
+                new Feature("humidity", 32.3f),
+                new Feature("wind", 5.0f));
+        named.addPayload("/a/other");
+
+        FeaturePath<Integer> ids = registry.toBlockPath(named);
+        assertEquals(named.getLabels(), ids.getLabels());
+        assertEquals(new HashSet<>(Arrays.asList(0, 1)),
+                new HashSet<>(ids.getPayload()));
+
+        FeaturePath<String> back = registry.toNamedPath(ids);
+        assertEquals(named.getLabels(), back.getLabels());
+        assertEquals(new HashSet<>(named.getPayload()),
+                new HashSet<>(back.getPayload()));
+    }
+
+    @Test
+    public void testJournalRestore() throws Exception {
+        new File(journal).delete();
+        new File(journal + ".index").delete();
+
+        BlockRegistry registry = new BlockRegistry();
+        registry.register("/unjournaled");
+        PathJournal pj = new PathJournal(journal, registry);
+        pj.start();
+        List<FeaturePath<String>> paths = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            paths.add(new FeaturePath<>("/blocks/" + (i % 7),
+                        new Feature("temperature", (float) i)));
+        }
+        pj.persistPaths(paths);
+        pj.shutdown();
+
+        /* The journal index restores the identifiers recorded in the paths,
+         * so they resolve to the same blocks after a restart */
+        BlockRegistry recovered = new BlockRegistry();
+        pj = new PathJournal(journal, recovered);
+        List<FeaturePath<Integer>> blockPaths = new ArrayList<>();
+        assertTrue(pj.recoverBlockPaths(blockPaths));
+        assertEquals(registry.size(), recovered.size());
+        for (int id = 0; id < registry.size(); ++id) {
+            assertEquals(registry.getPath(id), recovered.getPath(id));
+        }
+
+        assertEquals(10, blockPaths.size());
+        for (int i = 0; i < 10; ++i) {
+            int id = blockPaths.get(i).getPayload().iterator().next();
+            assertEquals("/blocks/" + (i % 7), recovered.getPath(id));
+        }
+        assertEquals(8, (int) recovered.register("/new"));
+    }
+}
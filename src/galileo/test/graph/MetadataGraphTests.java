@@ -0,0 +1,223 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import galileo.dataset.feature.Feature;
+import galileo.graph.FeaturePath;
+import galileo.graph.MetadataGraph;
+import galileo.graph.Path;
+import galileo.graph.PathVisitor;
+import galileo.query.Expression;
+import galileo.query.Operation;
+import galileo.query.Operator;
+import galileo.query.Query;
+import galileo.serialization.SerializationInputStream;
+import galileo.serialization.SerializationOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class MetadataGraphTests {
+
+    private static FeaturePath<String> path(int i) {
+        return new FeaturePath<>("block" + i,
+                new Feature("region", i % 16),
+                new Feature("hour", i % 24),
+                new Feature("time", (long) i));
+    }
+
+    @Test
+    public void testSerializeWhileAdding() throws Exception {
+        final MetadataGraph graph = new MetadataGraph();
+        for (int i = 0; i < 1000; ++i) {
+            graph.addPath(path(i));
+        }
+
+        ByteArrayOutputStream hierarchy = new ByteArrayOutputStream();
+        MetadataGraph.writeHierarchy(new SerializationOutputStream(hierarchy),
+                graph.getFeatureHierarchy());
+        final int countEnd = hierarchy.size() + 4;
+
+        /* Adds a path as soon as the path count has been written, which
+         * must not leave the count out of step with the paths that follow */
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream adding = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                bytes.write(b);
+                if (bytes.size() == countEnd) {
+                    try {
+                        graph.addPath(path(1000));
+                    } catch (Exception e) {
+                        throw new IOException(e);
+                    }
+                }
+            }
+        };
+        SerializationOutputStream out = new SerializationOutputStream(adding);
+        graph.serialize(out);
+        out.flush();
+
+        SerializationInputStream in = new SerializationInputStream(
+                ByteBuffer.wrap(bytes.toByteArray()));
+        MetadataGraph copy = new MetadataGraph(in);
+        assertEquals(-1, in.read());
+        assertEquals(1000, copy.getAllPaths().size());
+        assertEquals(1001, graph.getAllPaths().size());
+    }
+
+    /**
+     * Collects the blocks of the paths handed to it, checking that each
+     * path lies in the queried region.
+     */
+    private static class RegionCollector implements PathVisitor<Integer> {
+        private MetadataGraph graph;
+        private Set<String> blocks = new HashSet<>();
+
+        public RegionCollector(MetadataGraph graph) {
+            this.graph = graph;
+        }
+
+        @Override
+        public void visit(List<Feature> labels, Set<Integer> payload) {
+            boolean inRegion = false;
+            for (Feature label : labels) {
+                if (label.getName().equals("region") && label.getInt() == 3) {
+                    inRegion = true;
+                }
+            }
+            if (inRegion == false) {
+                throw new IllegalStateException("Path outside of region: "
+                        + labels);
+            }
+            for (int id : payload) {
+                blocks.add(graph.getBlockRegistry().getPath(id));
+            }
+        }
+    }
+
+    @Test
+    public void testQueriesDuringIngest() throws Exception {
+        final MetadataGraph graph = new MetadataGraph();
+        final Set<String> seeded = new HashSet<>();
+        for (int i = 0; i < 1000; ++i) {
+            graph.addPath(path(i));
+            if (i % 16 == 3) {
+                seeded.add("block" + i);
+            }
+        }
+
+        /* New regions introduce vertices above the stripe depth, so writers
+         * take both the subtree and the structure locks */
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicBoolean done = new AtomicBoolean(false);
+        List<Thread> writers = new ArrayList<>();
+        for (int w = 0; w < 2; ++w) {
+            final int first = 1000 + w;
+            writers.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = first; i < 6000; i += 2) {
+                            graph.addPath(new FeaturePath<>("block" + i,
+                                        new Feature("region", i % 20),
+                                        new Feature("hour", i % 24),
+                                        new Feature("time", (long) i)));
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+        }
+
+        final Query query = new Query(new Operation(
+                    new Expression(Operator.EQUAL, new Feature("region", 3))));
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < 2; ++r) {
+            readers.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (done.get() == false) {
+                            RegionCollector collector
+                                = new RegionCollector(graph);
+                            graph.visitBlockQuery(query, collector);
+                            if (collector.blocks.containsAll(seeded)
+                                    == false) {
+                                throw new IllegalStateException(
+                                        "Query missed existing paths");
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+        }
+
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get());
+
+        Set<String> expected = new HashSet<>(seeded);
+        for (int i = 1000; i < 6000; ++i) {
+            if (i % 20 == 3) {
+                expected.add("block" + i);
+            }
+        }
+        Set<String> blocks = new HashSet<>();
+        for (Path<Feature, String> path : graph.evaluateQuery(query)) {
+            blocks.addAll(path.getPayload());
+        }
+        assertEquals(expected, blocks);
+        assertEquals(6000, graph.getAllPaths().size());
+    }
+}
@@ -0,0 +1,199 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import galileo.dataset.feature.Feature;
+import galileo.graph.FeaturePath;
+import galileo.graph.HierarchicalGraph;
+import galileo.graph.HierarchicalQueryTracker;
+import galileo.graph.Path;
+import galileo.query.Expression;
+import galileo.query.Operation;
+import galileo.query.Operator;
+import galileo.query.Query;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Compares the single-pass evaluation of queries with the evaluation of each
+ * of their Operations on its own, and with checking every path directly.
+ */
+public class QueryEvaluationTests {
+
+    private static final String[] stations = { "a", "b", "c", "d" };
+
+    private static final Operator[] operators = {
+        Operator.EQUAL, Operator.NOTEQUAL, Operator.LESS, Operator.LESSEQUAL,
+        Operator.GREATER, Operator.GREATEREQUAL
+    };
+
+    private static Feature feature(String name, Random random) {
+        switch (name) {
+            case "temperature":
+                return new Feature(name, random.nextInt(20) * 1.5f);
+            case "humidity":
+                return new Feature(name, random.nextInt(10));
+            default:
+                return new Feature(name, stations[random.nextInt(4)]);
+        }
+    }
+
+    private static Query randomQuery(Random random) {
+        String[] names = { "temperature", "humidity", "station" };
+        Query query = new Query();
+        int numOps = 1 + random.nextInt(3);
+        for (int op = 0; op < numOps; ++op) {
+            Operation operation = new Operation();
+            int numExpressions = 1 + random.nextInt(3);
+            for (int e = 0; e < numExpressions; ++e) {
+                String name = names[random.nextInt(names.length)];
+                Operator operator = name.equals("station")
+                    ? operators[random.nextInt(2)]
+                    : operators[random.nextInt(operators.length)];
+                operation.addExpressions(
+                        new Expression(operator, feature(name, random)));
+            }
+            query.addOperation(operation);
+        }
+        return query;
+    }
+
+    private static Set<Integer> payloads(List<Path<Feature, Integer>> paths) {
+        Set<Integer> payloads = new HashSet<>();
+        for (Path<Feature, Integer> path : paths) {
+            payloads.addAll(path.getPayload());
+        }
+        return payloads;
+    }
+
+    private static Set<List<Feature>> labels(
+            List<Path<Feature, Integer>> paths) {
+        Set<List<Feature>> labels = new HashSet<>();
+        for (Path<Feature, Integer> path : paths) {
+            labels.add(path.getLabels());
+        }
+        return labels;
+    }
+
+    private static Set<Integer> perOperation(HierarchicalGraph<Integer> graph,
+            Query query) {
+        Set<Integer> payloads = new HashSet<>();
+        for (Operation operation : query.getOperations()) {
+            HierarchicalQueryTracker<Integer> tracker
+                = new HierarchicalQueryTracker<>(graph.getRoot(),
+                        graph.getFeatureHierarchy().size());
+            graph.evaluateOperation(operation, tracker);
+            payloads.addAll(payloads(tracker.getQueryResults()));
+        }
+        return payloads;
+    }
+
+    @Test
+    public void testRandomQueries() throws Exception {
+        Random random = new Random(23);
+        HierarchicalGraph<Integer> graph = new HierarchicalGraph<>();
+        List<FeaturePath<Integer>> paths = new ArrayList<>();
+        for (int i = 0; i < 500; ++i) {
+            Feature temperature = feature("temperature", random);
+            Feature humidity = feature("humidity", random);
+            Feature station = feature("station", random);
+            paths.add(new FeaturePath<>(i, temperature, humidity, station));
+            graph.addPath(new FeaturePath<>(i,
+                        temperature, humidity, station));
+        }
+
+        int matched = 0;
+        for (int q = 0; q < 300; ++q) {
+            Query query = randomQuery(random);
+
+            Set<Integer> expected = new HashSet<>();
+            for (FeaturePath<Integer> path : paths) {
+                if (path.satisfiesQuery(query)) {
+                    expected.addAll(path.getPayload());
+                }
+            }
+
+            List<Path<Feature, Integer>> results = graph.evaluateQuery(query);
+            Set<Integer> actual = payloads(results);
+            assertEquals(query.toString(), expected, actual);
+            assertEquals(query.toString(), perOperation(graph, query), actual);
+
+            /* Paths that satisfy several Operations are only returned once */
+            assertEquals(query.toString(), labels(results).size(),
+                    results.size());
+            if (actual.isEmpty() == false) {
+                matched++;
+            }
+        }
+        assertTrue(matched > 100);
+    }
+
+    @Test
+    public void testOverlappingOperations() throws Exception {
+        HierarchicalGraph<Integer> graph = new HierarchicalGraph<>();
+        for (int i = 0; i < 10; ++i) {
+            graph.addPath(new FeaturePath<>(i,
+                        new Feature("humidity", i),
+                        new Feature("station", stations[i % 4])));
+        }
+
+        /* Identical and overlapping ranges over the same levels */
+        Query query = new Query();
+        query.addOperation(new Operation(
+                    new Expression(Operator.GREATEREQUAL,
+                        new Feature("humidity", 2)),
+                    new Expression(Operator.LESS,
+                        new Feature("humidity", 8))));
+        query.addOperation(new Operation(
+                    new Expression(Operator.GREATEREQUAL,
+                        new Feature("humidity", 2)),
+                    new Expression(Operator.LESS,
+                        new Feature("humidity", 8)),
+                    new Expression(Operator.EQUAL,
+                        new Feature("station", "a"))));
+        query.addOperation(new Operation(
+                    new Expression(Operator.GREATER,
+                        new Feature("humidity", 6))));
+
+        List<Path<Feature, Integer>> results = graph.evaluateQuery(query);
+        Set<Integer> expected = new HashSet<>();
+        for (int i = 2; i < 10; ++i) {
+            expected.add(i);
+        }
+        assertEquals(expected, payloads(results));
+        assertEquals(expected.size(), results.size());
+        assertEquals(perOperation(graph, query), payloads(results));
+    }
+}
@@ -31,7 +31,11 @@ import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
 @SuiteClasses({
+    BlockRegistryTests.class,
     FeaturePathQuery.class,
+    MetadataGraphTests.class,
+    QueryEvaluationTests.class,
     VariableTickHashing.class,
+    VertexTests.class,
 })
 public class TestSuite { }
@@ -0,0 +1,181 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import galileo.graph.Vertex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class VertexTests {
+
+    private static void checkEdges(Vertex<Integer, Integer> vertex,
+            TreeMap<Integer, Vertex<Integer, Integer>> expected) {
+        assertEquals(new ArrayList<>(expected.keySet()),
+                new ArrayList<>(vertex.getNeighborLabels()));
+        assertEquals(new ArrayList<>(expected.values()),
+                new ArrayList<>(vertex.getAllNeighbors()));
+        for (Integer label : expected.keySet()) {
+            assertSame(expected.get(label), vertex.getNeighbor(label));
+        }
+        assertNull(vertex.getNeighbor(-1));
+        assertNull(vertex.getNeighbor(1000));
+
+        assertEquals(new ArrayList<>(expected.headMap(50, true).keySet()),
+                new ArrayList<>(vertex.getNeighborsLessThan(50, true)
+                    .keySet()));
+        assertEquals(new ArrayList<>(expected.tailMap(50, false).keySet()),
+                new ArrayList<>(vertex.getNeighborsGreaterThan(50, false)
+                    .keySet()));
+    }
+
+    private static void connect(Vertex<Integer, Integer> vertex,
+            TreeMap<Integer, Vertex<Integer, Integer>> expected,
+            List<Integer> labels) {
+        for (int label : labels) {
+            Vertex<Integer, Integer> edge = vertex.connect(
+                    new Vertex<Integer, Integer>(label, label));
+            if (expected.containsKey(label) == false) {
+                expected.put(label, edge);
+            }
+            assertSame(expected.get(label), edge);
+        }
+    }
+
+    @Test
+    public void testEdgesBeforeAndAfterFreeze() throws Exception {
+        List<Integer> labels = new ArrayList<>();
+        for (int i = 0; i < 100; i += 2) {
+            labels.add(i);
+        }
+        Collections.shuffle(labels, new Random(6));
+
+        Vertex<Integer, Integer> root = new Vertex<>();
+        TreeMap<Integer, Vertex<Integer, Integer>> expected = new TreeMap<>();
+        connect(root, expected, labels);
+        checkEdges(root, expected);
+
+        root.freeze();
+        checkEdges(root, expected);
+
+        /* Frozen vertices can still be modified; odd labels fall between
+         * the existing ones, and existing labels are merged */
+        List<Integer> more = new ArrayList<>();
+        for (int i = 1; i < 100; i += 2) {
+            more.add(i);
+        }
+        more.addAll(labels.subList(0, 10));
+        Collections.shuffle(more, new Random(21));
+        connect(root, expected, more);
+        checkEdges(root, expected);
+
+        root.freeze();
+        checkEdges(root, expected);
+        assertEquals(100, root.numDescendants());
+    }
+
+    @Test
+    public void testValuesBeforeAndAfterFreeze() throws Exception {
+        Vertex<Integer, Integer> vertex = new Vertex<>(1);
+        assertTrue(vertex.getValues().isEmpty());
+
+        /* Small sets are stored inline and large ones hashed; check both
+         * sides of the cutover as well as freezing each of them */
+        Set<Integer> expected = new HashSet<>();
+        for (int i = 0; i < 40; ++i) {
+            vertex.addValue(i % 25);
+            expected.add(i % 25);
+            assertEquals(expected, vertex.getValues());
+            assertEquals(expected.size(), vertex.getValues().size());
+
+            if (i % 3 == 0) {
+                vertex.freeze();
+                assertEquals(expected, vertex.getValues());
+            }
+        }
+        for (int i = 0; i < 25; ++i) {
+            assertTrue(vertex.getValues().contains(i));
+        }
+        assertFalse(vertex.getValues().contains(25));
+
+        vertex.addValues(Arrays.asList(30, 31, 30));
+        expected.addAll(Arrays.asList(30, 31));
+        vertex.freeze();
+        assertEquals(expected, vertex.getValues());
+    }
+
+    @Test
+    public void testValueRemoval() throws Exception {
+        Vertex<Integer, Integer> vertex = new Vertex<>(1,
+                Arrays.asList(1, 2, 3, 4));
+        vertex.freeze();
+
+        Iterator<Integer> it = vertex.getValues().iterator();
+        while (it.hasNext()) {
+            if (it.next() % 2 == 0) {
+                it.remove();
+            }
+        }
+        assertEquals(new HashSet<>(Arrays.asList(1, 3)), vertex.getValues());
+
+        vertex.addValue(5);
+        assertEquals(new HashSet<>(Arrays.asList(1, 3, 5)),
+                vertex.getValues());
+
+        vertex.getValues().clear();
+        vertex.freeze();
+        assertTrue(vertex.getValues().isEmpty());
+        vertex.addValue(7);
+        assertEquals(Collections.singleton(7), vertex.getValues());
+    }
+
+    @Test
+    public void testMergedValues() throws Exception {
+        Vertex<Integer, Integer> root = new Vertex<>();
+        root.connect(new Vertex<Integer, Integer>(3, 1));
+        root.freeze();
+
+        Vertex<Integer, Integer> edge = root.connect(
+                new Vertex<Integer, Integer>(3, Arrays.asList(2, 1)));
+        assertSame(root.getNeighbor(3), edge);
+        assertEquals(new HashSet<>(Arrays.asList(1, 2)), edge.getValues());
+    }
+}
@@ -0,0 +1,198 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import galileo.net.GalileoMessage;
+import galileo.net.MessageListener;
+import galileo.net.MessageRouter;
+import galileo.net.NetworkDestination;
+import galileo.net.ServerMessageRouter;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Sends hand-built frames to a {@link ServerMessageRouter} and checks the
+ * messages it reassembles.  Small read buffers make the router handle each
+ * frame a few bytes at a time, so headers are split at every boundary.
+ */
+public class ChunkedFramingTests {
+
+    /** Chunk flag marking the final chunk of a stream */
+    private static final byte LAST_CHUNK = 0x01;
+
+    /**
+     * Collects the text of each message the router dispatches.
+     */
+    private static class Collector implements MessageListener {
+        private BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onMessage(GalileoMessage message) {
+            messages.add(new String(message.getPayloadArray(),
+                        message.getOffset(), message.getLength(),
+                        StandardCharsets.UTF_8));
+            message.release();
+        }
+
+        @Override
+        public void onConnect(NetworkDestination endpoint) { }
+
+        @Override
+        public void onDisconnect(NetworkDestination endpoint) { }
+
+        public String next()
+        throws InterruptedException {
+            return messages.poll(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static byte[] message(String text) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(
+                MessageRouter.PREFIX_SZ + payload.length);
+        frame.putInt(payload.length);
+        frame.put(payload);
+        return frame.array();
+    }
+
+    private static byte[] chunk(int streamId, String text, boolean last) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(
+                MessageRouter.CHUNK_HEADER_SZ + payload.length);
+        frame.putInt(~payload.length);
+        frame.putInt(streamId);
+        frame.put(last ? LAST_CHUNK : 0);
+        frame.put(payload);
+        return frame.array();
+    }
+
+    private static int freePort()
+    throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void write(SocketChannel channel, byte[] bytes)
+    throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    @Test
+    public void testInterleavedStreams() throws Exception {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        frames.write(chunk(1, "alpha-", false));
+        frames.write(chunk(2, "bravo-", false));
+        frames.write(message("plain"));
+        frames.write(chunk(7, "single", true));
+        frames.write(chunk(2, "", false));
+        frames.write(chunk(1, "one", true));
+        frames.write(chunk(2, "two", true));
+        frames.write(chunk(1, "again", true));
+        byte[] bytes = frames.toByteArray();
+
+        int[] readSizes = new int[MessageRouter.CHUNK_HEADER_SZ + 3];
+        for (int i = 0; i < readSizes.length - 1; ++i) {
+            readSizes[i] = i + 1;
+        }
+        readSizes[readSizes.length - 1] = 8192;
+
+        for (int readSize : readSizes) {
+            Collector collector = new Collector();
+            ServerMessageRouter router = new ServerMessageRouter(readSize,
+                    MessageRouter.DEFAULT_WRITE_QUEUE_SIZE);
+            router.addListener(collector);
+            int port = freePort();
+            router.listen(port);
+            try (SocketChannel channel = SocketChannel.open(
+                        new InetSocketAddress("localhost", port))) {
+                write(channel, bytes);
+
+                /* Messages are dispatched once complete; stream ids can be
+                 * reused after their last chunk */
+                for (String expected : Arrays.asList("plain", "single",
+                            "alpha-one", "bravo-two", "again")) {
+                    assertEquals("read size " + readSize, expected,
+                            collector.next());
+                }
+            } finally {
+                router.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testSplitHeader() throws Exception {
+        Collector collector = new Collector();
+        ServerMessageRouter router = new ServerMessageRouter();
+        router.addListener(collector);
+        int port = freePort();
+        router.listen(port);
+        try (SocketChannel channel = SocketChannel.open(
+                    new InetSocketAddress("localhost", port))) {
+            /* The router reads each part as it arrives, so the header is
+             * split at exactly the given boundary */
+            for (int split = 1; split < MessageRouter.CHUNK_HEADER_SZ;
+                    ++split) {
+                byte[] frame = chunk(split, "part-" + split, true);
+                write(channel, Arrays.copyOfRange(frame, 0, split));
+                Thread.sleep(20);
+                write(channel, Arrays.copyOfRange(frame, split,
+                            frame.length));
+                assertEquals("part-" + split, collector.next());
+            }
+
+            for (int split = 1; split < MessageRouter.PREFIX_SZ; ++split) {
+                byte[] frame = message("whole-" + split);
+                write(channel, Arrays.copyOfRange(frame, 0, split));
+                Thread.sleep(20);
+                write(channel, Arrays.copyOfRange(frame, split,
+                            frame.length));
+                assertEquals("whole-" + split, collector.next());
+            }
+        } finally {
+            router.shutdown();
+        }
+        assertNull(collector.messages.poll());
+    }
+}
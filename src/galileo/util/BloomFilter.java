@@ -0,0 +1,143 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import galileo.serialization.ByteSerializable;
+import galileo.serialization.SerializationInputStream;
+import galileo.serialization.SerializationOutputStream;
+
+/**
+ * A simple Bloom filter over String values.  Membership tests may return
+ * false positives, but never false negatives.  Filters with the same size and
+ * number of hash functions can be merged.
+ */
+public class BloomFilter implements ByteSerializable {
+
+    private long[] bits;
+    private int numHashes;
+
+    /**
+     * Creates an empty filter.
+     *
+     * @param numBits size of the filter, rounded up to a multiple of 64.
+     * @param numHashes number of bits set for each value.
+     */
+    public BloomFilter(int numBits, int numHashes) {
+        if (numBits <= 0 || numHashes <= 0) {
+            throw new IllegalArgumentException("Bloom filter size and hash "
+                    + "count must be positive");
+        }
+        this.bits = new long[(numBits + 63) / 64];
+        this.numHashes = numHashes;
+    }
+
+    public void add(String value) {
+        long hash = hash(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long numBits = bits.length * 64L;
+        for (int i = 0; i < numHashes; ++i) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    public boolean mightContain(String value) {
+        long hash = hash(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long numBits = bits.length * 64L;
+        for (int i = 0; i < numHashes; ++i) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Determines whether another filter can be merged into this one.
+     */
+    public boolean isCompatible(BloomFilter other) {
+        return other.bits.length == bits.length
+            && other.numHashes == numHashes;
+    }
+
+    /**
+     * Adds every value in another filter to this one.
+     *
+     * @throws IllegalArgumentException if the filters are not compatible.
+     */
+    public void merge(BloomFilter other) {
+        if (isCompatible(other) == false) {
+            throw new IllegalArgumentException("Cannot merge Bloom filters "
+                    + "of different sizes");
+        }
+        for (int i = 0; i < bits.length; ++i) {
+            bits[i] |= other.bits[i];
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the UTF-8 bytes of a String, followed by a
+     * finalization step to spread the bits.
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= (b & 0xff);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= (hash >>> 33);
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= (hash >>> 33);
+        return hash;
+    }
+
+    @Deserialize
+    public BloomFilter(SerializationInputStream in)
+    throws IOException {
+        numHashes = in.readInt();
+        bits = new long[in.readInt()];
+        for (int i = 0; i < bits.length; ++i) {
+            bits[i] = in.readLong();
+        }
+    }
+
+    @Override
+    public void serialize(SerializationOutputStream out)
+    throws IOException {
+        out.writeInt(numHashes);
+        out.writeInt(bits.length);
+        for (long word : bits) {
+            out.writeLong(word);
+        }
+    }
+}